@@ -0,0 +1,86 @@
+package gr.antopapak.persistent.audit.benchmark;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import gr.antopapak.persistent.audit.aspect.PersistentAuditAspect;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.SpringBootConfiguration;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
+import org.springframework.boot.autoconfigure.domain.EntityScan;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.EnvironmentAware;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.ComponentScan;
+import org.springframework.context.annotation.FilterType;
+import org.springframework.core.env.Environment;
+import org.springframework.core.type.classreading.MetadataReader;
+import org.springframework.core.type.classreading.MetadataReaderFactory;
+import org.springframework.core.type.filter.TypeFilter;
+import org.springframework.data.domain.AuditorAware;
+import org.springframework.data.jpa.repository.config.EnableJpaRepositories;
+
+/**
+ * A sample application with audited entities, on an in-memory H2 database.<br>
+ *
+ * With {@code benchmark.auditing=false} the {@link PersistentAuditAspect} is left out,
+ * so the same entities and repositories can be measured without auditing.
+ */
+@SpringBootConfiguration
+@EnableAutoConfiguration
+@ComponentScan(
+    basePackages = "gr.antopapak.persistent.audit",
+    excludeFilters = @ComponentScan.Filter(type = FilterType.CUSTOM, classes = BenchmarkApplication.AuditingFilter.class)
+)
+@EntityScan(basePackages = "gr.antopapak.persistent.audit")
+@EnableJpaRepositories(basePackages = "gr.antopapak.persistent.audit")
+public class BenchmarkApplication {
+
+  static final String AUDITING = "benchmark.auditing";
+
+  @Bean
+  AuditorAware<String> auditorAware() {
+    return () -> Optional.of("benchmark");
+  }
+
+  /**
+   * Starts the application on a database of its own.
+   *
+   * @param properties additional properties, as {@code name=value}
+   */
+  public static ConfigurableApplicationContext start(String... properties) {
+    List<String> args = new ArrayList<>(List.of(
+        "--spring.datasource.url=jdbc:h2:mem:" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1",
+        "--spring.jpa.hibernate.ddl-auto=create",
+        "--spring.jpa.open-in-view=false",
+        "--spring.main.banner-mode=off",
+        "--logging.level.root=WARN"
+    ));
+    Arrays.stream(properties).map(p -> "--" + p).forEach(args::add);
+
+    SpringApplication application = new SpringApplication(BenchmarkApplication.class);
+    application.setWebApplicationType(WebApplicationType.NONE);
+    return application.run(args.toArray(new String[0]));
+  }
+
+  /**
+   * Leaves the {@link PersistentAuditAspect} out of the component scan when auditing is off.
+   */
+  static class AuditingFilter implements TypeFilter, EnvironmentAware {
+
+    private boolean auditing = true;
+
+    @Override
+    public void setEnvironment(Environment environment) {
+      auditing = environment.getProperty(AUDITING, Boolean.class, true);
+    }
+
+    @Override
+    public boolean match(MetadataReader metadataReader, MetadataReaderFactory metadataReaderFactory) {
+      return !auditing && PersistentAuditAspect.class.getName().equals(metadataReader.getClassMetadata().getClassName());
+    }
+  }
+}
@@ -0,0 +1,92 @@
+package gr.antopapak.persistent.audit.benchmark;
+
+import gr.antopapak.persistent.audit.annotation.PersistentLogAudit;
+import java.math.BigDecimal;
+import java.time.Instant;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.Id;
+
+/**
+ * An audited entity with 9 loggable fields.
+ */
+@Entity
+@PersistentLogAudit
+public class Customer {
+
+  @Id
+  @GeneratedValue
+  private Long id;
+
+  private String name;
+  private String email;
+  private String phone;
+  private String city;
+  private String country;
+  private BigDecimal balance;
+  private int loyaltyPoints;
+  private boolean active;
+  private Instant lastLogin;
+
+  public Customer() {
+  }
+
+  public Customer(Customer other) {
+    this.id = other.id;
+    this.name = other.name;
+    this.email = other.email;
+    this.phone = other.phone;
+    this.city = other.city;
+    this.country = other.country;
+    this.balance = other.balance;
+    this.loyaltyPoints = other.loyaltyPoints;
+    this.active = other.active;
+    this.lastLogin = other.lastLogin;
+  }
+
+  public static Customer sample(long seed) {
+    Customer customer = new Customer();
+    customer.name = "customer-" + seed;
+    customer.email = "customer-" + seed + "@example.com";
+    customer.phone = "+30 210 " + (1_000_000 + seed % 9_000_000);
+    customer.city = "Athens";
+    customer.country = "GR";
+    customer.balance = BigDecimal.valueOf(seed % 100_000, 2);
+    customer.loyaltyPoints = (int) (seed % 1000);
+    customer.active = true;
+    customer.lastLogin = Instant.ofEpochSecond(1_600_000_000L + seed);
+    return customer;
+  }
+
+  public Long getId() {
+    return id;
+  }
+
+  public void setId(Long id) {
+    this.id = id;
+  }
+
+  public String getEmail() {
+    return email;
+  }
+
+  public void setEmail(String email) {
+    this.email = email;
+  }
+
+  public BigDecimal getBalance() {
+    return balance;
+  }
+
+  public void setBalance(BigDecimal balance) {
+    this.balance = balance;
+  }
+
+  public int getLoyaltyPoints() {
+    return loyaltyPoints;
+  }
+
+  public void setLoyaltyPoints(int loyaltyPoints) {
+    this.loyaltyPoints = loyaltyPoints;
+  }
+}
@@ -0,0 +1,6 @@
+package gr.antopapak.persistent.audit.benchmark;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+
+public interface CustomerRepository extends JpaRepository<Customer, Long> {
+}
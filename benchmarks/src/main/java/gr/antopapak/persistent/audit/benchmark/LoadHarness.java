@@ -0,0 +1,415 @@
+package gr.antopapak.persistent.audit.benchmark;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import gr.antopapak.persistent.audit.config.PersistentAuditProperties;
+import gr.antopapak.persistent.audit.domain.AuditLog;
+import gr.antopapak.persistent.audit.model.AuditedAction;
+import gr.antopapak.persistent.audit.repository.AuditLogRepository;
+import gr.antopapak.persistent.audit.service.AffectedFieldsCodec;
+import gr.antopapak.persistent.audit.service.AsyncAuditLogWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongFunction;
+import java.util.stream.Collectors;
+import javax.persistence.EntityManagerFactory;
+import org.HdrHistogram.Histogram;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.jpa.repository.JpaRepository;
+
+/**
+ * Drives repository saves and deletes through the audit aspect from several threads, and
+ * reports the throughput and latency percentiles of each combination of auditing (off/on),
+ * entity, update ratio and thread count.<br>
+ *
+ * Every combination runs in a new application on a new in-memory database. Each thread works
+ * on entities of its own: it inserts a pool of them, then until the time is up picks one
+ * operation at a time, a delete (half of them by id), an update of a random entity of its pool
+ * or an insert. Operations during the warmup are not measured.
+ * <p>
+ * With auditing on, the audit logs are reconciled with the operations that succeeded, and the
+ * latest ones are decoded, so that lost, duplicate or corrupted audit logs are reported, eg
+ * when shared state of the audit pipeline is not thread-safe. Options:
+ * <pre>
+ *   --threads=1,4,16             thread counts
+ *   --entities=Customer,WideAccount
+ *   --update-ratios=0.5,0.9      fraction of the non-delete operations that are updates
+ *   --delete-ratio=0.05          fraction of the operations that are deletes
+ *   --changed-fraction=0.2       fraction of the fields changed by an update
+ *   --auditing=off,on
+ *   --warmup=5 --duration=20     seconds
+ *   --pool=100                   entities inserted by each thread before it starts
+ *   --property=name=value        a property of the application, may be repeated
+ * </pre>
+ */
+public final class LoadHarness {
+
+  private static final int VERIFIED_LOGS = 10_000;
+  private static final ObjectMapper JSON = new ObjectMapper();
+
+  private LoadHarness() {
+  }
+
+  public static void main(String[] args) throws Exception {
+    Options options = Options.parse(args);
+    List<String> failures = new ArrayList<>();
+
+    System.out.printf("%-8s %-12s %6s %7s %7s %12s %10s %10s %10s %7s  %s%n",
+        "auditing", "entity", "fields", "update", "threads", "ops/s", "p50 us", "p99 us", "p999 us", "errors", "check");
+    for(boolean auditing : options.auditing) {
+      for(Workload workload : options.workloads) {
+        for(double updateRatio : options.updateRatios) {
+          for(int threads : options.threads) {
+            Result result = run(options, auditing, workload, updateRatio, threads);
+            String check = !auditing ? "-" : result.problems.isEmpty() ? "ok" : "FAILED";
+            System.out.printf("%-8s %-12s %6d %7.2f %7d %12.1f %10.1f %10.1f %10.1f %7d  %s%n",
+                auditing ? "on" : "off", workload.type.getSimpleName(), Samples.fieldCount(workload.type), updateRatio, threads,
+                result.throughput(), result.percentile(50), result.percentile(99), result.percentile(99.9), result.errors, check);
+            for(String problem : result.problems) {
+              failures.add(String.format("%s, update ratio %.2f, %d threads: %s", workload.type.getSimpleName(), updateRatio, threads, problem));
+            }
+          }
+        }
+      }
+    }
+
+    if(!failures.isEmpty()) {
+      System.out.println();
+      System.out.println("Failures:");
+      failures.forEach(failure -> System.out.println("  " + failure));
+      System.exit(1);
+    }
+  }
+
+  private static Result run(Options options, boolean auditing, Workload workload, double updateRatio, int threads) throws InterruptedException {
+    List<String> properties = new ArrayList<>(options.properties);
+    properties.add(BenchmarkApplication.AUDITING + "=" + auditing);
+
+    try (ConfigurableApplicationContext context = BenchmarkApplication.start(properties.toArray(new String[0]))) {
+      @SuppressWarnings("unchecked")
+      JpaRepository<Object, Object> repository = (JpaRepository<Object, Object>) context.getBean(workload.repository);
+      EntityManagerFactory entityManagerFactory = context.getBean(EntityManagerFactory.class);
+
+      long warmupEnd = System.nanoTime() + TimeUnit.SECONDS.toNanos(options.warmup);
+      long end = warmupEnd + TimeUnit.SECONDS.toNanos(options.duration);
+      CountDownLatch done = new CountDownLatch(threads);
+      List<Worker> workers = new ArrayList<>(threads);
+      for(int i = 0; i < threads; i++) {
+        Worker worker = new Worker(i, options, workload, updateRatio, repository, entityManagerFactory, warmupEnd, end, done);
+        workers.add(worker);
+        Thread thread = new Thread(worker, "load-" + i);
+        thread.setDaemon(true);
+        thread.start();
+      }
+      done.await();
+
+      Result result = new Result(options.duration);
+      for(Worker worker : workers) {
+        result.add(worker);
+      }
+      if(auditing) {
+        verify(context, result);
+      }
+      return result;
+    }
+  }
+
+  /**
+   * Checks that every successful operation was audited exactly once, and that the latest
+   * audit logs can be decoded. An {@link AuditedAction#INSERT} only carries affected fields
+   * when snapshots are enabled, and a {@link AuditedAction#DELETE} never does.
+   */
+  private static void verify(ConfigurableApplicationContext context, Result result) throws InterruptedException {
+    AsyncAuditLogWriter asyncAuditLogWriter = context.getBean(AsyncAuditLogWriter.class);
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+    while(asyncAuditLogWriter.getQueueSize() > 0 && System.nanoTime() < deadline) {
+      Thread.sleep(100);
+    }
+    Thread.sleep(1000); //let the last batches commit
+
+    AuditLogRepository auditLogRepository = context.getBean(AuditLogRepository.class);
+    AffectedFieldsCodec codec = context.getBean(AffectedFieldsCodec.class);
+    boolean snapshots = context.getBean(PersistentAuditProperties.class).getSnapshot().isEnabled();
+
+    Map<AuditedAction, Long> counts = new EnumMap<>(AuditedAction.class);
+    auditLogRepository.findAll().forEach(log -> counts.merge(log.getAction(), 1L, Long::sum));
+    expect(result, "INSERT", result.total.get(Operation.INSERT), counts.getOrDefault(AuditedAction.INSERT, 0L));
+    expect(result, "UPDATE", result.total.get(Operation.UPDATE), counts.getOrDefault(AuditedAction.UPDATE, 0L));
+    expect(result, "DELETE", result.total.get(Operation.DELETE) + result.total.get(Operation.DELETE_BY_ID),
+        counts.getOrDefault(AuditedAction.DELETE, 0L));
+
+    int corrupted = 0;
+    for(AuditLog log : auditLogRepository.findAll(PageRequest.of(0, VERIFIED_LOGS, Sort.by(Sort.Direction.DESC, "id")))) {
+      try {
+        unwrapJsonString(log);
+        if(hasAffectedFields(log.getAction(), snapshots) && codec.decode(log).getAll().isEmpty()) {
+          corrupted++;
+        }
+      } catch (RuntimeException e) {
+        corrupted++;
+      }
+    }
+    if(corrupted > 0) {
+      result.problems.add(corrupted + " of the latest audit logs have no or unreadable affected fields");
+    }
+  }
+
+  private static boolean hasAffectedFields(AuditedAction action, boolean snapshots) {
+    switch(action) {
+      case UPDATE:
+      case SNAPSHOT:
+        return true;
+      case INSERT:
+        return snapshots;
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * H2 stores character data bound to a JSON column as a JSON string, rather than parsing it as
+   * other databases do, so the affected fields read back from it are a string holding the array.
+   */
+  private static void unwrapJsonString(AuditLog log) {
+    String json = log.getAffectedFields();
+    if(json != null && json.startsWith("\"")) {
+      try {
+        log.setAffectedFields(JSON.readValue(json, String.class));
+      } catch (JsonProcessingException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+  }
+
+  private static void expect(Result result, String action, long expected, long actual) {
+    if(expected != actual) {
+      result.problems.add(String.format("%d %s audit logs for %d operations", actual, action, expected));
+    }
+  }
+
+  private enum Operation {
+    INSERT, UPDATE, DELETE, DELETE_BY_ID
+  }
+
+  private enum Workload {
+    CUSTOMER(Customer.class, CustomerRepository.class, Customer::sample),
+    WIDE_ACCOUNT(WideAccount.class, WideAccountRepository.class, seed -> Samples.fill(new WideAccount(), seed));
+
+    private final Class<?> type;
+    private final Class<? extends JpaRepository<?, ?>> repository;
+    private final LongFunction<Object> factory;
+
+    Workload(Class<?> type, Class<? extends JpaRepository<?, ?>> repository, LongFunction<Object> factory) {
+      this.type = type;
+      this.repository = repository;
+      this.factory = factory;
+    }
+
+    static Workload of(String name) {
+      return Arrays.stream(values())
+          .filter(w -> w.type.getSimpleName().equalsIgnoreCase(name))
+          .findFirst()
+          .orElseThrow(() -> new IllegalArgumentException("Unknown entity " + name));
+    }
+  }
+
+  private static final class Worker implements Runnable {
+
+    private final Options options;
+    private final Workload workload;
+    private final double updateRatio;
+    private final JpaRepository<Object, Object> repository;
+    private final EntityManagerFactory entityManagerFactory;
+    private final long warmupEnd;
+    private final long end;
+    private final CountDownLatch done;
+    private final SplittableRandom random;
+    private final Histogram histogram = new Histogram(TimeUnit.MINUTES.toNanos(1), 3);
+    private final Map<Operation, Long> total = new EnumMap<>(Operation.class);
+    private final List<Throwable> errors = new ArrayList<>();
+    private final List<Object> pool = new ArrayList<>();
+    private long seed;
+    private long measured;
+
+    private Worker(int index, Options options, Workload workload, double updateRatio, JpaRepository<Object, Object> repository,
+        EntityManagerFactory entityManagerFactory, long warmupEnd, long end, CountDownLatch done) {
+      this.options = options;
+      this.workload = workload;
+      this.updateRatio = updateRatio;
+      this.repository = repository;
+      this.entityManagerFactory = entityManagerFactory;
+      this.warmupEnd = warmupEnd;
+      this.end = end;
+      this.done = done;
+      this.random = new SplittableRandom(index);
+      this.seed = (long) index << 32;
+      for(Operation operation : Operation.values()) {
+        total.put(operation, 0L);
+      }
+    }
+
+    @Override
+    public void run() {
+      try {
+        for(int i = 0; i < options.pool; i++) {
+          execute(Operation.INSERT, false);
+        }
+        for(long now = System.nanoTime(); now < end; now = System.nanoTime()) {
+          execute(nextOperation(), now >= warmupEnd);
+        }
+      } finally {
+        done.countDown();
+      }
+    }
+
+    private Operation nextOperation() {
+      if(pool.isEmpty()) {
+        return Operation.INSERT;
+      }
+      if(random.nextDouble() < options.deleteRatio) {
+        return random.nextBoolean() ? Operation.DELETE : Operation.DELETE_BY_ID;
+      }
+      return random.nextDouble() < updateRatio ? Operation.UPDATE : Operation.INSERT;
+    }
+
+    private void execute(Operation operation, boolean measure) {
+      long start = System.nanoTime();
+      try {
+        switch(operation) {
+          case INSERT:
+            pool.add(repository.save(workload.factory.apply(seed++)));
+            break;
+          case UPDATE: {
+            int index = random.nextInt(pool.size());
+            Object entity = Samples.mutate(pool.get(index), options.changedFraction, random);
+            pool.set(index, repository.save(entity));
+            break;
+          }
+          case DELETE:
+            repository.delete(pool.remove(random.nextInt(pool.size())));
+            break;
+          default: {
+            Object entity = pool.remove(random.nextInt(pool.size()));
+            repository.deleteById(entityManagerFactory.getPersistenceUnitUtil().getIdentifier(entity));
+          }
+        }
+        total.merge(operation, 1L, Long::sum);
+      } catch (RuntimeException e) {
+        if(errors.size() < 10) {
+          errors.add(e);
+        }
+        return;
+      }
+      if(measure) {
+        histogram.recordValue(Math.min(System.nanoTime() - start, histogram.getHighestTrackableValue()));
+        measured++;
+      }
+    }
+  }
+
+  private static final class Result {
+
+    private final int duration;
+    private final Histogram histogram = new Histogram(TimeUnit.MINUTES.toNanos(1), 3);
+    private final Map<Operation, Long> total = new EnumMap<>(Operation.class);
+    private final List<String> problems = new ArrayList<>();
+    private long measured;
+    private int errors;
+
+    private Result(int duration) {
+      this.duration = duration;
+      for(Operation operation : Operation.values()) {
+        total.put(operation, 0L);
+      }
+    }
+
+    private void add(Worker worker) {
+      histogram.add(worker.histogram);
+      worker.total.forEach((operation, count) -> total.merge(operation, count, Long::sum));
+      measured += worker.measured;
+      errors += worker.errors.size();
+      worker.errors.forEach(e -> problems.add("operation failed: " + e));
+    }
+
+    private double throughput() {
+      return (double) measured / duration;
+    }
+
+    private double percentile(double percentile) {
+      return histogram.getValueAtPercentile(percentile) / 1000.0;
+    }
+  }
+
+  private static final class Options {
+
+    private List<Integer> threads = List.of(1, 4, 16);
+    private List<Workload> workloads = List.of(Workload.CUSTOMER, Workload.WIDE_ACCOUNT);
+    private List<Double> updateRatios = List.of(0.5, 0.9);
+    private double deleteRatio = 0.05;
+    private double changedFraction = 0.2;
+    private List<Boolean> auditing = List.of(false, true);
+    private int warmup = 5;
+    private int duration = 20;
+    private int pool = 100;
+    private final List<String> properties = new ArrayList<>();
+
+    static Options parse(String[] args) {
+      Options options = new Options();
+      for(String arg : args) {
+        int separator = arg.indexOf('=');
+        if(!arg.startsWith("--") || separator < 0) {
+          throw new IllegalArgumentException("Expected --name=value: " + arg);
+        }
+        String name = arg.substring(2, separator);
+        String value = arg.substring(separator + 1);
+        switch(name) {
+          case "threads":
+            options.threads = list(value).stream().map(Integer::valueOf).collect(Collectors.toList());
+            break;
+          case "entities":
+            options.workloads = list(value).stream().map(Workload::of).collect(Collectors.toList());
+            break;
+          case "update-ratios":
+            options.updateRatios = list(value).stream().map(Double::valueOf).collect(Collectors.toList());
+            break;
+          case "delete-ratio":
+            options.deleteRatio = Double.parseDouble(value);
+            break;
+          case "changed-fraction":
+            options.changedFraction = Double.parseDouble(value);
+            break;
+          case "auditing":
+            options.auditing = list(value).stream().map("on"::equalsIgnoreCase).collect(Collectors.toList());
+            break;
+          case "warmup":
+            options.warmup = Integer.parseInt(value);
+            break;
+          case "duration":
+            options.duration = Integer.parseInt(value);
+            break;
+          case "pool":
+            options.pool = Integer.parseInt(value);
+            break;
+          case "property":
+            options.properties.add(value);
+            break;
+          default:
+            throw new IllegalArgumentException("Unknown option " + name);
+        }
+      }
+      return options;
+    }
+
+    private static List<String> list(String value) {
+      return Arrays.stream(value.split(",")).map(String::trim).filter(s -> !s.isEmpty()).collect(Collectors.toList());
+    }
+  }
+}
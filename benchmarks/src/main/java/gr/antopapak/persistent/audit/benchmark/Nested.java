@@ -0,0 +1,23 @@
+package gr.antopapak.persistent.audit.benchmark;
+
+/**
+ * A chain of objects, each holding a flat object and its parent.
+ */
+public class Nested {
+
+  private String name;
+  private Wide5 details;
+  private Nested parent;
+
+  public static Nested chain(int length, long seed) {
+    Nested nested = null;
+    for(int i = 0; i < length; i++) {
+      Nested child = new Nested();
+      child.name = "level-" + i;
+      child.details = (Wide5) Samples.newWide(5, seed + i);
+      child.parent = nested;
+      nested = child;
+    }
+    return nested;
+  }
+}
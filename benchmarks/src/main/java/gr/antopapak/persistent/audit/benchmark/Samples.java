@@ -0,0 +1,159 @@
+package gr.antopapak.persistent.audit.benchmark;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import javax.persistence.Id;
+
+/**
+ * Builds deterministic sample values for the benchmarks.
+ */
+public final class Samples {
+
+  private Samples() {
+  }
+
+  /**
+   * @param width 5, 50 or 200
+   * @return the sample class with that many loggable fields
+   */
+  public static Class<?> wideClass(int width) {
+    switch(width) {
+      case 5:
+        return Wide5.class;
+      case 50:
+        return Wide50.class;
+      case 200:
+        return Wide200.class;
+      default:
+        throw new IllegalArgumentException("No sample class with " + width + " fields");
+    }
+  }
+
+  /**
+   * @return an instance of the sample class of the given width, with every field set
+   */
+  public static Object newWide(int width, long seed) {
+    try {
+      return fill(wideClass(width).getDeclaredConstructor().newInstance(), seed);
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Sets every field of an object, except its id, to a random value.
+   *
+   * @return the object
+   */
+  public static <T> T fill(T instance, long seed) {
+    try {
+      SplittableRandom random = new SplittableRandom(seed);
+      for(Field field : fieldsOf(instance.getClass())) {
+        field.set(instance, randomValue(field.getType(), random));
+      }
+      return instance;
+    } catch (IllegalAccessException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Sets the given fraction of the fields of an object, except its id, to new values.
+   * The first field always changes, so the object never stays the same.
+   *
+   * @return the object
+   */
+  public static <T> T mutate(T instance, double changedFraction, SplittableRandom random) {
+    try {
+      List<Field> fields = fieldsOf(instance.getClass());
+      for(int i = 0; i < fields.size(); i++) {
+        Field field = fields.get(i);
+        if(i == 0 || random.nextDouble() < changedFraction) {
+          Object value;
+          do {
+            value = randomValue(field.getType(), random);
+          } while(value.equals(field.get(instance)));
+          field.set(instance, value);
+        }
+      }
+      return instance;
+    } catch (IllegalAccessException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * @return a copy of the instance, with the given fraction of its fields set to new values
+   */
+  public static Object changed(Object instance, double changedFraction, long seed) {
+    try {
+      Object copy = instance.getClass().getDeclaredConstructor().newInstance();
+      SplittableRandom random = new SplittableRandom(seed);
+      for(Field field : fieldsOf(instance.getClass())) {
+        field.set(copy, random.nextDouble() < changedFraction ? randomValue(field.getType(), random) : field.get(instance));
+      }
+      return copy;
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * @return the number of fields of a class that {@link #fill} and {@link #mutate} set
+   */
+  public static int fieldCount(Class<?> type) {
+    return fieldsOf(type).size();
+  }
+
+  public static List<String> strings(int size, long seed) {
+    SplittableRandom random = new SplittableRandom(seed);
+    List<String> strings = new ArrayList<>(size);
+    for(int i = 0; i < size; i++) {
+      strings.add(randomString(random));
+    }
+    return strings;
+  }
+
+  private static List<Field> fieldsOf(Class<?> type) {
+    List<Field> fields = new ArrayList<>();
+    for(Field field : type.getDeclaredFields()) {
+      if(!Modifier.isStatic(field.getModifiers()) && !field.isAnnotationPresent(Id.class)) {
+        field.setAccessible(true);
+        fields.add(field);
+      }
+    }
+    return fields;
+  }
+
+  private static Object randomValue(Class<?> type, SplittableRandom random) {
+    if(type == int.class) {
+      return random.nextInt();
+    }
+    if(type == boolean.class) {
+      return random.nextBoolean();
+    }
+    if(type == long.class) {
+      return random.nextLong();
+    }
+    if(type == BigDecimal.class) {
+      return BigDecimal.valueOf(random.nextLong(1_000_000_00L), 2);
+    }
+    if(type == Instant.class) {
+      return Instant.ofEpochSecond(1_600_000_000L + random.nextInt(100_000_000));
+    }
+    return randomString(random);
+  }
+
+  private static String randomString(SplittableRandom random) {
+    char[] chars = new char[8 + random.nextInt(24)];
+    for(int i = 0; i < chars.length; i++) {
+      chars[i] = (char) ('a' + random.nextInt(26));
+    }
+    return new String(chars);
+  }
+}
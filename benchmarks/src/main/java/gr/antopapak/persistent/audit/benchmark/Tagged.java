@@ -0,0 +1,29 @@
+package gr.antopapak.persistent.audit.benchmark;
+
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An object holding a list, a map and a set.
+ */
+public class Tagged {
+
+  private List<String> tags;
+  private Map<String, Integer> counts;
+  private Set<Long> references;
+
+  public static Tagged sample(int size, long seed) {
+    Tagged tagged = new Tagged();
+    tagged.tags = Samples.strings(size, seed);
+    tagged.counts = new LinkedHashMap<>();
+    tagged.references = new LinkedHashSet<>();
+    for(int i = 0; i < size; i++) {
+      tagged.counts.put(tagged.tags.get(i), i);
+      tagged.references.add(seed * size + i);
+    }
+    return tagged;
+  }
+}
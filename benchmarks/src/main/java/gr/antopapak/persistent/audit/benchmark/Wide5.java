@@ -0,0 +1,16 @@
+package gr.antopapak.persistent.audit.benchmark;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+
+/**
+ * A class with 5 loggable fields, evenly split between strings, ints, longs, decimals and instants.
+ */
+public class Wide5 {
+
+  private String s0;
+  private int i0;
+  private long l0;
+  private BigDecimal d0;
+  private Instant t0;
+}
@@ -0,0 +1,26 @@
+package gr.antopapak.persistent.audit.benchmark;
+
+import gr.antopapak.persistent.audit.annotation.PersistentLogAudit;
+import java.math.BigDecimal;
+import java.time.Instant;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.Id;
+
+/**
+ * An audited entity with 50 loggable fields, evenly split between strings, ints, longs, decimals and instants.
+ */
+@Entity
+@PersistentLogAudit
+public class WideAccount {
+
+  @Id
+  @GeneratedValue
+  private Long id;
+
+  private String s0, s1, s2, s3, s4, s5, s6, s7, s8, s9;
+  private int i0, i1, i2, i3, i4, i5, i6, i7, i8, i9;
+  private long l0, l1, l2, l3, l4, l5, l6, l7, l8, l9;
+  private BigDecimal d0, d1, d2, d3, d4, d5, d6, d7, d8, d9;
+  private Instant t0, t1, t2, t3, t4, t5, t6, t7, t8, t9;
+}
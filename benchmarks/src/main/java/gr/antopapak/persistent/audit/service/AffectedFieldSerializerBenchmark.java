@@ -0,0 +1,87 @@
+package gr.antopapak.persistent.audit.service;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.util.ByteArrayBuilder;
+import gr.antopapak.persistent.audit.benchmark.Nested;
+import gr.antopapak.persistent.audit.benchmark.Samples;
+import gr.antopapak.persistent.audit.benchmark.Tagged;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Writing the before and after values of a single affected field as JSON.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class AffectedFieldSerializerBenchmark {
+
+  public enum Shape {
+    /**
+     * An object with 50 scalar fields.
+     */
+    FLAT,
+    /**
+     * A chain of objects, written down to the default depth.
+     */
+    NESTED,
+    /**
+     * An object with a list, a map and a set of 100 elements each.
+     */
+    COLLECTIONS
+  }
+
+  @Param
+  private Shape shape;
+
+  private AffectedFieldSerializer serializer;
+  private JsonFactory jsonFactory;
+  private ByteArrayBuilder buffer;
+  private Object before;
+  private Object after;
+
+  @Setup
+  public void setUp() {
+    ReflectionCache reflectionCache = new ReflectionCache(new NoopAuditMetrics());
+    serializer = new AffectedFieldSerializer(reflectionCache, new Associations(reflectionCache));
+    jsonFactory = new JsonFactory();
+    buffer = new ByteArrayBuilder(16 * 1024);
+    switch(shape) {
+      case FLAT:
+        before = Samples.newWide(50, 1);
+        after = Samples.newWide(50, 2);
+        break;
+      case NESTED:
+        before = Nested.chain(4, 1);
+        after = Nested.chain(4, 2);
+        break;
+      default:
+        before = Tagged.sample(100, 1);
+        after = Tagged.sample(100, 2);
+    }
+  }
+
+  @Benchmark
+  public int write() throws IOException {
+    buffer.reset();
+    try (JsonGenerator gen = jsonFactory.createGenerator(buffer)) {
+      serializer.writeAffectedField("value", before, after, null, AffectedFieldSerializer.DEFAULT_MAX_DEPTH, gen);
+    }
+    return buffer.size();
+  }
+}
@@ -0,0 +1,61 @@
+package gr.antopapak.persistent.audit.service;
+
+import gr.antopapak.persistent.audit.benchmark.BenchmarkApplication;
+import gr.antopapak.persistent.audit.benchmark.Customer;
+import gr.antopapak.persistent.audit.benchmark.CustomerRepository;
+import java.math.BigDecimal;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.ConfigurableApplicationContext;
+
+/**
+ * Auditing an update end to end, from the diff to the insert of the audit log in its own
+ * transaction, on an in-memory H2 database.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class AuditLogServiceBenchmark {
+
+  @Param({"JSON", "SMILE"})
+  private String format;
+
+  private ConfigurableApplicationContext context;
+  private AuditLogService auditLogService;
+  private Customer before;
+  private Customer after;
+
+  @Setup
+  public void setUp() {
+    context = BenchmarkApplication.start("persistent.audit.storage.format=" + format);
+    auditLogService = context.getBean(AuditLogService.class);
+    before = context.getBean(CustomerRepository.class).save(Customer.sample(1));
+    after = new Customer(before);
+    after.setBalance(before.getBalance().add(BigDecimal.TEN));
+    after.setLoyaltyPoints(before.getLoyaltyPoints() + 1);
+  }
+
+  @TearDown
+  public void tearDown() {
+    context.close();
+  }
+
+  @Benchmark
+  public void createNonDeletingAudit() throws Exception {
+    auditLogService.createNonDeletingAudit(before, after);
+  }
+}
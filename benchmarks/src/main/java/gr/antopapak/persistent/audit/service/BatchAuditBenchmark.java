@@ -0,0 +1,67 @@
+package gr.antopapak.persistent.audit.service;
+
+import gr.antopapak.persistent.audit.benchmark.BenchmarkApplication;
+import gr.antopapak.persistent.audit.benchmark.Samples;
+import gr.antopapak.persistent.audit.benchmark.WideAccount;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.ConfigurableApplicationContext;
+
+/**
+ * Auditing a batch of updates of 50-field entities end to end, with the audit logs built on
+ * the calling thread or in parallel by the {@link ParallelAuditBuilder}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class BatchAuditBenchmark {
+
+  @Param({"false", "true"})
+  private boolean parallel;
+
+  @Param({"100", "2000"})
+  private int size;
+
+  private ConfigurableApplicationContext context;
+  private AuditLogService auditLogService;
+  private final List<WideAccount> before = new ArrayList<>();
+  private final List<WideAccount> after = new ArrayList<>();
+
+  @Setup
+  public void setUp() {
+    context = BenchmarkApplication.start("persistent.audit.parallel.enabled=" + parallel);
+    auditLogService = context.getBean(AuditLogService.class);
+    SplittableRandom random = new SplittableRandom(1);
+    for(int i = 0; i < size; i++) {
+      before.add(Samples.fill(new WideAccount(), i));
+      after.add(Samples.mutate(Samples.fill(new WideAccount(), i), 0.2, random));
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    context.close();
+  }
+
+  @Benchmark
+  public void createNonDeletingAudits() throws Exception {
+    auditLogService.createNonDeletingAudits(before, after);
+  }
+}
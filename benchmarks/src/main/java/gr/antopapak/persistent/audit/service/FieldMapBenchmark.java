@@ -0,0 +1,66 @@
+package gr.antopapak.persistent.audit.service;
+
+import gr.antopapak.persistent.audit.benchmark.Samples;
+import gr.antopapak.persistent.audit.model.AffectedField;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Diffing two states of an object into a {@link FieldMap}, and listing its affected fields.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class FieldMapBenchmark {
+
+  @Param({"5", "50", "200"})
+  private int width;
+
+  /**
+   * The fraction of the fields that differ between the two states.
+   */
+  @Param({"0.1", "1.0"})
+  private double changed;
+
+  private FieldSchema schema;
+  private Associations associations;
+  private Object before;
+  private Object after;
+  private FieldMap compared;
+
+  @Setup
+  public void setUp() {
+    ReflectionCache reflectionCache = new ReflectionCache(new NoopAuditMetrics());
+    associations = new Associations(reflectionCache);
+    schema = reflectionCache.getSchemaForClass(Samples.wideClass(width));
+    before = Samples.newWide(width, 1);
+    after = Samples.changed(before, changed, 2);
+    compared = compare();
+  }
+
+  @Benchmark
+  public FieldMap compare() {
+    FieldMap fieldMap = new FieldMap(schema, associations);
+    fieldMap.compare(before, after);
+    return fieldMap;
+  }
+
+  @Benchmark
+  public List<AffectedField> getAllAffectedEntries() {
+    return compared.getAllAffectedEntries();
+  }
+}
@@ -0,0 +1,51 @@
+package gr.antopapak.persistent.audit.service;
+
+import gr.antopapak.persistent.audit.benchmark.Samples;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Lookups of the loggable fields of a class: cold, by a new cache that has to scan the class,
+ * and warm, by a cache that already holds it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ReflectionCacheBenchmark {
+
+  @Param({"5", "50", "200"})
+  private int width;
+
+  private Class<?> type;
+  private ReflectionCache warmCache;
+
+  @Setup
+  public void setUp() {
+    type = Samples.wideClass(width);
+    warmCache = new ReflectionCache(new NoopAuditMetrics());
+    warmCache.getSchemaForClass(type);
+  }
+
+  @Benchmark
+  public FieldSchema cold() {
+    return new ReflectionCache(new NoopAuditMetrics()).getSchemaForClass(type);
+  }
+
+  @Benchmark
+  public FieldSchema warm() {
+    return warmCache.getSchemaForClass(type);
+  }
+}
@@ -20,6 +20,9 @@ import java.lang.annotation.Target;
  * should be annotated with {@link Exclude}, to denote that
  * this field should be ignored.
  *
+ * The attributes set the audit policy of the entity, eg cheap and lossy for high-churn
+ * entities, complete and synchronous for critical ones. They are read once per class.
+ *
  * @see gr.antopapak.persistent.audit.model.AffectedField
  * @author Antonis Papakonstantinou
  */
@@ -27,6 +30,53 @@ import java.lang.annotation.Target;
 @Target(ElementType.TYPE)
 public @interface PersistentLogAudit {
 
+  /**
+   * How the audit logs of the entity are written. {@link Delivery#DEFAULT} follows
+   * {@code persistent.audit.async.enabled}.
+   */
+  Delivery delivery() default Delivery.DEFAULT;
+
+  /**
+   * The fraction of updates (including soft deletes and restores) that are audited, between 0 and 1.
+   * Inserts and deletes are always audited. Sampled-out updates are lost to history and to
+   * point-in-time reconstruction, until the next audited change or checkpoint.
+   */
+  double sampleRate() default 1.0;
+
+  /**
+   * Whether the saves of the entity within a transaction are audited as a single net change.
+   * {@link Coalescing#DEFAULT} follows {@code persistent.audit.coalesce.enabled}.
+   */
+  Coalescing coalesce() default Coalescing.DEFAULT;
+
+  /**
+   * The maximum size in bytes of the affected fields of a single audit log, or a negative number
+   * for no limit. Larger logs keep the names of the affected fields, with their values replaced
+   * by a {@code TRUNCATED} marker.
+   */
+  int maxPayloadBytes() default -1;
+
+  /**
+   * How many levels of nested objects are written in the values of the affected fields, at least 1.
+   */
+  int maxDepth() default 2;
+
+  enum Delivery {
+    DEFAULT,
+    /**
+     * In the calling thread, before the save returns.
+     */
+    SYNC,
+    /**
+     * Through the write-behind queue, after the transaction commits.
+     */
+    ASYNC
+  }
+
+  enum Coalescing {
+    DEFAULT, ENABLED, DISABLED
+  }
+
 
   /**
    * A tag annotation to denote that a field should not be audited.
@@ -1,8 +1,25 @@
 package gr.antopapak.persistent.audit.aspect;
 
 
+import gr.antopapak.persistent.audit.annotation.PersistentLogAudit;
+import gr.antopapak.persistent.audit.repository.AuditDictionaryRepository;
+import gr.antopapak.persistent.audit.repository.AuditFieldChangeRepository;
+import gr.antopapak.persistent.audit.repository.AuditLogRepository;
+import gr.antopapak.persistent.audit.repository.AuditValueRepository;
 import gr.antopapak.persistent.audit.service.AuditLogService;
+import gr.antopapak.persistent.audit.service.AuditMetrics;
+import gr.antopapak.persistent.audit.service.AuditMetrics.Stage;
+import gr.antopapak.persistent.audit.service.LastKnownStateCache;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
 import lombok.AllArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
 import org.aspectj.lang.JoinPoint;
 import org.aspectj.lang.ProceedingJoinPoint;
 import org.aspectj.lang.annotation.After;
@@ -18,6 +35,7 @@ import org.springframework.transaction.annotation.Transactional;
  * An aspect that audits the mutation of entities annotated {@link gr.antopapak.persistent.audit.annotation.PersistentLogAudit}.
  *
  */
+@Slf4j
 @Aspect
 @Component
 @Order(0)
@@ -26,11 +44,12 @@ import org.springframework.transaction.annotation.Transactional;
 public class PersistentAuditAspect {
 
   private final AuditLogService auditLogService;
+  private final AuditMetrics auditMetrics;
 
   @Pointcut("execution(public * save(..))")
   public void saveMethods() {}
 
-  @Pointcut("@args(com.creds.api.audit.annotation.PersistentLogAudit)")
+  @Pointcut("@args(gr.antopapak.persistent.audit.annotation.PersistentLogAudit)")
   public void methodsAcceptingPersistentLogAudit() {}
 
   @Pointcut("saveMethods() && methodsAcceptingPersistentLogAudit()")
@@ -41,21 +60,98 @@ public class PersistentAuditAspect {
   public Object audit(ProceedingJoinPoint joinPoint) throws Throwable {
     try {
       Object entityArg = joinPoint.getArgs()[0];
+      long start = auditMetrics.start();
       Object idBefore = auditLogService.getEntityId(entityArg);
-      Object entityBefore = auditLogService.getEntityBeforeFlush(idBefore, joinPoint.getThis());
+      auditMetrics.recordStage(Stage.ID, entityArg.getClass(), start);
+      boolean coalescing = auditLogService.isCoalescing(entityArg);
+      Object entityBefore = null;
+      if(!coalescing || !auditLogService.hasPendingChange(entityArg, idBefore)) {
+        start = auditMetrics.start();
+        entityBefore = auditLogService.getManagedEntitySnapshot(entityArg, idBefore);
+        if(entityBefore == null) { //detached entity, use its last saved state if it is known
+          entityBefore = auditLogService.getLastSavedState(entityArg, idBefore);
+          if(entityBefore == LastKnownStateCache.UNCHANGED) {
+            auditMetrics.recordStage(Stage.READ_BEFORE, entityArg.getClass(), start);
+            return joinPoint.proceed();
+          }
+        }
+        if(entityBefore == null) { //read it from the database
+          entityBefore = auditLogService.getEntityBeforeFlush(idBefore, joinPoint.getThis());
+        }
+        auditMetrics.recordStage(Stage.READ_BEFORE, entityArg.getClass(), start);
+      }
 
       Object result = joinPoint.proceed();
+      auditLogService.rememberSavedState(result);
 
-      auditLogService.createNonDeletingAudit(entityBefore, result);
+      if(coalescing) {
+        auditLogService.coalesceNonDeletingAudits(Collections.singletonList(entityBefore), Collections.singletonList(result));
+      }
+      else if(auditLogService.isDeferred(entityArg)) {
+        auditLogService.submitNonDeletingAudit(entityBefore, result);
+      }
+      else {
+        auditLogService.createNonDeletingAudit(entityBefore, result);
+      }
 
       return result;
     } catch (Throwable e) {
-      e.printStackTrace();
+      log.error("Audited {} failed", joinPoint.getSignature().toShortString(), e);
       throw e;
     }
   }
 
 
+  @Pointcut("execution(public * saveAll(Iterable))")
+  public void saveAllMethods() {}
+
+  /**
+   * Audits a batch of saves. The before-state of the entities not managed by the current
+   * session is loaded with a single {@code findAllById} query, and the audit logs of the
+   * whole batch are written at once.
+   */
+  @Around("saveAllMethods()")
+  @Transactional
+  public Object auditAll(ProceedingJoinPoint joinPoint) throws Throwable {
+    if(joinPoint.getArgs()[0] == null || isAuditRepository(joinPoint.getThis())) {
+      return joinPoint.proceed();
+    }
+    List<Object> entities = toList((Iterable<?>) joinPoint.getArgs()[0]);
+    if(!isAudited(entities)) {
+      return joinPoint.proceed(new Object[] {entities});
+    }
+
+    try {
+      Object first = firstNonNull(entities);
+      boolean coalescing = auditLogService.isCoalescing(first);
+      long start = auditMetrics.start();
+      List<Object> entitiesBefore = getEntitiesBefore(entities, coalescing, joinPoint.getThis());
+      auditMetrics.recordStage(Stage.READ_BEFORE, first.getClass(), start);
+
+      Object result = joinPoint.proceed(new Object[] {entities});
+
+      List<Object> entitiesAfter = toList((Iterable<?>) result);
+      for(Object entityAfter : entitiesAfter) {
+        auditLogService.rememberSavedState(entityAfter);
+      }
+      withoutRepeatedSaves(entitiesAfter);
+      if(coalescing) {
+        auditLogService.coalesceNonDeletingAudits(entitiesBefore, entitiesAfter);
+      }
+      else if(auditLogService.isDeferred(first)) {
+        auditLogService.submitNonDeletingAudits(entitiesBefore, entitiesAfter);
+      }
+      else {
+        auditLogService.createNonDeletingAudits(entitiesBefore, entitiesAfter);
+      }
+
+      return result;
+    } catch (Throwable e) {
+      log.error("Audited {} failed", joinPoint.getSignature().toShortString(), e);
+      throw e;
+    }
+  }
+
   @Pointcut("execution(public * delete(..))")
   public void deleteMethods() {}
 
@@ -73,6 +169,23 @@ public class PersistentAuditAspect {
     auditLogService.createPermanentDeleteAuditLog(entityArg, id);
   }
 
+  @Pointcut("execution(public void deleteAll(Iterable)) || execution(public void deleteInBatch(Iterable))")
+  public void deleteAllMethods() {}
+
+  @Around("deleteAllMethods()")
+  @Transactional
+  public Object auditDeleteAll(ProceedingJoinPoint joinPoint) throws Throwable {
+    if(joinPoint.getArgs()[0] == null || isAuditRepository(joinPoint.getThis())) {
+      return joinPoint.proceed();
+    }
+    List<Object> entities = toList((Iterable<?>) joinPoint.getArgs()[0]);
+    Object result = joinPoint.proceed(new Object[] {entities});
+    if(isAudited(entities)) {
+      auditLogService.createPermanentDeleteAuditLogs(entities);
+    }
+    return result;
+  }
+
   @After("deleteByIdMethods()")
   @Transactional
   public void auditDeleteById(JoinPoint joinPoint) throws Throwable {
@@ -81,4 +194,81 @@ public class PersistentAuditAspect {
     auditLogService.createPermanentDeleteAuditLog(entityId, c, joinPoint.getThis());
   }
 
+  /**
+   * Returns the before-state of each entity, in the same order. Entities managed by the current
+   * session are resolved from the persistence context, and all others with a single query.
+   * Entities with a coalesced change pending get no before-state, as it is already known.
+   */
+  private List<Object> getEntitiesBefore(List<Object> entities, boolean coalescing, Object repository) throws Throwable {
+    List<Object> entitiesBefore = new ArrayList<>(entities.size());
+    Map<Object, List<Integer>> missing = new LinkedHashMap<>(); //an id may be saved more than once in a batch
+    for(int i = 0; i < entities.size(); i++) {
+      Object entity = entities.get(i);
+      Object id = auditLogService.getEntityId(entity);
+      if(coalescing && auditLogService.hasPendingChange(entity, id)) {
+        entitiesBefore.add(null);
+        continue;
+      }
+      Object entityBefore = auditLogService.getManagedEntitySnapshot(entity, id);
+      entitiesBefore.add(entityBefore);
+      if(entityBefore == null && id != null) {
+        missing.computeIfAbsent(id, k -> new ArrayList<>(1)).add(i);
+      }
+    }
+
+    for(Object entityBefore : auditLogService.getEntitiesBeforeFlush(missing.keySet(), repository)) {
+      List<Integer> indices = missing.get(auditLogService.getEntityId(entityBefore));
+      if(indices != null) {
+        for(int i : indices) {
+          entitiesBefore.set(i, entityBefore);
+        }
+      }
+    }
+    return entitiesBefore;
+  }
+
+  /**
+   * Leaves only the last save of each entity saved more than once in a batch. All its saves
+   * return the same managed instance, so the last one alone is audited, from the state before
+   * the first.
+   */
+  private void withoutRepeatedSaves(List<Object> entitiesAfter) throws IllegalAccessException {
+    Set<Object> ids = new HashSet<>();
+    for(int i = entitiesAfter.size() - 1; i >= 0; i--) {
+      Object entityAfter = entitiesAfter.get(i);
+      Object id = entityAfter != null ? auditLogService.getEntityId(entityAfter) : null;
+      if(id != null && !ids.add(id)) {
+        entitiesAfter.set(i, null);
+      }
+    }
+  }
+
+  /**
+   * @return true for the repositories of the audit logs themselves, whose batches are passed through untouched
+   */
+  private boolean isAuditRepository(Object repository) {
+    return repository instanceof AuditLogRepository
+        || repository instanceof AuditFieldChangeRepository
+        || repository instanceof AuditValueRepository
+        || repository instanceof AuditDictionaryRepository;
+  }
+
+  private boolean isAudited(List<Object> entities) {
+    Object first = firstNonNull(entities);
+    return first != null && first.getClass().isAnnotationPresent(PersistentLogAudit.class);
+  }
+
+  private Object firstNonNull(List<Object> entities) {
+    return entities.stream()
+        .filter(Objects::nonNull)
+        .findFirst()
+        .orElse(null);
+  }
+
+  private List<Object> toList(Iterable<?> iterable) {
+    List<Object> list = new ArrayList<>();
+    iterable.forEach(list::add);
+    return list;
+  }
+
 }
@@ -0,0 +1,464 @@
+package gr.antopapak.persistent.audit.config;
+
+import gr.antopapak.persistent.audit.model.AuditedAction;
+import java.time.Duration;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.EnumMap;
+import java.util.Map;
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+/**
+ * Configuration of the audit pipeline, bound from the {@code persistent.audit} prefix.
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "persistent.audit")
+public class PersistentAuditProperties {
+
+  private Async async = new Async();
+
+  private Storage storage = new Storage();
+
+  private Dictionary dictionary = new Dictionary();
+
+  private History history = new History();
+
+  private Snapshot snapshot = new Snapshot();
+
+  private Retention retention = new Retention();
+
+  private Journal journal = new Journal();
+
+  private Sink sink = new Sink();
+
+  private Coalesce coalesce = new Coalesce();
+
+  private Values values = new Values();
+
+  private Metrics metrics = new Metrics();
+
+  private Parallel parallel = new Parallel();
+
+  private StateCache stateCache = new StateCache();
+
+  private FieldIndex fieldIndex = new FieldIndex();
+
+  /**
+   * Write-behind settings. When enabled, audit logs are built on the caller thread,
+   * queued after the business transaction commits and persisted in batches by a
+   * background writer.
+   */
+  @Data
+  public static class Async {
+
+    private boolean enabled = false;
+
+    /**
+     * Maximum number of audit logs waiting to be written.
+     */
+    private int queueCapacity = 10_000;
+
+    /**
+     * Maximum number of audit logs persisted in a single transaction.
+     */
+    private int batchSize = 500;
+
+    /**
+     * Maximum time a queued audit log waits for its batch to fill up. Must be positive.
+     */
+    private Duration flushInterval = Duration.ofMillis(200);
+
+    /**
+     * What to do when the queue is full.
+     */
+    private BackpressurePolicy backpressure = BackpressurePolicy.BLOCK;
+
+    /**
+     * Maximum time to wait on shutdown for the queued audit logs to be written. The logs still
+     * queued after it are journaled if the journal is enabled, or else dropped.
+     */
+    private Duration shutdownTimeout = Duration.ofSeconds(30);
+  }
+
+  @Data
+  public static class Storage {
+
+    /**
+     * How the affected fields of new audit logs are stored. Logs written in any
+     * format stay readable when this changes. Existing schemas must be migrated by
+     * {@code db/persistent-audit/audit_logs_affected_fields_binary.sql} whatever the format,
+     * since the {@code affected_fields_binary} column is always mapped.
+     */
+    private StorageFormat format = StorageFormat.JSON;
+  }
+
+  /**
+   * Dictionary encoding. When enabled, the entity class name and auditor of new audit logs
+   * are stored as ids into the {@code audit_dictionary} table, and so are the field names
+   * of the {@link StorageFormat#SMILE} layout. Existing schemas must be migrated by
+   * {@code db/persistent-audit/audit_dictionary.sql} whether or not this is enabled, since the
+   * id columns it adds are always mapped and used by retention.
+   */
+  @Data
+  public static class Dictionary {
+
+    private boolean enabled = false;
+  }
+
+  @Data
+  public static class History {
+
+    /**
+     * Number of rows fetched per round trip when streaming history.
+     */
+    private int fetchSize = 1_000;
+
+    /**
+     * Upper bound for the size of a single history page.
+     */
+    private int maxPageSize = 1_000;
+  }
+
+  /**
+   * Checkpoints for point-in-time reconstruction. When enabled, {@code INSERT} logs hold the full
+   * state of the entity, and a full-state {@code SNAPSHOT} log is written after every
+   * {@code everyChanges} changes of an entity, or as soon as the diffs written since the last
+   * checkpoint exceed {@code maxDiffBytes}, whichever comes first.
+   */
+  @Data
+  public static class Snapshot {
+
+    private boolean enabled = false;
+
+    private int everyChanges = 100;
+
+    private long maxDiffBytes = 256 * 1024;
+
+    /**
+     * Maximum number of entities whose progress since the last checkpoint is kept in memory.
+     * Evicted entities start again from zero.
+     */
+    private int trackedEntities = 10_000;
+  }
+
+  /**
+   * Background expiry of old audit logs, run by a scheduler of its own.
+   */
+  @Data
+  public static class Retention {
+
+    private boolean enabled = false;
+
+    /**
+     * How long the audit logs of each action are kept. Actions not listed are kept forever.
+     * With snapshots enabled, a log is also kept until a newer checkpoint of its entity exists.
+     */
+    private Map<AuditedAction, Duration> maxAge = new EnumMap<>(AuditedAction.class);
+
+    /**
+     * Time between two runs of the retention job.
+     */
+    private Duration checkInterval = Duration.ofHours(1);
+
+    /**
+     * Maximum number of rows removed by a single DELETE statement.
+     */
+    private int chunkSize = 1_000;
+
+    /**
+     * Pause between two chunks, to throttle the load on the database.
+     */
+    private Duration chunkPause = Duration.ofMillis(100);
+
+    private Partitioning partitioning = new Partitioning();
+  }
+
+  /**
+   * Management of a PostgreSQL {@code audit_logs} table partitioned by range of {@code datetime}
+   * (see {@code db/persistent-audit/audit_logs_partitioned_postgresql.sql}). Ignored on other
+   * databases, or if the table is not partitioned.
+   */
+  @Data
+  public static class Partitioning {
+
+    private boolean enabled = false;
+
+    private PartitionInterval interval = PartitionInterval.MONTH;
+
+    /**
+     * Number of partitions created ahead of the current one.
+     */
+    private int precreate = 3;
+
+    /**
+     * The time zone the {@code datetime} column is written in, which partition bounds are computed in.
+     */
+    private ZoneId zone = ZoneOffset.UTC;
+
+    /**
+     * What to do with partitions that only hold expired audit logs.
+     */
+    private ExpiredPartitionPolicy expired = ExpiredPartitionPolicy.DROP;
+  }
+
+  /**
+   * A local journal that audit logs are spilled to while the audit database is slow or unavailable,
+   * and replayed from in the background. Also catches the batches the asynchronous writer fails to write.
+   */
+  @Data
+  public static class Journal {
+
+    private boolean enabled = false;
+
+    /**
+     * The directory of the journal files. Must be local to, and exclusive to, a single application instance.
+     */
+    private String directory = "audit-journal";
+
+    /**
+     * The size of each memory-mapped journal file. Bounds the size of a single audit log.
+     */
+    private int segmentSize = 64 * 1024 * 1024;
+
+    /**
+     * Maximum duration of a direct write to the database, rounded up to seconds.
+     */
+    private Duration writeTimeout = Duration.ofSeconds(2);
+
+    /**
+     * Direct writes slower than this switch to the journal.
+     */
+    private Duration slowThreshold = Duration.ofMillis(500);
+
+    /**
+     * How long to keep journaling after a slow or failed direct write.
+     */
+    private Duration cooldown = Duration.ofSeconds(30);
+
+    /**
+     * Maximum number of journaled audit logs replayed in a single transaction.
+     */
+    private int shipBatchSize = 500;
+
+    /**
+     * Time between two checks of an empty journal, and between replay retries.
+     */
+    private Duration pollInterval = Duration.ofSeconds(1);
+
+    /**
+     * How many times a batch the database rejects is replayed before it is split to find the
+     * audit logs that cause it. A single audit log rejected this many times is moved to the
+     * {@code dead-letter} file of the journal directory. Failures to reach the database are
+     * retried without limit.
+     */
+    private int maxReplayAttempts = 5;
+  }
+
+  /**
+   * How audit rows are written to the database. Batching over time is done by the
+   * asynchronous writer ({@link Async#getBatchSize()}, {@link Async#getFlushInterval()}):
+   * the sink writes whatever it is handed at once.
+   */
+  @Data
+  public static class Sink {
+
+    private SinkType type = SinkType.JPA;
+
+    /**
+     * Maximum number of rows in a single multi-row INSERT of the {@link SinkType#JDBC} sink.
+     */
+    private int batchSize = 500;
+
+    /**
+     * Whether the {@link SinkType#JDBC} sink uses {@code COPY FROM STDIN} on PostgreSQL.
+     */
+    private boolean copy = true;
+  }
+
+  /**
+   * Change coalescing. When enabled, the saves of an entity within a transaction are audited
+   * as a single net change when the transaction commits, diffed against the state the entity
+   * had before its first save. Saves that revert every change are not audited at all.<br>
+   *
+   * The net changes are audited just before the transaction commits, inside it. Audit logs
+   * delivered synchronously are therefore written in the business transaction itself, not in a
+   * transaction of their own as uncoalesced saves are: they commit or roll back along with it,
+   * and a failure to write them rolls it back. Asynchronous and journaled audit logs are still
+   * only handed over, and written after the commit.
+   */
+  @Data
+  public static class Coalesce {
+
+    private boolean enabled = false;
+  }
+
+  /**
+   * Content-addressed storage of large values. When enabled, {@code String} and {@code byte[]}
+   * field values of at least {@code threshold} bytes are stored once in the {@code audit_values}
+   * table, keyed by their SHA-256 hash, and the audit logs only hold a reference to them.
+   * The table is created by {@code db/persistent-audit/audit_values.sql}, and its unreferenced
+   * values are removed along with expired audit logs (see {@link Retention}).
+   */
+  @Data
+  public static class Values {
+
+    private boolean enabled = false;
+
+    /**
+     * Size in bytes (UTF-8 for strings) from which a value is stored by reference.
+     */
+    private int threshold = 4 * 1024;
+
+    /**
+     * Maximum total size in bytes of the referenced values cached in memory.
+     */
+    private long cacheSize = 16 * 1024 * 1024;
+
+    /**
+     * Minimum time between two updates of the last reference time of a value. The retention
+     * job removes the values last referenced this long before the oldest audit log left.
+     */
+    private Duration touchInterval = Duration.ofDays(1);
+  }
+
+  /**
+   * Micrometer metrics of the audit pipeline: a timer per stage, distribution summaries of the
+   * changed fields and payload size of each audit log, and the hits and misses of the reflection
+   * metadata cache. Recorded with {@code micrometer-core} on the classpath and a {@code MeterRegistry}
+   * bean; without them nothing is recorded.
+   */
+  @Data
+  public static class Metrics {
+
+    private boolean enabled = false;
+  }
+
+  /**
+   * Parallel building of the audit logs of large batches, eg a {@code saveAll} of thousands of
+   * entities. When enabled, the entities of a batch of at least {@code threshold} entities are
+   * diffed and their affected fields serialized on a dedicated fork-join pool, and the audit logs
+   * are gathered back in the order of the batch for a single write. The pool never accesses the
+   * database: dictionary ids are resolved and large values stored on the calling thread, so it
+   * takes no connections from the connection pool.
+   */
+  @Data
+  public static class Parallel {
+
+    private boolean enabled = false;
+
+    /**
+     * Minimum number of entities in a batch for it to be built in parallel. Smaller batches
+     * are built on the calling thread, where the hand-off would cost more than it saves.
+     */
+    private int threshold = 64;
+
+    /**
+     * Number of threads of the pool, or 0 for the number of available processors.
+     */
+    private int parallelism = 0;
+  }
+
+  /**
+   * Last-known-state cache. When enabled, the state of an audited entity after its last save is
+   * kept in memory and used as the before-state of its next save, instead of reading it from the
+   * database.<br>
+   *
+   * The cache is local to the JVM and assumes it is the single writer of its audited entities:
+   * changes made by other applications or nodes, or by bulk queries, are not seen until the entry
+   * expires, and are then missing from the diff of the next save. Applications running on several
+   * nodes should keep the time to live short, eg a few seconds, or leave the cache disabled.
+   */
+  @Data
+  public static class StateCache {
+
+    private boolean enabled = false;
+
+    /**
+     * Whether a save that leaves its entity as it was after its last save is not audited at all,
+     * without reading its before-state. Otherwise such a save is diffed against the state read
+     * from the database, so that a change made elsewhere since is never hidden by the cache.
+     * Only safe when this JVM is the single writer of its audited entities.
+     */
+    private boolean skipUnchanged = false;
+
+    /**
+     * Maximum estimated total size in bytes of the cached states. The least recently used
+     * entries are evicted beyond it.
+     */
+    private long maxSize = 64 * 1024 * 1024;
+
+    /**
+     * How long a cached state is used after it was saved.
+     */
+    private Duration timeToLive = Duration.ofMinutes(10);
+  }
+
+  /**
+   * Field change index. When enabled, every changed field of an audit log is also written to the
+   * {@code audit_field_changes} table, with hashes of its old and new value, in the same batch as
+   * the log itself, so that the changes of a single field can be looked up by index
+   * (see {@code db/persistent-audit/audit_field_changes.sql}).
+   */
+  @Data
+  public static class FieldIndex {
+
+    private boolean enabled = false;
+  }
+
+  public enum SinkType {
+    /**
+     * Through the {@code AuditLogRepository}, as managed entities.
+     */
+    JPA,
+    /**
+     * With plain JDBC multi-row INSERTs, or {@code COPY} on PostgreSQL, bypassing the entity lifecycle.
+     */
+    JDBC
+  }
+
+  public enum PartitionInterval {
+    DAY, WEEK, MONTH
+  }
+
+  public enum ExpiredPartitionPolicy {
+    /**
+     * Drop the partition along with its rows.
+     */
+    DROP,
+    /**
+     * Detach the partition from {@code audit_logs} and keep it as a standalone table, eg for archiving.
+     */
+    DETACH
+  }
+
+  public enum StorageFormat {
+    /**
+     * A JSON array of {@code {fieldName, before, after}} objects, in the {@code affected_fields} column.
+     */
+    JSON,
+    /**
+     * A compact binary layout in the {@code affected_fields_binary} column: an index of the field
+     * names followed by the before/after values of each field as a separate Smile document,
+     * so that fields can be decoded one at a time.
+     */
+    SMILE
+  }
+
+  public enum BackpressurePolicy {
+    /**
+     * Block the submitting thread until there is room in the queue.
+     */
+    BLOCK,
+    /**
+     * Discard the audit log and increase the dropped counter.
+     */
+    DROP,
+    /**
+     * Persist the audit log synchronously on the submitting thread.
+     */
+    CALLER_RUNS
+  }
+}
@@ -0,0 +1,61 @@
+package gr.antopapak.persistent.audit.differ;
+
+import java.util.Objects;
+
+/**
+ * A type-specific differ of an entity annotated with
+ * {@link gr.antopapak.persistent.audit.annotation.PersistentLogAudit}.<br>
+ *
+ * Implementations are generated at compile time by
+ * {@link gr.antopapak.persistent.audit.processor.PersistentLogAuditProcessor}, next to the
+ * entity and named after it with the {@link #GENERATED_SUFFIX} (eg {@code Account_AuditDiffer}).
+ * They read fields directly instead of through reflection, honour the same exclusions as
+ * the reflective path and report only the fields that changed.
+ *
+ * @param <T> the entity type
+ */
+public interface EntityDiffer<T> {
+
+  String GENERATED_SUFFIX = "_AuditDiffer";
+
+  /**
+   * @param entity the entity
+   * @return the value of the field annotated with @Id
+   */
+  Object getId(T entity);
+
+  /**
+   * @param entity the entity
+   * @return the value of the field annotated with @NaturalId, or null if there is none
+   */
+  Object getNaturalId(T entity);
+
+  /**
+   * Compares the loggable fields of two states of the same entity and reports
+   * every field whose value differs.
+   *
+   * @param before the state before the mutation, not null
+   * @param after the state after the mutation, not null
+   * @param consumer receives the changed fields, in declaration order
+   */
+  void diff(T before, T after, ChangeConsumer consumer);
+
+  /**
+   * Receives the fields that differ between two states of an entity.
+   */
+  @FunctionalInterface
+  interface ChangeConsumer {
+
+    void changed(String fieldName, Object before, Object after);
+
+    /**
+     * Compares two values of a non-primitive field, eg so that associations are compared
+     * without being loaded.
+     *
+     * @return true if the field did not change
+     */
+    default boolean valuesEqual(Object before, Object after) {
+      return Objects.equals(before, after);
+    }
+  }
+}
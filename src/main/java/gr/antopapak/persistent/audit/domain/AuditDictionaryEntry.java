@@ -0,0 +1,52 @@
+package gr.antopapak.persistent.audit.domain;
+
+import gr.antopapak.persistent.audit.model.DictionaryKind;
+import java.io.Serializable;
+import javax.persistence.Basic;
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Table;
+import javax.persistence.UniqueConstraint;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+/**
+ * A word of the audit dictionary: a class name, auditor or field name,
+ * stored once and referenced from the audit logs by its id.
+ */
+@Entity
+@Table(
+    name = "audit_dictionary",
+    uniqueConstraints = @UniqueConstraint(name = "uk_audit_dictionary_kind_value", columnNames = {"kind", "entry_value"})
+)
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@Getter
+@Setter
+public class AuditDictionaryEntry implements Serializable {
+
+  protected static final long serialVersionUID = 1L;
+
+  @Id
+  @GeneratedValue(strategy = GenerationType.IDENTITY)
+  @Column(name = "id", updatable = false, nullable = false)
+  private Integer id;
+
+  @Enumerated(EnumType.STRING)
+  @Column(name = "kind", nullable = false, updatable = false)
+  private DictionaryKind kind;
+
+  @Basic
+  @Column(name = "entry_value", nullable = false, updatable = false)
+  private String value;
+
+}
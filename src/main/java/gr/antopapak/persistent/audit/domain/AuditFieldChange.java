@@ -0,0 +1,87 @@
+package gr.antopapak.persistent.audit.domain;
+
+import java.io.Serializable;
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.IdClass;
+import javax.persistence.Index;
+import javax.persistence.Table;
+import javax.persistence.Transient;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import org.springframework.data.domain.Persistable;
+
+/**
+ * A changed field of an audit log, with hashes of its old and new value, so that the changes
+ * of a field can be found without decoding the affected fields of every audit log.
+ *
+ * @see gr.antopapak.persistent.audit.service.AuditFieldIndex
+ */
+@Entity
+@Table(
+    name = "audit_field_changes",
+    indexes = {
+        @Index(name = "idx_audit_field_changes_field", columnList = "entity_class_name, field_name, audit_log_id"),
+        @Index(name = "idx_audit_field_changes_new_value", columnList = "entity_class_name, field_name, new_value_hash, audit_log_id")
+    }
+)
+@IdClass(AuditFieldChange.Key.class)
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@Getter
+@Setter
+public class AuditFieldChange implements Persistable<AuditFieldChange.Key>, Serializable {
+
+  protected static final long serialVersionUID = 1L;
+
+  @Id
+  @Column(name = "audit_log_id", updatable = false, nullable = false)
+  private Long auditLogId;
+
+  @Id
+  @Column(name = "field_name", updatable = false, nullable = false)
+  private String fieldName;
+
+  @Column(name = "entity_class_name", updatable = false, nullable = false)
+  private String entityClassName;
+
+  /**
+   * The hash of the value before the change, or null if the change is an insert.
+   */
+  @Column(name = "old_value_hash", updatable = false)
+  private Long oldValueHash;
+
+  @Column(name = "new_value_hash", updatable = false, nullable = false)
+  private Long newValueHash;
+
+  @Override
+  public Key getId() {
+    return new Key(auditLogId, fieldName);
+  }
+
+  /**
+   * Field changes are only ever inserted, so they are saved without checking for an existing row.
+   */
+  @Override
+  @Transient
+  public boolean isNew() {
+    return true;
+  }
+
+  @Data
+  @NoArgsConstructor
+  @AllArgsConstructor
+  public static class Key implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private Long auditLogId;
+    private String fieldName;
+  }
+}
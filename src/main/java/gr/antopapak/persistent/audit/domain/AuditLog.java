@@ -1,18 +1,23 @@
 package gr.antopapak.persistent.audit.domain;
 
-import com.vladmihalcea.hibernate.type.json.JsonStringType;
 import gr.antopapak.persistent.audit.model.AuditedAction;
+import gr.antopapak.persistent.audit.service.AuditLogDictionaryListener;
 import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
 import java.time.Instant;
+import java.util.List;
 import javax.persistence.Basic;
 import javax.persistence.Column;
 import javax.persistence.Entity;
+import javax.persistence.EntityListeners;
 import javax.persistence.EnumType;
 import javax.persistence.Enumerated;
 import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
 import javax.persistence.Id;
+import javax.persistence.Index;
 import javax.persistence.Table;
+import javax.persistence.Transient;
 import lombok.AllArgsConstructor;
 import lombok.Builder;
 import lombok.Getter;
@@ -23,15 +28,26 @@ import org.hibernate.annotations.TypeDef;
 import org.springframework.format.annotation.DateTimeFormat;
 
 @Entity
-@Table(name = "audit_logs")
+@Table(
+    name = "audit_logs",
+    indexes = {
+        @Index(name = "idx_audit_logs_entity", columnList = "entity_class_name, entity_id, datetime, id"),
+        @Index(name = "idx_audit_logs_entity_class_id", columnList = "entity_class_id, entity_id, datetime, id"),
+        @Index(name = "idx_audit_logs_auditor", columnList = "auditor, datetime, id"),
+        @Index(name = "idx_audit_logs_auditor_id", columnList = "auditor_id, datetime, id"),
+        @Index(name = "idx_audit_logs_action", columnList = "action, datetime, id"),
+        @Index(name = "idx_audit_logs_datetime", columnList = "datetime, id")
+    }
+)
+@EntityListeners(AuditLogDictionaryListener.class)
 @Builder
 @NoArgsConstructor
 @AllArgsConstructor
 @Getter
 @Setter
 @TypeDef(
-    name = "json",
-    typeClass = JsonStringType.class
+    name = "json-bytes",
+    typeClass = JsonBytesType.class
 )
 public class AuditLog implements Serializable {
 
@@ -43,18 +59,32 @@ public class AuditLog implements Serializable {
   private Long id;
 
   @Basic
-  @Column(name = "auditor", nullable = false)
+  @Column(name = "auditor", updatable = false)
   private String auditor;
 
+  /**
+   * The id of the auditor in the audit dictionary, when written with dictionary encoding.
+   */
+  @Basic
+  @Column(name = "auditor_id", updatable = false)
+  private Integer auditorId;
+
   @Basic
   @DateTimeFormat(pattern = "yyyy-MM-dd HH:mm:ss")
   @Column(name = "datetime", nullable = false)
   private Instant dateTime;
 
   @Basic
-  @Column(name = "entity_class_name", nullable = false)
+  @Column(name = "entity_class_name", updatable = false)
   private String entityClassName;
 
+  /**
+   * The id of the entity class name in the audit dictionary, when written with dictionary encoding.
+   */
+  @Basic
+  @Column(name = "entity_class_id", updatable = false)
+  private Integer entityClassId;
+
   @Basic
   @Column(name = "entity_id", nullable = false)
   private String entityId;
@@ -69,7 +99,43 @@ public class AuditLog implements Serializable {
 
   @Basic
   @Column(name = "affected_fields", columnDefinition = "json")
-  @Type(type = "json")
-  private String affectedFields;
+  @Type(type = "json-bytes")
+  private byte[] affectedFields;
+
+  /**
+   * The affected fields in the binary layout, when written with
+   * {@link gr.antopapak.persistent.audit.config.PersistentAuditProperties.StorageFormat#SMILE}.
+   */
+  @Basic
+  @Column(name = "affected_fields_binary", length = 16_777_215)
+  private byte[] affectedFieldsBinary;
+
+  /**
+   * The changed fields to write to the field change index along with this log, or null if it is not indexed.
+   */
+  @Transient
+  private List<AuditFieldChange> fieldChanges;
+
+  /**
+   * @return the affected fields as a JSON string, or null if there are none
+   */
+  public String getAffectedFields() {
+    return affectedFields != null ? new String(affectedFields, StandardCharsets.UTF_8) : null;
+  }
+
+  public void setAffectedFields(String affectedFields) {
+    this.affectedFields = affectedFields != null ? affectedFields.getBytes(StandardCharsets.UTF_8) : null;
+  }
+
+  /**
+   * @return the affected fields as UTF-8 encoded JSON, without copying
+   */
+  public byte[] getAffectedFieldsBytes() {
+    return affectedFields;
+  }
+
+  public void setAffectedFieldsBytes(byte[] affectedFields) {
+    this.affectedFields = affectedFields;
+  }
 
 }
@@ -0,0 +1,52 @@
+package gr.antopapak.persistent.audit.domain;
+
+import java.io.Serializable;
+import java.time.Instant;
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.Table;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+/**
+ * A large field value, stored once and referenced from the audit logs by the
+ * SHA-256 hash of its content.
+ *
+ * @see gr.antopapak.persistent.audit.service.AuditValueStore
+ */
+@Entity
+@Table(
+    name = "audit_values",
+    indexes = @Index(name = "idx_audit_values_last_referenced", columnList = "last_referenced")
+)
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@Getter
+@Setter
+public class AuditValue implements Serializable {
+
+  protected static final long serialVersionUID = 1L;
+
+  /**
+   * The hex encoded SHA-256 hash of the content.
+   */
+  @Id
+  @Column(name = "hash", length = 64, updatable = false, nullable = false)
+  private String hash;
+
+  @Column(name = "content", length = 16_777_215, updatable = false, nullable = false)
+  private byte[] content;
+
+  /**
+   * When the value was last written to an audit log, give or take
+   * {@code persistent.audit.values.touch-interval}.
+   */
+  @Column(name = "last_referenced", nullable = false)
+  private Instant lastReferenced;
+}
@@ -0,0 +1,84 @@
+package gr.antopapak.persistent.audit.domain;
+
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.Arrays;
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
+import org.hibernate.usertype.UserType;
+
+/**
+ * Maps UTF-8 encoded JSON, held as a {@code byte[]}, to a JSON column.<br>
+ *
+ * Unlike a String-based JSON type, the value is treated as immutable: it is never parsed
+ * for dirty checking nor copied when the entity is managed. It is decoded to characters
+ * only when bound, since JDBC drivers accept JSON columns as character data.
+ */
+public class JsonBytesType implements UserType {
+
+  @Override
+  public int[] sqlTypes() {
+    return new int[] {Types.VARCHAR};
+  }
+
+  @Override
+  public Class<?> returnedClass() {
+    return byte[].class;
+  }
+
+  @Override
+  public boolean equals(Object x, Object y) {
+    return Arrays.equals((byte[]) x, (byte[]) y);
+  }
+
+  @Override
+  public int hashCode(Object x) {
+    return Arrays.hashCode((byte[]) x);
+  }
+
+  @Override
+  public Object nullSafeGet(ResultSet rs, String[] names, SharedSessionContractImplementor session, Object owner)
+      throws SQLException {
+    String json = rs.getString(names[0]);
+    return json != null ? json.getBytes(StandardCharsets.UTF_8) : null;
+  }
+
+  @Override
+  public void nullSafeSet(PreparedStatement st, Object value, int index, SharedSessionContractImplementor session)
+      throws SQLException {
+    if(value == null) {
+      st.setNull(index, Types.VARCHAR);
+    }
+    else {
+      st.setString(index, new String((byte[]) value, StandardCharsets.UTF_8));
+    }
+  }
+
+  @Override
+  public Object deepCopy(Object value) {
+    return value;
+  }
+
+  @Override
+  public boolean isMutable() {
+    return false;
+  }
+
+  @Override
+  public Serializable disassemble(Object value) {
+    return (Serializable) value;
+  }
+
+  @Override
+  public Object assemble(Serializable cached, Object owner) {
+    return cached;
+  }
+
+  @Override
+  public Object replace(Object original, Object target, Object owner) {
+    return original;
+  }
+}
@@ -1,5 +1,6 @@
 package gr.antopapak.persistent.audit.model;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonPropertyOrder;
 import lombok.AllArgsConstructor;
 import lombok.Data;
@@ -11,10 +12,24 @@ import lombok.RequiredArgsConstructor;
 @JsonPropertyOrder({
     "fieldName",
     "before",
-    "after"
+    "after",
+    "changes"
 })
 public class AffectedField {
   private final String fieldName;
   private Object before;
   private Object after;
+
+  /**
+   * The element-level changes of a collection, array or map field, written instead of its
+   * full before and after values: {@code {type, removed, moved, added}} for lists and arrays,
+   * {@code {type, removed, added}} for other collections and {@code {type, removed, put}} for maps.
+   * Null when the field holds full values.
+   */
+  @JsonInclude(JsonInclude.Include.NON_NULL)
+  private Object changes;
+
+  public AffectedField(String fieldName, Object before, Object after) {
+    this(fieldName, before, after, null);
+  }
 }
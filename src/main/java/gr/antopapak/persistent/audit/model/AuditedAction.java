@@ -1,5 +1,10 @@
 package gr.antopapak.persistent.audit.model;
 
 public enum AuditedAction {
-  INSERT, UPDATE, SOFT_DELETE, SOFT_RESTORE, DELETE
+  INSERT, UPDATE, SOFT_DELETE, SOFT_RESTORE, DELETE,
+  /**
+   * A checkpoint holding the full state of an entity, written periodically to bound
+   * the cost of point-in-time reconstruction.
+   */
+  SNAPSHOT
 }
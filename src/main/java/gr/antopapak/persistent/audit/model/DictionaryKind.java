@@ -0,0 +1,5 @@
+package gr.antopapak.persistent.audit.model;
+
+public enum DictionaryKind {
+  ENTITY_CLASS, AUDITOR, FIELD_NAME
+}
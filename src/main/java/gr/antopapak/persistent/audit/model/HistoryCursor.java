@@ -0,0 +1,22 @@
+package gr.antopapak.persistent.audit.model;
+
+import gr.antopapak.persistent.audit.domain.AuditLog;
+import java.time.Instant;
+import lombok.Value;
+
+/**
+ * The position of an audit log in the history order, {@code (datetime, id)} descending.<br>
+ *
+ * A page of history continues right after the cursor of the last log of the previous page,
+ * so paging costs the same no matter how deep it goes.
+ */
+@Value
+public class HistoryCursor {
+
+  Instant dateTime;
+  Long id;
+
+  public static HistoryCursor of(AuditLog auditLog) {
+    return new HistoryCursor(auditLog.getDateTime(), auditLog.getId());
+  }
+}
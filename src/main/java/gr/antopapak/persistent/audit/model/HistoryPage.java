@@ -0,0 +1,23 @@
+package gr.antopapak.persistent.audit.model;
+
+import gr.antopapak.persistent.audit.domain.AuditLog;
+import java.util.List;
+import lombok.Value;
+
+/**
+ * A page of audit logs, newest first.
+ */
+@Value
+public class HistoryPage {
+
+  List<AuditLog> content;
+
+  /**
+   * The cursor to request the next page with, or null if this is the last page.
+   */
+  HistoryCursor next;
+
+  public boolean hasNext() {
+    return next != null;
+  }
+}
@@ -0,0 +1,50 @@
+package gr.antopapak.persistent.audit.model;
+
+import java.time.Instant;
+import lombok.Builder;
+import lombok.Value;
+
+/**
+ * The filters of a history lookup. Filters left null are not applied.
+ */
+@Value
+@Builder(toBuilder = true)
+public class HistoryQuery {
+
+  /**
+   * The simple name of the entity class, as stored in the audit logs.
+   */
+  String entityClassName;
+
+  String entityId;
+
+  String auditor;
+
+  AuditedAction action;
+
+  /**
+   * The start of the time range, inclusive.
+   */
+  Instant from;
+
+  /**
+   * The end of the time range, exclusive.
+   */
+  Instant to;
+
+  public static HistoryQuery ofEntity(Class<?> entityClass, Object entityId) {
+    return builder().entityClassName(entityClass.getSimpleName()).entityId(String.valueOf(entityId)).build();
+  }
+
+  public static HistoryQuery ofAuditor(String auditor) {
+    return builder().auditor(auditor).build();
+  }
+
+  public static HistoryQuery ofAction(AuditedAction action) {
+    return builder().action(action).build();
+  }
+
+  public static HistoryQuery between(Instant from, Instant to) {
+    return builder().from(from).to(to).build();
+  }
+}
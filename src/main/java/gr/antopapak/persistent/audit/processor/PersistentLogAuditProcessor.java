@@ -0,0 +1,270 @@
+package gr.antopapak.persistent.audit.processor;
+
+import gr.antopapak.persistent.audit.differ.EntityDiffer;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.lang.model.util.Types;
+import javax.tools.Diagnostic.Kind;
+import javax.tools.JavaFileObject;
+
+/**
+ * Generates an {@link EntityDiffer} for every class annotated with
+ * {@link gr.antopapak.persistent.audit.annotation.PersistentLogAudit}.<br>
+ *
+ * The generated differ reads fields through static final {@link java.lang.invoke.VarHandle}s,
+ * compares primitives without boxing and logs the same fields as the reflective path: every
+ * field of the class and its superclasses, static ones included, except ids, created/modified
+ * annotations and {@code @PersistentLogAudit.Exclude}.
+ * <p>
+ * The processor is registered as a service of this jar, so it runs automatically when the
+ * jar is on the compile classpath. Builds that set an explicit processor path
+ * (eg {@code annotationProcessorPaths} for Lombok) need to add this artifact to it.
+ * Entities without a generated differ are audited through reflection.
+ */
+@SupportedAnnotationTypes(PersistentLogAuditProcessor.ANNOTATION)
+public class PersistentLogAuditProcessor extends AbstractProcessor {
+
+  static final String ANNOTATION = "gr.antopapak.persistent.audit.annotation.PersistentLogAudit";
+
+  private static final Set<String> ID_ANNOTATIONS = Set.of(
+      "javax.persistence.Id",
+      "org.springframework.data.annotation.Id"
+  );
+
+  private static final Set<String> EXCLUDED_ANNOTATIONS = Set.of(
+      "javax.persistence.Id",
+      "org.springframework.data.annotation.Id",
+      "org.springframework.data.annotation.CreatedBy",
+      "org.springframework.data.annotation.LastModifiedBy",
+      "org.springframework.data.annotation.CreatedDate",
+      "org.springframework.data.annotation.LastModifiedDate",
+      ANNOTATION + ".Exclude"
+  );
+
+  private static final String NATURAL_ID_ANNOTATION = "org.hibernate.annotations.NaturalId";
+
+  @Override
+  public SourceVersion getSupportedSourceVersion() {
+    return SourceVersion.latestSupported();
+  }
+
+  @Override
+  public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+    TypeElement annotation = processingEnv.getElementUtils().getTypeElement(ANNOTATION);
+    if(annotation == null) {
+      return false;
+    }
+
+    for(Element element : roundEnv.getElementsAnnotatedWith(annotation)) {
+      if(isSupported(element)) {
+        TypeElement type = (TypeElement) element;
+        try {
+          generate(type);
+        } catch (IOException e) {
+          processingEnv.getMessager().printMessage(Kind.ERROR, "Cannot generate audit differ: " + e.getMessage(), type);
+        }
+      }
+    }
+
+    return false;
+  }
+
+  private boolean isSupported(Element element) {
+    Set<Modifier> modifiers = element.getModifiers();
+    return element.getKind() == ElementKind.CLASS
+        && !modifiers.contains(Modifier.ABSTRACT)
+        && !modifiers.contains(Modifier.PRIVATE)
+        && (((TypeElement) element).getNestingKind() == NestingKind.TOP_LEVEL || modifiers.contains(Modifier.STATIC));
+  }
+
+  private void generate(TypeElement type) throws IOException {
+    List<VariableElement> loggableFields = new ArrayList<>();
+    VariableElement idField = null;
+    VariableElement naturalIdField = null;
+
+    for(TypeElement t = type; t != null; t = superclassOf(t)) {
+      for(VariableElement field : ElementFilter.fieldsIn(t.getEnclosedElements())) {
+        if(hasAnyAnnotation(field, ID_ANNOTATIONS)) {
+          if(idField != null) {
+            processingEnv.getMessager().printMessage(Kind.WARNING, "Multiple ids found, no audit differ generated", type);
+            return;
+          }
+          idField = field;
+        }
+        if(hasAnyAnnotation(field, EXCLUDED_ANNOTATIONS)) {
+          continue;
+        }
+        loggableFields.add(field);
+        if(naturalIdField == null && hasAnyAnnotation(field, Set.of(NATURAL_ID_ANNOTATION))) {
+          naturalIdField = field;
+        }
+      }
+    }
+
+    if(idField == null) {
+      processingEnv.getMessager().printMessage(Kind.WARNING, "No @Id found, no audit differ generated", type);
+      return;
+    }
+
+    String packageName = processingEnv.getElementUtils().getPackageOf(type).getQualifiedName().toString();
+    String binaryName = processingEnv.getElementUtils().getBinaryName(type).toString();
+    String simpleName = (packageName.isEmpty() ? binaryName : binaryName.substring(packageName.length() + 1))
+        + EntityDiffer.GENERATED_SUFFIX;
+    String qualifiedName = packageName.isEmpty() ? simpleName : packageName + "." + simpleName;
+    String entityType = rawName(type.asType());
+
+    JavaFileObject file = processingEnv.getFiler().createSourceFile(qualifiedName, type);
+    try (PrintWriter out = new PrintWriter(file.openWriter())) {
+      writeDiffer(out, packageName, simpleName, entityType, idField, naturalIdField, loggableFields);
+    }
+  }
+
+  private void writeDiffer(PrintWriter out, String packageName, String simpleName, String entityType,
+      VariableElement idField, VariableElement naturalIdField, List<VariableElement> loggableFields) {
+
+    Map<TypeElement, String> lookups = new LinkedHashMap<>();
+    lookups.computeIfAbsent(declaringType(idField), t -> "lookup" + lookups.size());
+    loggableFields.forEach(f -> lookups.computeIfAbsent(declaringType(f), t -> "lookup" + lookups.size()));
+
+    if(!packageName.isEmpty()) {
+      out.println("package " + packageName + ";");
+      out.println();
+    }
+    out.println("@javax.annotation.processing.Generated(\"" + getClass().getName() + "\")");
+    out.println("public final class " + simpleName + " implements "
+        + EntityDiffer.class.getCanonicalName() + "<" + entityType + "> {");
+    out.println();
+    out.println("  private static final java.lang.invoke.VarHandle ID;");
+    for(int i = 0; i < loggableFields.size(); i++) {
+      out.println("  private static final java.lang.invoke.VarHandle FIELD_" + i + ";");
+    }
+    out.println();
+    out.println("  static {");
+    out.println("    try {");
+    lookups.forEach((declaringType, lookup) -> out.println("      java.lang.invoke.MethodHandles.Lookup " + lookup
+        + " = java.lang.invoke.MethodHandles.privateLookupIn(" + rawName(declaringType.asType())
+        + ".class, java.lang.invoke.MethodHandles.lookup());"));
+    out.println("      ID = " + varHandle(lookups, idField) + ";");
+    for(int i = 0; i < loggableFields.size(); i++) {
+      out.println("      FIELD_" + i + " = " + varHandle(lookups, loggableFields.get(i)) + ";");
+    }
+    out.println("    } catch (ReflectiveOperationException e) {");
+    out.println("      throw new ExceptionInInitializerError(e);");
+    out.println("    }");
+    out.println("  }");
+    out.println();
+    out.println("  @Override");
+    out.println("  public Object getId(" + entityType + " entity) {");
+    out.println("    return " + read("ID", idField, "entity") + ";");
+    out.println("  }");
+    out.println();
+    out.println("  @Override");
+    out.println("  public Object getNaturalId(" + entityType + " entity) {");
+    out.println(naturalIdField == null
+        ? "    return null;"
+        : "    return " + read("FIELD_" + loggableFields.indexOf(naturalIdField), naturalIdField, "entity") + ";");
+    out.println("  }");
+    out.println();
+    out.println("  @Override");
+    out.println("  public void diff(" + entityType + " before, " + entityType + " after, ChangeConsumer consumer) {");
+    for(int i = 0; i < loggableFields.size(); i++) {
+      writeComparison(out, i, loggableFields.get(i));
+    }
+    out.println("  }");
+    out.println("}");
+  }
+
+  private void writeComparison(PrintWriter out, int index, VariableElement field) {
+    TypeMirror type = field.asType();
+    boolean primitive = type.getKind().isPrimitive();
+    String variableType = primitive ? type.toString() : "Object";
+    String cast = primitive ? "(" + variableType + ") " : "";
+    String before = "before" + index;
+    String after = "after" + index;
+
+    out.println("    " + variableType + " " + before + " = " + cast + read("FIELD_" + index, field, "before") + ";");
+    out.println("    " + variableType + " " + after + " = " + cast + read("FIELD_" + index, field, "after") + ";");
+
+    String changed;
+    if(type.getKind() == TypeKind.DOUBLE) {
+      changed = "Double.doubleToLongBits(" + before + ") != Double.doubleToLongBits(" + after + ")";
+    }
+    else if(type.getKind() == TypeKind.FLOAT) {
+      changed = "Float.floatToIntBits(" + before + ") != Float.floatToIntBits(" + after + ")";
+    }
+    else if(primitive) {
+      changed = before + " != " + after;
+    }
+    else {
+      changed = "!consumer.valuesEqual(" + before + ", " + after + ")";
+    }
+
+    out.println("    if(" + changed + ") {");
+    out.println("      consumer.changed(\"" + field.getSimpleName() + "\", " + before + ", " + after + ");");
+    out.println("    }");
+  }
+
+  private String varHandle(Map<TypeElement, String> lookups, VariableElement field) {
+    TypeElement declaringType = declaringType(field);
+    return lookups.get(declaringType) + (isStatic(field) ? ".findStaticVarHandle(" : ".findVarHandle(") + rawName(declaringType.asType()) + ".class, \""
+        + field.getSimpleName() + "\", " + rawName(field.asType()) + ".class)";
+  }
+
+  /**
+   * Static fields are logged like the reflective path does, and read without a receiver.
+   */
+  private String read(String handle, VariableElement field, String receiver) {
+    return handle + ".get(" + (isStatic(field) ? "" : receiver) + ")";
+  }
+
+  private boolean isStatic(VariableElement field) {
+    return field.getModifiers().contains(Modifier.STATIC);
+  }
+
+  private TypeElement declaringType(VariableElement field) {
+    return (TypeElement) field.getEnclosingElement();
+  }
+
+  private TypeElement superclassOf(TypeElement type) {
+    TypeMirror superclass = type.getSuperclass();
+    if(superclass.getKind() != TypeKind.DECLARED) {
+      return null;
+    }
+    TypeElement element = (TypeElement) processingEnv.getTypeUtils().asElement(superclass);
+    return element.getQualifiedName().contentEquals(Object.class.getName()) ? null : element;
+  }
+
+  private String rawName(TypeMirror type) {
+    Types types = processingEnv.getTypeUtils();
+    return types.erasure(type).toString();
+  }
+
+  private boolean hasAnyAnnotation(Element element, Set<String> annotationNames) {
+    for(AnnotationMirror mirror : element.getAnnotationMirrors()) {
+      Element annotationType = mirror.getAnnotationType().asElement();
+      if(annotationNames.contains(((TypeElement) annotationType).getQualifiedName().toString())) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
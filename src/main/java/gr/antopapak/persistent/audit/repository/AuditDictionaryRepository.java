@@ -0,0 +1,14 @@
+package gr.antopapak.persistent.audit.repository;
+
+
+import gr.antopapak.persistent.audit.domain.AuditDictionaryEntry;
+import gr.antopapak.persistent.audit.model.DictionaryKind;
+import java.util.Optional;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.stereotype.Repository;
+
+@Repository
+public interface AuditDictionaryRepository extends JpaRepository<AuditDictionaryEntry, Integer> {
+
+  Optional<AuditDictionaryEntry> findByKindAndValue(DictionaryKind kind, String value);
+}
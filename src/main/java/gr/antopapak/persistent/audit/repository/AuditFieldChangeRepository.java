@@ -0,0 +1,10 @@
+package gr.antopapak.persistent.audit.repository;
+
+
+import gr.antopapak.persistent.audit.domain.AuditFieldChange;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.stereotype.Repository;
+
+@Repository
+public interface AuditFieldChangeRepository extends JpaRepository<AuditFieldChange, AuditFieldChange.Key> {
+}
@@ -0,0 +1,23 @@
+package gr.antopapak.persistent.audit.repository;
+
+
+import gr.antopapak.persistent.audit.domain.AuditValue;
+import java.time.Instant;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+@Repository
+public interface AuditValueRepository extends JpaRepository<AuditValue, String> {
+
+  /**
+   * Records that a stored value was referenced again, without loading its content.
+   *
+   * @return the number of values updated, 0 if the value is not stored
+   */
+  @Modifying
+  @Query("update AuditValue v set v.lastReferenced = :lastReferenced where v.hash = :hash")
+  int touch(@Param("hash") String hash, @Param("lastReferenced") Instant lastReferenced);
+}
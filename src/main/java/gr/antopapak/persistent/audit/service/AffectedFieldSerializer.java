@@ -10,43 +10,170 @@ import java.math.BigDecimal;
 import java.math.BigInteger;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.stream.Collectors;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import lombok.RequiredArgsConstructor;
 import org.springframework.boot.jackson.JsonComponent;
 
+/**
+ * Writes an {@link AffectedField} and its values as JSON.<br>
+ *
+ * Nested objects are written through their loggable fields, up to {@link #DEFAULT_MAX_DEPTH} levels,
+ * or the {@link gr.antopapak.persistent.audit.annotation.PersistentLogAudit#maxDepth() maxDepth} of the audited entity.
+ * Associated entities are written as a {@code {id, naturalId}} reference instead, and collections
+ * that were not loaded as the {@link Associations#UNINITIALIZED} marker, so that writing a value
+ * never initializes a lazy association (see {@link Associations}). Maps are written as objects
+ * keyed by the string value of their keys.
+ * All traversal state (depth and the objects currently being written, used to cut cycles)
+ * is kept per call, so a single instance can be shared between threads.
+ */
 @JsonComponent
 @RequiredArgsConstructor
 public class AffectedFieldSerializer extends JsonSerializer<AffectedField> {
 
   private final ReflectionCache reflectionCache;
+  private final Associations associations;
 
-  private static final int MAX_DEPTH = 2;
-  private int currentDepth;
+  static final int DEFAULT_MAX_DEPTH = 2;
 
   @Override
   public void serialize(AffectedField affectedField, JsonGenerator gen, SerializerProvider serializers) throws IOException {
-    String fieldName = affectedField.getFieldName();
-    Object before = affectedField.getBefore();
-    Object after = affectedField.getAfter();
-
-    currentDepth = 0;
+    gen.writeStartObject();
+    gen.writeStringField("fieldName", affectedField.getFieldName());
+    if(affectedField.getChanges() != null) {
+      writeValues("changes", affectedField.getChanges(), gen, 0, DEFAULT_MAX_DEPTH, null);
+    }
+    else {
+      writeValues("before", affectedField.getBefore(), gen, 0, DEFAULT_MAX_DEPTH, null);
+      writeValues("after", affectedField.getAfter(), gen, 0, DEFAULT_MAX_DEPTH, null);
+    }
+    gen.writeEndObject();
+  }
 
+  /**
+   * Writes a single affected field as a {@code {fieldName, before, after}} object, or as a
+   * {@code {fieldName, changes}} object if the element-level changes of the field are given.
+   *
+   * @param diff the element-level changes of the field, or null to write its full values
+   * @param maxDepth how many levels of nested objects to write
+   */
+  void writeAffectedField(String fieldName, Object before, Object after, CollectionDiff diff, int maxDepth, JsonGenerator gen) throws IOException {
     gen.writeStartObject();
     gen.writeStringField("fieldName", fieldName);
-    writeValues("before", before, gen);
-    writeValues("after", after, gen);
+    if(diff != null) {
+      gen.writeFieldName("changes");
+      writeChanges(diff, maxDepth, gen);
+    }
+    else {
+      writeValues("before", before, gen, 0, maxDepth, null);
+      writeValues("after", after, gen, 0, maxDepth, null);
+    }
     gen.writeEndObject();
   }
 
-  private void writeValues(String fieldName, Object value, JsonGenerator gen) throws IOException {
-    if(currentDepth > MAX_DEPTH) {
+  /**
+   * Writes the element-level changes of a field, with the elements written as in a full value.
+   *
+   * @see gr.antopapak.persistent.audit.model.AffectedField#getChanges()
+   */
+  void writeChanges(CollectionDiff diff, int maxDepth, JsonGenerator gen) throws IOException {
+    gen.writeStartObject();
+    gen.writeStringField("type", diff.getType());
+
+    if(CollectionDiff.MAP.equals(diff.getType())) {
+      gen.writeArrayFieldStart("removed");
+      for(Object[] entry : diff.getRemoved()) {
+        gen.writeString((String) entry[0]);
+      }
+      gen.writeEndArray();
+      gen.writeObjectFieldStart("put");
+      for(Object[] entry : diff.getAdded()) {
+        gen.writeFieldName((String) entry[0]);
+        writeValues(null, entry[1], gen, 1, maxDepth, null);
+      }
+      gen.writeEndObject();
+    }
+    else if(CollectionDiff.SET.equals(diff.getType())) {
+      writeElements("removed", diff.getRemoved(), false, maxDepth, gen);
+      writeElements("added", diff.getAdded(), false, maxDepth, gen);
+    }
+    else {
+      writeElements("removed", diff.getRemoved(), true, maxDepth, gen);
+      gen.writeArrayFieldStart("moved");
+      for(int[] move : diff.getMoved()) {
+        gen.writeArray(move, 0, 2);
+      }
+      gen.writeEndArray();
+      writeElements("added", diff.getAdded(), true, maxDepth, gen);
+    }
+
+    gen.writeEndObject();
+  }
+
+  private void writeElements(String name, List<Object[]> elements, boolean indexed, int maxDepth, JsonGenerator gen) throws IOException {
+    gen.writeArrayFieldStart(name);
+    for(Object[] element : elements) {
+      if(indexed) {
+        gen.writeStartObject();
+        gen.writeNumberField("index", (Integer) element[0]);
+        gen.writeFieldName("value");
+        writeValues(null, element[1], gen, 1, maxDepth, null);
+        gen.writeEndObject();
+      }
+      else {
+        writeValues(null, element[1], gen, 1, maxDepth, null);
+      }
+    }
+    gen.writeEndArray();
+  }
+
+  /**
+   * Writes a single value, eg as an element of an array.
+   *
+   * @param maxDepth how many levels of nested objects to write
+   */
+  void writeValue(Object value, int maxDepth, JsonGenerator gen) throws IOException {
+    writeValues(null, value, gen, 0, maxDepth, null);
+  }
+
+  /**
+   * Writes a value, preceded by its field name if one is given.<br>
+   * Values deeper than maxDepth, or objects already being written further up
+   * (cycles), are skipped along with their field name.
+   *
+   * @param path the objects currently being written, or null if none yet
+   */
+  private void writeValues(String fieldName, Object value, JsonGenerator gen, int depth, int maxDepth, Set<Object> path) throws IOException {
+    if(depth > maxDepth) {
       return;
     }
-    
-    if(fieldName != null && !fieldName.isBlank()) {
-      gen.writeFieldName(fieldName);
+
+    if(associations.isUninitializedCollection(value)) {
+      writeFieldName(fieldName, gen);
+      gen.writeString(Associations.UNINITIALIZED);
+      return;
+    }
+    if(associations.isEntity(value)) {
+      writeFieldName(fieldName, gen);
+      writeReference(value, gen, depth, maxDepth, path);
+      return;
     }
 
+    boolean container = isCollection(value) || isMap(value) || isObjectArray(value) || isObject(value);
+    if(container) {
+      if(path == null) {
+        path = Collections.newSetFromMap(new IdentityHashMap<>());
+      }
+      if(!path.add(value)) {
+        return;
+      }
+    }
+
+    writeFieldName(fieldName, gen);
+
     if(isNull(value)) {
       gen.writeNull();
     }
@@ -60,42 +187,71 @@ public class AffectedFieldSerializer extends JsonSerializer<AffectedField> {
       gen.writeString(value.toString());
     }
     else if(isCollection(value)) {
-      writeArray((Collection<Object>) value, gen);
+      writeArray((Collection<?>) value, gen, depth, maxDepth, path);
+    }
+    else if(isMap(value)) {
+      writeMap((Map<?, ?>) value, gen, depth, maxDepth, path);
+    }
+    else if(isBinary(value)) {
+      gen.writeBinary((byte[]) value);
     }
-    else if(isArray(value)) {
-      Object[] arr = (Object[]) value;
-      writeArray(Arrays.stream(arr).collect(Collectors.toList()), gen);
+    else if(isObjectArray(value)) {
+      writeArray(Arrays.asList((Object[]) value), gen, depth, maxDepth, path);
     }
     else {
-      writeObjectLoggableFields(value, gen);
+      writeObjectLoggableFields(value, gen, depth, maxDepth, path);
+    }
+
+    if(container) {
+      path.remove(value);
     }
   }
 
-  private void writeArray(Collection<Object> list, JsonGenerator gen) throws IOException {
-    currentDepth++;
+  private void writeFieldName(String fieldName, JsonGenerator gen) throws IOException {
+    if(fieldName != null && !fieldName.isBlank()) {
+      gen.writeFieldName(fieldName);
+    }
+  }
+
+  /**
+   * Writes an associated entity by its id, and its natural id if it has one that can be read without loading it.
+   * The reference does not count as a level, so it is written in full at any depth.
+   */
+  private void writeReference(Object entity, JsonGenerator gen, int depth, int maxDepth, Set<Object> path) throws IOException {
+    gen.writeStartObject();
+    writeValues("id", associations.idOf(entity), gen, depth, maxDepth, path);
+    Object naturalId = associations.naturalIdOf(entity);
+    if(naturalId != null) {
+      writeValues("naturalId", naturalId, gen, depth, maxDepth, path);
+    }
+    gen.writeEndObject();
+  }
+
+  private void writeArray(Collection<?> list, JsonGenerator gen, int depth, int maxDepth, Set<Object> path) throws IOException {
     gen.writeStartArray();
     for(Object val : list) {
-      writeValues(null, val, gen);
+      writeValues(null, val, gen, depth + 1, maxDepth, path);
     }
     gen.writeEndArray();
-    currentDepth = 0;
   }
 
-  private void writeObjectLoggableFields(Object value, JsonGenerator gen) throws IOException {
-    currentDepth++;
+  private void writeMap(Map<?, ?> map, JsonGenerator gen, int depth, int maxDepth, Set<Object> path) throws IOException {
     gen.writeStartObject();
+    for(Map.Entry<?, ?> entry : map.entrySet()) {
+      Object key = associations.isEntity(entry.getKey()) ? associations.idOf(entry.getKey()) : entry.getKey();
+      writeValues(String.valueOf(key), entry.getValue(), gen, depth + 1, maxDepth, path);
+    }
+    gen.writeEndObject();
+  }
 
-    reflectionCache.getLoggableFieldsForClass(value.getClass()).forEach(f -> {
-      try {
-        writeValues(f.getName(), f.get(value), gen);
+  private void writeObjectLoggableFields(Object value, JsonGenerator gen, int depth, int maxDepth, Set<Object> path) throws IOException {
+    gen.writeStartObject();
 
-      } catch (IOException | IllegalAccessException e) {
-        e.printStackTrace();
-      }
-    });
+    for(FieldAccessor f : reflectionCache.getLoggableFieldsForClass(value.getClass())) {
+      writeValues(f.getName(), f.get(value), gen, depth + 1, maxDepth, path);
+    }
 
     gen.writeEndObject();
-    currentDepth = 0;
   }
 
 
@@ -139,10 +295,26 @@ public class AffectedFieldSerializer extends JsonSerializer<AffectedField> {
     return o instanceof Collection;
   }
 
+  private boolean isMap(Object o) {
+    return o instanceof Map;
+  }
+
   private boolean isArray(Object o) {
     return !isNull(o) && o.getClass().isArray();
   }
 
+  private boolean isBinary(Object o) {
+    return o instanceof byte[];
+  }
+
+  private boolean isObjectArray(Object o) {
+    return o instanceof Object[];
+  }
+
+  private boolean isObject(Object o) {
+    return !isNull(o) && !isBoolean(o) && !isNumber(o) && !isString(o) && !isCollection(o) && !isMap(o) && !isArray(o);
+  }
+
   private boolean isNull(Object o) {
     return o == null;
   }
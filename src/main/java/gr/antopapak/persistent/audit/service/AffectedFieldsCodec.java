@@ -0,0 +1,418 @@
+package gr.antopapak.persistent.audit.service;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.util.ByteArrayBuilder;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileGenerator;
+import com.fasterxml.jackson.dataformat.smile.SmileParser;
+import gr.antopapak.persistent.audit.config.PersistentAuditProperties;
+import gr.antopapak.persistent.audit.config.PersistentAuditProperties.StorageFormat;
+import gr.antopapak.persistent.audit.domain.AuditLog;
+import gr.antopapak.persistent.audit.model.AffectedField;
+import gr.antopapak.persistent.audit.model.DictionaryKind;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.springframework.stereotype.Component;
+
+/**
+ * Encodes the changed fields of a {@link FieldMap} into an {@link AuditLog}, and decodes
+ * them back as an {@link AffectedFieldsView}.<br>
+ *
+ * The changed fields are streamed straight from the {@link FieldMap} into per-thread
+ * reusable buffers, so no intermediate objects or Strings are created for the payload.
+ * <p>
+ * Two layouts are supported, selected by {@code persistent.audit.storage.format}:
+ * <ul>
+ *   <li>JSON: an array of {@code {fieldName, before, after}} objects in {@code affected_fields}</li>
+ *   <li>SMILE: in {@code affected_fields_binary}, a version byte, the number of fields, the name
+ *   and value length of each field, followed by one headerless Smile {@code [before, after]}
+ *   document per field ({@code [null, null, changes]} for element-level changes). Repeated keys are not stored at all, and each field can be
+ *   decoded on its own. With dictionary encoding enabled, the names are replaced by their
+ *   {@link AuditDictionary} ids.</li>
+ * </ul>
+ * Collection, array and map fields are written as their element-level {@code changes}
+ * instead of their full values when that is smaller (see {@link CollectionDiff}), and large
+ * values as a reference into the {@link AuditValueStore}, resolved when their field is decoded.
+ * Values are nested up to the {@link AuditPolicy#getMaxDepth() maxDepth} of the entity, and a
+ * payload larger than its {@link AuditPolicy#getMaxPayloadBytes() maxPayloadBytes} is written
+ * again with every value replaced by the {@link #TRUNCATED} marker.
+ * Logs are decoded according to the column they were written to, regardless of the current setting.
+ * <p>
+ * Encoding is split in two, so that the costly part can run on any thread: {@link #serialize(FieldMap, AuditPolicy)}
+ * never accesses the database, while {@link #complete(AuditLog, Serialized)} resolves dictionary
+ * ids and stores large values, and runs on the thread of the business transaction.
+ */
+@Component
+public class AffectedFieldsCodec {
+
+  static final byte BINARY_LAYOUT_FIELD_NAMES = 1;
+  static final byte BINARY_LAYOUT_FIELD_IDS = 2;
+
+  /**
+   * Written in place of the values of a payload that exceeded the maximum size of its entity.
+   */
+  static final String TRUNCATED = "TRUNCATED";
+
+  private static final int INITIAL_BUFFER_SIZE = 4 * 1024;
+
+  private final StorageFormat format;
+  private final JsonFactory jsonFactory;
+  private final ObjectMapper jsonMapper;
+  private final SmileFactory smileFactory;
+  private final ObjectMapper smileMapper;
+  private final AffectedFieldSerializer affectedFieldSerializer;
+  private final AuditDictionary auditDictionary;
+  private final AuditValueStore auditValueStore;
+  private final ThreadLocal<ByteArrayBuilder> buffers = ThreadLocal.withInitial(() -> new ByteArrayBuilder(INITIAL_BUFFER_SIZE));
+  private final ThreadLocal<ByteArrayBuilder> valueBuffers = ThreadLocal.withInitial(() -> new ByteArrayBuilder(INITIAL_BUFFER_SIZE));
+
+  AffectedFieldsCodec(PersistentAuditProperties properties, ObjectMapper objectMapper,
+      AffectedFieldSerializer affectedFieldSerializer, AuditDictionary auditDictionary, AuditValueStore auditValueStore) {
+    this.format = properties.getStorage().getFormat();
+    this.jsonFactory = objectMapper.getFactory();
+    this.jsonMapper = objectMapper;
+    this.smileFactory = new SmileFactory();
+    this.smileFactory.configure(SmileGenerator.Feature.WRITE_HEADER, false);
+    this.smileFactory.configure(SmileParser.Feature.REQUIRE_HEADER, false);
+    this.smileMapper = new ObjectMapper(smileFactory);
+    this.affectedFieldSerializer = affectedFieldSerializer;
+    this.auditDictionary = auditDictionary;
+    this.auditValueStore = auditValueStore;
+  }
+
+  /**
+   * Writes the changed fields of a diff into the audit log, in the configured format.
+   *
+   * @param auditLog the audit log to write into
+   * @param fieldMap the diff to encode
+   * @param policy the audit policy of the entity
+   */
+  void encode(AuditLog auditLog, FieldMap fieldMap, AuditPolicy policy) throws JsonProcessingException {
+    complete(auditLog, serialize(fieldMap, policy));
+  }
+
+  /**
+   * Serializes the changed fields of a diff without accessing the database, so it can run on
+   * any thread: large values are referenced but not stored yet, and field names are not resolved
+   * to dictionary ids yet. The result is written into an audit log by {@link #complete(AuditLog, Serialized)}.
+   *
+   * @param fieldMap the diff to encode
+   * @param policy the audit policy of the entity
+   * @return the serialized fields
+   */
+  Serialized serialize(FieldMap fieldMap, AuditPolicy policy) throws JsonProcessingException {
+    try {
+      List<AuditValueStore.PendingValue> pending = new ArrayList<>();
+      if(format == StorageFormat.SMILE) {
+        int[] lengths = new int[fieldMap.affectedCount()];
+        byte[] values = encodeBinaryValues(fieldMap, policy.getMaxDepth(), pending, lengths);
+        return new Serialized(fieldMap, policy, values, lengths, pending);
+      }
+      return new Serialized(fieldMap, policy, encodeJson(fieldMap, policy.getMaxDepth(), pending), null, pending);
+    } catch (JsonProcessingException e) {
+      throw e;
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Writes serialized fields into the audit log, truncating them if they exceed the maximum
+   * payload size of the entity. Resolves the dictionary ids of the field names and stores the
+   * large values, so it may access the database, in transactions of its own.
+   *
+   * @param auditLog the audit log to write into
+   * @param serialized the fields returned by {@link #serialize(FieldMap, AuditPolicy)}
+   */
+  void complete(AuditLog auditLog, Serialized serialized) throws JsonProcessingException {
+    FieldMap fieldMap = serialized.fieldMap;
+    int maxDepth = serialized.policy.getMaxDepth();
+    try {
+      //large values are only stored once the payload referencing them is known not to be truncated
+      boolean truncated;
+      if(serialized.lengths != null) {
+        byte[] payload = encodeBinary(fieldMap, serialized.payload, serialized.lengths);
+        truncated = serialized.policy.exceedsMaxPayload(payload.length);
+        if(truncated) {
+          int[] lengths = new int[fieldMap.affectedCount()];
+          payload = encodeBinary(fieldMap, encodeBinaryValues(fieldMap, maxDepth, null, lengths), lengths);
+        }
+        auditLog.setAffectedFieldsBinary(payload);
+      }
+      else {
+        byte[] payload = serialized.payload;
+        truncated = serialized.policy.exceedsMaxPayload(payload.length);
+        if(truncated) {
+          payload = encodeJson(fieldMap, maxDepth, null);
+        }
+        auditLog.setAffectedFieldsBytes(payload);
+      }
+      if(!truncated) {
+        auditValueStore.storeAll(serialized.pending);
+      }
+    } catch (JsonProcessingException e) {
+      throw e;
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Returns a lazily decoded view of the affected fields of an audit log,
+   * whichever format it was written in.
+   *
+   * @param auditLog the audit log
+   * @return the affected fields, empty if there are none
+   */
+  public AffectedFieldsView decode(AuditLog auditLog) {
+    if(auditLog.getAffectedFieldsBinary() != null) {
+      return new AffectedFieldsView(auditLog.getAffectedFieldsBinary(), new BinaryLayout());
+    }
+    if(auditLog.getAffectedFieldsBytes() != null) {
+      return new AffectedFieldsView(auditLog.getAffectedFieldsBytes(), new JsonLayout());
+    }
+    return AffectedFieldsView.EMPTY;
+  }
+
+  /**
+   * @param pending the large values referenced by the payload, added to, or null to write a truncated payload
+   */
+  private byte[] encodeJson(FieldMap fieldMap, int maxDepth, List<AuditValueStore.PendingValue> pending) throws IOException {
+    ByteArrayBuilder buffer = buffers.get();
+    buffer.reset();
+
+    try (JsonGenerator gen = jsonFactory.createGenerator(buffer)) {
+      gen.writeStartArray();
+      for(int i = fieldMap.nextAffected(0); i >= 0; i = fieldMap.nextAffected(i + 1)) {
+        if(pending == null) {
+          affectedFieldSerializer.writeAffectedField(fieldMap.nameAt(i), TRUNCATED, TRUNCATED, null, maxDepth, gen);
+        }
+        else {
+          affectedFieldSerializer.writeAffectedField(fieldMap.nameAt(i), auditValueStore.externalize(fieldMap.beforeAt(i), pending),
+              auditValueStore.externalize(fieldMap.afterAt(i), pending), fieldMap.diffAt(i), maxDepth, gen);
+        }
+      }
+      gen.writeEndArray();
+    }
+
+    return buffer.toByteArray();
+  }
+
+  /**
+   * Writes one headerless Smile document per changed field.
+   *
+   * @param pending the large values referenced by the payload, added to, or null to write a truncated payload
+   * @param lengths set to the length of the document of each field
+   */
+  private byte[] encodeBinaryValues(FieldMap fieldMap, int maxDepth, List<AuditValueStore.PendingValue> pending, int[] lengths)
+      throws IOException {
+    ByteArrayBuilder values = valueBuffers.get();
+    values.reset();
+
+    int field = 0;
+    for(int i = fieldMap.nextAffected(0); i >= 0; i = fieldMap.nextAffected(i + 1)) {
+      int start = values.size();
+      try (JsonGenerator gen = smileFactory.createGenerator(values)) {
+        CollectionDiff diff = pending == null ? null : fieldMap.diffAt(i);
+        gen.writeStartArray();
+        if(pending == null) {
+          gen.writeString(TRUNCATED);
+          gen.writeString(TRUNCATED);
+        }
+        else if(diff != null) {
+          gen.writeNull();
+          gen.writeNull();
+          affectedFieldSerializer.writeChanges(diff, maxDepth, gen);
+        }
+        else {
+          affectedFieldSerializer.writeValue(auditValueStore.externalize(fieldMap.beforeAt(i), pending), maxDepth, gen);
+          affectedFieldSerializer.writeValue(auditValueStore.externalize(fieldMap.afterAt(i), pending), maxDepth, gen);
+        }
+        gen.writeEndArray();
+      }
+      lengths[field++] = values.size() - start;
+    }
+    return values.toByteArray();
+  }
+
+  /**
+   * Prepends the header, with the name or dictionary id of each field and the length of its document, to the documents.
+   */
+  private byte[] encodeBinary(FieldMap fieldMap, byte[] values, int[] lengths) {
+    ByteArrayBuilder header = buffers.get();
+    header.reset();
+
+    boolean fieldIds = auditDictionary.isEnabled();
+    header.write(fieldIds ? BINARY_LAYOUT_FIELD_IDS : BINARY_LAYOUT_FIELD_NAMES);
+    writeVarInt(header, fieldMap.affectedCount());
+
+    int field = 0;
+    for(int i = fieldMap.nextAffected(0); i >= 0; i = fieldMap.nextAffected(i + 1)) {
+      if(fieldIds) {
+        writeVarInt(header, auditDictionary.idOf(DictionaryKind.FIELD_NAME, fieldMap.nameAt(i)));
+      }
+      else {
+        byte[] name = fieldMap.nameAt(i).getBytes(StandardCharsets.UTF_8);
+        writeVarInt(header, name.length);
+        header.write(name);
+      }
+      writeVarInt(header, lengths[field++]);
+    }
+
+    //toByteArray() resets a builder that outgrew its first block, so sizes are taken from the copies
+    byte[] headerBytes = header.toByteArray();
+    byte[] payload = new byte[headerBytes.length + values.length];
+    System.arraycopy(headerBytes, 0, payload, 0, headerBytes.length);
+    System.arraycopy(values, 0, payload, headerBytes.length, values.length);
+    return payload;
+  }
+
+  static void writeVarInt(ByteArrayBuilder out, int value) {
+    while((value & ~0x7F) != 0) {
+      out.write((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    out.write(value);
+  }
+
+  /**
+   * Reads a variable length int starting at {@code position[0]}, and advances the position past it.
+   */
+  static int readVarInt(byte[] in, int[] position) {
+    int value = 0;
+    for(int shift = 0; ; shift += 7) {
+      byte b = in[position[0]++];
+      value |= (b & 0x7F) << shift;
+      if((b & 0x80) == 0) {
+        return value;
+      }
+    }
+  }
+
+  /**
+   * The changed fields of a diff serialized by {@link #serialize(FieldMap, AuditPolicy)}, not written into an audit log yet.
+   */
+  static final class Serialized {
+
+    private final FieldMap fieldMap;
+    private final AuditPolicy policy;
+
+    /**
+     * The whole payload in the JSON layout, or the documents of the fields in the binary layout.
+     */
+    private final byte[] payload;
+
+    /**
+     * The length of the document of each field in the binary layout, or null in the JSON layout.
+     */
+    private final int[] lengths;
+    private final List<AuditValueStore.PendingValue> pending;
+
+    private Serialized(FieldMap fieldMap, AuditPolicy policy, byte[] payload, int[] lengths,
+        List<AuditValueStore.PendingValue> pending) {
+      this.fieldMap = fieldMap;
+      this.policy = policy;
+      this.payload = payload;
+      this.lengths = lengths;
+      this.pending = pending;
+    }
+  }
+
+  private final class JsonLayout implements AffectedFieldsView.Layout {
+
+    @Override
+    public AffectedFieldsView.Index index(byte[] payload) throws IOException {
+      List<String> names = new ArrayList<>();
+      List<int[]> positions = new ArrayList<>();
+
+      try (JsonParser parser = jsonFactory.createParser(payload)) {
+        if(parser.nextToken() != JsonToken.START_ARRAY) {
+          throw new IOException("Affected fields are not a JSON array");
+        }
+        while(parser.nextToken() == JsonToken.START_OBJECT) {
+          int start = (int) parser.getTokenLocation().getByteOffset();
+          String fieldName = null;
+          while(parser.nextToken() == JsonToken.FIELD_NAME) {
+            String key = parser.getCurrentName();
+            parser.nextToken();
+            if("fieldName".equals(key)) {
+              fieldName = parser.getText();
+            }
+            else {
+              parser.skipChildren();
+            }
+          }
+          int end = (int) parser.getTokenLocation().getByteOffset() + 1;
+          names.add(fieldName);
+          positions.add(new int[] {start, end - start});
+        }
+      }
+
+      int[] offsets = new int[positions.size()];
+      int[] lengths = new int[positions.size()];
+      for(int i = 0; i < positions.size(); i++) {
+        offsets[i] = positions.get(i)[0];
+        lengths[i] = positions.get(i)[1];
+      }
+      return new AffectedFieldsView.Index(names.toArray(new String[0]), offsets, lengths);
+    }
+
+    @Override
+    public AffectedField decode(String fieldName, byte[] payload, int offset, int length) throws IOException {
+      Map<?, ?> entry = jsonMapper.readValue(payload, offset, length, Map.class);
+      return new AffectedField(fieldName, auditValueStore.resolve(entry.get("before")),
+          auditValueStore.resolve(entry.get("after")), entry.get("changes"));
+    }
+  }
+
+  private final class BinaryLayout implements AffectedFieldsView.Layout {
+
+    @Override
+    public AffectedFieldsView.Index index(byte[] payload) throws IOException {
+      if(payload.length == 0 || (payload[0] != BINARY_LAYOUT_FIELD_NAMES && payload[0] != BINARY_LAYOUT_FIELD_IDS)) {
+        throw new IOException("Unknown affected fields layout");
+      }
+      boolean fieldIds = payload[0] == BINARY_LAYOUT_FIELD_IDS;
+      int[] position = {1};
+      int count = readVarInt(payload, position);
+      String[] names = new String[count];
+      int[] offsets = new int[count];
+      int[] lengths = new int[count];
+
+      for(int i = 0; i < count; i++) {
+        if(fieldIds) {
+          names[i] = auditDictionary.valueOf(readVarInt(payload, position));
+        }
+        else {
+          int nameLength = readVarInt(payload, position);
+          names[i] = new String(payload, position[0], nameLength, StandardCharsets.UTF_8);
+          position[0] += nameLength;
+        }
+        lengths[i] = readVarInt(payload, position);
+      }
+
+      int offset = position[0];
+      for(int i = 0; i < count; i++) {
+        offsets[i] = offset;
+        offset += lengths[i];
+      }
+      return new AffectedFieldsView.Index(names, offsets, lengths);
+    }
+
+    @Override
+    public AffectedField decode(String fieldName, byte[] payload, int offset, int length) throws IOException {
+      List<?> values = smileMapper.readValue(payload, offset, length, List.class);
+      return new AffectedField(fieldName, auditValueStore.resolve(values.get(0)),
+          auditValueStore.resolve(values.get(1)), values.size() > 2 ? values.get(2) : null);
+    }
+  }
+}
@@ -0,0 +1,144 @@
+package gr.antopapak.persistent.audit.service;
+
+import gr.antopapak.persistent.audit.model.AffectedField;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A lazily decoded view of the affected fields of an audit log.<br>
+ *
+ * Nothing is parsed until the view is first accessed. Then only the field names and the
+ * position of each field in the payload are read, and the values of a field are decoded
+ * the first time that field is requested.
+ * <p>
+ * Instances are not thread-safe.
+ *
+ * @see AffectedFieldsCodec#decode(gr.antopapak.persistent.audit.domain.AuditLog)
+ */
+public final class AffectedFieldsView {
+
+  static final AffectedFieldsView EMPTY = new AffectedFieldsView(new byte[0], payload -> new Index(new String[0], new int[0], new int[0]));
+
+  private final byte[] payload;
+  private final Layout layout;
+  private Index index;
+  private AffectedField[] decoded;
+
+  AffectedFieldsView(byte[] payload, Layout layout) {
+    this.payload = payload;
+    this.layout = layout;
+  }
+
+  /**
+   * @return the number of affected fields
+   */
+  public int size() {
+    return index().names.length;
+  }
+
+  /**
+   * @return the names of the affected fields, in the order they were written
+   */
+  public List<String> getFieldNames() {
+    return Collections.unmodifiableList(Arrays.asList(index().names));
+  }
+
+  public boolean contains(String fieldName) {
+    return indexOf(fieldName) >= 0;
+  }
+
+  /**
+   * Decodes a single affected field.
+   *
+   * @param fieldName the name of the field
+   * @return the affected field, or null if the field was not affected
+   */
+  public AffectedField get(String fieldName) {
+    int i = indexOf(fieldName);
+    return i >= 0 ? decode(i) : null;
+  }
+
+  /**
+   * Decodes all affected fields.
+   *
+   * @return the affected fields, in the order they were written
+   */
+  public List<AffectedField> getAll() {
+    List<AffectedField> all = new ArrayList<>(size());
+    for(int i = 0; i < size(); i++) {
+      all.add(decode(i));
+    }
+    return all;
+  }
+
+  private int indexOf(String fieldName) {
+    String[] names = index().names;
+    for(int i = 0; i < names.length; i++) {
+      if(names[i].equals(fieldName)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private AffectedField decode(int i) {
+    if(decoded[i] == null) {
+      try {
+        decoded[i] = layout.decode(index.names[i], payload, index.offsets[i], index.lengths[i]);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+    return decoded[i];
+  }
+
+  private Index index() {
+    if(index == null) {
+      try {
+        index = layout.index(payload);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      decoded = new AffectedField[index.names.length];
+    }
+    return index;
+  }
+
+  /**
+   * A storage layout of the affected fields.
+   */
+  interface Layout {
+
+    /**
+     * Reads the names and the positions of the affected fields, without decoding their values.
+     */
+    Index index(byte[] payload) throws IOException;
+
+    /**
+     * Decodes the field stored at the given position.
+     */
+    default AffectedField decode(String fieldName, byte[] payload, int offset, int length) throws IOException {
+      throw new IllegalStateException("No fields to decode");
+    }
+  }
+
+  /**
+   * The names of the affected fields and the position of each one in the payload.
+   */
+  static final class Index {
+
+    private final String[] names;
+    private final int[] offsets;
+    private final int[] lengths;
+
+    Index(String[] names, int[] offsets, int[] lengths) {
+      this.names = names;
+      this.offsets = offsets;
+      this.lengths = lengths;
+    }
+  }
+}
@@ -0,0 +1,129 @@
+package gr.antopapak.persistent.audit.service;
+
+import static java.util.Objects.isNull;
+import static java.util.Objects.nonNull;
+import java.util.Objects;
+import javax.persistence.Entity;
+import lombok.AllArgsConstructor;
+import org.hibernate.Hibernate;
+import org.hibernate.collection.spi.PersistentCollection;
+import org.hibernate.proxy.HibernateProxy;
+import org.hibernate.proxy.LazyInitializer;
+import org.springframework.stereotype.Component;
+
+/**
+ * Handles the associations found in the values of audited fields, without ever initializing
+ * a lazy proxy or collection, so auditing never queries the database.<br>
+ *
+ * Associated entities, proxied or not, are identified by their id (and natural id, when it
+ * can be read without loading the entity) rather than walked field by field. Collections
+ * that were never loaded are compared by their owner and role, and written as the
+ * {@link #UNINITIALIZED} marker.
+ */
+@Component
+@AllArgsConstructor
+class Associations {
+
+  /**
+   * Written in place of a collection that was not loaded.
+   */
+  static final String UNINITIALIZED = "UNINITIALIZED";
+
+  private final ReflectionCache reflectionCache;
+
+  /**
+   * @return true if the value is an entity or a proxy of one, to be written as a reference
+   */
+  boolean isEntity(Object value) {
+    return value instanceof HibernateProxy
+        || (nonNull(value) && value.getClass().isAnnotationPresent(Entity.class) && nonNull(reflectionCache.getIdForClass(value.getClass())));
+  }
+
+  /**
+   * @return true if the value is a lazy collection that has not been loaded
+   */
+  boolean isUninitializedCollection(Object value) {
+    return value instanceof PersistentCollection && !((PersistentCollection) value).wasInitialized();
+  }
+
+  /**
+   * @param entity an entity or a proxy of one
+   * @return the id of the entity, read from the proxy itself if it is one
+   */
+  Object idOf(Object entity) {
+    if(entity instanceof HibernateProxy) {
+      return ((HibernateProxy) entity).getHibernateLazyInitializer().getIdentifier();
+    }
+    FieldAccessor idField = reflectionCache.getIdForClass(entity.getClass());
+    return isNull(idField) ? null : idField.get(entity);
+  }
+
+  /**
+   * @param entity an entity or a proxy of one
+   * @return the natural id of the entity, or null if it has none or it is an uninitialized proxy
+   */
+  Object naturalIdOf(Object entity) {
+    Object target = entity;
+    if(entity instanceof HibernateProxy) {
+      LazyInitializer initializer = ((HibernateProxy) entity).getHibernateLazyInitializer();
+      if(initializer.isUninitialized()) {
+        return null;
+      }
+      target = initializer.getImplementation();
+    }
+    FieldAccessor naturalIdField = reflectionCache.getNaturalIdForClass(target.getClass());
+    return isNull(naturalIdField) ? null : naturalIdField.get(target);
+  }
+
+  /**
+   * Compares two values of a field. Entities are equal when they are of the same class
+   * hierarchy and have the same id. An unloaded collection is equal to another persistent
+   * collection of the same owner and role, as it cannot have been modified without being loaded,
+   * but not to a collection that replaced it. Loaded collections, arrays and maps are equal when
+   * their {@link CollectionDiff} is empty. Anything else is compared with {@code equals}.
+   */
+  boolean valuesEqual(Object before, Object after) {
+    if(before == after) {
+      return true;
+    }
+    if(isNull(before) || isNull(after)) {
+      return false;
+    }
+
+    if(isUninitializedCollection(before) || isUninitializedCollection(after)) {
+      if(!(before instanceof PersistentCollection) || !(after instanceof PersistentCollection)) {
+        return false;
+      }
+      PersistentCollection collectionBefore = (PersistentCollection) before;
+      PersistentCollection collectionAfter = (PersistentCollection) after;
+      return Objects.equals(collectionBefore.getRole(), collectionAfter.getRole())
+          && Objects.equals(collectionBefore.getKey(), collectionAfter.getKey());
+    }
+
+    CollectionDiff diff = CollectionDiff.of(before, after, this);
+    if(diff != null) {
+      return diff.isEmpty();
+    }
+
+    if(isEntity(before) && isEntity(after)) {
+      Class<?> classBefore = entityClass(before);
+      Class<?> classAfter = entityClass(after);
+      return (classBefore.isAssignableFrom(classAfter) || classAfter.isAssignableFrom(classBefore))
+          && nonNull(idOf(before))
+          && Objects.equals(idOf(before), idOf(after));
+    }
+
+    return Objects.equals(before, after);
+  }
+
+  /**
+   * @return the class of an entity, without initializing it if it is a proxy
+   */
+  private Class<?> entityClass(Object entity) {
+    if(entity instanceof HibernateProxy) {
+      LazyInitializer initializer = ((HibernateProxy) entity).getHibernateLazyInitializer();
+      return initializer.isUninitialized() ? initializer.getPersistentClass() : Hibernate.getClass(entity);
+    }
+    return entity.getClass();
+  }
+}
@@ -0,0 +1,245 @@
+package gr.antopapak.persistent.audit.service;
+
+import gr.antopapak.persistent.audit.config.PersistentAuditProperties;
+import gr.antopapak.persistent.audit.config.PersistentAuditProperties.BackpressurePolicy;
+import gr.antopapak.persistent.audit.domain.AuditLog;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * A write-behind queue for audit logs.<br>
+ *
+ * Audit logs are handed over only after the surrounding transaction commits, so that
+ * rolled back business transactions never emit records. A single background thread
+ * drains the queue and persists up to {@code batchSize} logs per transaction.
+ * <p>
+ * On shutdown no more logs are accepted, and the background thread is given up to
+ * {@code shutdown-timeout} to write the queued ones. It is never interrupted, so a batch being
+ * written is not cut short. Logs left over are journaled, or else dropped and counted.
+ *
+ * @see PersistentAuditProperties.Async
+ */
+@Slf4j
+@Component
+public class AsyncAuditLogWriter {
+
+  private final PersistentAuditProperties.Async properties;
+  private final AuditLogSink auditLogSink;
+  private final JournalingAuditLogWriter journalingAuditLogWriter;
+  private final TransactionTemplate transactionTemplate;
+  private final BlockingQueue<AuditLog> queue;
+  private final AtomicLong droppedCount = new AtomicLong();
+
+  private volatile boolean running;
+  private volatile boolean stopped;
+  private volatile Thread drainer;
+
+  AsyncAuditLogWriter(PersistentAuditProperties properties, AuditLogSink auditLogSink,
+      JournalingAuditLogWriter journalingAuditLogWriter, PlatformTransactionManager transactionManager) {
+    this.properties = properties.getAsync();
+    //the drainer polls the queue with this timeout, which would busy-spin at zero
+    if(this.properties.getFlushInterval().isZero() || this.properties.getFlushInterval().isNegative()) {
+      throw new IllegalArgumentException("Audit flush interval must be positive: " + this.properties.getFlushInterval());
+    }
+    this.auditLogSink = auditLogSink;
+    this.journalingAuditLogWriter = journalingAuditLogWriter;
+    this.transactionTemplate = new TransactionTemplate(transactionManager);
+    this.transactionTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+    this.queue = new ArrayBlockingQueue<>(Math.max(1, this.properties.getQueueCapacity()));
+  }
+
+  @PostConstruct
+  void start() {
+    if(isEnabled()) {
+      startDrainer();
+    }
+  }
+
+  /**
+   * Starts the background thread, unless it is already running. Entities with
+   * {@link gr.antopapak.persistent.audit.annotation.PersistentLogAudit.Delivery#ASYNC ASYNC}
+   * delivery start it on their first submit, even when asynchronous auditing is not enabled.
+   */
+  private synchronized void startDrainer() {
+    if(drainer != null || stopped) {
+      return;
+    }
+    running = true;
+    drainer = new Thread(this::drain, "persistent-audit-writer");
+    drainer.setDaemon(true);
+    drainer.start();
+  }
+
+  @PreDestroy
+  synchronized void stop() throws InterruptedException {
+    stopped = true;
+    if(drainer == null) {
+      return;
+    }
+    running = false;
+    drainer.join(Math.max(1, properties.getShutdownTimeout().toMillis()));
+
+    //the drainer exits once the queue is empty, after writing the batch it holds
+    List<AuditLog> remaining = new ArrayList<>();
+    queue.drainTo(remaining);
+    if(!remaining.isEmpty()) {
+      reject(remaining, "Audit logs still queued after " + properties.getShutdownTimeout() + " of shutdown");
+    }
+  }
+
+  public boolean isEnabled() {
+    return properties.isEnabled();
+  }
+
+  /**
+   * Returns the number of audit logs discarded because the queue was full under
+   * {@link BackpressurePolicy#DROP}, or because they were not written before shutdown
+   * and the journal is disabled.
+   */
+  public long getDroppedCount() {
+    return droppedCount.get();
+  }
+
+  public int getQueueSize() {
+    return queue.size();
+  }
+
+  /**
+   * Queues the given audit logs once the current transaction commits, or immediately
+   * if there is no transaction synchronization active.
+   *
+   * @param auditLogs the logs to write
+   */
+  void submit(List<AuditLog> auditLogs) {
+    if(auditLogs.isEmpty()) {
+      return;
+    }
+    if(drainer == null) {
+      startDrainer();
+    }
+
+    if(TransactionSynchronizationManager.isSynchronizationActive()) {
+      TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+        @Override
+        public void afterCommit() {
+          enqueue(auditLogs);
+        }
+      });
+    }
+    else {
+      enqueue(auditLogs);
+    }
+  }
+
+  private void enqueue(List<AuditLog> auditLogs) {
+    if(stopped) {
+      reject(auditLogs, "Audit logs submitted after shutdown");
+      return;
+    }
+    for(AuditLog auditLog : auditLogs) {
+      switch(properties.getBackpressure()) {
+        case BLOCK:
+          try {
+            queue.put(auditLog);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            write(List.of(auditLog));
+          }
+          break;
+        case DROP:
+          if(!queue.offer(auditLog)) {
+            long dropped = droppedCount.incrementAndGet();
+            if(Long.bitCount(dropped) == 1) {
+              log.warn("Audit queue is full, {} audit logs dropped so far", dropped);
+            }
+          }
+          break;
+        case CALLER_RUNS:
+          if(!queue.offer(auditLog)) {
+            write(List.of(auditLog));
+          }
+          break;
+      }
+    }
+  }
+
+  private void drain() {
+    int batchSize = Math.max(1, properties.getBatchSize());
+    long flushIntervalNanos = properties.getFlushInterval().toNanos();
+    List<AuditLog> batch = new ArrayList<>(batchSize);
+
+    while(running || !queue.isEmpty()) {
+      try {
+        AuditLog first = queue.poll(flushIntervalNanos, TimeUnit.NANOSECONDS);
+        if(first == null) {
+          continue;
+        }
+        batch.add(first);
+
+        long deadline = System.nanoTime() + flushIntervalNanos;
+        while(batch.size() < batchSize) {
+          if(queue.drainTo(batch, batchSize - batch.size()) > 0) {
+            continue;
+          }
+          long remaining = deadline - System.nanoTime();
+          AuditLog next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : null;
+          if(next == null) {
+            break;
+          }
+          batch.add(next);
+        }
+      } catch (InterruptedException e) {
+        //interrupted from outside: flush what we have and drain the rest without waiting
+        queue.drainTo(batch);
+      }
+
+      if(!batch.isEmpty()) {
+        write(batch);
+        batch.clear();
+      }
+    }
+  }
+
+  /**
+   * Journals audit logs that will not be written by the drainer, or drops them if the journal is disabled.
+   *
+   * @param reason why they are rejected, for the log message
+   */
+  private void reject(List<AuditLog> auditLogs, String reason) {
+    if(journalingAuditLogWriter.isEnabled()) {
+      log.warn("{}, journaling {} of them", reason, auditLogs.size());
+      journalingAuditLogWriter.spill(auditLogs);
+    }
+    else {
+      droppedCount.addAndGet(auditLogs.size());
+      log.error("{}, dropped {} of them", reason, auditLogs.size());
+    }
+  }
+
+  private void write(List<AuditLog> batch) {
+    try {
+      transactionTemplate.executeWithoutResult(status -> auditLogSink.write(batch));
+    } catch (RuntimeException e) {
+      if(journalingAuditLogWriter.isEnabled()) {
+        log.warn("Failed to write {} audit logs, journaling them", batch.size(), e);
+        journalingAuditLogWriter.spill(batch);
+      }
+      else {
+        log.error("Failed to write {} audit logs", batch.size(), e);
+      }
+    }
+  }
+}
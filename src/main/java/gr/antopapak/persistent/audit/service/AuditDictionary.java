@@ -0,0 +1,163 @@
+package gr.antopapak.persistent.audit.service;
+
+import static java.util.Objects.isNull;
+import static java.util.Objects.nonNull;
+import gr.antopapak.persistent.audit.config.PersistentAuditProperties;
+import gr.antopapak.persistent.audit.domain.AuditDictionaryEntry;
+import gr.antopapak.persistent.audit.domain.AuditLog;
+import gr.antopapak.persistent.audit.model.DictionaryKind;
+import gr.antopapak.persistent.audit.repository.AuditDictionaryRepository;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import org.springframework.context.event.ContextRefreshedEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Maps the small, stable vocabulary of the audit logs (entity class names, auditors and
+ * field names) to integer ids, stored in the {@code audit_dictionary} table.<br>
+ *
+ * Mappings are cached in memory and can be read concurrently. The whole dictionary is loaded
+ * on startup when enabled, and new words are inserted in a transaction of their own the first
+ * time they are seen. Ids are resolved back to words for any log that has them, even when
+ * {@code persistent.audit.dictionary.enabled} has been turned off since, reading each word from
+ * the database the first time it is needed.
+ */
+@Component
+public class AuditDictionary {
+
+  private final boolean enabled;
+  private final AuditDictionaryRepository auditDictionaryRepository;
+  private final TransactionTemplate transactionTemplate;
+  private final Map<DictionaryKind, Map<String, Integer>> ids = new EnumMap<>(DictionaryKind.class);
+  private final Map<Integer, String> values = new ConcurrentHashMap<>();
+
+  AuditDictionary(PersistentAuditProperties properties, AuditDictionaryRepository auditDictionaryRepository,
+      PlatformTransactionManager transactionManager) {
+    this.enabled = properties.getDictionary().isEnabled();
+    this.auditDictionaryRepository = auditDictionaryRepository;
+    this.transactionTemplate = new TransactionTemplate(transactionManager);
+    this.transactionTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+    for(DictionaryKind kind : DictionaryKind.values()) {
+      ids.put(kind, new ConcurrentHashMap<>());
+    }
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Returns the id of a word, adding it to the dictionary if it is not there yet.
+   *
+   * @param kind the kind of the word
+   * @param value the word
+   * @return the id of the word
+   */
+  public int idOf(DictionaryKind kind, String value) {
+    Integer id = ids.get(kind).get(value);
+    if(nonNull(id)) {
+      return id;
+    }
+
+    AuditDictionaryEntry entry;
+    try {
+      entry = transactionTemplate.execute(status -> auditDictionaryRepository.findByKindAndValue(kind, value)
+          .orElseGet(() -> auditDictionaryRepository.saveAndFlush(new AuditDictionaryEntry(null, kind, value))));
+    } catch (DataIntegrityViolationException e) {
+      //inserted concurrently by another node
+      entry = transactionTemplate.execute(status -> auditDictionaryRepository.findByKindAndValue(kind, value)
+          .orElseThrow(() -> e));
+    }
+    return cache(entry);
+  }
+
+  /**
+   * Returns the id of a word without adding it, eg to filter audit logs by it.
+   *
+   * @param kind the kind of the word
+   * @param value the word
+   * @return the id of the word, or empty if it is not in the dictionary
+   */
+  public Optional<Integer> findId(DictionaryKind kind, String value) {
+    Integer id = ids.get(kind).get(value);
+    if(nonNull(id)) {
+      return Optional.of(id);
+    }
+    return transactionTemplate.execute(status -> auditDictionaryRepository.findByKindAndValue(kind, value))
+        .map(this::cache);
+  }
+
+  /**
+   * Returns the word with the given id.
+   *
+   * @param id the id of the word
+   * @return the word
+   * @throws NoSuchElementException if there is no such id
+   */
+  public String valueOf(int id) {
+    String value = values.get(id);
+    if(nonNull(value)) {
+      return value;
+    }
+    AuditDictionaryEntry entry = transactionTemplate.execute(status -> auditDictionaryRepository.findById(id))
+        .orElseThrow(() -> new NoSuchElementException("No audit dictionary entry with id " + id));
+    cache(entry);
+    return entry.getValue();
+  }
+
+  /**
+   * Replaces the entity class name and auditor of a log about to be written with their ids.
+   * Does nothing if the dictionary is disabled.
+   *
+   * @param auditLog the log to encode
+   */
+  public void encode(AuditLog auditLog) {
+    if(!enabled) {
+      return;
+    }
+    if(nonNull(auditLog.getEntityClassName())) {
+      auditLog.setEntityClassId(idOf(DictionaryKind.ENTITY_CLASS, auditLog.getEntityClassName()));
+      auditLog.setEntityClassName(null);
+    }
+    if(nonNull(auditLog.getAuditor())) {
+      auditLog.setAuditorId(idOf(DictionaryKind.AUDITOR, auditLog.getAuditor()));
+      auditLog.setAuditor(null);
+    }
+  }
+
+  /**
+   * Restores the entity class name and auditor of a log from their ids, if it has any.
+   *
+   * @param auditLog the log to decode
+   */
+  public void decode(AuditLog auditLog) {
+    if(isNull(auditLog.getEntityClassName()) && nonNull(auditLog.getEntityClassId())) {
+      auditLog.setEntityClassName(valueOf(auditLog.getEntityClassId()));
+    }
+    if(isNull(auditLog.getAuditor()) && nonNull(auditLog.getAuditorId())) {
+      auditLog.setAuditor(valueOf(auditLog.getAuditorId()));
+    }
+  }
+
+  @EventListener
+  void preload(ContextRefreshedEvent event) {
+    if(!enabled) {
+      return;
+    }
+    transactionTemplate.executeWithoutResult(status -> auditDictionaryRepository.findAll().forEach(this::cache));
+  }
+
+  private int cache(AuditDictionaryEntry entry) {
+    ids.get(entry.getKind()).put(entry.getValue(), entry.getId());
+    values.put(entry.getId(), entry.getValue());
+    return entry.getId();
+  }
+}
@@ -0,0 +1,226 @@
+package gr.antopapak.persistent.audit.service;
+
+import static java.util.Objects.nonNull;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.util.ByteArrayBuilder;
+import gr.antopapak.persistent.audit.config.PersistentAuditProperties;
+import gr.antopapak.persistent.audit.domain.AuditFieldChange;
+import gr.antopapak.persistent.audit.domain.AuditLog;
+import gr.antopapak.persistent.audit.model.AuditedAction;
+import gr.antopapak.persistent.audit.model.HistoryCursor;
+import gr.antopapak.persistent.audit.model.HistoryPage;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import javax.persistence.EntityManager;
+import javax.persistence.TypedQuery;
+import org.hibernate.annotations.QueryHints;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+/**
+ * Indexes the changed fields of audit logs in the {@code audit_field_changes} table, and answers
+ * who changed a field and when a field became a value through that index.<br>
+ *
+ * Each changed field of an update, and each field of an insert written with the full state of
+ * the entity (see {@link PersistentAuditProperties.Snapshot}), is written as a row of its own, in
+ * the same batch as its audit log, with the hashes of its old and new value. A hash is the first 8 bytes of the
+ * SHA-256 digest of the value written as JSON, exactly as in the affected fields, so values are
+ * matched by their audited form: null matches a field that was audited as null, and an entity
+ * matches any reference to it. Rows are ordered and paged by audit log id, newest first, over the
+ * indexes in {@code db/persistent-audit/audit_field_changes.sql}, so their cursors only hold the
+ * id. Snapshots and deletes are not indexed.
+ *
+ * @see PersistentAuditProperties.FieldIndex
+ */
+@Service
+public class AuditFieldIndex {
+
+  static final String TABLE = "audit_field_changes";
+
+  private static final int INITIAL_BUFFER_SIZE = 1024;
+  private static final String NULL = "NULL";
+
+  private final PersistentAuditProperties.FieldIndex properties;
+  private final PersistentAuditProperties.History historyProperties;
+  private final EntityManager entityManager;
+  private final AffectedFieldSerializer affectedFieldSerializer;
+  private final ReflectionCache reflectionCache;
+  private final JsonFactory jsonFactory = new JsonFactory();
+  private final ThreadLocal<ByteArrayBuilder> buffers = ThreadLocal.withInitial(() -> new ByteArrayBuilder(INITIAL_BUFFER_SIZE));
+  private final ThreadLocal<MessageDigest> digests = ThreadLocal.withInitial(AuditFieldIndex::sha256);
+
+  AuditFieldIndex(PersistentAuditProperties properties, EntityManager entityManager,
+      AffectedFieldSerializer affectedFieldSerializer, ReflectionCache reflectionCache) {
+    this.properties = properties.getFieldIndex();
+    this.historyProperties = properties.getHistory();
+    this.entityManager = entityManager;
+    this.affectedFieldSerializer = affectedFieldSerializer;
+    this.reflectionCache = reflectionCache;
+  }
+
+  public boolean isEnabled() {
+    return properties.isEnabled();
+  }
+
+  /**
+   * Returns the audit logs that changed a field of an entity class, newest first.
+   *
+   * @param entityClass the class of the entity
+   * @param fieldName the name of the field
+   * @param after the cursor of the previous page, or null for the first page
+   * @param pageSize the maximum number of logs to return, capped by {@code persistent.audit.history.max-page-size}
+   * @return a page of audit logs
+   */
+  @Transactional(readOnly = true)
+  public HistoryPage findChanges(Class<?> entityClass, String fieldName, HistoryCursor after, int pageSize) {
+    return find(entityClass, fieldName, null, after, pageSize);
+  }
+
+  /**
+   * Returns the audit logs that set a field of an entity class to a value, newest first.
+   *
+   * @param entityClass the class of the entity
+   * @param fieldName the name of the field
+   * @param value the value the field was set to, as it would be audited
+   * @param after the cursor of the previous page, or null for the first page
+   * @param pageSize the maximum number of logs to return, capped by {@code persistent.audit.history.max-page-size}
+   * @return a page of audit logs
+   */
+  @Transactional(readOnly = true)
+  public HistoryPage findChangesTo(Class<?> entityClass, String fieldName, Object value, HistoryCursor after, int pageSize) {
+    return find(entityClass, fieldName, hashOf(entityClass, value), after, pageSize);
+  }
+
+  /**
+   * @param entityClass the class of the entity the value belongs to, which sets how deep nested objects are written
+   * @param value a field value
+   * @return the hash the value is indexed by
+   */
+  public long hashOf(Class<?> entityClass, Object value) {
+    return hash(nonNull(value) ? value : NULL, reflectionCache.getPolicyForClass(entityClass).getMaxDepth());
+  }
+
+  /**
+   * Attaches the changed fields of an audit log to it, to be written by the sink along with the log.
+   *
+   * @param auditLog an insert or update audit log
+   * @param fieldMap the diff the log was encoded from
+   * @param policy the audit policy of the entity
+   */
+  void index(AuditLog auditLog, FieldMap fieldMap, AuditPolicy policy) {
+    if(!isEnabled() || auditLog.getAction() == AuditedAction.SNAPSHOT) {
+      return;
+    }
+    boolean inserted = auditLog.getAction() == AuditedAction.INSERT;
+    List<AuditFieldChange> fieldChanges = new ArrayList<>(fieldMap.affectedCount());
+    for(int i = fieldMap.nextAffected(0); i >= 0; i = fieldMap.nextAffected(i + 1)) {
+      fieldChanges.add(AuditFieldChange.builder()
+          .entityClassName(auditLog.getEntityClassName())
+          .fieldName(fieldMap.nameAt(i))
+          .oldValueHash(inserted ? null : hash(fieldMap.beforeAt(i), policy.getMaxDepth()))
+          .newValueHash(hash(fieldMap.afterAt(i), policy.getMaxDepth()))
+          .build());
+    }
+    auditLog.setFieldChanges(fieldChanges);
+  }
+
+  /**
+   * Sets the ids of written audit logs on their field changes.
+   *
+   * @param auditLogs audit logs whose ids are set
+   * @return the field changes of all the logs, ready to be written
+   */
+  static List<AuditFieldChange> fieldChangesOf(List<AuditLog> auditLogs) {
+    List<AuditFieldChange> fieldChanges = new ArrayList<>();
+    for(AuditLog auditLog : auditLogs) {
+      if(nonNull(auditLog.getFieldChanges())) {
+        for(AuditFieldChange fieldChange : auditLog.getFieldChanges()) {
+          fieldChange.setAuditLogId(auditLog.getId());
+          fieldChanges.add(fieldChange);
+        }
+      }
+    }
+    return fieldChanges;
+  }
+
+  /**
+   * @return true if any of the audit logs has field changes to write
+   */
+  static boolean hasFieldChanges(List<AuditLog> auditLogs) {
+    for(AuditLog auditLog : auditLogs) {
+      if(nonNull(auditLog.getFieldChanges()) && !auditLog.getFieldChanges().isEmpty()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private HistoryPage find(Class<?> entityClass, String fieldName, Long valueHash, HistoryCursor after, int pageSize) {
+    if(pageSize <= 0) {
+      throw new IllegalArgumentException("Page size must be positive: " + pageSize);
+    }
+    int limit = Math.min(pageSize, historyProperties.getMaxPageSize());
+
+    String jpql = "select c.auditLogId from AuditFieldChange c"
+        + " where c.entityClassName = :entityClassName and c.fieldName = :fieldName"
+        + (nonNull(valueHash) ? " and c.newValueHash = :valueHash" : "")
+        + (nonNull(after) ? " and c.auditLogId < :after" : "")
+        + " order by c.auditLogId desc";
+    TypedQuery<Long> query = entityManager.createQuery(jpql, Long.class)
+        .setParameter("entityClassName", entityClass.getSimpleName())
+        .setParameter("fieldName", fieldName);
+    if(nonNull(valueHash)) {
+      query.setParameter("valueHash", valueHash);
+    }
+    if(nonNull(after)) {
+      query.setParameter("after", after.getId());
+    }
+    List<Long> ids = new ArrayList<>(query.setMaxResults(limit + 1).getResultList());
+
+    HistoryCursor next = null;
+    if(ids.size() > limit) {
+      ids.remove(limit);
+      next = new HistoryCursor(null, ids.get(limit - 1));
+    }
+    if(ids.isEmpty()) {
+      return new HistoryPage(new ArrayList<>(), next);
+    }
+
+    //logs of dropped partitions are gone, and skipped
+    List<AuditLog> content = new ArrayList<>(entityManager
+        .createQuery("select l from AuditLog l where l.id in :ids", AuditLog.class)
+        .setParameter("ids", ids)
+        .setHint(QueryHints.READ_ONLY, true)
+        .getResultList());
+    content.sort(Comparator.comparing(AuditLog::getId).reversed());
+    return new HistoryPage(content, next);
+  }
+
+  private long hash(Object value, int maxDepth) {
+    ByteArrayBuilder buffer = buffers.get();
+    buffer.reset();
+    try (JsonGenerator gen = jsonFactory.createGenerator(buffer)) {
+      affectedFieldSerializer.writeValue(value, maxDepth, gen);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    MessageDigest digest = digests.get();
+    digest.reset();
+    return ByteBuffer.wrap(digest.digest(buffer.toByteArray())).getLong();
+  }
+
+  private static MessageDigest sha256() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
@@ -0,0 +1,203 @@
+package gr.antopapak.persistent.audit.service;
+
+import static java.util.Objects.nonNull;
+import gr.antopapak.persistent.audit.config.PersistentAuditProperties;
+import gr.antopapak.persistent.audit.domain.AuditLog;
+import gr.antopapak.persistent.audit.model.AuditedAction;
+import gr.antopapak.persistent.audit.model.HistoryCursor;
+import gr.antopapak.persistent.audit.model.HistoryPage;
+import gr.antopapak.persistent.audit.model.HistoryQuery;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import javax.persistence.EntityManager;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Path;
+import javax.persistence.criteria.Predicate;
+import javax.persistence.criteria.Root;
+import org.hibernate.annotations.QueryHints;
+import org.springframework.data.jpa.domain.Specification;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+/**
+ * Reads the audit history of entities, newest first.<br>
+ *
+ * Results are ordered by {@code (datetime, id)} descending and paged with a keyset
+ * ({@link HistoryCursor}) instead of an offset, so every page is a bounded index range scan
+ * over the indexes in {@code db/persistent-audit/audit_logs_indexes.sql}. A query on a class name
+ * or auditor that was written both as a string and dictionary-encoded reads each column
+ * separately and merges the results (see {@link AuditLogCriteria}).
+ * {@link AuditedAction#SNAPSHOT} checkpoints are only returned when queried by action.
+ * For exports, {@link #streamHistory(HistoryQuery)} reads the rows with a server-side cursor
+ * and detaches each one, in constant memory.
+ */
+@Service
+public class AuditHistoryService {
+
+  private final EntityManager entityManager;
+  private final AuditDictionary auditDictionary;
+  private final PersistentAuditProperties.History properties;
+
+  AuditHistoryService(EntityManager entityManager, AuditDictionary auditDictionary,
+      PersistentAuditProperties properties) {
+    this.entityManager = entityManager;
+    this.auditDictionary = auditDictionary;
+    this.properties = properties.getHistory();
+  }
+
+  /**
+   * Returns the history of a single entity.
+   *
+   * @param entityClass the class of the entity
+   * @param entityId the id of the entity
+   * @param after the cursor of the previous page, or null for the first page
+   * @param pageSize the maximum number of logs to return
+   * @return a page of audit logs
+   */
+  @Transactional(readOnly = true)
+  public HistoryPage findByEntity(Class<?> entityClass, Object entityId, HistoryCursor after, int pageSize) {
+    return findHistory(HistoryQuery.ofEntity(entityClass, entityId), after, pageSize);
+  }
+
+  @Transactional(readOnly = true)
+  public HistoryPage findByAuditor(String auditor, HistoryCursor after, int pageSize) {
+    return findHistory(HistoryQuery.ofAuditor(auditor), after, pageSize);
+  }
+
+  @Transactional(readOnly = true)
+  public HistoryPage findBetween(Instant from, Instant to, HistoryCursor after, int pageSize) {
+    return findHistory(HistoryQuery.between(from, to), after, pageSize);
+  }
+
+  /**
+   * Returns a page of the audit logs matching a query.
+   *
+   * @param query the filters to apply
+   * @param after the cursor of the previous page, or null for the first page
+   * @param pageSize the maximum number of logs to return, capped by {@code persistent.audit.history.max-page-size}
+   * @return a page of audit logs
+   */
+  @Transactional(readOnly = true)
+  public HistoryPage findHistory(HistoryQuery query, HistoryCursor after, int pageSize) {
+    if(pageSize <= 0) {
+      throw new IllegalArgumentException("Page size must be positive: " + pageSize);
+    }
+    int limit = Math.min(pageSize, properties.getMaxPageSize());
+
+    List<Specification<AuditLog>> filters = filters(query);
+    List<AuditLog> content = new ArrayList<>();
+    for(Specification<AuditLog> filter : filters) {
+      content.addAll(entityManager.createQuery(criteria(query, filter, after))
+          .setMaxResults(limit + 1)
+          .setHint(QueryHints.READ_ONLY, true)
+          .getResultList());
+    }
+    if(filters.size() > 1) {
+      content.sort(AuditLogCriteria.NEWEST_FIRST);
+      content.subList(Math.min(content.size(), limit + 1), content.size()).clear();
+    }
+
+    HistoryCursor next = null;
+    if(content.size() > limit) {
+      content.remove(limit);
+      next = HistoryCursor.of(content.get(limit - 1));
+    }
+    return new HistoryPage(content, next);
+  }
+
+  /**
+   * Streams all the audit logs matching a query, newest first.<br>
+   * Rows are fetched {@code persistent.audit.history.fetch-size} at a time and detached as they
+   * are read, so the persistence context does not grow. The stream holds a database cursor:
+   * it must be consumed inside the calling transaction and closed afterwards.
+   *
+   * @param query the filters to apply
+   * @return the matching audit logs
+   */
+  @Transactional(readOnly = true, propagation = Propagation.MANDATORY)
+  public Stream<AuditLog> streamHistory(HistoryQuery query) {
+    return stream(query);
+  }
+
+  /**
+   * Passes every audit log matching a query to a consumer, newest first, in a read-only
+   * transaction of its own.
+   *
+   * @param query the filters to apply
+   * @param consumer the consumer of the audit logs
+   * @see #streamHistory(HistoryQuery)
+   */
+  @Transactional(readOnly = true)
+  public void exportHistory(HistoryQuery query, Consumer<AuditLog> consumer) {
+    try (Stream<AuditLog> logs = stream(query)) {
+      logs.forEach(consumer);
+    }
+  }
+
+  private Stream<AuditLog> stream(HistoryQuery query) {
+    List<Stream<AuditLog>> streams = new ArrayList<>();
+    for(Specification<AuditLog> filter : filters(query)) {
+      streams.add(entityManager.createQuery(criteria(query, filter, null))
+          .setHint(QueryHints.FETCH_SIZE, properties.getFetchSize())
+          .setHint(QueryHints.READ_ONLY, true)
+          .getResultStream());
+    }
+    return AuditLogCriteria.merge(streams, AuditLogCriteria.NEWEST_FIRST)
+        .peek(entityManager::detach);
+  }
+
+  /**
+   * @return the filters on the dictionary-encoded values of a query, one per query to run
+   */
+  private List<Specification<AuditLog>> filters(HistoryQuery query) {
+    List<List<Specification<AuditLog>>> filters = new ArrayList<>();
+    if(nonNull(query.getEntityClassName())) {
+      filters.add(AuditLogCriteria.ofEntityClass(auditDictionary, query.getEntityClassName()));
+    }
+    if(nonNull(query.getAuditor())) {
+      filters.add(AuditLogCriteria.ofAuditor(auditDictionary, query.getAuditor()));
+    }
+    return AuditLogCriteria.combinations(filters);
+  }
+
+  private CriteriaQuery<AuditLog> criteria(HistoryQuery query, Specification<AuditLog> filter, HistoryCursor after) {
+    CriteriaBuilder cb = entityManager.getCriteriaBuilder();
+    CriteriaQuery<AuditLog> criteria = cb.createQuery(AuditLog.class);
+    Root<AuditLog> root = criteria.from(AuditLog.class);
+    Path<Instant> dateTime = root.get("dateTime");
+    Path<Long> id = root.get("id");
+
+    List<Predicate> predicates = new ArrayList<>();
+    Predicate filterPredicate = filter.toPredicate(root, criteria, cb);
+    if(nonNull(filterPredicate)) {
+      predicates.add(filterPredicate);
+    }
+    if(nonNull(query.getEntityId())) {
+      predicates.add(cb.equal(root.get("entityId"), query.getEntityId()));
+    }
+    if(nonNull(query.getAction())) {
+      predicates.add(cb.equal(root.get("action"), query.getAction()));
+    }
+    else {
+      predicates.add(cb.notEqual(root.get("action"), AuditedAction.SNAPSHOT));
+    }
+    if(nonNull(query.getFrom())) {
+      predicates.add(cb.greaterThanOrEqualTo(dateTime, query.getFrom()));
+    }
+    if(nonNull(query.getTo())) {
+      predicates.add(cb.lessThan(dateTime, query.getTo()));
+    }
+    if(nonNull(after)) {
+      predicates.add(AuditLogCriteria.before(cb, root, after.getDateTime(), after.getId()));
+    }
+
+    return criteria
+        .where(predicates.toArray(new Predicate[0]))
+        .orderBy(cb.desc(dateTime), cb.desc(id));
+  }
+}
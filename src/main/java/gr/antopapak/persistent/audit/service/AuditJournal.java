@@ -0,0 +1,406 @@
+package gr.antopapak.persistent.audit.service;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * A local, append-only journal of opaque records, kept in memory-mapped segment files.<br>
+ *
+ * Each record is stored as {@code [length][crc32][payload]}. Segments are preallocated
+ * and zero-filled, so a zero length marks the end of the written part of a segment, and
+ * a record that does not fit in the current segment starts a new one. Records are made
+ * durable with {@link #sync(long)}, which forces the segments of all the records appended
+ * so far: concurrent callers wait for a single force instead of issuing one each (group commit).
+ * <p>
+ * Records are read from the last committed position, which is kept in a checkpoint file, so
+ * reading resumes where it left off after a restart. Segments are deleted once every record
+ * in them has been committed. On open, the end of the last segment is found by validating
+ * the records in it, so a record torn by a crash is discarded. Records that can never be
+ * written can be moved to a dead-letter file, in the same format, with {@link #deadLetter(Batch)}.
+ * <p>
+ * Positions are packed as {@code segment << 32 | offset}, which keeps them ordered.
+ */
+@Slf4j
+final class AuditJournal implements Closeable {
+
+  private static final String SEGMENT_SUFFIX = ".segment";
+  private static final String CHECKPOINT = "checkpoint";
+  private static final String DEAD_LETTER = "dead-letter";
+  private static final int HEADER_SIZE = 8;
+
+  private final Path directory;
+  private final int segmentSize;
+  private final ConcurrentNavigableMap<Integer, MappedByteBuffer> segments = new ConcurrentSkipListMap<>();
+  private final Object appendLock = new Object();
+  private final Object syncLock = new Object();
+
+  private volatile long writePosition;
+  private volatile long durablePosition;
+  private volatile long committedPosition;
+  private volatile long pendingCount;
+
+  AuditJournal(Path directory, int segmentSize) throws IOException {
+    if(segmentSize <= HEADER_SIZE) {
+      throw new IllegalArgumentException("Journal segment size too small: " + segmentSize);
+    }
+    this.directory = directory;
+    this.segmentSize = segmentSize;
+    Files.createDirectories(directory);
+
+    List<Integer> existing;
+    try (Stream<Path> files = Files.list(directory)) {
+      existing = files
+          .map(file -> file.getFileName().toString())
+          .filter(name -> name.endsWith(SEGMENT_SUFFIX))
+          .map(AuditJournal::segmentNumber)
+          .filter(Objects::nonNull)
+          .sorted()
+          .collect(Collectors.toList());
+    }
+    for(int segment : existing) {
+      segments.put(segment, map(segment));
+    }
+    if(segments.isEmpty()) {
+      segments.put(0, map(0));
+    }
+
+    int first = existing.isEmpty() ? 0 : existing.get(0);
+    long checkpoint = readCheckpoint();
+    committedPosition = segmentOf(checkpoint) < first ? position(first, 0) : checkpoint;
+
+    int last = segments.lastKey();
+    writePosition = position(last, recoverEnd(segments.get(last)));
+    durablePosition = writePosition;
+    pendingCount = count(committedPosition);
+  }
+
+  /**
+   * Appends records to the journal. They are readable right away, but only durable after {@link #sync(long)}.
+   *
+   * @param records the payloads to append
+   * @return the position after the last appended record
+   * @throws IllegalArgumentException if a record is larger than a segment
+   */
+  long append(List<byte[]> records) throws IOException {
+    synchronized(appendLock) {
+      int segment = segmentOf(writePosition);
+      int offset = offsetOf(writePosition);
+      for(byte[] record : records) {
+        if(HEADER_SIZE + record.length > segmentSize) {
+          throw new IllegalArgumentException("Record of " + record.length + " bytes does not fit in a journal segment");
+        }
+        if(offset + HEADER_SIZE + record.length > segments.get(segment).capacity()) {
+          segment++;
+          offset = 0;
+          segments.put(segment, map(segment));
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        ByteBuffer buffer = segments.get(segment).duplicate();
+        buffer.position(offset + HEADER_SIZE);
+        buffer.put(record);
+        buffer.putInt(offset + 4, (int) crc.getValue());
+        buffer.putInt(offset, record.length);
+        offset += HEADER_SIZE + record.length;
+      }
+      pendingCount += records.size();
+      writePosition = position(segment, offset);
+      return writePosition;
+    }
+  }
+
+  /**
+   * Forces all records up to the given position to disk. If another thread is already forcing,
+   * waits for it and returns without forcing again if that covered the position.
+   *
+   * @param position a position returned by {@link #append(List)}
+   */
+  void sync(long position) {
+    if(durablePosition >= position) {
+      return;
+    }
+    synchronized(syncLock) {
+      if(durablePosition >= position) {
+        return;
+      }
+      long target = writePosition;
+      for(int segment = segmentOf(durablePosition); segment <= segmentOf(target); segment++) {
+        MappedByteBuffer buffer = segments.get(segment);
+        if(buffer != null) {
+          buffer.force();
+        }
+      }
+      durablePosition = target;
+    }
+  }
+
+  /**
+   * Reads up to {@code maxRecords} records from the last committed position, without committing them.
+   */
+  Batch read(int maxRecords) {
+    return read(committedPosition, maxRecords);
+  }
+
+  private Batch read(long from, int maxRecords) {
+    List<byte[]> records = new ArrayList<>();
+    List<Long> positions = new ArrayList<>();
+    long end = writePosition;
+    int segment = segmentOf(from);
+    int offset = offsetOf(from);
+
+    while(records.size() < maxRecords) {
+      MappedByteBuffer buffer = segments.get(segment);
+      int limit = segment == segmentOf(end) ? offsetOf(end) : buffer.capacity();
+      byte[] record = offset + HEADER_SIZE <= limit ? readRecord(buffer, offset, limit) : null;
+      if(record == null) {
+        if(segment >= segmentOf(end)) {
+          break;
+        }
+        segment++;
+        offset = 0;
+        continue;
+      }
+      records.add(record);
+      positions.add(position(segment, offset));
+      offset += HEADER_SIZE + record.length;
+    }
+    return new Batch(records, positions, position(segment, offset));
+  }
+
+  /**
+   * Marks the records of a batch as written, and deletes the segments that only held committed records.
+   */
+  void commit(Batch batch) throws IOException {
+    writeCheckpoint(batch.end);
+    committedPosition = batch.end;
+    synchronized(appendLock) {
+      pendingCount -= batch.records.size();
+    }
+
+    int current = segmentOf(batch.end);
+    for(Integer segment : new ArrayList<>(segments.keySet())) {
+      if(segment < current) {
+        segments.remove(segment);
+        Files.deleteIfExists(segmentPath(segment));
+      }
+    }
+  }
+
+  /**
+   * Appends the records of a batch to the dead-letter file, forces it, and commits the batch,
+   * so that replay moves past records that can never be written.
+   */
+  void deadLetter(Batch batch) throws IOException {
+    try (FileChannel channel = FileChannel.open(directory.resolve(DEAD_LETTER),
+        StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+      for(byte[] record : batch.records) {
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + record.length);
+        buffer.putInt(record.length).putInt((int) crc.getValue()).put(record).flip();
+        while(buffer.hasRemaining()) {
+          channel.write(buffer);
+        }
+      }
+      channel.force(true);
+    }
+    commit(batch);
+  }
+
+  /**
+   * @return the number of records appended but not committed yet
+   */
+  long getPendingCount() {
+    return pendingCount;
+  }
+
+  @Override
+  public void close() {
+    sync(writePosition);
+    segments.clear();
+  }
+
+  private byte[] readRecord(ByteBuffer buffer, int offset, int limit) {
+    int length = buffer.getInt(offset);
+    if(length <= 0 || offset + HEADER_SIZE + length > limit) {
+      return null;
+    }
+    byte[] record = new byte[length];
+    ByteBuffer view = buffer.duplicate();
+    view.position(offset + HEADER_SIZE);
+    view.get(record);
+
+    CRC32 crc = new CRC32();
+    crc.update(record);
+    if((int) crc.getValue() != buffer.getInt(offset + 4)) {
+      log.warn("Corrupted audit journal record at offset {}, skipping the rest of the segment", offset);
+      return null;
+    }
+    return record;
+  }
+
+  /**
+   * Finds the end of the valid records of a segment, and clears anything written after it.
+   */
+  private int recoverEnd(MappedByteBuffer buffer) {
+    int offset = 0;
+    byte[] record;
+    while(offset + HEADER_SIZE <= buffer.capacity() && (record = readRecord(buffer, offset, buffer.capacity())) != null) {
+      offset += HEADER_SIZE + record.length;
+    }
+    boolean torn = false;
+    for(int i = offset; i < buffer.capacity(); i++) {
+      if(buffer.get(i) != 0) {
+        buffer.put(i, (byte) 0);
+        torn = true;
+      }
+    }
+    if(torn) {
+      log.warn("Discarded a torn audit journal record at offset {}", offset);
+      buffer.force();
+    }
+    return offset;
+  }
+
+  private long count(long from) {
+    long count = 0;
+    long position = from;
+    while(true) {
+      Batch batch = read(position, 1024);
+      if(batch.records.isEmpty()) {
+        return count;
+      }
+      count += batch.records.size();
+      position = batch.end;
+    }
+  }
+
+  private MappedByteBuffer map(int segment) throws IOException {
+    try (FileChannel channel = FileChannel.open(segmentPath(segment),
+        StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      long size = Math.max(channel.size(), segmentSize);
+      return channel.map(MapMode.READ_WRITE, 0, size);
+    }
+  }
+
+  private long readCheckpoint() throws IOException {
+    Path checkpoint = directory.resolve(CHECKPOINT);
+    if(!Files.exists(checkpoint)) {
+      return 0;
+    }
+    return ByteBuffer.wrap(Files.readAllBytes(checkpoint)).getLong();
+  }
+
+  private void writeCheckpoint(long position) throws IOException {
+    Path temp = directory.resolve(CHECKPOINT + ".tmp");
+    try (FileChannel channel = FileChannel.open(temp,
+        StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      channel.write(ByteBuffer.allocate(Long.BYTES).putLong(0, position));
+      channel.force(true);
+    }
+    Files.move(temp, directory.resolve(CHECKPOINT), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  private Path segmentPath(int segment) {
+    return directory.resolve(String.format("%010d%s", segment, SEGMENT_SUFFIX));
+  }
+
+  /**
+   * @return the number of a segment file, or null if the file is not named like one
+   */
+  private static Integer segmentNumber(String fileName) {
+    String number = fileName.substring(0, fileName.length() - SEGMENT_SUFFIX.length());
+    try {
+      int segment = Integer.parseInt(number);
+      if(segment >= 0) {
+        return segment;
+      }
+    } catch (NumberFormatException e) {
+      //not a segment
+    }
+    log.warn("Ignoring {} in the audit journal, which is not named like a segment", fileName);
+    return null;
+  }
+
+  /**
+   * @return a position in a human readable form, for logging
+   */
+  static String describe(long position) {
+    return "segment " + segmentOf(position) + ", offset " + offsetOf(position);
+  }
+
+  private static long position(int segment, int offset) {
+    return ((long) segment << 32) | offset;
+  }
+
+  private static int segmentOf(long position) {
+    return (int) (position >>> 32);
+  }
+
+  private static int offsetOf(long position) {
+    return (int) position;
+  }
+
+  /**
+   * Records read from the journal, their positions, and the position right after them.
+   */
+  static final class Batch {
+
+    private final List<byte[]> records;
+    private final List<Long> positions;
+    private final long end;
+
+    private Batch(List<byte[]> records, List<Long> positions, long end) {
+      this.records = records;
+      this.positions = positions;
+      this.end = end;
+    }
+
+    List<byte[]> getRecords() {
+      return records;
+    }
+
+    /**
+     * @return the position of the record at the given index of the batch
+     */
+    long getPosition(int index) {
+      return positions.get(index);
+    }
+
+    int size() {
+      return records.size();
+    }
+
+    boolean isEmpty() {
+      return records.isEmpty();
+    }
+
+    /**
+     * @return a batch of the first {@code count} records of this one, which can be committed on its own
+     */
+    Batch head(int count) {
+      if(count >= records.size()) {
+        return this;
+      }
+      return new Batch(records.subList(0, count), positions.subList(0, count), positions.get(count));
+    }
+  }
+}
@@ -0,0 +1,190 @@
+package gr.antopapak.persistent.audit.service;
+
+import gr.antopapak.persistent.audit.domain.AuditLog;
+import gr.antopapak.persistent.audit.model.DictionaryKind;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.PriorityQueue;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.Path;
+import javax.persistence.criteria.Predicate;
+import javax.persistence.criteria.Root;
+import org.springframework.data.jpa.domain.Specification;
+
+/**
+ * Criteria predicates over {@link AuditLog}s shared by the query services.<br>
+ *
+ * A class name or auditor is stored either as a string or, with dictionary encoding, as an id,
+ * never both. Rather than matching either column with an OR, which cannot be read as a single
+ * ordered index range, a filter on such a value yields one alternative per column, and a query
+ * runs once per {@link #combinations(List) combination} of alternatives. The results of the
+ * combinations are disjoint, each one is a range scan of its own index, and they are
+ * {@link #merge(List, Comparator) merged} in {@code (datetime, id)} order.
+ */
+final class AuditLogCriteria {
+
+  /**
+   * The {@code (datetime, id)} order of the history, oldest first.
+   */
+  static final Comparator<AuditLog> OLDEST_FIRST = Comparator
+      .comparing(AuditLog::getDateTime)
+      .thenComparing(AuditLog::getId);
+
+  static final Comparator<AuditLog> NEWEST_FIRST = OLDEST_FIRST.reversed();
+
+  private AuditLogCriteria() {
+  }
+
+  /**
+   * Matches the logs of a single entity.
+   *
+   * @return the alternatives to run a query with
+   */
+  static List<Specification<AuditLog>> ofEntity(AuditDictionary auditDictionary, String entityClassName, String entityId) {
+    Specification<AuditLog> ofEntityId = (root, query, cb) -> cb.equal(root.get("entityId"), entityId);
+    return combinations(List.of(ofEntityClass(auditDictionary, entityClassName), List.of(ofEntityId)));
+  }
+
+  static List<Specification<AuditLog>> ofEntityClass(AuditDictionary auditDictionary, String entityClassName) {
+    return dictionaryEqual("entityClassName", "entityClassId", auditDictionary, DictionaryKind.ENTITY_CLASS, entityClassName);
+  }
+
+  static List<Specification<AuditLog>> ofAuditor(AuditDictionary auditDictionary, String auditor) {
+    return dictionaryEqual("auditor", "auditorId", auditDictionary, DictionaryKind.AUDITOR, auditor);
+  }
+
+  /**
+   * Combines filters that each match through any of their alternatives into the
+   * specifications to query with, one per combination of alternatives.
+   *
+   * @param filters the alternatives of each filter
+   * @return the conjunction of every combination of alternatives
+   */
+  static List<Specification<AuditLog>> combinations(List<List<Specification<AuditLog>>> filters) {
+    List<Specification<AuditLog>> combinations = List.of(Specification.where(null));
+    for(List<Specification<AuditLog>> alternatives : filters) {
+      List<Specification<AuditLog>> combined = new ArrayList<>(combinations.size() * alternatives.size());
+      for(Specification<AuditLog> combination : combinations) {
+        for(Specification<AuditLog> alternative : alternatives) {
+          combined.add(combination.and(alternative));
+        }
+      }
+      combinations = combined;
+    }
+    return combinations;
+  }
+
+  /**
+   * Merges streams that are each sorted in the given order into one, reading them lazily.
+   * Closing the merged stream closes all of them.
+   *
+   * @param streams the sorted streams
+   * @param order the order of the streams
+   * @return the merged stream
+   */
+  static Stream<AuditLog> merge(List<Stream<AuditLog>> streams, Comparator<AuditLog> order) {
+    if(streams.size() == 1) {
+      return streams.get(0);
+    }
+    Stream<AuditLog> merged = StreamSupport.stream(
+        Spliterators.spliteratorUnknownSize(new MergingIterator(streams, order), Spliterator.ORDERED | Spliterator.NONNULL),
+        false);
+    for(Stream<AuditLog> stream : streams) {
+      merged = merged.onClose(stream::close);
+    }
+    return merged;
+  }
+
+  /**
+   * Matches the logs strictly before the given position in {@code (datetime, id)} order.
+   */
+  static Predicate before(CriteriaBuilder cb, Root<AuditLog> root, Instant dateTime, Long id) {
+    Path<Instant> dateTimePath = root.get("dateTime");
+    Path<Long> idPath = root.get("id");
+    return cb.or(
+        cb.lessThan(dateTimePath, dateTime),
+        cb.and(cb.equal(dateTimePath, dateTime), cb.lessThan(idPath, id))
+    );
+  }
+
+  /**
+   * Matches the logs strictly after the given position in {@code (datetime, id)} order.
+   */
+  static Predicate after(CriteriaBuilder cb, Root<AuditLog> root, Instant dateTime, Long id) {
+    Path<Instant> dateTimePath = root.get("dateTime");
+    Path<Long> idPath = root.get("id");
+    return cb.or(
+        cb.greaterThan(dateTimePath, dateTime),
+        cb.and(cb.equal(dateTimePath, dateTime), cb.greaterThan(idPath, id))
+    );
+  }
+
+  private static List<Specification<AuditLog>> dictionaryEqual(String valueColumn, String idColumn,
+      AuditDictionary auditDictionary, DictionaryKind kind, String value) {
+
+    Specification<AuditLog> ofValue = (root, query, cb) -> cb.equal(root.get(valueColumn), value);
+    Optional<Integer> id = auditDictionary.findId(kind, value);
+    if(id.isEmpty()) {
+      return List.of(ofValue);
+    }
+    Specification<AuditLog> ofId = (root, query, cb) -> cb.equal(root.get(idColumn), id.get());
+    return List.of(ofId, ofValue);
+  }
+
+  private static final class MergingIterator implements Iterator<AuditLog> {
+
+    private final PriorityQueue<Head> heads;
+
+    private MergingIterator(List<Stream<AuditLog>> streams, Comparator<AuditLog> order) {
+      this.heads = new PriorityQueue<>(streams.size(), Comparator.comparing(h -> h.current, order));
+      for(Stream<AuditLog> stream : streams) {
+        Head head = new Head(stream.iterator());
+        if(head.advance()) {
+          heads.add(head);
+        }
+      }
+    }
+
+    @Override
+    public boolean hasNext() {
+      return !heads.isEmpty();
+    }
+
+    @Override
+    public AuditLog next() {
+      Head head = heads.poll();
+      if(head == null) {
+        throw new NoSuchElementException();
+      }
+      AuditLog next = head.current;
+      if(head.advance()) {
+        heads.add(head);
+      }
+      return next;
+    }
+  }
+
+  private static final class Head {
+
+    private final Iterator<AuditLog> iterator;
+    private AuditLog current;
+
+    private Head(Iterator<AuditLog> iterator) {
+      this.iterator = iterator;
+    }
+
+    private boolean advance() {
+      current = iterator.hasNext() ? iterator.next() : null;
+      return current != null;
+    }
+  }
+}
@@ -0,0 +1,35 @@
+package gr.antopapak.persistent.audit.service;
+
+import gr.antopapak.persistent.audit.domain.AuditLog;
+import javax.persistence.PostLoad;
+import javax.persistence.PostPersist;
+import javax.persistence.PrePersist;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.stereotype.Component;
+
+/**
+ * Applies the {@link AuditDictionary} to audit logs as they are written and read.<br>
+ *
+ * The dictionary is looked up lazily, since it depends on the entity manager factory
+ * that instantiates this listener.
+ */
+@Component
+public class AuditLogDictionaryListener {
+
+  private final ObjectProvider<AuditDictionary> auditDictionary;
+
+  AuditLogDictionaryListener(ObjectProvider<AuditDictionary> auditDictionary) {
+    this.auditDictionary = auditDictionary;
+  }
+
+  @PrePersist
+  void encode(AuditLog auditLog) {
+    auditDictionary.getObject().encode(auditLog);
+  }
+
+  @PostPersist
+  @PostLoad
+  void decode(AuditLog auditLog) {
+    auditDictionary.getObject().decode(auditLog);
+  }
+}
@@ -4,34 +4,54 @@ package gr.antopapak.persistent.audit.service;
 import static java.util.Objects.isNull;
 import static java.util.Objects.nonNull;
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import gr.antopapak.persistent.audit.annotation.PersistentLogAudit;
+import gr.antopapak.persistent.audit.differ.EntityDiffer;
 import gr.antopapak.persistent.audit.domain.AuditLog;
-import gr.antopapak.persistent.audit.model.AffectedField;
 import gr.antopapak.persistent.audit.model.AuditedAction;
-import gr.antopapak.persistent.audit.repository.AuditLogRepository;
-import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
 import lombok.AllArgsConstructor;
+import org.hibernate.proxy.HibernateProxyHelper;
 import org.springframework.data.domain.AuditorAware;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.util.ClassUtils;
 
 @Service
 @AllArgsConstructor
 public class AuditLogService {
 
   private final AuditorAware<String> auditorAwareBean;
-  private final AuditLogRepository auditLogRepository;
-  private final ObjectMapper objectMapper;
+  private final AuditLogSink auditLogSink;
+  private final AffectedFieldsCodec affectedFieldsCodec;
   private final ReflectionCache reflectionCache;
+  private final AsyncAuditLogWriter asyncAuditLogWriter;
+  private final JournalingAuditLogWriter journalingAuditLogWriter;
+  private final EntitySnapshotResolver entitySnapshotResolver;
+  private final SnapshotTracker snapshotTracker;
+  private final ChangeCoalescer changeCoalescer;
+  private final Associations associations;
+  private final AuditMetrics auditMetrics;
+  private final ParallelAuditBuilder parallelAuditBuilder;
+  private final LastKnownStateCache lastKnownStateCache;
+  private final AuditFieldIndex auditFieldIndex;
+
+  /**
+   * The field whose change alone is logged as a soft delete or restore.
+   */
+  static final String SOFT_DELETE_FIELD = "deleted";
 
 
 
@@ -39,49 +59,142 @@ public class AuditLogService {
   public void createNonDeletingAudit(Object entityBefore, Object entityAfter)
       throws IllegalAccessException, JsonProcessingException {
 
-    Object idAfter = getEntityId(entityAfter);
+    persistAll(buildNonDeletingAuditLogs(Collections.singletonList(entityBefore), Collections.singletonList(entityAfter)), classOf(entityAfter));
+  }
 
-    if(isNull(entityBefore) && nonNull(idAfter)) { //is new entity
-      createInsertAuditLog(entityAfter, idAfter);
-    }
-    else {
-      FieldMap fieldMap = new FieldMap();
-      putFieldsBefore(fieldMap, entityBefore);
-      putFieldsAfter(fieldMap, entityAfter);
-
-      if(fieldMap.size() == 1 && fieldMap.isFieldAffected("deleted")) {
-        Boolean isNowDeleted = (Boolean) fieldMap.getAfter("deleted");
-        if(isNowDeleted) {
-          createSoftDeleteAuditLog(entityAfter, idAfter);
-        }
-        else {
-          createSoftRestoreAuditLog(entityAfter, idAfter);
-        }
-      }
-      else {
-        createUpdateAuditLog(entityAfter, idAfter, fieldMap);
+  /**
+   * Computes the audit log of a save on the calling thread and hands it over to the
+   * {@link AsyncAuditLogWriter}, or to the {@link JournalingAuditLogWriter} when it is not
+   * delivered asynchronously, which persist it after the current transaction commits.
+   * Unlike {@link #createNonDeletingAudit(Object, Object)}, this does not open a new transaction.
+   * Must only be called when {@link #isDeferred(Object)}.
+   *
+   * @param entityBefore the state of the entity before the save, or null if it is new
+   * @param entityAfter the state of the entity after the save
+   */
+  public void submitNonDeletingAudit(Object entityBefore, Object entityAfter)
+      throws IllegalAccessException, JsonProcessingException {
+
+    submitNonDeletingAudits(Collections.singletonList(entityBefore), Collections.singletonList(entityAfter));
+  }
+
+  /**
+   * Audits a batch of saves with a single write of all the resulting audit logs.
+   *
+   * @param entitiesBefore the state of each entity before the save, or null for new entities
+   * @param entitiesAfter the state of each entity after the save, in the same order
+   */
+  @Transactional(propagation = Propagation.REQUIRES_NEW)
+  public void createNonDeletingAudits(List<?> entitiesBefore, List<?> entitiesAfter)
+      throws IllegalAccessException, JsonProcessingException {
+
+    persistAll(buildNonDeletingAuditLogs(entitiesBefore, entitiesAfter), firstClassOf(entitiesAfter));
+  }
+
+  /**
+   * Like {@link #createNonDeletingAudits(List, List)}, but hands the audit logs over to the
+   * {@link AsyncAuditLogWriter} or the {@link JournalingAuditLogWriter} instead of opening a
+   * new transaction. Must only be called when {@link #isDeferred(Object)}.
+   *
+   * @param entitiesBefore the state of each entity before the save, or null for new entities
+   * @param entitiesAfter the state of each entity after the save, in the same order
+   */
+  public void submitNonDeletingAudits(List<?> entitiesBefore, List<?> entitiesAfter)
+      throws IllegalAccessException, JsonProcessingException {
+
+    persistAll(buildNonDeletingAuditLogs(entitiesBefore, entitiesAfter), firstClassOf(entitiesAfter));
+  }
+
+  /**
+   * @return true if the audit logs of the entity are written after the current transaction commits,
+   * according to its {@link PersistentLogAudit#delivery()}
+   */
+  public boolean isAsync(Object entity) {
+    return isAsync(policyOf(entity));
+  }
+
+  /**
+   * @return true if the audit logs of the entity are handed over to a writer that persists them
+   * after the current transaction commits, ie they are delivered asynchronously or journaled, so
+   * that they can be built on the calling thread without a transaction of their own
+   */
+  public boolean isDeferred(Object entity) {
+    return isAsync(entity) || journalingAuditLogWriter.isEnabled();
+  }
+
+  /**
+   * @return true if the saves of the entity are coalesced into one net change at the end of the
+   * current transaction, according to its {@link PersistentLogAudit#coalesce()}
+   */
+  public boolean isCoalescing(Object entity) {
+    return changeCoalescer.isActive(policyOf(entity).getCoalescing());
+  }
+
+  /**
+   * @return true if the entity has a coalesced change pending in the current transaction,
+   * in which case its before-state is already known and need not be read again
+   */
+  public boolean hasPendingChange(Object entity, Object entityId) {
+    return nonNull(entity) && nonNull(entityId)
+        && changeCoalescer.isPending(HibernateProxyHelper.getClassWithoutInitializingProxy(entity), String.valueOf(entityId));
+  }
+
+  /**
+   * Records saves in the current transaction instead of auditing them right away. When the
+   * transaction commits, each entity is audited once, with the difference between its state
+   * before its first save and its latest state. Must only be called when {@link #isCoalescing(Object)}.
+   *
+   * @param entitiesBefore the state of each entity before the save, or null for new entities
+   *                       and for entities with a pending change
+   * @param entitiesAfter the state of each entity after the save, in the same order
+   */
+  public void coalesceNonDeletingAudits(List<?> entitiesBefore, List<?> entitiesAfter) throws IllegalAccessException {
+    for(int i = 0; i < entitiesAfter.size(); i++) {
+      Object entityAfter = entitiesAfter.get(i);
+      if(nonNull(entityAfter)) {
+        changeCoalescer.add(HibernateProxyHelper.getClassWithoutInitializingProxy(entityAfter), String.valueOf(getEntityId(entityAfter)),
+            entitiesBefore.get(i), entityAfter, this::writeCoalescedChanges);
       }
     }
   }
 
   @Transactional
-  public void createInsertAuditLog(Object entity, Object entityId) throws IllegalAccessException {
-    auditLogRepository.save(createAuditLog(entity, entityId, AuditedAction.INSERT));
+  public void createInsertAuditLog(Object entity, Object entityId) throws IllegalAccessException, JsonProcessingException {
+    AuditLog auditLog = complete(buildInsertAuditLog(entity, entityId, currentAuditor()));
+    snapshotTracker.recordCheckpoint(auditLog.getEntityClassName(), auditLog.getEntityId());
+    persist(auditLog, classOf(entity));
   }
 
   @Transactional
   public void createSoftDeleteAuditLog(Object entity, Object entityId) throws IllegalAccessException {
-    auditLogRepository.save(createAuditLog(entity, entityId, AuditedAction.SOFT_DELETE));
+    persist(createAuditLog(entity, entityId, AuditedAction.SOFT_DELETE), classOf(entity));
   }
 
   @Transactional
   public void createSoftRestoreAuditLog(Object entity, Object entityId) throws IllegalAccessException {
-    auditLogRepository.save(createAuditLog(entity, entityId, AuditedAction.SOFT_RESTORE));
+    persist(createAuditLog(entity, entityId, AuditedAction.SOFT_RESTORE), classOf(entity));
   }
 
   @Transactional
   public void createPermanentDeleteAuditLog(Object entity, Object entityId) throws IllegalAccessException {
-    auditLogRepository.save(createAuditLog(entity, entityId, AuditedAction.DELETE));
+    AuditLog auditLog = createDeleteAuditLog(entity, entityId);
+    if(nonNull(auditLog)) {
+      persist(auditLog, classOf(entity));
+    }
+  }
+
+  @Transactional
+  public void createPermanentDeleteAuditLogs(Collection<?> entities) throws IllegalAccessException {
+    List<AuditLog> auditLogs = new ArrayList<>(entities.size());
+    for(Object entity : entities) {
+      if(nonNull(entity)) {
+        AuditLog auditLog = createDeleteAuditLog(entity, getEntityId(entity));
+        if(nonNull(auditLog)) {
+          auditLogs.add(auditLog);
+        }
+      }
+    }
+    persistAll(auditLogs, firstClassOf(entities));
   }
 
   @Transactional
@@ -89,21 +202,28 @@ public class AuditLogService {
       throws ClassNotFoundException, IllegalAccessException, InvocationTargetException {
 
     try {
-      Type superClass = c.getGenericSuperclass();
-      if(superClass instanceof ParameterizedType) {
-        for(Type type : ((ParameterizedType) superClass).getActualTypeArguments()) {
+      Type[] typeArguments = repositoryTypeArguments(c, callingContext);
+      if(typeArguments.length > 0) {
+        for(Type type : typeArguments) {
           Class<?> clazz = Class.forName(type.getTypeName());
           if(clazz.isAnnotationPresent(PersistentLogAudit.class)) {
             //TODO cache all the above
             Object entityBefore = getEntityBeforeFlush(id, callingContext);
             AuditLog deleteLog;
             if(entityBefore != null) {
-              deleteLog = createAuditLog(entityBefore, id, AuditedAction.DELETE);
+              deleteLog = createDeleteAuditLog(entityBefore, id);
             }
             else {
               deleteLog = createAuditLog(id, AuditedAction.DELETE, clazz.getSimpleName());
+              snapshotTracker.forget(deleteLog.getEntityClassName(), deleteLog.getEntityId());
+              lastKnownStateCache.invalidate(clazz, id);
+              if(changeCoalescer.discard(clazz, deleteLog.getEntityId())) {
+                deleteLog = null;
+              }
+            }
+            if(deleteLog != null) {
+              persist(deleteLog, clazz);
             }
-            auditLogRepository.save(deleteLog);
           }
         }
       }
@@ -116,19 +236,76 @@ public class AuditLogService {
     }
   }
 
+  /**
+   * Returns the type arguments of a repository, among which is the class of its entities.
+   * They are looked up on the generic superclass of the class declaring the method, or, when
+   * that is an interface as with Spring Data repositories, on the interface of the calling
+   * repository that extends it.
+   */
+  private static Type[] repositoryTypeArguments(Class<?> c, Object callingContext) {
+    Type superClass = c.getGenericSuperclass();
+    if(superClass instanceof ParameterizedType) {
+      return ((ParameterizedType) superClass).getActualTypeArguments();
+    }
+    if(nonNull(callingContext)) {
+      for(Class<?> repositoryInterface : ClassUtils.getAllInterfaces(callingContext)) {
+        for(Type type : repositoryInterface.getGenericInterfaces()) {
+          if(type instanceof ParameterizedType && ((ParameterizedType) type).getRawType() instanceof Class
+              && c.isAssignableFrom((Class<?>) ((ParameterizedType) type).getRawType())) {
+            return ((ParameterizedType) type).getActualTypeArguments();
+          }
+        }
+      }
+    }
+    return new Type[0];
+  }
+
   @Transactional
   public void createUpdateAuditLog(Object entity, Object entityId, FieldMap fieldMap) throws JsonProcessingException, IllegalAccessException {
-    try {
-      List<AffectedField> affectedFields = fieldMap.getAllAffectedEntries();
-      if(!affectedFields.isEmpty()) {
-        AuditLog auditLog = createAuditLog(entity, entityId, AuditedAction.UPDATE);
-        String affectedFieldsJson = objectMapper.writeValueAsString(affectedFields);
-        auditLog.setAffectedFields(affectedFieldsJson);
-        auditLogRepository.save(auditLog);
-      }
-    } catch (Exception e) {
-      e.printStackTrace();
-      throw e;
+    List<AuditLog> auditLogs = new ArrayList<>(2);
+    AuditLog auditLog = complete(buildUpdateAuditLog(entity, entityId, fieldMap, policyOf(entity), currentAuditor()));
+    if(nonNull(auditLog)) {
+      auditLogs.add(auditLog);
+      addSnapshotIfDue(auditLog, entity, auditLog.getAuditor(), auditLogs);
+    }
+    persistAll(auditLogs, classOf(entity));
+  }
+
+  /**
+   * Returns the before-state of an entity from the persistence context of the current
+   * transaction, without querying the database.<br>
+   * Returns null if the entity (or an instance with the same id) is not managed by the
+   * current session, in which case {@link #getEntityBeforeFlush(Object, Object)} should be used.
+   *
+   * @param entity the entity about to be saved
+   * @param id the id of the entity
+   * @return a detached copy of the loaded state of the entity, or null
+   */
+  public Object getManagedEntitySnapshot(Object entity, Object id) {
+    return entitySnapshotResolver.snapshotOf(entity, id);
+  }
+
+  /**
+   * Returns the state of a detached entity after its last save, from the {@link LastKnownStateCache},
+   * so that it need not be read from the database.
+   *
+   * @param entity the entity about to be saved
+   * @param id the id of the entity
+   * @return {@link LastKnownStateCache#UNCHANGED} if the save changes nothing and such saves are not
+   * audited, a detached copy of the last saved state, or null if it must be read from the database
+   */
+  public Object getLastSavedState(Object entity, Object id) {
+    return lastKnownStateCache.stateBefore(entity, id);
+  }
+
+  /**
+   * Remembers the state of an entity after a save in the {@link LastKnownStateCache}, if it is enabled.
+   *
+   * @param entity the saved entity
+   */
+  public void rememberSavedState(Object entity) throws IllegalAccessException {
+    if(lastKnownStateCache.isEnabled() && nonNull(entity)) {
+      lastKnownStateCache.put(entity, getEntityId(entity));
     }
   }
 
@@ -145,13 +322,40 @@ public class AuditLogService {
     return null;
   }
 
+  /**
+   * Loads the database state of several entities with a single {@code findAllById} query.
+   *
+   * @param ids the ids of the entities
+   * @param callingContext the repository of the entities
+   * @return the entities found, in no particular order
+   */
+  @Transactional(readOnly = true, propagation = Propagation.REQUIRES_NEW)
+  public List<?> getEntitiesBeforeFlush(Collection<?> ids, Object callingContext)
+      throws InvocationTargetException, IllegalAccessException {
+
+    if(ids.isEmpty()) {
+      return List.of();
+    }
+    Method findAllById = reflectionCache.getFindAllByIdMethodForClass(callingContext.getClass());
+    if(findAllById != null) {
+      return (List<?>) findAllById.invoke(callingContext, ids);
+    }
+
+    return List.of();
+  }
+
 
   public Object getEntityId(Object entity) throws IllegalAccessException {
     if(isNull(entity)) {
       return null;
     }
 
-    Field idField = reflectionCache.getIdForClass(entity.getClass());
+    EntityDiffer<Object> differ = reflectionCache.getDifferForClass(entity.getClass());
+    if(nonNull(differ)) {
+      return differ.getId(entity);
+    }
+
+    FieldAccessor idField = reflectionCache.getIdForClass(entity.getClass());
     if(isNull(idField)) {
       throw new IllegalStateException("No @Id found for entity: " + entity.getClass().getName());
     }
@@ -160,44 +364,296 @@ public class AuditLogService {
   }
 
 
-  private void putFieldsBefore(FieldMap fieldMap, Object entityBefore) {
-    if(fieldMap == null || entityBefore == null) {
-      return;
+  /**
+   * Builds the log of a save, without persisting it nor counting it towards a checkpoint.<br>
+   * May run on a thread of the {@link ParallelAuditBuilder}, so it only touches thread-safe state
+   * and never the database: the log is completed on the calling thread.
+   *
+   * @param auditor the current auditor, resolved on the calling thread
+   * @return the log of the change, or null if there is nothing to log
+   */
+  private PendingAuditLog buildChangeAuditLog(Object entityBefore, Object entityAfter, String auditor)
+      throws IllegalAccessException, JsonProcessingException {
+
+    if(isNull(entityAfter)) {
+      return null;
     }
 
-    reflectionCache.getLoggableFieldsForClass(entityBefore.getClass())
-        .forEach(f -> {
-          try {
-            fieldMap.putBefore(f.getName(), f.get(entityBefore));
-          } catch (IllegalAccessException e) {
-            e.printStackTrace();
-          }
-        });
+    Object idAfter = getEntityId(entityAfter);
+
+    if(isNull(entityBefore) && nonNull(idAfter)) { //is new entity
+      return buildInsertAuditLog(entityAfter, idAfter, auditor);
+    }
+    AuditPolicy policy = policyOf(entityAfter);
+    if(!policy.sampleUpdate()) {
+      return null;
+    }
+
+    long start = auditMetrics.start();
+    FieldMap fieldMap = diff(entityBefore, entityAfter);
+    auditMetrics.recordStage(AuditMetrics.Stage.DIFF, entityAfter.getClass(), start);
+
+    if(fieldMap.affectedCount() == 1 && fieldMap.isFieldAffected(SOFT_DELETE_FIELD)) {
+      Boolean isNowDeleted = (Boolean) fieldMap.getAfter(SOFT_DELETE_FIELD);
+      return new PendingAuditLog(createAuditLog(entityAfter, idAfter,
+          isNowDeleted ? AuditedAction.SOFT_DELETE : AuditedAction.SOFT_RESTORE, auditor));
+    }
+    return buildUpdateAuditLog(entityAfter, idAfter, fieldMap, policy, auditor);
+  }
+
+  /**
+   * Builds the audit logs for a batch of saves, without persisting them: the log of each change,
+   * followed by a {@link AuditedAction#SNAPSHOT} checkpoint when one is due.<br>
+   * The logs of the changes are built by the {@link ParallelAuditBuilder}, then completed and
+   * counted towards checkpoints on the calling thread, in the order of the batch.
+   */
+  private List<AuditLog> buildNonDeletingAuditLogs(List<?> entitiesBefore, List<?> entitiesAfter)
+      throws IllegalAccessException, JsonProcessingException {
+
+    String auditor = currentAuditor();
+    List<PendingAuditLog> changes = parallelAuditBuilder.buildAll(entitiesAfter.size(),
+        i -> buildChangeAuditLog(entitiesBefore.get(i), entitiesAfter.get(i), auditor));
+
+    List<AuditLog> auditLogs = new ArrayList<>(changes.size());
+    for(int i = 0; i < changes.size(); i++) {
+      AuditLog change = complete(changes.get(i));
+      if(isNull(change)) {
+        continue;
+      }
+      auditLogs.add(change);
+      if(change.getAction() == AuditedAction.INSERT) {
+        snapshotTracker.recordCheckpoint(change.getEntityClassName(), change.getEntityId());
+      }
+      else {
+        addSnapshotIfDue(change, entitiesAfter.get(i), auditor, auditLogs);
+      }
+    }
+    return auditLogs;
+  }
+
+  /**
+   * Builds the {@link AuditedAction#INSERT} log of an entity, holding its full state only if
+   * checkpoints are enabled, as it is then the first checkpoint of the entity.
+   */
+  private PendingAuditLog buildInsertAuditLog(Object entity, Object entityId, String auditor)
+      throws IllegalAccessException, JsonProcessingException {
+
+    if(!snapshotTracker.isEnabled()) {
+      return new PendingAuditLog(createAuditLog(entity, entityId, AuditedAction.INSERT, auditor));
+    }
+    return buildStateAuditLog(entity, entityId, AuditedAction.INSERT, auditor);
+  }
+
+  /**
+   * Builds a log holding the full state of an entity, ie an {@link AuditedAction#INSERT}
+   * or a {@link AuditedAction#SNAPSHOT}, with every field's value as its "after" value.
+   */
+  private PendingAuditLog buildStateAuditLog(Object entity, Object entityId, AuditedAction action, String auditor)
+      throws IllegalAccessException, JsonProcessingException {
+
+    long start = auditMetrics.start();
+    FieldMap fieldMap = new FieldMap(reflectionCache.getSchemaForClass(entity.getClass()), associations);
+    fieldMap.compare(null, entity);
+    auditMetrics.recordStage(AuditMetrics.Stage.DIFF, entity.getClass(), start);
+    return serialize(createAuditLog(entity, entityId, action, auditor), entity, fieldMap, policyOf(entity));
+  }
+
+  /**
+   * Counts a change towards the next checkpoint of the entity, and adds the checkpoint if it is due.
+   */
+  private void addSnapshotIfDue(AuditLog change, Object entity, String auditor, List<AuditLog> auditLogs)
+      throws IllegalAccessException, JsonProcessingException {
+
+    if(snapshotTracker.recordChange(change.getEntityClassName(), change.getEntityId(), payloadSize(change))) {
+      AuditLog snapshot = complete(buildStateAuditLog(entity, change.getEntityId(), AuditedAction.SNAPSHOT, auditor));
+      snapshotTracker.recordCheckpoint(snapshot.getEntityClassName(), snapshot.getEntityId());
+      auditLogs.add(snapshot);
+    }
+  }
+
+  /**
+   * @return the delete log of the entity, or null if the entity was inserted by a coalesced
+   * change of the current transaction, which is then dropped so that neither gets audited
+   */
+  private AuditLog createDeleteAuditLog(Object entity, Object entityId) throws IllegalAccessException {
+    Class<?> entityClass = HibernateProxyHelper.getClassWithoutInitializingProxy(entity);
+    AuditLog auditLog = createAuditLog(entity, entityId, AuditedAction.DELETE);
+    snapshotTracker.forget(auditLog.getEntityClassName(), auditLog.getEntityId());
+    lastKnownStateCache.invalidate(entityClass, entityId);
+    return changeCoalescer.discard(entityClass, auditLog.getEntityId()) ? null : auditLog;
+  }
+
+  /**
+   * Writes the coalesced changes of a transaction, with one write per entity class so that
+   * each class is delivered according to its own policy. Called before the transaction commits,
+   * so synchronously delivered logs are written in it, see
+   * {@link gr.antopapak.persistent.audit.config.PersistentAuditProperties.Coalesce}.
+   */
+  private void writeCoalescedChanges(List<ChangeCoalescer.Change> changes) {
+    Map<Class<?>, List<ChangeCoalescer.Change>> changesByClass = new LinkedHashMap<>();
+    for(ChangeCoalescer.Change change : changes) {
+      changesByClass.computeIfAbsent(change.getEntityAfter().getClass(), c -> new ArrayList<>()).add(change);
+    }
+    try {
+      for(Map.Entry<Class<?>, List<ChangeCoalescer.Change>> entry : changesByClass.entrySet()) {
+        List<Object> entitiesBefore = new ArrayList<>(entry.getValue().size());
+        List<Object> entitiesAfter = new ArrayList<>(entry.getValue().size());
+        for(ChangeCoalescer.Change change : entry.getValue()) {
+          entitiesBefore.add(change.getEntityBefore());
+          entitiesAfter.add(change.getEntityAfter());
+        }
+        persistAll(buildNonDeletingAuditLogs(entitiesBefore, entitiesAfter), entry.getKey());
+      }
+    } catch (IllegalAccessException | JsonProcessingException e) {
+      throw new IllegalStateException("Cannot audit the changes of the transaction", e);
+    }
+  }
+
+  private AuditPolicy policyOf(Object entity) {
+    return isNull(entity) ? AuditPolicy.DEFAULT : reflectionCache.getPolicyForClass(entity.getClass());
+  }
+
+  private static Class<?> classOf(Object entity) {
+    return isNull(entity) ? null : entity.getClass();
+  }
+
+  private static Class<?> firstClassOf(Collection<?> entities) {
+    return entities.stream()
+        .filter(Objects::nonNull)
+        .findFirst()
+        .map(Object::getClass)
+        .orElse(null);
+  }
+
+  private boolean isAsync(AuditPolicy policy) {
+    switch(policy.getDelivery()) {
+      case SYNC:
+        return false;
+      case ASYNC:
+        return true;
+      default:
+        return asyncAuditLogWriter.isEnabled();
+    }
+  }
+
+  /**
+   * Serializes the changed fields of an audit log, without accessing the database.
+   */
+  private PendingAuditLog serialize(AuditLog auditLog, Object entity, FieldMap fieldMap, AuditPolicy policy)
+      throws JsonProcessingException {
+    long start = auditMetrics.start();
+    AffectedFieldsCodec.Serialized serialized = affectedFieldsCodec.serialize(fieldMap, policy);
+    auditFieldIndex.index(auditLog, fieldMap, policy);
+    auditMetrics.recordStage(AuditMetrics.Stage.SERIALIZE, entity.getClass(), start);
+    return new PendingAuditLog(auditLog, entity.getClass(), fieldMap.affectedCount(), serialized);
+  }
+
+  /**
+   * Writes the serialized fields of a pending audit log into it, on the calling thread, as it
+   * may access the database.
+   *
+   * @return the audit log, or null if the pending log is null
+   */
+  private AuditLog complete(PendingAuditLog pending) throws JsonProcessingException {
+    if(isNull(pending)) {
+      return null;
+    }
+    AuditLog auditLog = pending.auditLog;
+    if(nonNull(pending.serialized)) {
+      affectedFieldsCodec.complete(auditLog, pending.serialized);
+      auditMetrics.recordPayload(pending.entityClass, auditLog.getAction(), pending.changedFields, payloadSize(auditLog));
+    }
+    return auditLog;
   }
 
-  private void putFieldsAfter(FieldMap fieldMap, Object entityAfter) {
-    if(fieldMap == null || entityAfter == null) {
+  private static int payloadSize(AuditLog auditLog) {
+    if(nonNull(auditLog.getAffectedFieldsBinary())) {
+      return auditLog.getAffectedFieldsBinary().length;
+    }
+    return nonNull(auditLog.getAffectedFieldsBytes()) ? auditLog.getAffectedFieldsBytes().length : 0;
+  }
+
+  private PendingAuditLog buildUpdateAuditLog(Object entity, Object entityId, FieldMap fieldMap, AuditPolicy policy, String auditor)
+      throws JsonProcessingException, IllegalAccessException {
+    try {
+      if(fieldMap.affectedCount() == 0) {
+        return null;
+      }
+      return serialize(createAuditLog(entity, entityId, AuditedAction.UPDATE, auditor), entity, fieldMap, policy);
+    } catch (Exception e) {
+      e.printStackTrace();
+      throw e;
+    }
+  }
+
+  private void persist(AuditLog auditLog, Class<?> entityClass) {
+    persistAll(List.of(auditLog), entityClass);
+  }
+
+  /**
+   * Writes audit logs through the {@link AsyncAuditLogWriter} when they are delivered asynchronously,
+   * through the {@link JournalingAuditLogWriter} when the journal is enabled, or else directly
+   * to the {@link AuditLogSink} in the current transaction.
+   *
+   * @param entityClass the class of the entities the logs are about, whose policy they are delivered by
+   */
+  private void persistAll(List<AuditLog> auditLogs, Class<?> entityClass) {
+    if(auditLogs.isEmpty()) {
+      return;
+    }
+    if(isAsync(reflectionCache.getPolicyForClass(entityClass))) {
+      asyncAuditLogWriter.submit(auditLogs);
       return;
     }
+    long start = auditMetrics.start();
+    if(journalingAuditLogWriter.isEnabled()) {
+      journalingAuditLogWriter.submit(auditLogs);
+    }
+    else {
+      auditLogSink.write(auditLogs);
+    }
+    auditMetrics.recordStage(AuditMetrics.Stage.WRITE, entityClass, start);
+  }
 
-    reflectionCache.getLoggableFieldsForClass(entityAfter.getClass())
-        .forEach(f -> {
-          try {
-            fieldMap.putAfter(f.getName(), f.get(entityAfter));
-          } catch (IllegalAccessException e) {
-            e.printStackTrace();
-          }
-        });
+  /**
+   * Compares the loggable fields of two states of an entity, using the generated
+   * {@link EntityDiffer} of the class when there is one.
+   *
+   * @param entityBefore the state before the mutation, or null
+   * @param entityAfter the state after the mutation
+   * @return the changed fields
+   */
+  private FieldMap diff(Object entityBefore, Object entityAfter) {
+    Class<?> type = entityAfter.getClass();
+    FieldMap fieldMap = new FieldMap(reflectionCache.getSchemaForClass(type), associations);
+
+    if(nonNull(entityBefore) && entityBefore.getClass() != type) {
+      fieldMap.compare(entityBefore, reflectionCache.getSchemaForClass(entityBefore.getClass()), entityAfter);
+      return fieldMap;
+    }
+
+    EntityDiffer<Object> differ = reflectionCache.getDifferForClass(type);
+    if(nonNull(differ) && nonNull(entityBefore)) {
+      differ.diff(entityBefore, entityAfter, fieldMap);
+    }
+    else {
+      fieldMap.compare(entityBefore, entityAfter);
+    }
+    return fieldMap;
   }
 
   private AuditLog createAuditLog(Object entity, Object entityId, AuditedAction auditedAction) throws IllegalAccessException {
+    return createAuditLog(entity, entityId, auditedAction, currentAuditor());
+  }
+
+  private AuditLog createAuditLog(Object entity, Object entityId, AuditedAction auditedAction, String auditor) throws IllegalAccessException {
     return AuditLog
         .builder()
         .action(auditedAction)
         .entityId(String.valueOf(entityId))
         .entityNaturalId(naturalIdValueOrNull(entity))
         .entityClassName(entity.getClass().getSimpleName())
-        .auditor(auditorAwareBean.getCurrentAuditor().orElse("SYSTEM"))
+        .auditor(auditor)
         .dateTime(Instant.now())
         .build();
   }
@@ -208,16 +664,29 @@ public class AuditLogService {
         .action(auditedAction)
         .entityId(String.valueOf(entityId))
         .entityClassName(className)
-        .auditor(auditorAwareBean.getCurrentAuditor().orElse("SYSTEM"))
+        .auditor(currentAuditor())
         .dateTime(Instant.now())
         .build();
   }
 
+  /**
+   * @return the current auditor, which is usually bound to the calling thread
+   */
+  private String currentAuditor() {
+    return auditorAwareBean.getCurrentAuditor().orElse("SYSTEM");
+  }
+
   private String naturalIdValueOrNull(Object entity) throws IllegalAccessException {
     if(entity == null) {
       return null;
     }
-    Field naturalIdField = reflectionCache.getNaturalIdForClass(entity.getClass());
+    EntityDiffer<Object> differ = reflectionCache.getDifferForClass(entity.getClass());
+    if(nonNull(differ)) {
+      Object naturalId = differ.getNaturalId(entity);
+      return naturalId != null ? String.valueOf(naturalId) : null;
+    }
+
+    FieldAccessor naturalIdField = reflectionCache.getNaturalIdForClass(entity.getClass());
     String naturalId = null;
     if(naturalIdField != null) {
       naturalId = String.valueOf(naturalIdField.get(entity));
@@ -226,4 +695,29 @@ public class AuditLogService {
     return naturalId;
   }
 
+
+  /**
+   * An audit log whose changed fields are serialized, but not written into it yet.
+   */
+  private static final class PendingAuditLog {
+
+    private final AuditLog auditLog;
+    private final Class<?> entityClass;
+    private final int changedFields;
+    private final AffectedFieldsCodec.Serialized serialized;
+
+    /**
+     * @param auditLog an audit log without changed fields, complete as it is
+     */
+    private PendingAuditLog(AuditLog auditLog) {
+      this(auditLog, null, 0, null);
+    }
+
+    private PendingAuditLog(AuditLog auditLog, Class<?> entityClass, int changedFields, AffectedFieldsCodec.Serialized serialized) {
+      this.auditLog = auditLog;
+      this.entityClass = entityClass;
+      this.changedFields = changedFields;
+      this.serialized = serialized;
+    }
+  }
 }
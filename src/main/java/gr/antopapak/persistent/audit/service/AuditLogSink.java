@@ -0,0 +1,21 @@
+package gr.antopapak.persistent.audit.service;
+
+import gr.antopapak.persistent.audit.domain.AuditLog;
+import java.util.List;
+
+/**
+ * Writes audit logs to their storage.<br>
+ *
+ * Implementations write within the transaction of the caller, if there is one.
+ * Callers that need the logs written independently of the business transaction
+ * (eg the background writers) open a transaction of their own around the call.
+ */
+public interface AuditLogSink {
+
+  /**
+   * Writes the given audit logs, in order.
+   *
+   * @param auditLogs the logs to write
+   */
+  void write(List<AuditLog> auditLogs);
+}
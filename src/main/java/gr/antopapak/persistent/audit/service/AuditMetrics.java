@@ -0,0 +1,69 @@
+package gr.antopapak.persistent.audit.service;
+
+import gr.antopapak.persistent.audit.config.PersistentAuditProperties;
+import gr.antopapak.persistent.audit.model.AuditedAction;
+
+/**
+ * Records where the time of auditing goes.<br>
+ *
+ * Stages are timed by taking {@link #start()} before the stage and passing it to
+ * {@link #recordStage(Stage, Class, long)} after it. With metrics disabled every method is
+ * an empty call, and {@link #start()} does not even read the clock.
+ *
+ * @see PersistentAuditProperties.Metrics
+ */
+public interface AuditMetrics {
+
+  enum Stage {
+    /**
+     * Reading the id of the saved entity.
+     */
+    ID,
+    /**
+     * Resolving the state of the entity before the save, from the persistence context or the database.
+     */
+    READ_BEFORE,
+    /**
+     * Comparing the states of the entity into a {@link FieldMap}.
+     */
+    DIFF,
+    /**
+     * Encoding the changed fields into the audit log.
+     */
+    SERIALIZE,
+    /**
+     * Writing the audit logs, or handing them over to the journal, on the calling thread.
+     */
+    WRITE
+  }
+
+  /**
+   * @return the start time of a stage, to be passed to {@link #recordStage(Stage, Class, long)}
+   */
+  long start();
+
+  /**
+   * @param stage the stage that ended
+   * @param entityClass the class of the audited entity
+   * @param start the value returned by {@link #start()} before the stage
+   */
+  void recordStage(Stage stage, Class<?> entityClass, long start);
+
+  /**
+   * @param entityClass the class of the audited entity
+   * @param action the action of the audit log
+   * @param changedFields the number of fields written in the audit log
+   * @param payloadBytes the size of the encoded fields
+   */
+  void recordPayload(Class<?> entityClass, AuditedAction action, int changedFields, int payloadBytes);
+
+  /**
+   * Counts a lookup in a cache of the {@link ReflectionCache}.
+   */
+  void recordCacheGet(String cache);
+
+  /**
+   * Counts a lookup in a cache of the {@link ReflectionCache} that had to compute its value.
+   */
+  void recordCacheMiss(String cache);
+}
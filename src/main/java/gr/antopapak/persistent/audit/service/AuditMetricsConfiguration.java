@@ -0,0 +1,50 @@
+package gr.antopapak.persistent.audit.service;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnClass;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Declares the {@link AuditMetrics}.<br>
+ *
+ * With {@code persistent.audit.metrics.enabled} set, metrics are recorded by
+ * {@link MicrometerAuditMetrics} in the {@link MeterRegistry} of the application. In every other
+ * case, ie metrics disabled, Micrometer not on the classpath or no registry in the context,
+ * nothing is recorded by {@link NoopAuditMetrics}, so that metrics never fail startup.
+ * An application may also declare its own {@link AuditMetrics} bean, which replaces both.
+ */
+@Slf4j
+@Configuration(proxyBeanMethods = false)
+class AuditMetricsConfiguration {
+
+  @Bean
+  @ConditionalOnMissingBean(AuditMetrics.class)
+  AuditMetrics noopAuditMetrics() {
+    return new NoopAuditMetrics();
+  }
+
+  /**
+   * Only loaded with Micrometer on the classpath, as its bean method refers to the {@link MeterRegistry}.
+   */
+  @Configuration(proxyBeanMethods = false)
+  @ConditionalOnClass(name = "io.micrometer.core.instrument.MeterRegistry")
+  @ConditionalOnProperty(prefix = "persistent.audit.metrics", name = "enabled", havingValue = "true")
+  static class Micrometer {
+
+    @Bean
+    @ConditionalOnMissingBean(AuditMetrics.class)
+    AuditMetrics micrometerAuditMetrics(ObjectProvider<MeterRegistry> registry) {
+      MeterRegistry meterRegistry = registry.getIfAvailable();
+      if(meterRegistry == null) {
+        log.warn("Audit metrics are enabled, but there is no MeterRegistry to record them in");
+        return new NoopAuditMetrics();
+      }
+      return new MicrometerAuditMetrics(meterRegistry);
+    }
+  }
+}
@@ -0,0 +1,147 @@
+package gr.antopapak.persistent.audit.service;
+
+import gr.antopapak.persistent.audit.config.PersistentAuditProperties;
+import gr.antopapak.persistent.audit.config.PersistentAuditProperties.ExpiredPartitionPolicy;
+import java.time.DayOfWeek;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.TemporalAdjusters;
+import java.util.List;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+/**
+ * Maintains the partitions of a PostgreSQL {@code audit_logs} table partitioned by range of
+ * {@code datetime}.<br>
+ *
+ * Partitions are named {@code audit_logs_pYYYYMMDD} after the first day they hold, and cover one
+ * {@link PersistentAuditProperties.PartitionInterval} each. The database routes every insert
+ * to its partition, so partitions are created ahead of time, and expired partitions are removed
+ * as a whole instead of deleting their rows. Partitions with other names are left alone.
+ */
+@Slf4j
+@Component
+class AuditPartitionManager {
+
+  static final String TABLE = "audit_logs";
+
+  private static final String PARTITION_PREFIX = TABLE + "_p";
+  private static final DateTimeFormatter SUFFIX = DateTimeFormatter.BASIC_ISO_DATE;
+
+  private final PersistentAuditProperties.Partitioning properties;
+  private final JdbcTemplate jdbcTemplate;
+  private volatile Boolean partitioned;
+
+  AuditPartitionManager(PersistentAuditProperties properties, JdbcTemplate jdbcTemplate) {
+    this.properties = properties.getRetention().getPartitioning();
+    this.jdbcTemplate = jdbcTemplate;
+  }
+
+  /**
+   * @return true if partitioning is enabled, the database is PostgreSQL and {@code audit_logs} is partitioned
+   */
+  boolean isPartitioned() {
+    if(!properties.isEnabled()) {
+      return false;
+    }
+    if(partitioned == null) {
+      String database = jdbcTemplate.execute((ConnectionCallback<String>) connection ->
+          connection.getMetaData().getDatabaseProductName());
+      partitioned = "PostgreSQL".equalsIgnoreCase(database) && jdbcTemplate.queryForObject(
+          "select count(*) from pg_partitioned_table pt join pg_class c on c.oid = pt.partrelid where c.relname = ?",
+          Integer.class, TABLE) > 0;
+      if(!partitioned) {
+        log.warn("Partitioning of {} is enabled but the table is not a PostgreSQL partitioned table, "
+            + "falling back to chunked deletes", TABLE);
+      }
+    }
+    return partitioned;
+  }
+
+  /**
+   * Creates the partition of the current interval and the next {@code precreate} ones, if missing.
+   *
+   * @param now the current time
+   */
+  void createUpcomingPartitions(Instant now) {
+    LocalDate start = startOfInterval(LocalDate.ofInstant(now, properties.getZone()));
+    for(int i = 0; i <= properties.getPrecreate(); i++) {
+      LocalDate end = nextInterval(start);
+      try {
+        jdbcTemplate.execute(String.format(
+            "CREATE TABLE IF NOT EXISTS %s PARTITION OF %s FOR VALUES FROM ('%s') TO ('%s')",
+            PARTITION_PREFIX + SUFFIX.format(start), TABLE, start, end));
+      } catch (DataAccessException e) {
+        log.warn("Could not create the partition of {} starting at {}", TABLE, start, e);
+      }
+      start = end;
+    }
+  }
+
+  /**
+   * Drops or detaches the partitions that only hold audit logs written before the cutoff.
+   *
+   * @param cutoff the time before which all audit logs are expired
+   * @return the number of partitions removed
+   */
+  int removePartitionsBefore(Instant cutoff) {
+    List<String> partitions = jdbcTemplate.queryForList(
+        "select c.relname from pg_inherits i join pg_class c on c.oid = i.inhrelid "
+            + "join pg_class p on p.oid = i.inhparent where p.relname = ?",
+        String.class, TABLE);
+
+    int removed = 0;
+    for(String partition : partitions) {
+      LocalDate start = partitionStart(partition);
+      if(start == null || nextInterval(start).atStartOfDay(properties.getZone()).toInstant().isAfter(cutoff)) {
+        continue;
+      }
+
+      jdbcTemplate.execute(String.format("ALTER TABLE %s DETACH PARTITION %s", TABLE, partition));
+      if(properties.getExpired() == ExpiredPartitionPolicy.DROP) {
+        jdbcTemplate.execute(String.format("DROP TABLE %s", partition));
+      }
+      log.info("Removed expired audit partition {} ({})", partition, properties.getExpired());
+      removed++;
+    }
+    return removed;
+  }
+
+  private LocalDate partitionStart(String partition) {
+    if(!partition.startsWith(PARTITION_PREFIX)) {
+      return null;
+    }
+    try {
+      return LocalDate.parse(partition.substring(PARTITION_PREFIX.length()), SUFFIX);
+    } catch (DateTimeParseException e) {
+      return null;
+    }
+  }
+
+  private LocalDate startOfInterval(LocalDate date) {
+    switch(properties.getInterval()) {
+      case DAY:
+        return date;
+      case WEEK:
+        return date.with(TemporalAdjusters.previousOrSame(DayOfWeek.MONDAY));
+      default:
+        return date.withDayOfMonth(1);
+    }
+  }
+
+  private LocalDate nextInterval(LocalDate start) {
+    switch(properties.getInterval()) {
+      case DAY:
+        return start.plusDays(1);
+      case WEEK:
+        return start.plusWeeks(1);
+      default:
+        return start.plusMonths(1);
+    }
+  }
+}
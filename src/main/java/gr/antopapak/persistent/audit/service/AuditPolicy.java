@@ -0,0 +1,71 @@
+package gr.antopapak.persistent.audit.service;
+
+import gr.antopapak.persistent.audit.annotation.PersistentLogAudit;
+import gr.antopapak.persistent.audit.annotation.PersistentLogAudit.Coalescing;
+import gr.antopapak.persistent.audit.annotation.PersistentLogAudit.Delivery;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The audit policy of an entity class, as set by the attributes of its {@link PersistentLogAudit}.
+ *
+ * @see ReflectionCache#getPolicyForClass(Class)
+ */
+final class AuditPolicy {
+
+  static final AuditPolicy DEFAULT = new AuditPolicy(Delivery.DEFAULT, 1.0, Coalescing.DEFAULT, -1, 2);
+
+  private final Delivery delivery;
+  private final double sampleRate;
+  private final Coalescing coalescing;
+  private final int maxPayloadBytes;
+  private final int maxDepth;
+
+  private AuditPolicy(Delivery delivery, double sampleRate, Coalescing coalescing, int maxPayloadBytes, int maxDepth) {
+    this.delivery = delivery;
+    this.sampleRate = sampleRate;
+    this.coalescing = coalescing;
+    this.maxPayloadBytes = maxPayloadBytes;
+    this.maxDepth = maxDepth;
+  }
+
+  static AuditPolicy of(PersistentLogAudit annotation) {
+    if(annotation == null) {
+      return DEFAULT;
+    }
+    if(annotation.sampleRate() < 0 || annotation.sampleRate() > 1) {
+      throw new IllegalArgumentException("The sample rate must be between 0 and 1: " + annotation.sampleRate());
+    }
+    return new AuditPolicy(annotation.delivery(), annotation.sampleRate(), annotation.coalesce(),
+        annotation.maxPayloadBytes(), Math.max(1, annotation.maxDepth()));
+  }
+
+  Delivery getDelivery() {
+    return delivery;
+  }
+
+  Coalescing getCoalescing() {
+    return coalescing;
+  }
+
+  int getMaxPayloadBytes() {
+    return maxPayloadBytes;
+  }
+
+  int getMaxDepth() {
+    return maxDepth;
+  }
+
+  /**
+   * @return true if an update should be audited, according to the sample rate
+   */
+  boolean sampleUpdate() {
+    return sampleRate >= 1 || ThreadLocalRandom.current().nextDouble() < sampleRate;
+  }
+
+  /**
+   * @return true if the payload of an audit log exceeds the maximum size
+   */
+  boolean exceedsMaxPayload(int payloadBytes) {
+    return maxPayloadBytes >= 0 && payloadBytes > maxPayloadBytes;
+  }
+}
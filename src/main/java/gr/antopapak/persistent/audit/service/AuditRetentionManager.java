@@ -0,0 +1,229 @@
+package gr.antopapak.persistent.audit.service;
+
+import gr.antopapak.persistent.audit.config.PersistentAuditProperties;
+import gr.antopapak.persistent.audit.model.AuditedAction;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.sql.DataSource;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+/**
+ * Expires old audit logs according to the retention of each action.<br>
+ *
+ * Runs on a single background thread every {@code check-interval}. When the table is
+ * partitioned (see {@link AuditPartitionManager}), upcoming partitions are created and
+ * partitions older than the longest retention are removed as a whole. Whatever is left
+ * to expire is deleted in chunks of {@code chunk-size} rows, each in its own statement and
+ * followed by a pause, so that no long running DELETE locks or bloats the table. The indexed
+ * field changes of the expired logs (see {@link AuditFieldIndex}) go along with them, and the
+ * stored values no log can reference anymore (see {@link AuditValueStore}) are removed after them.
+ * <p>
+ * With snapshots enabled, states are reconstructed from the latest checkpoint of an entity and
+ * the changes after it (see {@link EntityStateService}), so a log only expires once a newer
+ * checkpoint of the same entity exists: the latest checkpoint of an entity and the changes
+ * after it are kept whatever their age, and partitions are not removed as a whole, since they
+ * may hold the latest checkpoint of entities that have not changed since.
+ *
+ * @see PersistentAuditProperties.Retention
+ */
+@Slf4j
+@Component
+public class AuditRetentionManager {
+
+  private final PersistentAuditProperties.Retention properties;
+  private final boolean keepCheckpoints;
+  private final AuditPartitionManager auditPartitionManager;
+  private final AuditFieldIndex auditFieldIndex;
+  private final AuditValueStore auditValueStore;
+  private final Duration valuesTouchInterval;
+  private final JdbcTemplate jdbcTemplate;
+  private final JdbcTemplate chunkTemplate;
+
+  private volatile boolean running;
+  private ScheduledExecutorService scheduler;
+
+  AuditRetentionManager(PersistentAuditProperties properties, AuditPartitionManager auditPartitionManager,
+      AuditFieldIndex auditFieldIndex, AuditValueStore auditValueStore, JdbcTemplate jdbcTemplate, DataSource dataSource) {
+    this.properties = properties.getRetention();
+    this.keepCheckpoints = properties.getSnapshot().isEnabled();
+    this.auditPartitionManager = auditPartitionManager;
+    this.auditFieldIndex = auditFieldIndex;
+    this.auditValueStore = auditValueStore;
+    this.valuesTouchInterval = properties.getValues().getTouchInterval();
+    this.jdbcTemplate = jdbcTemplate;
+    this.chunkTemplate = new JdbcTemplate(dataSource);
+    this.chunkTemplate.setMaxRows(Math.max(1, this.properties.getChunkSize()));
+  }
+
+  @PostConstruct
+  void start() {
+    if(!properties.isEnabled()) {
+      return;
+    }
+    running = true;
+    scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "persistent-audit-retention");
+      thread.setDaemon(true);
+      return thread;
+    });
+    scheduler.scheduleWithFixedDelay(this::run, 0, properties.getCheckInterval().toMillis(), TimeUnit.MILLISECONDS);
+  }
+
+  @PreDestroy
+  void stop() {
+    if(scheduler == null) {
+      return;
+    }
+    running = false;
+    scheduler.shutdownNow();
+  }
+
+  /**
+   * Runs the retention job once on the calling thread.
+   */
+  public void enforce() {
+    Instant now = Instant.now();
+    Map<AuditedAction, Duration> maxAge = properties.getMaxAge();
+
+    if(auditPartitionManager.isPartitioned()) {
+      auditPartitionManager.createUpcomingPartitions(now);
+      //a partition can only go once every action in it has expired
+      if(!keepCheckpoints && maxAge.keySet().containsAll(List.of(AuditedAction.values()))) {
+        int removed = auditPartitionManager.removePartitionsBefore(now.minus(Collections.max(maxAge.values())));
+        if(removed > 0 && auditFieldIndex.isEnabled()) {
+          //the logs of removed partitions are older than any left, and so are their ids
+          Long oldestId = jdbcTemplate.queryForObject("select min(id) from " + AuditPartitionManager.TABLE, Long.class);
+          if(oldestId == null) {
+            jdbcTemplate.update("delete from " + AuditFieldIndex.TABLE);
+          }
+          else {
+            jdbcTemplate.update("delete from " + AuditFieldIndex.TABLE + " where audit_log_id < ?", oldestId);
+          }
+        }
+      }
+    }
+
+    for(Map.Entry<AuditedAction, Duration> retention : maxAge.entrySet()) {
+      long deleted = deleteInChunks(expiredQuery(), Long.class, this::deleteLogs,
+          retention.getKey().name(), Timestamp.from(now.minus(retention.getValue())));
+      if(deleted > 0) {
+        log.info("Deleted {} expired {} audit logs", deleted, retention.getKey());
+      }
+    }
+
+    if(auditValueStore.isEnabled()) {
+      long deleted = deleteInChunks(
+          "select hash from " + AuditValueStore.TABLE + " where last_referenced < ?", String.class, this::deleteValues,
+          Timestamp.from(unreferencedValuesCutoff(now)));
+      if(deleted > 0) {
+        log.info("Deleted {} unreferenced audit values", deleted);
+      }
+    }
+  }
+
+  private void run() {
+    try {
+      enforce();
+    } catch (RuntimeException e) {
+      log.error("Audit log retention failed", e);
+    }
+  }
+
+  /**
+   * Deletes the rows selected by a query, a chunk at a time.
+   *
+   * @param query selects the keys of the rows to delete
+   * @param keyType the type of the keys
+   * @param deleteChunk deletes the rows of a chunk of keys, given their placeholders and returning the number deleted
+   * @param args the arguments of the query
+   * @return the number of rows deleted
+   */
+  private <K> long deleteInChunks(String query, Class<K> keyType, BiFunction<String, List<K>, Integer> deleteChunk,
+      Object... args) {
+
+    int chunkSize = Math.max(1, properties.getChunkSize());
+    long deleted = 0;
+
+    while(running || scheduler == null) { //stop early on shutdown, unless called directly
+      List<K> keys = chunkTemplate.queryForList(query, keyType, args);
+      if(keys.isEmpty()) {
+        break;
+      }
+
+      deleted += deleteChunk.apply(String.join(",", Collections.nCopies(keys.size(), "?")), keys);
+
+      if(keys.size() < chunkSize || !pause()) {
+        break;
+      }
+    }
+    return deleted;
+  }
+
+  private int deleteLogs(String placeholders, List<Long> ids) {
+    if(auditFieldIndex.isEnabled()) {
+      jdbcTemplate.update(
+          "delete from " + AuditFieldIndex.TABLE + " where audit_log_id in (" + placeholders + ")", ids.toArray());
+    }
+    return jdbcTemplate.update(
+        "delete from " + AuditPartitionManager.TABLE + " where id in (" + placeholders + ")", ids.toArray());
+  }
+
+  private int deleteValues(String placeholders, List<String> hashes) {
+    return jdbcTemplate.update(
+        "delete from " + AuditValueStore.TABLE + " where hash in (" + placeholders + ")", hashes.toArray());
+  }
+
+  /**
+   * A value is referenced again at most {@code touch-interval} after its recorded last reference,
+   * so values last referenced longer than that before the oldest log, or before now if there is
+   * no log left, are referenced by no log.
+   */
+  private Instant unreferencedValuesCutoff(Instant now) {
+    Timestamp oldest = jdbcTemplate.queryForObject("select min(datetime) from " + AuditPartitionManager.TABLE, Timestamp.class);
+    Instant from = oldest != null && oldest.toInstant().isBefore(now) ? oldest.toInstant() : now;
+    return from.minus(valuesTouchInterval);
+  }
+
+  /**
+   * Selects the expired logs of an action. With snapshots enabled, only the logs followed by a
+   * checkpoint of the same entity are selected, matched by class name or by dictionary id in
+   * separate subqueries so that each one is a range scan of its index.
+   */
+  private String expiredQuery() {
+    String query = "select l.id from " + AuditPartitionManager.TABLE + " l where l.action = ? and l.datetime < ?";
+    if(!keepCheckpoints) {
+      return query;
+    }
+    return query
+        + " and (" + newerCheckpointExists("entity_class_name") + " or " + newerCheckpointExists("entity_class_id") + ")";
+  }
+
+  private String newerCheckpointExists(String entityClassColumn) {
+    return "exists (select 1 from " + AuditPartitionManager.TABLE + " c"
+        + " where c." + entityClassColumn + " = l." + entityClassColumn + " and c.entity_id = l.entity_id"
+        + " and c.action in ('" + AuditedAction.INSERT + "', '" + AuditedAction.SNAPSHOT + "', '" + AuditedAction.DELETE + "')"
+        + " and (c.datetime > l.datetime or (c.datetime = l.datetime and c.id > l.id)))";
+  }
+
+  private boolean pause() {
+    try {
+      Thread.sleep(properties.getChunkPause().toMillis());
+      return true;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+}
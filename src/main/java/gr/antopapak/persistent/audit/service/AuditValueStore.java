@@ -0,0 +1,226 @@
+package gr.antopapak.persistent.audit.service;
+
+import gr.antopapak.persistent.audit.config.PersistentAuditProperties;
+import gr.antopapak.persistent.audit.domain.AuditValue;
+import gr.antopapak.persistent.audit.repository.AuditValueRepository;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Stores large field values once, in the {@code audit_values} table, keyed by the SHA-256 hash
+ * of their content.<br>
+ *
+ * A stored value is written in the affected fields as a {@code {$ref, type, size}} reference,
+ * where type is {@code string} or {@code bytes}. Values are inserted in a transaction of their
+ * own the first time they are seen, once the payload referencing them is final, so an audit log
+ * that is rolled back may leave an unreferenced value behind, but a truncated payload does not.
+ * References are resolved back to their value only when the field holding them is decoded, and
+ * resolved values are kept in a cache bounded by their total size.
+ * <p>
+ * Every value records when it was last referenced, updated at most once per
+ * {@code touch-interval}. A value last referenced more than that before the oldest audit log
+ * cannot be referenced by any log left, and is removed by the {@link AuditRetentionManager}.
+ *
+ * @see PersistentAuditProperties.Values
+ */
+@Component
+public class AuditValueStore {
+
+  static final String TABLE = "audit_values";
+  static final String REF = "$ref";
+  static final String TYPE = "type";
+  static final String SIZE = "size";
+  static final String STRING = "string";
+  static final String BYTES = "bytes";
+
+  private final PersistentAuditProperties.Values properties;
+  private final AuditValueRepository auditValueRepository;
+  private final TransactionTemplate transactionTemplate;
+  private final Map<String, CachedValue> cache = new LinkedHashMap<>(16, 0.75f, true);
+  private long cachedBytes;
+
+  AuditValueStore(PersistentAuditProperties properties, AuditValueRepository auditValueRepository,
+      PlatformTransactionManager transactionManager) {
+    this.properties = properties.getValues();
+    this.auditValueRepository = auditValueRepository;
+    this.transactionTemplate = new TransactionTemplate(transactionManager);
+    this.transactionTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+  }
+
+  public boolean isEnabled() {
+    return properties.isEnabled();
+  }
+
+  /**
+   * Returns what should be written in place of a field value: a reference to it if it is large
+   * enough to be stored by reference, or else the value itself.<br>
+   * Does not store the value: the values that need storing are added to {@code pending}, to be
+   * stored by {@link #storeAll(List)} once the payload holding their references is kept.
+   *
+   * @param value a field value
+   * @param pending the values still to be stored, added to
+   * @return a reference to the value, or the value itself if it is not stored by reference
+   */
+  Object externalize(Object value, List<PendingValue> pending) {
+    if(!isEnabled()) {
+      return value;
+    }
+
+    byte[] content;
+    String type;
+    if(value instanceof String && ((String) value).length() * 3 >= properties.getThreshold()) {
+      content = ((String) value).getBytes(StandardCharsets.UTF_8);
+      type = STRING;
+    }
+    else if(value instanceof byte[]) {
+      content = (byte[]) value;
+      type = BYTES;
+    }
+    else {
+      return value;
+    }
+    if(content.length < properties.getThreshold()) {
+      return value;
+    }
+
+    String hash = hash(content);
+    CachedValue cached = cached(hash);
+    if(cached == null || cached.referenced == null
+        || cached.referenced.plus(properties.getTouchInterval()).isBefore(Instant.now())) {
+      pending.add(new PendingValue(hash, content));
+    }
+
+    Map<String, Object> reference = new LinkedHashMap<>(4);
+    reference.put(REF, hash);
+    reference.put(TYPE, type);
+    reference.put(SIZE, content.length);
+    return reference;
+  }
+
+  /**
+   * Stores the values returned as references by {@link #externalize(Object, List)}.
+   *
+   * @param pending the values to store
+   */
+  void storeAll(List<PendingValue> pending) {
+    Instant now = Instant.now();
+    for(PendingValue value : pending) {
+      store(value.hash, value.content, now);
+    }
+  }
+
+  /**
+   * Returns the value a decoded field value refers to, fetching it if it is not cached.
+   *
+   * @param value a decoded field value
+   * @return the referenced value if the value is a reference, or else the value itself
+   * @throws NoSuchElementException if the referenced value is not in the database
+   */
+  public Object resolve(Object value) {
+    if(!(value instanceof Map) || !(((Map<?, ?>) value).get(REF) instanceof String)) {
+      return value;
+    }
+    Map<?, ?> reference = (Map<?, ?>) value;
+    String hash = (String) reference.get(REF);
+
+    CachedValue cached = cached(hash);
+    byte[] content;
+    if(cached != null) {
+      content = cached.content;
+    }
+    else {
+      content = transactionTemplate.execute(status -> auditValueRepository.findById(hash))
+          .map(AuditValue::getContent)
+          .orElseThrow(() -> new NoSuchElementException("No audit value with hash " + hash));
+      cache(hash, content, null);
+    }
+    return STRING.equals(reference.get(TYPE)) ? new String(content, StandardCharsets.UTF_8) : content;
+  }
+
+  /**
+   * Inserts a value, or updates its last reference time if it is already stored.
+   */
+  private void store(String hash, byte[] content, Instant referenced) {
+    try {
+      transactionTemplate.executeWithoutResult(status -> {
+        if(auditValueRepository.touch(hash, referenced) == 0) {
+          auditValueRepository.saveAndFlush(new AuditValue(hash, content, referenced));
+        }
+      });
+    } catch (DataIntegrityViolationException e) {
+      //inserted concurrently with the same content
+    }
+    cache(hash, content, referenced);
+  }
+
+  private synchronized CachedValue cached(String hash) {
+    return cache.get(hash);
+  }
+
+  private synchronized void cache(String hash, byte[] content, Instant referenced) {
+    if(content.length > properties.getCacheSize()) {
+      return;
+    }
+    CachedValue previous = cache.put(hash, new CachedValue(content, referenced));
+    cachedBytes += content.length - (previous != null ? previous.content.length : 0);
+    Iterator<CachedValue> eldest = cache.values().iterator();
+    while(cachedBytes > properties.getCacheSize() && eldest.hasNext()) {
+      cachedBytes -= eldest.next().content.length;
+      eldest.remove();
+    }
+  }
+
+  private static String hash(byte[] content) {
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-256").digest(content);
+      StringBuilder hex = new StringBuilder(digest.length * 2);
+      for(byte b : digest) {
+        hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+      }
+      return hex.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * A value referenced by a payload, not stored yet.
+   */
+  static final class PendingValue {
+
+    private final String hash;
+    private final byte[] content;
+
+    private PendingValue(String hash, byte[] content) {
+      this.hash = hash;
+      this.content = content;
+    }
+  }
+
+  private static final class CachedValue {
+
+    private final byte[] content;
+
+    /**
+     * When this store last recorded a reference to the value, or null if it was only read.
+     */
+    private final Instant referenced;
+
+    private CachedValue(byte[] content, Instant referenced) {
+      this.content = content;
+      this.referenced = referenced;
+    }
+  }
+}
@@ -0,0 +1,149 @@
+package gr.antopapak.persistent.audit.service;
+
+import gr.antopapak.persistent.audit.annotation.PersistentLogAudit.Coalescing;
+import gr.antopapak.persistent.audit.config.PersistentAuditProperties;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import lombok.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Collects the saves of entities within the current transaction, so that they can be audited
+ * as one net change per entity when the transaction commits.<br>
+ *
+ * For each entity, keyed by class and id, the state before its first save in the
+ * transaction is kept, along with the latest saved instance. Deleting an entity discards its
+ * pending change, since the delete is audited on its own, unless the entity was inserted in the
+ * same transaction: then neither the insert nor the delete is audited.
+ *
+ * @see PersistentAuditProperties.Coalesce
+ */
+@Component
+class ChangeCoalescer {
+
+  private final PersistentAuditProperties.Coalesce properties;
+
+  ChangeCoalescer(PersistentAuditProperties properties) {
+    this.properties = properties.getCoalesce();
+  }
+
+  /**
+   * @param coalescing the coalescing setting of the entity
+   * @return true if coalescing is enabled for the entity and there is an active transaction to coalesce in
+   */
+  boolean isActive(Coalescing coalescing) {
+    boolean enabled = coalescing == Coalescing.DEFAULT ? properties.isEnabled() : coalescing == Coalescing.ENABLED;
+    return enabled
+        && TransactionSynchronizationManager.isSynchronizationActive()
+        && TransactionSynchronizationManager.isActualTransactionActive();
+  }
+
+  /**
+   * @return true if the entity was already saved in the current transaction
+   */
+  boolean isPending(Class<?> entityClass, String entityId) {
+    Map<Key, Change> changes = changes();
+    return changes != null && changes.containsKey(new Key(entityClass, entityId));
+  }
+
+  /**
+   * Records a save of an entity. The first save of the entity in the transaction sets its
+   * before-state, later ones only replace its latest instance.
+   *
+   * @param entityBefore the state before the save, ignored unless this is the first save
+   * @param entityAfter the saved instance
+   * @param onCommit called right before the transaction commits, with the pending changes
+   */
+  void add(Class<?> entityClass, String entityId, Object entityBefore, Object entityAfter, Consumer<List<Change>> onCommit) {
+    Map<Key, Change> changes = changes();
+    if(changes == null) {
+      changes = bind(onCommit);
+    }
+    changes.computeIfAbsent(new Key(entityClass, entityId), k -> new Change(entityBefore)).entityAfter = entityAfter;
+  }
+
+  /**
+   * Drops the pending change of a deleted entity.
+   *
+   * @return true if the pending change was the insert of the entity, which then leaves nothing to audit
+   */
+  boolean discard(Class<?> entityClass, String entityId) {
+    Map<Key, Change> changes = changes();
+    if(changes == null) {
+      return false;
+    }
+    Change discarded = changes.remove(new Key(entityClass, entityId));
+    return discarded != null && discarded.entityBefore == null;
+  }
+
+  @SuppressWarnings("unchecked")
+  private Map<Key, Change> changes() {
+    return (Map<Key, Change>) TransactionSynchronizationManager.getResource(this);
+  }
+
+  private Map<Key, Change> bind(Consumer<List<Change>> onCommit) {
+    Map<Key, Change> changes = new LinkedHashMap<>();
+    TransactionSynchronizationManager.bindResource(this, changes);
+    TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+      @Override
+      public void beforeCommit(boolean readOnly) {
+        List<Change> pending = new ArrayList<>(changes.values());
+        changes.clear();
+        if(!pending.isEmpty()) {
+          onCommit.accept(pending);
+        }
+      }
+
+      //a suspended transaction keeps its changes out of the new one
+
+      @Override
+      public void suspend() {
+        TransactionSynchronizationManager.unbindResourceIfPossible(ChangeCoalescer.this);
+      }
+
+      @Override
+      public void resume() {
+        TransactionSynchronizationManager.bindResource(ChangeCoalescer.this, changes);
+      }
+
+      @Override
+      public void afterCompletion(int status) {
+        TransactionSynchronizationManager.unbindResourceIfPossible(ChangeCoalescer.this);
+      }
+    });
+    return changes;
+  }
+
+  @Value
+  private static class Key {
+
+    Class<?> entityClass;
+    String entityId;
+  }
+
+  /**
+   * The net change of an entity within a transaction.
+   */
+  static final class Change {
+
+    private final Object entityBefore;
+    private Object entityAfter;
+
+    private Change(Object entityBefore) {
+      this.entityBefore = entityBefore;
+    }
+
+    Object getEntityBefore() {
+      return entityBefore;
+    }
+
+    Object getEntityAfter() {
+      return entityAfter;
+    }
+  }
+}
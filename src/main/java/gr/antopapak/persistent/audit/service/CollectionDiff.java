@@ -0,0 +1,292 @@
+package gr.antopapak.persistent.audit.service;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * The element-level changes between two values of a collection, array or map field.<br>
+ *
+ * Elements are matched by hashing, so a diff takes linear time. Associated entities are
+ * matched by id through {@link Associations}, and never loaded.
+ * <ul>
+ *   <li>Lists and arrays: the removed elements with their index in the before value, the added
+ *   elements with their index in the after value, and the kept elements whose order changed,
+ *   as a move from their rank among the kept elements before to their rank after.</li>
+ *   <li>Other collections: the removed and the added elements, counting duplicates.</li>
+ *   <li>Maps: the removed keys, and the entries whose key is new or whose value changed.
+ *   Keys are written as strings.</li>
+ * </ul>
+ * {@link #apply(Object, Map)} replays a written diff onto the decoded previous value.
+ */
+final class CollectionDiff {
+
+  static final String LIST = "list";
+  static final String SET = "set";
+  static final String MAP = "map";
+
+  private final String type;
+  private final int afterSize;
+  private final List<Object[]> removed = new ArrayList<>();
+  private final List<Object[]> added = new ArrayList<>();
+  private final List<int[]> moved = new ArrayList<>();
+
+  private CollectionDiff(String type, int afterSize) {
+    this.type = type;
+    this.afterSize = afterSize;
+  }
+
+  /**
+   * Diffs two values of a field.
+   *
+   * @return the diff, or null if the values are not both lists or arrays, collections or maps,
+   * or one of them is a collection that was not loaded
+   */
+  static CollectionDiff of(Object before, Object after, Associations associations) {
+    if(associations.isUninitializedCollection(before) || associations.isUninitializedCollection(after)) {
+      return null;
+    }
+    if(before instanceof Map && after instanceof Map) {
+      return ofMaps((Map<?, ?>) before, (Map<?, ?>) after, associations);
+    }
+    if(isOrdered(before) && isOrdered(after)) {
+      return ofLists(asList(before), asList(after), associations);
+    }
+    if(before instanceof Collection && after instanceof Collection) {
+      return ofCollections((Collection<?>) before, (Collection<?>) after, associations);
+    }
+    return null;
+  }
+
+  private static CollectionDiff ofLists(List<?> before, List<?> after, Associations associations) {
+    CollectionDiff diff = new CollectionDiff(LIST, after.size());
+
+    Map<Object, Deque<Integer>> positions = new HashMap<>();
+    for(int i = 0; i < before.size(); i++) {
+      positions.computeIfAbsent(keyOf(before.get(i), associations), k -> new ArrayDeque<>()).add(i);
+    }
+
+    boolean[] kept = new boolean[before.size()];
+    int[] matches = new int[after.size()];
+    for(int j = 0; j < after.size(); j++) {
+      Deque<Integer> candidates = positions.get(keyOf(after.get(j), associations));
+      if(candidates == null || candidates.isEmpty()) {
+        matches[j] = -1;
+        diff.added.add(new Object[] {j, after.get(j)});
+      }
+      else {
+        matches[j] = candidates.poll();
+        kept[matches[j]] = true;
+      }
+    }
+
+    int[] ranks = new int[before.size()];
+    int rank = 0;
+    for(int i = 0; i < before.size(); i++) {
+      if(kept[i]) {
+        ranks[i] = rank++;
+      }
+      else {
+        diff.removed.add(new Object[] {i, before.get(i)});
+      }
+    }
+
+    rank = 0;
+    for(int match : matches) {
+      if(match >= 0) {
+        if(ranks[match] != rank) {
+          diff.moved.add(new int[] {ranks[match], rank});
+        }
+        rank++;
+      }
+    }
+    return diff;
+  }
+
+  private static CollectionDiff ofCollections(Collection<?> before, Collection<?> after, Associations associations) {
+    CollectionDiff diff = new CollectionDiff(SET, after.size());
+
+    Map<Object, Deque<Object>> remaining = new LinkedHashMap<>();
+    for(Object element : before) {
+      remaining.computeIfAbsent(keyOf(element, associations), k -> new ArrayDeque<>()).add(element == null ? NullElement.INSTANCE : element);
+    }
+    for(Object element : after) {
+      Deque<Object> candidates = remaining.get(keyOf(element, associations));
+      if(candidates == null || candidates.isEmpty()) {
+        diff.added.add(new Object[] {null, element});
+      }
+      else {
+        candidates.poll();
+      }
+    }
+    for(Deque<Object> elements : remaining.values()) {
+      for(Object element : elements) {
+        diff.removed.add(new Object[] {null, element == NullElement.INSTANCE ? null : element});
+      }
+    }
+    return diff;
+  }
+
+  private static CollectionDiff ofMaps(Map<?, ?> before, Map<?, ?> after, Associations associations) {
+    CollectionDiff diff = new CollectionDiff(MAP, after.size());
+
+    Map<Object, Object> beforeByKey = new HashMap<>();
+    for(Map.Entry<?, ?> entry : before.entrySet()) {
+      beforeByKey.put(keyOf(entry.getKey(), associations), entry.getValue());
+    }
+    Map<Object, Object> afterKeys = new HashMap<>();
+    for(Map.Entry<?, ?> entry : after.entrySet()) {
+      Object key = keyOf(entry.getKey(), associations);
+      afterKeys.put(key, key);
+      if(!beforeByKey.containsKey(key) || !associations.valuesEqual(beforeByKey.get(key), entry.getValue())) {
+        diff.added.add(new Object[] {keyName(entry.getKey(), associations), entry.getValue()});
+      }
+    }
+    for(Map.Entry<?, ?> entry : before.entrySet()) {
+      if(!afterKeys.containsKey(keyOf(entry.getKey(), associations))) {
+        diff.removed.add(new Object[] {keyName(entry.getKey(), associations), null});
+      }
+    }
+    return diff;
+  }
+
+  String getType() {
+    return type;
+  }
+
+  /**
+   * @return the removed elements as {@code [index, element]} for lists, {@code [null, element]}
+   * for other collections and {@code [key, null]} for maps
+   */
+  List<Object[]> getRemoved() {
+    return removed;
+  }
+
+  /**
+   * @return the added elements as {@code [index, element]} for lists, {@code [null, element]}
+   * for other collections and {@code [key, value]} for maps
+   */
+  List<Object[]> getAdded() {
+    return added;
+  }
+
+  /**
+   * @return the moves of kept list elements, as {@code [rank before, rank after]}
+   */
+  List<int[]> getMoved() {
+    return moved;
+  }
+
+  boolean isEmpty() {
+    return removed.isEmpty() && added.isEmpty() && moved.isEmpty();
+  }
+
+  /**
+   * @return true if the diff is smaller than the after value, ie worth writing instead of the full values
+   */
+  boolean isCompact() {
+    return removed.size() + added.size() + moved.size() < afterSize;
+  }
+
+  /**
+   * Applies written changes to the previous value of a field, as decoded from an audit log.
+   *
+   * @param previous the previous value: a list for lists, arrays and collections, a map for maps
+   * @param changes the decoded {@code changes} of the field
+   * @return the new value
+   */
+  @SuppressWarnings("unchecked")
+  static Object apply(Object previous, Map<?, ?> changes) {
+    Object type = changes.get("type");
+
+    if(MAP.equals(type)) {
+      Map<Object, Object> value = previous instanceof Map ? new LinkedHashMap<>((Map<?, ?>) previous) : new LinkedHashMap<>();
+      ((List<Object>) changes.get("removed")).forEach(value::remove);
+      value.putAll((Map<?, ?>) changes.get("put"));
+      return value;
+    }
+
+    List<Object> value = previous instanceof Collection ? new ArrayList<>((Collection<?>) previous) : new ArrayList<>();
+    if(SET.equals(type)) {
+      ((List<Object>) changes.get("removed")).forEach(value::remove);
+      value.addAll((List<Object>) changes.get("added"));
+      return value;
+    }
+
+    boolean[] isRemoved = new boolean[value.size()];
+    for(Map<String, Object> element : (List<Map<String, Object>>) changes.get("removed")) {
+      int index = ((Number) element.get("index")).intValue();
+      if(index < isRemoved.length) {
+        isRemoved[index] = true;
+      }
+    }
+    List<Object> kept = new ArrayList<>(value.size());
+    for(int i = 0; i < value.size(); i++) {
+      if(!isRemoved[i]) {
+        kept.add(value.get(i));
+      }
+    }
+
+    List<Object> result = new ArrayList<>(kept);
+    for(List<Number> move : (List<List<Number>>) changes.get("moved")) {
+      result.set(move.get(1).intValue(), kept.get(move.get(0).intValue()));
+    }
+    for(Map<String, Object> element : (List<Map<String, Object>>) changes.get("added")) {
+      int index = ((Number) element.get("index")).intValue();
+      result.add(Math.min(index, result.size()), element.get("value"));
+    }
+    return result;
+  }
+
+  private static boolean isOrdered(Object value) {
+    return value instanceof List || value instanceof Object[];
+  }
+
+  private static List<?> asList(Object value) {
+    return value instanceof Object[] ? Arrays.asList((Object[]) value) : (List<?>) value;
+  }
+
+  /**
+   * Returns what an element is matched by: its id if it is an entity, or else the element itself.
+   */
+  private static Object keyOf(Object element, Associations associations) {
+    if(element == null) {
+      return NullElement.INSTANCE;
+    }
+    return associations.isEntity(element) ? new EntityKey(associations.idOf(element)) : element;
+  }
+
+  private static String keyName(Object key, Associations associations) {
+    return String.valueOf(associations.isEntity(key) ? associations.idOf(key) : key);
+  }
+
+  private enum NullElement {
+    INSTANCE
+  }
+
+  private static final class EntityKey {
+
+    private final Object id;
+
+    private EntityKey(Object id) {
+      this.id = id;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof EntityKey && id != null && id.equals(((EntityKey) o).id);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hashCode(id);
+    }
+  }
+}
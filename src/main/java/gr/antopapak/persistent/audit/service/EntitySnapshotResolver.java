@@ -0,0 +1,161 @@
+package gr.antopapak.persistent.audit.service;
+
+import static java.util.Objects.isNull;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import lombok.AllArgsConstructor;
+import org.hibernate.HibernateException;
+import org.hibernate.bytecode.enhance.spi.LazyPropertyInitializer;
+import org.hibernate.collection.spi.PersistentCollection;
+import org.hibernate.engine.spi.CollectionEntry;
+import org.hibernate.engine.spi.EntityEntry;
+import org.hibernate.engine.spi.PersistenceContext;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.engine.spi.Status;
+import org.hibernate.persister.entity.EntityPersister;
+import org.hibernate.type.CompositeType;
+import org.hibernate.type.Type;
+import org.springframework.orm.jpa.EntityManagerFactoryUtils;
+import org.springframework.stereotype.Component;
+
+/**
+ * Rebuilds the before-state of an entity from the Hibernate session bound to the
+ * current transaction, so that no database round trip is needed when the entity
+ * is already managed.
+ */
+@Component
+@AllArgsConstructor
+class EntitySnapshotResolver {
+
+  private final EntityManagerFactory entityManagerFactory;
+
+  /**
+   * Returns a detached copy of the entity with the state it was loaded (or last flushed) with.<br>
+   * The entity itself does not need to be managed, as long as the current session
+   * holds a managed instance with the same id. Collections are copied from the snapshot
+   * Hibernate keeps of their loaded elements, since the loaded state holds the live collection,
+   * and collections that were never initialized are kept as they are.
+   * <p>
+   * Returns null when there is no transactional session, the entity is not managed,
+   * or its loaded state is not available (eg read-only or unfetched lazy properties,
+   * collections without a snapshot or inside embeddables, or uninitialized collections with
+   * queued operations). In that case the caller should fall back to reading from the database.
+   *
+   * @param entity the entity about to be saved
+   * @param id the id of the entity
+   * @return a copy of the loaded state or null
+   */
+  Object snapshotOf(Object entity, Object id) {
+    if(isNull(entity) || !(id instanceof Serializable)) {
+      return null;
+    }
+
+    EntityManager entityManager = EntityManagerFactoryUtils.getTransactionalEntityManager(entityManagerFactory);
+    if(isNull(entityManager)) {
+      return null;
+    }
+
+    try {
+      SessionImplementor session = entityManager.unwrap(SessionImplementor.class);
+      PersistenceContext persistenceContext = session.getPersistenceContext();
+
+      EntityEntry entry = persistenceContext.getEntry(entity);
+      if(isNull(entry)) {
+        EntityPersister persister = session.getEntityPersister(null, entity);
+        Object managed = persistenceContext.getEntity(session.generateEntityKey((Serializable) id, persister));
+        entry = isNull(managed) ? null : persistenceContext.getEntry(managed);
+      }
+
+      if(isNull(entry) || entry.getStatus() != Status.MANAGED || !hasCompleteLoadedState(entry)) {
+        return null;
+      }
+
+      EntityPersister persister = entry.getPersister();
+      Object[] loadedState = entry.getLoadedState().clone();
+      Type[] types = persister.getPropertyTypes();
+      for(int i = 0; i < types.length; i++) {
+        if(types[i].isCollectionType() && !isNull(loadedState[i])) {
+          loadedState[i] = loadedElementsOf(loadedState[i], persistenceContext);
+          if(isNull(loadedState[i])) {
+            return null;
+          }
+        }
+        else if(containsCollection(types[i])) {
+          return null;
+        }
+      }
+
+      Object snapshot = persister.instantiate(entry.getId(), session);
+      persister.setPropertyValues(snapshot, loadedState);
+      persister.setIdentifier(snapshot, entry.getId(), session);
+      return snapshot;
+    } catch (HibernateException | IllegalArgumentException e) {
+      return null;
+    }
+  }
+
+  /**
+   * @param value a collection of the loaded state, ie the live collection of the managed entity
+   * @param persistenceContext the persistence context holding it
+   * @return a detached copy of the elements the collection was loaded (or last flushed) with,
+   * the collection itself if it was never initialized, or null if they are not known
+   */
+  private Object loadedElementsOf(Object value, PersistenceContext persistenceContext) {
+    if(!(value instanceof PersistentCollection)) {
+      return null;
+    }
+    PersistentCollection collection = (PersistentCollection) value;
+    if(!collection.wasInitialized()) {
+      //never read, so unchanged unless operations were queued on it
+      return collection.hasQueuedOperations() ? null : collection;
+    }
+
+    CollectionEntry collectionEntry = persistenceContext.getCollectionEntry(collection);
+    Object loaded = isNull(collectionEntry) ? null : collectionEntry.getSnapshot();
+    //sets keep their snapshot as a map of every element to itself, id bags as a map keyed by row id
+    if(collection instanceof List && loaded instanceof List) {
+      return new ArrayList<>((List<?>) loaded);
+    }
+    if(collection instanceof Set && loaded instanceof Map) {
+      return new LinkedHashSet<>(((Map<?, ?>) loaded).values());
+    }
+    if(collection instanceof Map && loaded instanceof Map) {
+      return new LinkedHashMap<>((Map<?, ?>) loaded);
+    }
+    return null;
+  }
+
+  private boolean containsCollection(Type type) {
+    if(type.isCollectionType()) {
+      return true;
+    }
+    if(type.isComponentType()) {
+      for(Type subtype : ((CompositeType) type).getSubtypes()) {
+        if(containsCollection(subtype)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  private boolean hasCompleteLoadedState(EntityEntry entry) {
+    Object[] loadedState = entry.getLoadedState();
+    if(isNull(loadedState)) {
+      return false;
+    }
+    for(Object value : loadedState) {
+      if(value == LazyPropertyInitializer.UNFETCHED_PROPERTY) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,187 @@
+package gr.antopapak.persistent.audit.service;
+
+import gr.antopapak.persistent.audit.config.PersistentAuditProperties;
+import gr.antopapak.persistent.audit.domain.AuditLog;
+import gr.antopapak.persistent.audit.model.AffectedField;
+import gr.antopapak.persistent.audit.model.AuditedAction;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import javax.persistence.EntityManager;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Path;
+import javax.persistence.criteria.Root;
+import org.hibernate.annotations.QueryHints;
+import org.springframework.data.jpa.domain.Specification;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+/**
+ * Reconstructs the state of an audited entity at a point in time.<br>
+ *
+ * The state is rebuilt from the latest checkpoint at or before that time (the
+ * {@link AuditedAction#INSERT} log or a periodic {@link AuditedAction#SNAPSHOT}), by applying
+ * the changes logged after it in order. Since checkpoints are written every few changes,
+ * only a bounded number of logs is read, however long the history of the entity is.
+ * An INSERT written without the state of the entity, ie before checkpoints were enabled, is
+ * no checkpoint: until the first SNAPSHOT after it, such an entity cannot be reconstructed.
+ * <p>
+ * States are returned as field name to value maps, with values as they were written to the
+ * audit logs (nested objects as maps, collections as lists). Element-level changes of collection
+ * fields are applied to the value the field had so far.
+ *
+ * @see PersistentAuditProperties.Snapshot
+ */
+@Service
+public class EntityStateService {
+
+  private static final String NULL = "NULL";
+
+  private static final List<AuditedAction> CHECKPOINTS = List.of(AuditedAction.INSERT, AuditedAction.SNAPSHOT, AuditedAction.DELETE);
+  private static final List<AuditedAction> CHANGES = List.of(AuditedAction.UPDATE, AuditedAction.SOFT_DELETE, AuditedAction.SOFT_RESTORE);
+
+  private final EntityManager entityManager;
+  private final AuditDictionary auditDictionary;
+  private final AffectedFieldsCodec affectedFieldsCodec;
+  private final PersistentAuditProperties.History properties;
+
+  EntityStateService(EntityManager entityManager, AuditDictionary auditDictionary,
+      AffectedFieldsCodec affectedFieldsCodec, PersistentAuditProperties properties) {
+    this.entityManager = entityManager;
+    this.auditDictionary = auditDictionary;
+    this.affectedFieldsCodec = affectedFieldsCodec;
+    this.properties = properties.getHistory();
+  }
+
+  /**
+   * Returns the state of an entity as of the given time.
+   *
+   * @param entityClass the class of the entity
+   * @param entityId the id of the entity
+   * @param at the point in time
+   * @return the values of the loggable fields of the entity, or empty if the entity did not
+   * exist at that time or its history has no checkpoint to start from
+   */
+  @Transactional(readOnly = true)
+  public Optional<Map<String, Object>> stateAsOf(Class<?> entityClass, Object entityId, Instant at) {
+    return stateAsOf(entityClass.getSimpleName(), String.valueOf(entityId), at);
+  }
+
+  /**
+   * @see #stateAsOf(Class, Object, Instant)
+   */
+  @Transactional(readOnly = true)
+  public Optional<Map<String, Object>> stateAsOf(String entityClassName, String entityId, Instant at) {
+    AuditLog checkpoint = findCheckpoint(entityClassName, entityId, at);
+    return reconstruct(checkpoint, () -> streamChanges(entityClassName, entityId, checkpoint, at));
+  }
+
+  /**
+   * Replays the changes logged after a checkpoint onto the state it holds.
+   *
+   * @param checkpoint the latest checkpoint at or before the point in time, or null if there is none
+   * @param changes the changes logged after the checkpoint up to the point in time, oldest first,
+   * which are only read if the checkpoint holds a state
+   * @return the state, or empty if there is no checkpoint to start from or it is a DELETE
+   */
+  Optional<Map<String, Object>> reconstruct(AuditLog checkpoint, Supplier<Stream<AuditLog>> changes) {
+    if(checkpoint == null || checkpoint.getAction() == AuditedAction.DELETE || isStateless(checkpoint)) {
+      return Optional.empty();
+    }
+
+    Map<String, Object> state = new LinkedHashMap<>();
+    apply(checkpoint, state);
+    try (Stream<AuditLog> stream = changes.get()) {
+      stream.forEach(change -> apply(change, state));
+    }
+    return Optional.of(state);
+  }
+
+  /**
+   * @return true if the log is an INSERT that holds no state to start from
+   */
+  private boolean isStateless(AuditLog checkpoint) {
+    return checkpoint.getAction() == AuditedAction.INSERT && affectedFieldsCodec.decode(checkpoint).size() == 0;
+  }
+
+  private AuditLog findCheckpoint(String entityClassName, String entityId, Instant at) {
+    AuditLog latest = null;
+    for(Specification<AuditLog> ofEntity : AuditLogCriteria.ofEntity(auditDictionary, entityClassName, entityId)) {
+      CriteriaBuilder cb = entityManager.getCriteriaBuilder();
+      CriteriaQuery<AuditLog> criteria = cb.createQuery(AuditLog.class);
+      Root<AuditLog> root = criteria.from(AuditLog.class);
+      Path<Instant> dateTime = root.get("dateTime");
+
+      criteria
+          .where(
+              ofEntity.toPredicate(root, criteria, cb),
+              root.get("action").in(CHECKPOINTS),
+              cb.lessThanOrEqualTo(dateTime, at)
+          )
+          .orderBy(cb.desc(dateTime), cb.desc(root.get("id")));
+
+      AuditLog checkpoint = entityManager.createQuery(criteria)
+          .setMaxResults(1)
+          .setHint(QueryHints.READ_ONLY, true)
+          .getResultStream()
+          .findFirst()
+          .orElse(null);
+      if(checkpoint != null && (latest == null || AuditLogCriteria.OLDEST_FIRST.compare(checkpoint, latest) > 0)) {
+        latest = checkpoint;
+      }
+    }
+    return latest;
+  }
+
+  private Stream<AuditLog> streamChanges(String entityClassName, String entityId, AuditLog checkpoint, Instant at) {
+    List<Stream<AuditLog>> streams = new ArrayList<>();
+    for(Specification<AuditLog> ofEntity : AuditLogCriteria.ofEntity(auditDictionary, entityClassName, entityId)) {
+      CriteriaBuilder cb = entityManager.getCriteriaBuilder();
+      CriteriaQuery<AuditLog> criteria = cb.createQuery(AuditLog.class);
+      Root<AuditLog> root = criteria.from(AuditLog.class);
+      Path<Instant> dateTime = root.get("dateTime");
+
+      criteria
+          .where(
+              ofEntity.toPredicate(root, criteria, cb),
+              root.get("action").in(CHANGES),
+              AuditLogCriteria.after(cb, root, checkpoint.getDateTime(), checkpoint.getId()),
+              cb.lessThanOrEqualTo(dateTime, at)
+          )
+          .orderBy(cb.asc(dateTime), cb.asc(root.get("id")));
+
+      streams.add(entityManager.createQuery(criteria)
+          .setHint(QueryHints.FETCH_SIZE, properties.getFetchSize())
+          .setHint(QueryHints.READ_ONLY, true)
+          .getResultStream());
+    }
+    return AuditLogCriteria.merge(streams, AuditLogCriteria.OLDEST_FIRST)
+        .peek(entityManager::detach);
+  }
+
+  private void apply(AuditLog auditLog, Map<String, Object> state) {
+    switch(auditLog.getAction()) {
+      case SOFT_DELETE:
+        state.put(AuditLogService.SOFT_DELETE_FIELD, true);
+        break;
+      case SOFT_RESTORE:
+        state.put(AuditLogService.SOFT_DELETE_FIELD, false);
+        break;
+      default:
+        for(AffectedField field : affectedFieldsCodec.decode(auditLog).getAll()) {
+          if(field.getChanges() instanceof Map) {
+            state.put(field.getFieldName(), CollectionDiff.apply(state.get(field.getFieldName()), (Map<?, ?>) field.getChanges()));
+            continue;
+          }
+          Object after = field.getAfter();
+          state.put(field.getFieldName(), NULL.equals(after) ? null : after);
+        }
+    }
+  }
+}
@@ -0,0 +1,139 @@
+package gr.antopapak.persistent.audit.service;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Objects;
+
+/**
+ * A reflection-free reader of a single field.<br>
+ *
+ * Values are read through method handles created once from the (accessible) field, and
+ * invoked by a {@link FieldGetter} generated for the field. Primitive fields also get a handle
+ * of their own type, so that they can be compared without boxing.
+ */
+final class FieldAccessor {
+
+  private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+  private static final MethodType OBJECT_GETTER = MethodType.methodType(Object.class, Object.class);
+
+  private final Field field;
+  private final String name;
+  private final Class<?> type;
+  private final boolean primitive;
+  private final FieldGetter getter;
+
+  FieldAccessor(Field field) {
+    this.field = field;
+    this.name = field.getName();
+    this.type = field.getType();
+    try {
+      field.setAccessible(true);
+      MethodHandle handle = LOOKUP.unreflectGetter(field);
+      if(Modifier.isStatic(field.getModifiers())) { //eg serialVersionUID, read regardless of the instance
+        handle = MethodHandles.dropArguments(handle, 0, Object.class);
+      }
+      this.primitive = type.isPrimitive();
+      this.getter = FieldGetter.of(handle.asType(OBJECT_GETTER),
+          primitive ? handle.asType(MethodType.methodType(type, Object.class)) : null);
+    } catch (IllegalAccessException e) {
+      throw new IllegalStateException("Cannot access field " + field, e);
+    }
+  }
+
+  Field getField() {
+    return field;
+  }
+
+  String getName() {
+    return name;
+  }
+
+  Class<?> getType() {
+    return type;
+  }
+
+  boolean isPrimitive() {
+    return primitive;
+  }
+
+  /**
+   * Returns the (boxed, if primitive) value of the field.
+   * @param target the object to read from
+   * @return the value of the field
+   */
+  Object get(Object target) {
+    return getter.get(target);
+  }
+
+  int getInt(Object target) {
+    return getter.getInt(target);
+  }
+
+  long getLong(Object target) {
+    return getter.getLong(target);
+  }
+
+  boolean getBoolean(Object target) {
+    return getter.getBoolean(target);
+  }
+
+  double getDouble(Object target) {
+    return getter.getDouble(target);
+  }
+
+  float getFloat(Object target) {
+    return getter.getFloat(target);
+  }
+
+  short getShort(Object target) {
+    return getter.getShort(target);
+  }
+
+  byte getByte(Object target) {
+    return getter.getByte(target);
+  }
+
+  char getChar(Object target) {
+    return getter.getChar(target);
+  }
+
+  /**
+   * Returns whether the field holds an equal value in both objects.<br>
+   * Primitive fields are compared without boxing, with the same semantics as
+   * the {@code equals} of their wrapper types.
+   *
+   * @param a the first object, not null
+   * @param b the second object, not null
+   * @return whether the values of the field are equal
+   */
+  boolean valueEquals(Object a, Object b) {
+    if(!isPrimitive()) {
+      return Objects.equals(get(a), get(b));
+    }
+    if(type == int.class) {
+      return getInt(a) == getInt(b);
+    }
+    if(type == long.class) {
+      return getLong(a) == getLong(b);
+    }
+    if(type == boolean.class) {
+      return getBoolean(a) == getBoolean(b);
+    }
+    if(type == double.class) {
+      return Double.doubleToLongBits(getDouble(a)) == Double.doubleToLongBits(getDouble(b));
+    }
+    if(type == float.class) {
+      return Float.floatToIntBits(getFloat(a)) == Float.floatToIntBits(getFloat(b));
+    }
+    if(type == short.class) {
+      return getShort(a) == getShort(b);
+    }
+    if(type == byte.class) {
+      return getByte(a) == getByte(b);
+    }
+    return getChar(a) == getChar(b);
+  }
+}
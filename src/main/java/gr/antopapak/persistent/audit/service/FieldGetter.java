@@ -0,0 +1,285 @@
+package gr.antopapak.persistent.audit.service;
+
+import static org.springframework.asm.Opcodes.ACC_FINAL;
+import static org.springframework.asm.Opcodes.ACC_PRIVATE;
+import static org.springframework.asm.Opcodes.ACC_STATIC;
+import static org.springframework.asm.Opcodes.ACC_SUPER;
+import static org.springframework.asm.Opcodes.ACC_SYNTHETIC;
+import static org.springframework.asm.Opcodes.ALOAD;
+import static org.springframework.asm.Opcodes.GETSTATIC;
+import static org.springframework.asm.Opcodes.INVOKESPECIAL;
+import static org.springframework.asm.Opcodes.INVOKESTATIC;
+import static org.springframework.asm.Opcodes.INVOKEVIRTUAL;
+import static org.springframework.asm.Opcodes.IRETURN;
+import static org.springframework.asm.Opcodes.PUTSTATIC;
+import static org.springframework.asm.Opcodes.RETURN;
+import static org.springframework.asm.Opcodes.V1_8;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.util.concurrent.atomic.AtomicInteger;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.asm.ClassWriter;
+import org.springframework.asm.MethodVisitor;
+import org.springframework.asm.Type;
+
+/**
+ * Reads a single field for a {@link FieldAccessor}.<br>
+ *
+ * A method handle held in an instance field is not a constant to the JIT compiler, so every
+ * call through it takes the generic invocation path. Each getter is therefore a class of its own,
+ * generated at runtime, that holds its handles in {@code static final} fields: those are
+ * constants, and the JIT compiler reduces the call to a read of the field. The generated
+ * classes are defined in this package and are not unloaded with the entities they read.
+ * <p>
+ * If a class cannot be defined, the handles are invoked from instance fields instead.
+ */
+@Slf4j
+abstract class FieldGetter {
+
+  private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+  private static final String SUPER_NAME = Type.getInternalName(FieldGetter.class);
+  private static final String HANDLE_DESCRIPTOR = Type.getDescriptor(MethodHandle.class);
+  private static final AtomicInteger generatedCount = new AtomicInteger();
+
+  /**
+   * The handles of the getter class being initialized, read by its static initializer.
+   * Only accessed while holding the lock of this class.
+   */
+  private static MethodHandle pendingGetter;
+  private static MethodHandle pendingPrimitiveGetter;
+
+  FieldGetter() {
+  }
+
+  /**
+   * @param getter a handle of type {@code (Object)Object} reading the field
+   * @param primitiveGetter a handle of type {@code (Object)type} reading the field without boxing,
+   * or null if it is not primitive
+   * @return a getter invoking the given handles
+   */
+  static FieldGetter of(MethodHandle getter, MethodHandle primitiveGetter) {
+    try {
+      Class<?> generated = LOOKUP.defineClass(generate(primitiveGetter));
+      synchronized(FieldGetter.class) {
+        pendingGetter = getter;
+        pendingPrimitiveGetter = primitiveGetter;
+        try {
+          //initializes the class, which reads the pending handles
+          return (FieldGetter) generated.getDeclaredConstructor().newInstance();
+        } finally {
+          pendingGetter = null;
+          pendingPrimitiveGetter = null;
+        }
+      }
+    } catch (ReflectiveOperationException | LinkageError | RuntimeException e) {
+      log.debug("Cannot generate a field getter, invoking its method handles instead", e);
+      return new Handles(getter, primitiveGetter);
+    }
+  }
+
+  static MethodHandle pendingGetter() {
+    return pendingGetter;
+  }
+
+  static MethodHandle pendingPrimitiveGetter() {
+    return pendingPrimitiveGetter;
+  }
+
+  /**
+   * @return the (boxed, if primitive) value of the field
+   */
+  abstract Object get(Object target);
+
+  int getInt(Object target) {
+    throw new UnsupportedOperationException();
+  }
+
+  long getLong(Object target) {
+    throw new UnsupportedOperationException();
+  }
+
+  boolean getBoolean(Object target) {
+    throw new UnsupportedOperationException();
+  }
+
+  double getDouble(Object target) {
+    throw new UnsupportedOperationException();
+  }
+
+  float getFloat(Object target) {
+    throw new UnsupportedOperationException();
+  }
+
+  short getShort(Object target) {
+    throw new UnsupportedOperationException();
+  }
+
+  byte getByte(Object target) {
+    throw new UnsupportedOperationException();
+  }
+
+  char getChar(Object target) {
+    throw new UnsupportedOperationException();
+  }
+
+  /**
+   * Generates a subclass that reads the handles from {@link #pendingGetter()} and
+   * {@link #pendingPrimitiveGetter()} into static final fields when it is initialized, and
+   * overrides {@link #get(Object)} and the getter of the primitive type, if any, to invoke them.
+   */
+  private static byte[] generate(MethodHandle primitiveGetter) {
+    String name = SUPER_NAME + "$$Generated" + generatedCount.incrementAndGet();
+    ClassWriter classWriter = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+    classWriter.visit(V1_8, ACC_FINAL | ACC_SUPER | ACC_SYNTHETIC, name, null, SUPER_NAME, null);
+    classWriter.visitField(ACC_PRIVATE | ACC_STATIC | ACC_FINAL, "GETTER", HANDLE_DESCRIPTOR, null, null).visitEnd();
+    if(primitiveGetter != null) {
+      classWriter.visitField(ACC_PRIVATE | ACC_STATIC | ACC_FINAL, "PRIMITIVE_GETTER", HANDLE_DESCRIPTOR, null, null).visitEnd();
+    }
+
+    MethodVisitor method = classWriter.visitMethod(ACC_STATIC, "<clinit>", "()V", null, null);
+    method.visitCode();
+    method.visitMethodInsn(INVOKESTATIC, SUPER_NAME, "pendingGetter", "()" + HANDLE_DESCRIPTOR, false);
+    method.visitFieldInsn(PUTSTATIC, name, "GETTER", HANDLE_DESCRIPTOR);
+    if(primitiveGetter != null) {
+      method.visitMethodInsn(INVOKESTATIC, SUPER_NAME, "pendingPrimitiveGetter", "()" + HANDLE_DESCRIPTOR, false);
+      method.visitFieldInsn(PUTSTATIC, name, "PRIMITIVE_GETTER", HANDLE_DESCRIPTOR);
+    }
+    method.visitInsn(RETURN);
+    method.visitMaxs(0, 0);
+    method.visitEnd();
+
+    method = classWriter.visitMethod(0, "<init>", "()V", null, null);
+    method.visitCode();
+    method.visitVarInsn(ALOAD, 0);
+    method.visitMethodInsn(INVOKESPECIAL, SUPER_NAME, "<init>", "()V", false);
+    method.visitInsn(RETURN);
+    method.visitMaxs(0, 0);
+    method.visitEnd();
+
+    generateGetter(classWriter, name, "get", "GETTER", Type.getType(Object.class));
+    if(primitiveGetter != null) {
+      Class<?> type = primitiveGetter.type().returnType();
+      String getterName = "get" + Character.toUpperCase(type.getName().charAt(0)) + type.getName().substring(1);
+      generateGetter(classWriter, name, getterName, "PRIMITIVE_GETTER", Type.getType(type));
+    }
+    classWriter.visitEnd();
+    return classWriter.toByteArray();
+  }
+
+  private static void generateGetter(ClassWriter classWriter, String owner, String methodName, String handleField, Type returnType) {
+    String descriptor = Type.getMethodDescriptor(returnType, Type.getType(Object.class));
+    MethodVisitor method = classWriter.visitMethod(ACC_FINAL, methodName, descriptor, null, null);
+    method.visitCode();
+    method.visitFieldInsn(GETSTATIC, owner, handleField, HANDLE_DESCRIPTOR);
+    method.visitVarInsn(ALOAD, 1);
+    method.visitMethodInsn(INVOKEVIRTUAL, Type.getInternalName(MethodHandle.class), "invokeExact", descriptor, false);
+    method.visitInsn(returnType.getOpcode(IRETURN));
+    method.visitMaxs(0, 0);
+    method.visitEnd();
+  }
+
+  /**
+   * Invokes the handles from instance fields, when no class could be generated.
+   */
+  private static final class Handles extends FieldGetter {
+
+    private final MethodHandle getter;
+    private final MethodHandle primitiveGetter;
+
+    private Handles(MethodHandle getter, MethodHandle primitiveGetter) {
+      this.getter = getter;
+      this.primitiveGetter = primitiveGetter;
+    }
+
+    @Override
+    Object get(Object target) {
+      try {
+        return (Object) getter.invokeExact(target);
+      } catch (Throwable e) {
+        throw rethrow(e);
+      }
+    }
+
+    @Override
+    int getInt(Object target) {
+      try {
+        return (int) primitiveGetter.invokeExact(target);
+      } catch (Throwable e) {
+        throw rethrow(e);
+      }
+    }
+
+    @Override
+    long getLong(Object target) {
+      try {
+        return (long) primitiveGetter.invokeExact(target);
+      } catch (Throwable e) {
+        throw rethrow(e);
+      }
+    }
+
+    @Override
+    boolean getBoolean(Object target) {
+      try {
+        return (boolean) primitiveGetter.invokeExact(target);
+      } catch (Throwable e) {
+        throw rethrow(e);
+      }
+    }
+
+    @Override
+    double getDouble(Object target) {
+      try {
+        return (double) primitiveGetter.invokeExact(target);
+      } catch (Throwable e) {
+        throw rethrow(e);
+      }
+    }
+
+    @Override
+    float getFloat(Object target) {
+      try {
+        return (float) primitiveGetter.invokeExact(target);
+      } catch (Throwable e) {
+        throw rethrow(e);
+      }
+    }
+
+    @Override
+    short getShort(Object target) {
+      try {
+        return (short) primitiveGetter.invokeExact(target);
+      } catch (Throwable e) {
+        throw rethrow(e);
+      }
+    }
+
+    @Override
+    byte getByte(Object target) {
+      try {
+        return (byte) primitiveGetter.invokeExact(target);
+      } catch (Throwable e) {
+        throw rethrow(e);
+      }
+    }
+
+    @Override
+    char getChar(Object target) {
+      try {
+        return (char) primitiveGetter.invokeExact(target);
+      } catch (Throwable e) {
+        throw rethrow(e);
+      }
+    }
+
+    private static RuntimeException rethrow(Throwable e) {
+      if(e instanceof RuntimeException) {
+        return (RuntimeException) e;
+      }
+      if(e instanceof Error) {
+        throw (Error) e;
+      }
+      return new IllegalStateException(e);
+    }
+  }
+}
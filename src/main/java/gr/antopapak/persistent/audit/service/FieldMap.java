@@ -1,93 +1,232 @@
 package gr.antopapak.persistent.audit.service;
 
-import static java.util.Objects.isNull;
-import static java.util.Objects.nonNull;
+import gr.antopapak.persistent.audit.differ.EntityDiffer;
 import gr.antopapak.persistent.audit.model.AffectedField;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.List;
-import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Objects;
-import java.util.stream.Collectors;
 
 /**
- * A helper class that keeps the before and after state of the fields of a class
+ * A helper class that keeps the before and after state of the changed fields of a class.<br>
+ *
+ * Fields are addressed by their position in the {@link FieldSchema} of the class. Values are
+ * kept in parallel before/after slots, which are only allocated once the first change is
+ * found, and a bitset marks the fields that changed. Unchanged fields are never stored.
+ * Collection, array and map fields also keep their {@link CollectionDiff}, so that only
+ * their changed elements need to be written.
  */
-class FieldMap {
-
-  private Map<String, AffectedField> map = new HashMap<>();
+class FieldMap implements EntityDiffer.ChangeConsumer {
+
+  private static final String NULL = "NULL";
+
+  private final FieldSchema schema;
+  private final Associations associations;
+  private final BitSet affected;
+  private Object[] before;
+  private Object[] after;
+  private CollectionDiff[] diffs;
+  private boolean beforeMissing;
+
+  //the diff of the last values compared for an EntityDiffer, until it reports them as changed
+  private Object diffedBefore;
+  private Object diffedAfter;
+  private CollectionDiff lastDiff;
+
+  FieldMap(FieldSchema schema, Associations associations) {
+    this.schema = Objects.requireNonNull(schema);
+    this.associations = Objects.requireNonNull(associations);
+    this.affected = new BitSet(schema.size());
+  }
 
-  void put(String name, Object before, Object after) {
-    AffectedField entry = new AffectedField(
-        Objects.requireNonNull(name),
-        before != null ? before : "NULL",
-        after != null ? after : "NULL"
-    );
+  /**
+   * Compares two states of an entity of the schema's class.<br>
+   * If there is no before state, every field is considered affected.
+   *
+   * @param entityBefore the state before the mutation, or null
+   * @param entityAfter the state after the mutation, not null
+   */
+  void compare(Object entityBefore, Object entityAfter) {
+    beforeMissing = entityBefore == null;
+    List<FieldAccessor> fields = schema.getFields();
+    for(int i = 0; i < fields.size(); i++) {
+      FieldAccessor field = fields.get(i);
+      if(beforeMissing) {
+        put(i, null, field.get(entityAfter));
+      }
+      else if(field.isPrimitive()) {
+        if(!field.valueEquals(entityBefore, entityAfter)) {
+          put(i, field.get(entityBefore), field.get(entityAfter));
+        }
+      }
+      else {
+        compareValues(i, field.get(entityBefore), field.get(entityAfter));
+      }
+    }
+  }
 
-    map.put(name, entry);
+  /**
+   * Compares two states of an entity whose classes differ (eg a proxy and its target),
+   * matching the fields by name.
+   *
+   * @param entityBefore the state before the mutation, not null
+   * @param beforeSchema the schema of the class of entityBefore
+   * @param entityAfter the state after the mutation, not null
+   */
+  void compare(Object entityBefore, FieldSchema beforeSchema, Object entityAfter) {
+    List<FieldAccessor> fields = schema.getFields();
+    for(int i = 0; i < fields.size(); i++) {
+      int beforeIndex = beforeSchema.indexOf(fields.get(i).getName());
+      Object valueBefore = beforeIndex >= 0 ? beforeSchema.get(beforeIndex).get(entityBefore) : null;
+      compareValues(i, valueBefore, fields.get(i).get(entityAfter));
+    }
   }
 
-  void putBefore(String name, Object before) {
-    AffectedField entry = map.get(name);
-    if(entry == null) {
-      entry = new AffectedField(Objects.requireNonNull(name));
+  private void compareValues(int index, Object valueBefore, Object valueAfter) {
+    CollectionDiff diff = CollectionDiff.of(valueBefore, valueAfter, associations);
+    if(diff != null ? !diff.isEmpty() : !associations.valuesEqual(valueBefore, valueAfter)) {
+      put(index, valueBefore, valueAfter);
+      diffs[index] = diff;
     }
-    entry.setBefore(before != null ? before : "NULL");
+  }
 
-    map.put(name, entry);
+  /**
+   * Records a changed field reported by an {@link EntityDiffer}.
+   */
+  @Override
+  public void changed(String fieldName, Object before, Object after) {
+    int index = indexOrThrow(fieldName);
+    put(index, before, after);
+    if(lastDiff != null && diffedBefore == before && diffedAfter == after) {
+      diffs[index] = lastDiff;
+    }
+    lastDiff = null;
   }
 
-  void putAfter(String name, Object after) {
-    AffectedField entry = map.get(name);
-    if(entry == null) {
-      entry = new AffectedField(Objects.requireNonNull(name));
+  /**
+   * Compares associations by identity, without loading them, and collections element by element.
+   */
+  @Override
+  public boolean valuesEqual(Object before, Object after) {
+    CollectionDiff diff = CollectionDiff.of(before, after, associations);
+    if(diff == null) {
+      return associations.valuesEqual(before, after);
     }
-    entry.setAfter(after != null ? after : "NULL");
+    diffedBefore = before;
+    diffedAfter = after;
+    lastDiff = diff.isEmpty() ? null : diff;
+    return diff.isEmpty();
+  }
 
-    map.put(name, entry);
+  void put(int index, Object valueBefore, Object valueAfter) {
+    if(before == null) {
+      before = new Object[schema.size()];
+      after = new Object[schema.size()];
+      diffs = new CollectionDiff[schema.size()];
+    }
+    before[index] = valueBefore;
+    after[index] = valueAfter;
+    affected.set(index);
   }
 
   Object getBefore(String name) {
-    if(!map.containsKey(name)) {
-      throw new NoSuchElementException(name);
-    }
-    return map.get(name).getBefore();
+    int index = affectedIndexOrThrow(name);
+    return beforeMissing ? null : before[index];
   }
 
   Object getAfter(String name) {
-    if(!map.containsKey(name)) {
-      throw new NoSuchElementException(name);
-    }
-    return map.get(name).getAfter();
+    return after[affectedIndexOrThrow(name)];
   }
 
+  /**
+   * @return the number of loggable fields of the schema
+   */
   int size() {
-    return map.size();
+    return schema.size();
   }
 
-  List<AffectedField> getAllEntries() {
-    return List.copyOf(map.values());
+  /**
+   * @return the number of fields that changed
+   */
+  int affectedCount() {
+    return affected.cardinality();
   }
 
-  List<AffectedField> getAllAffectedEntries() {
-    return getAllEntries()
-        .stream()
-        .filter(this::isFieldAffected)
-        .collect(Collectors.toList());
+  boolean isFieldAffected(String name) {
+    int index = schema.indexOf(name);
+    return index >= 0 && affected.get(index);
   }
 
-  boolean isFieldAffected(String name) {
-    if(!map.containsKey(name)) {
-      return false;
+  /**
+   * Materialises the changed fields, in schema order. Null values are written as "NULL",
+   * except for the before value when there was no before state.
+   *
+   * @return the changed fields
+   */
+  List<AffectedField> getAllAffectedEntries() {
+    List<AffectedField> entries = new ArrayList<>(affected.cardinality());
+    for(int i = nextAffected(0); i >= 0; i = nextAffected(i + 1)) {
+      entries.add(new AffectedField(nameAt(i), beforeAt(i), afterAt(i)));
     }
+    return entries;
+  }
+
+  /**
+   * Returns the position of the next changed field, so that callers can walk the
+   * changed fields without materialising them.
+   *
+   * @param fromIndex the position to start from (inclusive)
+   * @return the position of the next changed field, or -1 if there is none
+   */
+  int nextAffected(int fromIndex) {
+    return affected.nextSetBit(fromIndex);
+  }
+
+  String nameAt(int index) {
+    return schema.get(index).getName();
+  }
+
+  /**
+   * @return the before value of a changed field, with the same null handling as {@link #getAllAffectedEntries()}
+   */
+  Object beforeAt(int index) {
+    return beforeMissing ? null : nullToString(before[index]);
+  }
+
+  /**
+   * @return the after value of a changed field, with the same null handling as {@link #getAllAffectedEntries()}
+   */
+  Object afterAt(int index) {
+    return nullToString(after[index]);
+  }
 
-    AffectedField entry = map.get(name);
-    Object before = entry.getBefore();
-    Object after = entry.getAfter();
-    return (isNull(before) && nonNull(after)) || !before.equals(after);
+  /**
+   * @return the element-level changes of a changed collection, array or map field, or null if
+   * its full values should be written instead, eg because most of its elements changed
+   */
+  CollectionDiff diffAt(int index) {
+    CollectionDiff diff = beforeMissing ? null : diffs[index];
+    return diff != null && diff.isCompact() ? diff : null;
   }
 
-  private boolean isFieldAffected(AffectedField entry) {
-    return isFieldAffected(Objects.requireNonNull(entry).getFieldName());
+  private Object nullToString(Object value) {
+    return value != null ? value : NULL;
+  }
+
+  private int indexOrThrow(String name) {
+    int index = schema.indexOf(name);
+    if(index < 0) {
+      throw new NoSuchElementException(name);
+    }
+    return index;
+  }
+
+  private int affectedIndexOrThrow(String name) {
+    int index = indexOrThrow(name);
+    if(!affected.get(index)) {
+      throw new NoSuchElementException(name);
+    }
+    return index;
   }
 }
@@ -0,0 +1,45 @@
+package gr.antopapak.persistent.audit.service;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The ordered loggable fields of a class, with a lookup from field name to position.
+ */
+final class FieldSchema {
+
+  private final List<FieldAccessor> fields;
+  private final Map<String, Integer> indexes;
+
+  FieldSchema(List<FieldAccessor> fields) {
+    this.fields = Collections.unmodifiableList(fields);
+    Map<String, Integer> indexes = new HashMap<>();
+    for(int i = 0; i < fields.size(); i++) {
+      indexes.putIfAbsent(fields.get(i).getName(), i);
+    }
+    this.indexes = indexes;
+  }
+
+  List<FieldAccessor> getFields() {
+    return fields;
+  }
+
+  FieldAccessor get(int index) {
+    return fields.get(index);
+  }
+
+  int size() {
+    return fields.size();
+  }
+
+  /**
+   * @param name the name of a field
+   * @return the position of the field in this schema, or -1 if it is not loggable
+   */
+  int indexOf(String name) {
+    Integer index = indexes.get(name);
+    return index != null ? index : -1;
+  }
+}
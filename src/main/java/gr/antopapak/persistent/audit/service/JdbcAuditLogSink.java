@@ -0,0 +1,301 @@
+package gr.antopapak.persistent.audit.service;
+
+import gr.antopapak.persistent.audit.config.PersistentAuditProperties;
+import gr.antopapak.persistent.audit.domain.AuditFieldChange;
+import gr.antopapak.persistent.audit.domain.AuditLog;
+import java.io.Reader;
+import java.io.StringReader;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.List;
+import java.util.Map;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.dao.DataRetrievalFailureException;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.support.GeneratedKeyHolder;
+import org.springframework.jdbc.support.KeyHolder;
+import org.springframework.stereotype.Component;
+
+/**
+ * An {@link AuditLogSink} that writes audit rows with plain JDBC, bypassing the entity
+ * lifecycle (persistence context, listeners, one INSERT per row).<br>
+ *
+ * Rows are written with multi-row {@code INSERT ... VALUES} statements of up to
+ * {@code persistent.audit.sink.batch-size} rows, or with {@code COPY FROM STDIN} when the
+ * database is PostgreSQL and its driver is available. The statements run on the connection of
+ * the current transaction, if any. Since no entity listener runs, dictionary encoding is
+ * applied here. The ids of the written logs are only set when some of them have field changes
+ * to index: such batches are always inserted, returning the generated ids, and their field
+ * changes are inserted right after them in the same way.
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(prefix = "persistent.audit.sink", name = "type", havingValue = "JDBC")
+class JdbcAuditLogSink implements AuditLogSink {
+
+  private static final String COLUMNS = "auditor, auditor_id, datetime, entity_class_name, entity_class_id, "
+      + "entity_id, entity_natural_id, action, affected_fields, affected_fields_binary";
+  private static final int COLUMN_COUNT = 10;
+  private static final String ROW = "(?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+  private static final String FIELD_CHANGE_COLUMNS = "audit_log_id, entity_class_name, field_name, old_value_hash, new_value_hash";
+  private static final int FIELD_CHANGE_COLUMN_COUNT = 5;
+  private static final String FIELD_CHANGE_ROW = "(?, ?, ?, ?, ?)";
+  private static final String[] ID = {"id"};
+
+  private final PersistentAuditProperties.Sink properties;
+  private final JdbcTemplate jdbcTemplate;
+  private final AuditDictionary auditDictionary;
+  private final String fullBatchInsert;
+  private volatile CopyIn copyIn;
+
+  JdbcAuditLogSink(PersistentAuditProperties properties, JdbcTemplate jdbcTemplate, AuditDictionary auditDictionary) {
+    this.properties = properties.getSink();
+    this.jdbcTemplate = jdbcTemplate;
+    this.auditDictionary = auditDictionary;
+    this.fullBatchInsert = insert(Math.max(1, this.properties.getBatchSize()));
+  }
+
+  @Override
+  public void write(List<AuditLog> auditLogs) {
+    if(auditLogs.isEmpty()) {
+      return;
+    }
+    auditLogs.forEach(auditDictionary::encode);
+
+    if(AuditFieldIndex.hasFieldChanges(auditLogs)) {
+      insertReturningIds(auditLogs);
+      insertFieldChanges(AuditFieldIndex.fieldChangesOf(auditLogs));
+    }
+    else if(copyIn().isSupported()) {
+      copy(auditLogs);
+    }
+    else {
+      insert(auditLogs);
+    }
+  }
+
+  private void insert(List<AuditLog> auditLogs) {
+    int batchSize = Math.max(1, properties.getBatchSize());
+    for(int from = 0; from < auditLogs.size(); from += batchSize) {
+      List<AuditLog> chunk = auditLogs.subList(from, Math.min(from + batchSize, auditLogs.size()));
+      String sql = chunk.size() == batchSize ? fullBatchInsert : insert(chunk.size());
+      jdbcTemplate.update(sql, statement -> bindAll(statement, chunk));
+    }
+  }
+
+  /**
+   * Inserts audit logs as {@link #insert(List)} does, and sets their generated ids.
+   */
+  private void insertReturningIds(List<AuditLog> auditLogs) {
+    int batchSize = Math.max(1, properties.getBatchSize());
+    for(int from = 0; from < auditLogs.size(); from += batchSize) {
+      List<AuditLog> chunk = auditLogs.subList(from, Math.min(from + batchSize, auditLogs.size()));
+      String sql = chunk.size() == batchSize ? fullBatchInsert : insert(chunk.size());
+      KeyHolder keys = new GeneratedKeyHolder();
+      jdbcTemplate.update(connection -> {
+        PreparedStatement statement = connection.prepareStatement(sql, ID);
+        bindAll(statement, chunk);
+        return statement;
+      }, keys);
+
+      List<Map<String, Object>> keyList = keys.getKeyList();
+      if(keyList.size() != chunk.size()) {
+        throw new DataRetrievalFailureException("Expected " + chunk.size() + " generated audit log ids, got " + keyList.size());
+      }
+      for(int i = 0; i < chunk.size(); i++) {
+        chunk.get(i).setId(((Number) keyList.get(i).values().iterator().next()).longValue());
+      }
+    }
+  }
+
+  private void insertFieldChanges(List<AuditFieldChange> fieldChanges) {
+    int batchSize = Math.max(1, properties.getBatchSize());
+    for(int from = 0; from < fieldChanges.size(); from += batchSize) {
+      List<AuditFieldChange> chunk = fieldChanges.subList(from, Math.min(from + batchSize, fieldChanges.size()));
+      jdbcTemplate.update(insertFieldChanges(chunk.size()), statement -> {
+        int index = 1;
+        for(AuditFieldChange fieldChange : chunk) {
+          statement.setLong(index, fieldChange.getAuditLogId());
+          statement.setString(index + 1, fieldChange.getEntityClassName());
+          statement.setString(index + 2, fieldChange.getFieldName());
+          statement.setObject(index + 3, fieldChange.getOldValueHash(), Types.BIGINT);
+          statement.setLong(index + 4, fieldChange.getNewValueHash());
+          index += FIELD_CHANGE_COLUMN_COUNT;
+        }
+      });
+    }
+  }
+
+  private void bindAll(PreparedStatement statement, List<AuditLog> auditLogs) throws SQLException {
+    int index = 1;
+    for(AuditLog auditLog : auditLogs) {
+      bind(statement, index, auditLog);
+      index += COLUMN_COUNT;
+    }
+  }
+
+  private void bind(PreparedStatement statement, int index, AuditLog auditLog) throws SQLException {
+    statement.setString(index, auditLog.getAuditor());
+    statement.setObject(index + 1, auditLog.getAuditorId(), Types.INTEGER);
+    statement.setTimestamp(index + 2, Timestamp.from(auditLog.getDateTime()));
+    statement.setString(index + 3, auditLog.getEntityClassName());
+    statement.setObject(index + 4, auditLog.getEntityClassId(), Types.INTEGER);
+    statement.setString(index + 5, auditLog.getEntityId());
+    statement.setString(index + 6, auditLog.getEntityNaturalId());
+    statement.setString(index + 7, auditLog.getAction().name());
+    statement.setString(index + 8, auditLog.getAffectedFields());
+    statement.setBytes(index + 9, auditLog.getAffectedFieldsBinary());
+  }
+
+  private void copy(List<AuditLog> auditLogs) {
+    StringBuilder rows = new StringBuilder(auditLogs.size() * 256);
+    for(AuditLog auditLog : auditLogs) {
+      appendText(rows, auditLog.getAuditor()).append('\t');
+      appendText(rows, auditLog.getAuditorId()).append('\t');
+      appendText(rows, Timestamp.from(auditLog.getDateTime())).append('\t');
+      appendText(rows, auditLog.getEntityClassName()).append('\t');
+      appendText(rows, auditLog.getEntityClassId()).append('\t');
+      appendText(rows, auditLog.getEntityId()).append('\t');
+      appendText(rows, auditLog.getEntityNaturalId()).append('\t');
+      appendText(rows, auditLog.getAction().name()).append('\t');
+      appendText(rows, auditLog.getAffectedFields()).append('\t');
+      appendBytea(rows, auditLog.getAffectedFieldsBinary()).append('\n');
+    }
+
+    String sql = "COPY " + AuditPartitionManager.TABLE + " (" + COLUMNS + ") FROM STDIN";
+    jdbcTemplate.execute((ConnectionCallback<Long>) connection -> copyIn.copy(connection, sql, rows.toString()));
+  }
+
+  /**
+   * Appends a value in the text format of COPY: {@code \N} for null, with backslashes
+   * and row/column delimiters escaped.
+   */
+  static StringBuilder appendText(StringBuilder rows, Object value) {
+    if(value == null) {
+      return rows.append("\\N");
+    }
+    String text = value.toString();
+    for(int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      switch(c) {
+        case '\\':
+          rows.append("\\\\");
+          break;
+        case '\t':
+          rows.append("\\t");
+          break;
+        case '\n':
+          rows.append("\\n");
+          break;
+        case '\r':
+          rows.append("\\r");
+          break;
+        default:
+          rows.append(c);
+      }
+    }
+    return rows;
+  }
+
+  /**
+   * Appends a bytea value in its hex format, whose {@code \x} prefix is escaped as any
+   * backslash in the text format of COPY.
+   */
+  static StringBuilder appendBytea(StringBuilder rows, byte[] value) {
+    if(value == null) {
+      return rows.append("\\N");
+    }
+    rows.append("\\\\x");
+    for(byte b : value) {
+      rows.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+    }
+    return rows;
+  }
+
+  private static String insert(int rows) {
+    StringBuilder sql = new StringBuilder("insert into ").append(AuditPartitionManager.TABLE)
+        .append(" (").append(COLUMNS).append(") values ");
+    for(int i = 0; i < rows; i++) {
+      sql.append(i == 0 ? "" : ", ").append(ROW);
+    }
+    return sql.toString();
+  }
+
+  private static String insertFieldChanges(int rows) {
+    StringBuilder sql = new StringBuilder("insert into ").append(AuditFieldIndex.TABLE)
+        .append(" (").append(FIELD_CHANGE_COLUMNS).append(") values ");
+    for(int i = 0; i < rows; i++) {
+      sql.append(i == 0 ? "" : ", ").append(FIELD_CHANGE_ROW);
+    }
+    return sql.toString();
+  }
+
+  private CopyIn copyIn() {
+    if(copyIn == null) {
+      copyIn = properties.isCopy()
+          ? jdbcTemplate.execute((ConnectionCallback<CopyIn>) CopyIn::detect)
+          : CopyIn.UNSUPPORTED;
+    }
+    return copyIn;
+  }
+
+  /**
+   * {@code COPY FROM STDIN} through the CopyManager of the PostgreSQL driver, looked up
+   * reflectively so that the driver stays an optional dependency.
+   */
+  private static final class CopyIn {
+
+    private static final CopyIn UNSUPPORTED = new CopyIn(null, null, null);
+
+    private final Class<?> pgConnection;
+    private final Method getCopyApi;
+    private final Method copyIn;
+
+    private CopyIn(Class<?> pgConnection, Method getCopyApi, Method copyIn) {
+      this.pgConnection = pgConnection;
+      this.getCopyApi = getCopyApi;
+      this.copyIn = copyIn;
+    }
+
+    static CopyIn detect(Connection connection) throws SQLException {
+      if(!"PostgreSQL".equalsIgnoreCase(connection.getMetaData().getDatabaseProductName())) {
+        return UNSUPPORTED;
+      }
+      try {
+        Class<?> pgConnection = Class.forName("org.postgresql.PGConnection", false, JdbcAuditLogSink.class.getClassLoader());
+        Method getCopyApi = pgConnection.getMethod("getCopyAPI");
+        Method copyIn = getCopyApi.getReturnType().getMethod("copyIn", String.class, Reader.class);
+        return new CopyIn(pgConnection, getCopyApi, copyIn);
+      } catch (ReflectiveOperationException e) {
+        log.warn("PostgreSQL driver does not support COPY, falling back to multi-row INSERTs");
+        return UNSUPPORTED;
+      }
+    }
+
+    boolean isSupported() {
+      return pgConnection != null;
+    }
+
+    long copy(Connection connection, String sql, String rows) throws SQLException {
+      try {
+        Object copyManager = getCopyApi.invoke(connection.unwrap(pgConnection));
+        return (Long) copyIn.invoke(copyManager, sql, new StringReader(rows));
+      } catch (InvocationTargetException e) {
+        if(e.getCause() instanceof SQLException) {
+          throw (SQLException) e.getCause();
+        }
+        throw new DataAccessResourceFailureException("COPY of audit logs failed", e.getCause());
+      } catch (IllegalAccessException e) {
+        throw new DataAccessResourceFailureException("COPY of audit logs failed", e);
+      }
+    }
+  }
+}
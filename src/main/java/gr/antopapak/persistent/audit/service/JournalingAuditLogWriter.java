@@ -0,0 +1,397 @@
+package gr.antopapak.persistent.audit.service;
+
+import gr.antopapak.persistent.audit.config.PersistentAuditProperties;
+import gr.antopapak.persistent.audit.domain.AuditFieldChange;
+import gr.antopapak.persistent.audit.domain.AuditLog;
+import gr.antopapak.persistent.audit.model.AuditedAction;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.dao.RecoverableDataAccessException;
+import org.springframework.dao.TransientDataAccessException;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.CannotCreateTransactionException;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionTimedOutException;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Writes audit logs with a local {@link AuditJournal} as a durable spill buffer, so that a slow
+ * or unavailable audit database never stalls or fails the business transaction.<br>
+ *
+ * Audit logs are written once the surrounding transaction commits, in a transaction of their
+ * own bounded by {@code write-timeout}. If that write fails, or takes longer than
+ * {@code slow-threshold}, direct writes are paused for {@code cooldown} and audit logs are
+ * appended to the journal instead, returning as soon as they are on disk. While the journal
+ * holds records, new audit logs are journaled as well, to keep them in order.
+ * <p>
+ * A background shipper replays the journal into the {@link AuditLogSink} in batches, and
+ * commits each batch in the journal once its rows are committed in the database. A crash
+ * between the two replays that batch on restart, so delivery is at least once. A batch the
+ * database keeps rejecting is split until the audit logs it rejects are isolated, and those are
+ * moved to a dead-letter file, along with records that cannot be read back, so that a single
+ * bad audit log never holds up the rest.
+ *
+ * @see PersistentAuditProperties.Journal
+ */
+@Slf4j
+@Component
+public class JournalingAuditLogWriter {
+
+  /**
+   * Written first in every record, so that a record of another layout is rejected instead of misread.
+   */
+  private static final byte RECORD_VERSION = 1;
+
+  private final PersistentAuditProperties.Journal properties;
+  private final AuditLogSink auditLogSink;
+  private final TransactionTemplate transactionTemplate;
+
+  private AuditJournal journal;
+  private volatile long directWritesPausedUntil = System.nanoTime();
+  private volatile boolean running;
+  private Thread shipper;
+
+  JournalingAuditLogWriter(PersistentAuditProperties properties, AuditLogSink auditLogSink,
+      PlatformTransactionManager transactionManager) {
+    this.properties = properties.getJournal();
+    this.auditLogSink = auditLogSink;
+    this.transactionTemplate = new TransactionTemplate(transactionManager);
+    this.transactionTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+    this.transactionTemplate.setTimeout((int) Math.max(1, this.properties.getWriteTimeout().toSeconds()));
+  }
+
+  @PostConstruct
+  void start() throws IOException {
+    if(!isEnabled()) {
+      return;
+    }
+    journal = new AuditJournal(Paths.get(properties.getDirectory()), properties.getSegmentSize());
+    if(journal.getPendingCount() > 0) {
+      log.info("Resuming the replay of {} journaled audit logs", journal.getPendingCount());
+    }
+    running = true;
+    shipper = new Thread(this::ship, "persistent-audit-journal-shipper");
+    shipper.setDaemon(true);
+    shipper.start();
+  }
+
+  @PreDestroy
+  void stop() throws InterruptedException {
+    if(shipper == null) {
+      return;
+    }
+    running = false;
+    shipper.interrupt();
+    shipper.join(properties.getPollInterval().toMillis() * 10);
+    journal.close();
+  }
+
+  public boolean isEnabled() {
+    return properties.isEnabled();
+  }
+
+  /**
+   * @return the number of journaled audit logs not yet written to the database
+   */
+  public long getPendingCount() {
+    return journal != null ? journal.getPendingCount() : 0;
+  }
+
+  /**
+   * Writes the given audit logs once the current transaction commits, or immediately
+   * if there is no transaction synchronization active.
+   *
+   * @param auditLogs the logs to write
+   */
+  void submit(List<AuditLog> auditLogs) {
+    if(auditLogs.isEmpty()) {
+      return;
+    }
+
+    if(TransactionSynchronizationManager.isSynchronizationActive()) {
+      TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+        @Override
+        public void afterCommit() {
+          write(auditLogs);
+        }
+      });
+    }
+    else {
+      write(auditLogs);
+    }
+  }
+
+  /**
+   * Appends audit logs to the journal and waits until they are durable, eg when another
+   * writer failed to write them.
+   *
+   * @param auditLogs the logs to journal
+   */
+  void spill(List<AuditLog> auditLogs) {
+    List<byte[]> records = new ArrayList<>(auditLogs.size());
+    for(AuditLog auditLog : auditLogs) {
+      records.add(serialize(auditLog));
+    }
+    try {
+      journal.sync(journal.append(records));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private void write(List<AuditLog> auditLogs) {
+    if(journal.getPendingCount() == 0 && System.nanoTime() - directWritesPausedUntil >= 0) {
+      long start = System.nanoTime();
+      try {
+        transactionTemplate.executeWithoutResult(status -> auditLogSink.write(auditLogs));
+        if(System.nanoTime() - start > properties.getSlowThreshold().toNanos()) {
+          pauseDirectWrites("slow audit log writes");
+        }
+        return;
+      } catch (RuntimeException e) {
+        log.warn("Failed to write {} audit logs, journaling them", auditLogs.size(), e);
+        pauseDirectWrites("failed audit log write");
+      }
+    }
+    //runs after the business transaction committed, which a failure here must not be reported against
+    try {
+      spill(auditLogs);
+    } catch (RuntimeException e) {
+      log.error("Failed to journal {} audit logs, they are lost", auditLogs.size(), e);
+    }
+  }
+
+  private void pauseDirectWrites(String reason) {
+    directWritesPausedUntil = System.nanoTime() + properties.getCooldown().toNanos();
+    log.warn("Journaling audit logs for the next {} because of {}", properties.getCooldown(), reason);
+  }
+
+  private void ship() {
+    int batchSize = Math.max(1, properties.getShipBatchSize());
+    int maxAttempts = Math.max(1, properties.getMaxReplayAttempts());
+    int readSize = batchSize;
+    int failures = 0;
+    while(running) {
+      try {
+        AuditJournal.Batch batch = journal.read(readSize);
+        if(batch.isEmpty()) {
+          TimeUnit.MILLISECONDS.sleep(properties.getPollInterval().toMillis());
+          continue;
+        }
+
+        List<AuditLog> auditLogs = deserialize(batch);
+        if(auditLogs.isEmpty()) {
+          continue;
+        }
+        AuditJournal.Batch readable = batch.head(auditLogs.size());
+        try {
+          transactionTemplate.executeWithoutResult(status -> auditLogSink.write(auditLogs));
+        } catch (RuntimeException e) {
+          if(isTransient(e)) {
+            log.warn("Failed to replay {} journaled audit logs, retrying", auditLogs.size(), e);
+          }
+          //while splitting, the failure is already known not to go away
+          else if(++failures >= maxAttempts || readSize < batchSize) {
+            failures = 0;
+            if(readable.size() == 1) {
+              deadLetter(readable, "the database rejects it", e);
+              readSize = batchSize;
+              continue;
+            }
+            readSize = (readable.size() + 1) / 2;
+            log.warn("Failed to replay {} journaled audit logs, splitting them to find the rejected ones",
+                auditLogs.size(), e);
+          }
+          else {
+            log.warn("Failed to replay {} journaled audit logs, retrying", auditLogs.size(), e);
+          }
+          TimeUnit.MILLISECONDS.sleep(properties.getPollInterval().toMillis());
+          continue;
+        }
+        journal.commit(readable);
+        failures = 0;
+        readSize = Math.min(batchSize, readSize * 2);
+      } catch (InterruptedException e) {
+        //shutting down: whatever is left is replayed on the next start
+        return;
+      } catch (IOException | RuntimeException e) {
+        log.error("Audit journal replay failed", e);
+        try {
+          TimeUnit.MILLISECONDS.sleep(properties.getPollInterval().toMillis());
+        } catch (InterruptedException interrupted) {
+          return;
+        }
+      }
+    }
+  }
+
+  /**
+   * Reads back the audit logs of a batch, up to the first record that cannot be read. If that is
+   * the first record of the batch, it is moved to the dead-letter file.
+   *
+   * @return the audit logs of the readable records at the start of the batch
+   */
+  private List<AuditLog> deserialize(AuditJournal.Batch batch) throws IOException {
+    List<AuditLog> auditLogs = new ArrayList<>(batch.size());
+    for(byte[] record : batch.getRecords()) {
+      try {
+        auditLogs.add(deserialize(record));
+      } catch (IOException | RuntimeException e) {
+        if(auditLogs.isEmpty()) {
+          deadLetter(batch.head(1), "it cannot be read", e);
+        }
+        break;
+      }
+    }
+    return auditLogs;
+  }
+
+  private void deadLetter(AuditJournal.Batch batch, String reason, Exception cause) throws IOException {
+    journal.deadLetter(batch);
+    log.error("Moved the journaled audit log at {} to the dead-letter file, because {}",
+        AuditJournal.describe(batch.getPosition(0)), reason, cause);
+  }
+
+  /**
+   * @return whether a failure is about reaching the database rather than about the audit logs
+   *         written, so that replaying the same audit logs later can succeed
+   */
+  private static boolean isTransient(RuntimeException e) {
+    return e instanceof TransientDataAccessException
+        || e instanceof RecoverableDataAccessException
+        || e instanceof DataAccessResourceFailureException
+        || e instanceof CannotCreateTransactionException
+        || e instanceof TransactionTimedOutException;
+  }
+
+  private static byte[] serialize(AuditLog auditLog) {
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeByte(RECORD_VERSION);
+      writeString(out, auditLog.getAuditor());
+      writeInteger(out, auditLog.getAuditorId());
+      out.writeLong(auditLog.getDateTime().getEpochSecond());
+      out.writeInt(auditLog.getDateTime().getNano());
+      writeString(out, auditLog.getEntityClassName());
+      writeInteger(out, auditLog.getEntityClassId());
+      writeString(out, auditLog.getEntityId());
+      writeString(out, auditLog.getEntityNaturalId());
+      writeString(out, auditLog.getAction().name());
+      writeBytes(out, auditLog.getAffectedFieldsBytes());
+      writeBytes(out, auditLog.getAffectedFieldsBinary());
+      writeFieldChanges(out, auditLog.getFieldChanges());
+      out.flush();
+      return bytes.toByteArray();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static AuditLog deserialize(byte[] record) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+    byte version = in.readByte();
+    if(version != RECORD_VERSION) {
+      throw new IOException("Unknown audit journal record version " + version);
+    }
+    AuditLog auditLog = new AuditLog();
+    auditLog.setAuditor(readString(in));
+    auditLog.setAuditorId(readInteger(in));
+    auditLog.setDateTime(Instant.ofEpochSecond(in.readLong(), in.readInt()));
+    auditLog.setEntityClassName(readString(in));
+    auditLog.setEntityClassId(readInteger(in));
+    auditLog.setEntityId(readString(in));
+    auditLog.setEntityNaturalId(readString(in));
+    auditLog.setAction(AuditedAction.valueOf(readString(in)));
+    auditLog.setAffectedFieldsBytes(readBytes(in));
+    auditLog.setAffectedFieldsBinary(readBytes(in));
+    auditLog.setFieldChanges(readFieldChanges(in));
+    return auditLog;
+  }
+
+  private static void writeFieldChanges(DataOutputStream out, List<AuditFieldChange> fieldChanges) throws IOException {
+    out.writeInt(fieldChanges != null ? fieldChanges.size() : -1);
+    if(fieldChanges != null) {
+      for(AuditFieldChange fieldChange : fieldChanges) {
+        writeString(out, fieldChange.getEntityClassName());
+        writeString(out, fieldChange.getFieldName());
+        out.writeBoolean(fieldChange.getOldValueHash() != null);
+        if(fieldChange.getOldValueHash() != null) {
+          out.writeLong(fieldChange.getOldValueHash());
+        }
+        out.writeLong(fieldChange.getNewValueHash());
+      }
+    }
+  }
+
+  private static List<AuditFieldChange> readFieldChanges(DataInputStream in) throws IOException {
+    int count = in.readInt();
+    if(count < 0) {
+      return null;
+    }
+    List<AuditFieldChange> fieldChanges = new ArrayList<>(count);
+    for(int i = 0; i < count; i++) {
+      fieldChanges.add(AuditFieldChange.builder()
+          .entityClassName(readString(in))
+          .fieldName(readString(in))
+          .oldValueHash(in.readBoolean() ? in.readLong() : null)
+          .newValueHash(in.readLong())
+          .build());
+    }
+    return fieldChanges;
+  }
+
+  private static void writeString(DataOutputStream out, String value) throws IOException {
+    writeBytes(out, value != null ? value.getBytes(StandardCharsets.UTF_8) : null);
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    byte[] bytes = readBytes(in);
+    return bytes != null ? new String(bytes, StandardCharsets.UTF_8) : null;
+  }
+
+  private static void writeInteger(DataOutputStream out, Integer value) throws IOException {
+    out.writeBoolean(value != null);
+    if(value != null) {
+      out.writeInt(value);
+    }
+  }
+
+  private static Integer readInteger(DataInputStream in) throws IOException {
+    return in.readBoolean() ? in.readInt() : null;
+  }
+
+  private static void writeBytes(DataOutputStream out, byte[] value) throws IOException {
+    out.writeInt(value != null ? value.length : -1);
+    if(value != null) {
+      out.write(value);
+    }
+  }
+
+  private static byte[] readBytes(DataInputStream in) throws IOException {
+    int length = in.readInt();
+    if(length < 0) {
+      return null;
+    }
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return bytes;
+  }
+}
@@ -0,0 +1,36 @@
+package gr.antopapak.persistent.audit.service;
+
+import gr.antopapak.persistent.audit.domain.AuditLog;
+import gr.antopapak.persistent.audit.repository.AuditFieldChangeRepository;
+import gr.antopapak.persistent.audit.repository.AuditLogRepository;
+import java.util.List;
+import lombok.AllArgsConstructor;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+/**
+ * The default {@link AuditLogSink}, which writes audit logs through the {@link AuditLogRepository},
+ * and their field changes, if indexed, through the {@link AuditFieldChangeRepository}.
+ */
+@Component
+@ConditionalOnProperty(prefix = "persistent.audit.sink", name = "type", havingValue = "JPA", matchIfMissing = true)
+@AllArgsConstructor
+class JpaAuditLogSink implements AuditLogSink {
+
+  private final AuditLogRepository auditLogRepository;
+  private final AuditFieldChangeRepository auditFieldChangeRepository;
+
+  @Override
+  public void write(List<AuditLog> auditLogs) {
+    if(auditLogs.size() == 1) {
+      auditLogRepository.save(auditLogs.get(0));
+    }
+    else {
+      auditLogRepository.saveAll(auditLogs);
+    }
+
+    if(AuditFieldIndex.hasFieldChanges(auditLogs)) {
+      auditFieldChangeRepository.saveAll(AuditFieldIndex.fieldChangesOf(auditLogs));
+    }
+  }
+}
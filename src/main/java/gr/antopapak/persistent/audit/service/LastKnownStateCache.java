@@ -0,0 +1,367 @@
+package gr.antopapak.persistent.audit.service;
+
+import static java.util.Objects.isNull;
+import static java.util.Objects.nonNull;
+import gr.antopapak.persistent.audit.config.PersistentAuditProperties;
+import java.io.Serializable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import org.hibernate.HibernateException;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.persister.entity.EntityPersister;
+import org.hibernate.proxy.HibernateProxy;
+import org.hibernate.type.Type;
+import org.springframework.orm.jpa.EntityManagerFactoryUtils;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Keeps the state of audited entities after their last save, so that the next save of a
+ * detached entity needs no database read to find its before-state.<br>
+ *
+ * States are the persistent property values of the entity, deep copied by their Hibernate
+ * types as in the loaded state of a session, keyed by entity class and id. They are compared
+ * with the same types, so an unchanged entity is detected exactly. A state is stored only
+ * once the transaction of its save commits, expires after the time to live, and is evicted
+ * least recently used first when the estimated size of all states exceeds the maximum.
+ * Entities with collections or lazy properties are never cached, as their state cannot be
+ * copied without loading them.
+ * <p>
+ * The cache only sees the saves of this JVM. A save that leaves its entity as it was after its
+ * last save is therefore not taken as changing nothing, since the entity may have been changed
+ * elsewhere in between, unless {@code skip-unchanged} is set: its before-state is read from the
+ * database instead.
+ *
+ * @see PersistentAuditProperties.StateCache
+ */
+@Component
+public class LastKnownStateCache {
+
+  /**
+   * Returned by {@link #stateBefore(Object, Object)} for an entity that has the same state as after
+   * its last save, when such saves are not audited.
+   */
+  public static final Object UNCHANGED = new Object();
+
+  private final PersistentAuditProperties.StateCache properties;
+  private final EntityManagerFactory entityManagerFactory;
+  private final Map<Class<?>, Optional<EntityPersister>> persisters = new ConcurrentHashMap<>();
+  private final Map<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+  private long size;
+
+  private final AtomicLong hitCount = new AtomicLong();
+  private final AtomicLong missCount = new AtomicLong();
+  private final AtomicLong unchangedCount = new AtomicLong();
+  private final AtomicLong evictionCount = new AtomicLong();
+  private final AtomicLong expiredCount = new AtomicLong();
+  private final AtomicLong invalidationCount = new AtomicLong();
+
+  LastKnownStateCache(PersistentAuditProperties properties, EntityManagerFactory entityManagerFactory) {
+    this.properties = properties.getStateCache();
+    this.entityManagerFactory = entityManagerFactory;
+  }
+
+  public boolean isEnabled() {
+    return properties.isEnabled();
+  }
+
+  /**
+   * Returns the state of an entity before the save about to happen, as far as the cache knows.
+   *
+   * @param entity the detached entity about to be saved
+   * @param id the id of the entity
+   * @return {@link #UNCHANGED} if the entity has the same state as after its last save and such
+   * saves are not audited, a detached copy of that state if it changed, or null if the state is
+   * not cached or the entity is unchanged but must still be diffed against the database
+   */
+  Object stateBefore(Object entity, Object id) {
+    if(!isEnabled() || !(id instanceof Serializable)) {
+      return null;
+    }
+    EntityPersister persister = persisterOf(entity);
+    if(isNull(persister)) {
+      return null;
+    }
+    Object[] state = get(new Key(persister.getMappedClass(), id));
+    if(isNull(state)) {
+      return null;
+    }
+
+    try {
+      if(isUnchanged(persister, persister.getPropertyValues(entity), state)) {
+        if(!properties.isSkipUnchanged()) {
+          return null;
+        }
+        unchangedCount.incrementAndGet();
+        return UNCHANGED;
+      }
+      Object copy = persister.instantiate((Serializable) id, currentSession());
+      persister.setPropertyValues(copy, state);
+      return copy;
+    } catch (RuntimeException e) {
+      //eg an id the persister cannot set without a session, fall back to reading from the database
+      return null;
+    }
+  }
+
+  /**
+   * Remembers the state of an entity after a save, once the current transaction commits, or right
+   * away if there is none. Until then the previous state is forgotten, so that neither a rolled
+   * back save nor the state before a save of the same transaction is ever taken as the last state.
+   * The state is copied from the saved instance only when the transaction commits, so that changes
+   * made to the managed instance after the save, and flushed with it, are part of it.
+   *
+   * @param entity the saved entity, ie the managed instance when the save merged a detached one
+   * @param id the id of the entity
+   */
+  void put(Object entity, Object id) {
+    if(!isEnabled() || isNull(id)) {
+      return;
+    }
+    EntityPersister persister = persisterOf(entity);
+    if(isNull(persister)) {
+      return;
+    }
+    Key key = new Key(persister.getMappedClass(), id);
+
+    if(TransactionSynchronizationManager.isSynchronizationActive()) {
+      remove(key);
+      TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+        @Override
+        public void afterCommit() {
+          store(key, persister, entity);
+        }
+      });
+    }
+    else {
+      store(key, persister, entity);
+    }
+  }
+
+  /**
+   * Forgets the state of an entity, eg when it is deleted.
+   *
+   * @param type the class of the entity
+   * @param id the id of the entity
+   */
+  void invalidate(Class<?> type, Object id) {
+    if(!isEnabled() || isNull(id)) {
+      return;
+    }
+    EntityPersister persister = persisterOf(type);
+    if(nonNull(persister) && remove(new Key(persister.getMappedClass(), id))) {
+      invalidationCount.incrementAndGet();
+    }
+  }
+
+  public long getHitCount() {
+    return hitCount.get();
+  }
+
+  public long getMissCount() {
+    return missCount.get();
+  }
+
+  /**
+   * @return the number of saves recognized as not changing their entity, and not audited
+   */
+  public long getUnchangedCount() {
+    return unchangedCount.get();
+  }
+
+  /**
+   * @return the number of states evicted to stay within the maximum size
+   */
+  public long getEvictionCount() {
+    return evictionCount.get();
+  }
+
+  public long getExpiredCount() {
+    return expiredCount.get();
+  }
+
+  public long getInvalidationCount() {
+    return invalidationCount.get();
+  }
+
+  public synchronized int getEntryCount() {
+    return entries.size();
+  }
+
+  /**
+   * @return the estimated size in bytes of the cached states
+   */
+  public synchronized long getSize() {
+    return size;
+  }
+
+  private synchronized Object[] get(Key key) {
+    Entry entry = entries.get(key);
+    if(nonNull(entry) && entry.expiresAt - System.nanoTime() < 0) {
+      removeEntry(key);
+      expiredCount.incrementAndGet();
+      entry = null;
+    }
+    if(isNull(entry)) {
+      missCount.incrementAndGet();
+      return null;
+    }
+    hitCount.incrementAndGet();
+    return entry.state;
+  }
+
+  private void store(Key key, EntityPersister persister, Object entity) {
+    Object[] state;
+    try {
+      state = copyOf(persister, persister.getPropertyValues(entity));
+    } catch (HibernateException e) {
+      return;
+    }
+    store(key, state);
+  }
+
+  private synchronized void store(Key key, Object[] state) {
+    long entrySize = sizeOf(state);
+    if(entrySize > properties.getMaxSize()) {
+      return;
+    }
+    removeEntry(key);
+    entries.put(key, new Entry(state, entrySize, System.nanoTime() + properties.getTimeToLive().toNanos()));
+    size += entrySize;
+
+    Iterator<Entry> eldest = entries.values().iterator();
+    while(size > properties.getMaxSize() && eldest.hasNext()) {
+      size -= eldest.next().size;
+      eldest.remove();
+      evictionCount.incrementAndGet();
+    }
+  }
+
+  private synchronized boolean remove(Key key) {
+    return removeEntry(key);
+  }
+
+  private boolean removeEntry(Key key) {
+    Entry entry = entries.remove(key);
+    if(isNull(entry)) {
+      return false;
+    }
+    size -= entry.size;
+    return true;
+  }
+
+  private boolean isUnchanged(EntityPersister persister, Object[] current, Object[] state) {
+    Type[] types = persister.getPropertyTypes();
+    SessionFactoryImplementor factory = persister.getFactory();
+    for(int i = 0; i < types.length; i++) {
+      if(!types[i].isEqual(current[i], state[i], factory)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static Object[] copyOf(EntityPersister persister, Object[] values) {
+    Type[] types = persister.getPropertyTypes();
+    Object[] copy = new Object[values.length];
+    for(int i = 0; i < values.length; i++) {
+      copy[i] = types[i].deepCopy(values[i], persister.getFactory());
+    }
+    return copy;
+  }
+
+  /**
+   * Estimates the memory taken by a state: the entry, plus a reference and a rough size per value.
+   */
+  private static long sizeOf(Object[] state) {
+    long bytes = 96;
+    for(Object value : state) {
+      bytes += 8;
+      if(value instanceof String) {
+        bytes += 40 + 2L * ((String) value).length();
+      }
+      else if(value instanceof byte[]) {
+        bytes += 16 + ((byte[]) value).length;
+      }
+      else if(nonNull(value)) {
+        bytes += 24;
+      }
+    }
+    return bytes;
+  }
+
+  private EntityPersister persisterOf(Object entity) {
+    return entity instanceof HibernateProxy ? null : persisterOf(entity.getClass());
+  }
+
+  /**
+   * @return the persister of an entity class, or null if its state cannot be cached
+   */
+  private EntityPersister persisterOf(Class<?> type) {
+    return persisters.computeIfAbsent(type, this::cacheablePersister).orElse(null);
+  }
+
+  private Optional<EntityPersister> cacheablePersister(Class<?> type) {
+    try {
+      EntityPersister persister = entityManagerFactory.unwrap(SessionFactoryImplementor.class).getMetamodel().entityPersister(type);
+      if(persister.hasLazyProperties()) {
+        return Optional.empty();
+      }
+      for(Type propertyType : persister.getPropertyTypes()) {
+        if(propertyType.isCollectionType()) {
+          return Optional.empty();
+        }
+      }
+      return Optional.of(persister);
+    } catch (HibernateException | IllegalArgumentException e) {
+      return Optional.empty();
+    }
+  }
+
+  private SessionImplementor currentSession() {
+    EntityManager entityManager = EntityManagerFactoryUtils.getTransactionalEntityManager(entityManagerFactory);
+    return isNull(entityManager) ? null : entityManager.unwrap(SessionImplementor.class);
+  }
+
+  private static final class Key {
+
+    private final Class<?> type;
+    private final Object id;
+
+    private Key(Class<?> type, Object id) {
+      this.type = type;
+      this.id = id;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof Key && type == ((Key) o).type && id.equals(((Key) o).id);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * type.hashCode() + id.hashCode();
+    }
+  }
+
+  private static final class Entry {
+
+    private final Object[] state;
+    private final long size;
+    private final long expiresAt;
+
+    private Entry(Object[] state, long size, long expiresAt) {
+      this.state = state;
+      this.size = size;
+      this.expiresAt = expiresAt;
+    }
+  }
+}
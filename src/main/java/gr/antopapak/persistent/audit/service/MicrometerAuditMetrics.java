@@ -0,0 +1,122 @@
+package gr.antopapak.persistent.audit.service;
+
+import gr.antopapak.persistent.audit.model.AuditedAction;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The {@link AuditMetrics} used when metrics are enabled, which records them in the {@link MeterRegistry}:
+ * <ul>
+ *   <li>{@code persistent.audit.stage}: a timer per stage, tagged {@code stage} and {@code entity}
+ *   (the simple class name of the entity)</li>
+ *   <li>{@code persistent.audit.changed.fields} and {@code persistent.audit.payload.bytes}: distribution
+ *   summaries of each audit log, tagged {@code entity} and {@code action}</li>
+ *   <li>{@code persistent.audit.reflection.cache}: lookups in the reflection metadata caches,
+ *   tagged {@code cache} and {@code result} ({@code hit} or {@code miss})</li>
+ * </ul>
+ * Meters are resolved once per tag combination and kept, so recording only costs a map lookup.
+ *
+ * @see AuditMetricsConfiguration
+ */
+class MicrometerAuditMetrics implements AuditMetrics {
+
+  private final MeterRegistry registry;
+  private final Map<Stage, ConcurrentMap<Class<?>, Timer>> timers = new EnumMap<>(Stage.class);
+  private final Map<AuditedAction, ConcurrentMap<Class<?>, Summaries>> summaries = new EnumMap<>(AuditedAction.class);
+  private final ConcurrentMap<String, CacheCounts> caches = new ConcurrentHashMap<>();
+
+  MicrometerAuditMetrics(MeterRegistry registry) {
+    this.registry = registry;
+    for(Stage stage : Stage.values()) {
+      timers.put(stage, new ConcurrentHashMap<>());
+    }
+    for(AuditedAction action : AuditedAction.values()) {
+      summaries.put(action, new ConcurrentHashMap<>());
+    }
+  }
+
+  @Override
+  public long start() {
+    return System.nanoTime();
+  }
+
+  @Override
+  public void recordStage(Stage stage, Class<?> entityClass, long start) {
+    long duration = System.nanoTime() - start;
+    timers.get(stage)
+        .computeIfAbsent(entityClass, c -> Timer.builder("persistent.audit.stage")
+            .tag("stage", stage.name())
+            .tag("entity", c.getSimpleName())
+            .register(registry))
+        .record(duration, TimeUnit.NANOSECONDS);
+  }
+
+  @Override
+  public void recordPayload(Class<?> entityClass, AuditedAction action, int changedFields, int payloadBytes) {
+    Summaries entitySummaries = summaries.get(action).computeIfAbsent(entityClass, c -> new Summaries(c.getSimpleName(), action));
+    entitySummaries.changedFields.record(changedFields);
+    entitySummaries.payloadBytes.record(payloadBytes);
+  }
+
+  @Override
+  public void recordCacheGet(String cache) {
+    cacheCounts(cache).gets.increment();
+  }
+
+  @Override
+  public void recordCacheMiss(String cache) {
+    cacheCounts(cache).misses.increment();
+  }
+
+  private CacheCounts cacheCounts(String cache) {
+    CacheCounts counts = caches.get(cache);
+    return counts != null ? counts : caches.computeIfAbsent(cache, CacheCounts::new);
+  }
+
+  private final class Summaries {
+
+    private final DistributionSummary changedFields;
+    private final DistributionSummary payloadBytes;
+
+    private Summaries(String entity, AuditedAction action) {
+      this.changedFields = DistributionSummary.builder("persistent.audit.changed.fields")
+          .tag("entity", entity)
+          .tag("action", action.name())
+          .register(registry);
+      this.payloadBytes = DistributionSummary.builder("persistent.audit.payload.bytes")
+          .baseUnit("bytes")
+          .tag("entity", entity)
+          .tag("action", action.name())
+          .register(registry);
+    }
+  }
+
+  /**
+   * The lookups of a cache. Hits are counted as the lookups that were not misses,
+   * so a hit costs a single increment.
+   */
+  private final class CacheCounts {
+
+    private final LongAdder gets = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    private CacheCounts(String cache) {
+      FunctionCounter.builder("persistent.audit.reflection.cache", this, c -> c.gets.sum() - c.misses.sum())
+          .tag("cache", cache)
+          .tag("result", "hit")
+          .register(registry);
+      FunctionCounter.builder("persistent.audit.reflection.cache", this, c -> c.misses.sum())
+          .tag("cache", cache)
+          .tag("result", "miss")
+          .register(registry);
+    }
+  }
+}
@@ -0,0 +1,32 @@
+package gr.antopapak.persistent.audit.service;
+
+import gr.antopapak.persistent.audit.model.AuditedAction;
+
+/**
+ * The {@link AuditMetrics} used when metrics are disabled or cannot be recorded, which records nothing.
+ *
+ * @see AuditMetricsConfiguration
+ */
+class NoopAuditMetrics implements AuditMetrics {
+
+  @Override
+  public long start() {
+    return 0;
+  }
+
+  @Override
+  public void recordStage(Stage stage, Class<?> entityClass, long start) {
+  }
+
+  @Override
+  public void recordPayload(Class<?> entityClass, AuditedAction action, int changedFields, int payloadBytes) {
+  }
+
+  @Override
+  public void recordCacheGet(String cache) {
+  }
+
+  @Override
+  public void recordCacheMiss(String cache) {
+  }
+}
@@ -0,0 +1,139 @@
+package gr.antopapak.persistent.audit.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import gr.antopapak.persistent.audit.config.PersistentAuditProperties;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Future;
+import javax.annotation.PreDestroy;
+import org.springframework.stereotype.Component;
+
+/**
+ * Builds the audit logs of a batch, ie reads, diffs and serializes the fields of each entity,
+ * on a dedicated {@link ForkJoinPool}.<br>
+ *
+ * Batches smaller than the threshold, and every batch when parallel building is not enabled,
+ * are built on the calling thread. Larger ones are split into contiguous chunks, a few per
+ * thread of the pool, while the calling thread waits. Either way the results keep the order
+ * of the batch. State bound to the calling thread, such as the current auditor, must be
+ * resolved before the batch is handed over. Tasks must not access the database: a worker
+ * would take a connection of its own while the calling thread holds one, and a few concurrent
+ * batches could exhaust the connection pool.
+ *
+ * @see PersistentAuditProperties.Parallel
+ */
+@Component
+class ParallelAuditBuilder {
+
+  /**
+   * Chunks per thread, so that a thread that finishes early can take over the work of a slower one.
+   */
+  private static final int CHUNKS_PER_THREAD = 4;
+
+  private final PersistentAuditProperties.Parallel properties;
+  private ForkJoinPool pool;
+
+  ParallelAuditBuilder(PersistentAuditProperties properties) {
+    this.properties = properties.getParallel();
+  }
+
+  /**
+   * The work done for a single entity of a batch.
+   */
+  @FunctionalInterface
+  interface Task<T> {
+
+    /**
+     * @param index the position of the entity in the batch
+     */
+    T build(int index) throws IllegalAccessException, JsonProcessingException;
+  }
+
+  /**
+   * Runs a task for each entity of a batch.
+   *
+   * @param size the number of entities in the batch
+   * @param task the work for a single entity
+   * @return the results of the task, in the order of the batch
+   */
+  <T> List<T> buildAll(int size, Task<T> task) throws IllegalAccessException, JsonProcessingException {
+    if(!properties.isEnabled() || size < Math.max(2, properties.getThreshold())) {
+      List<T> results = new ArrayList<>(size);
+      for(int i = 0; i < size; i++) {
+        results.add(task.build(i));
+      }
+      return results;
+    }
+
+    ForkJoinPool pool = pool();
+    Object[] results = new Object[size];
+    int chunks = Math.min(size, pool.getParallelism() * CHUNKS_PER_THREAD);
+    List<Callable<Void>> tasks = new ArrayList<>(chunks);
+    for(int c = 0; c < chunks; c++) {
+      int from = (int) ((long) size * c / chunks);
+      int to = (int) ((long) size * (c + 1) / chunks);
+      tasks.add(() -> {
+        for(int i = from; i < to; i++) {
+          results[i] = task.build(i);
+        }
+        return null;
+      });
+    }
+
+    for(Future<Void> future : pool.invokeAll(tasks)) {
+      try {
+        future.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException("Interrupted while building audit logs", e);
+      } catch (ExecutionException e) {
+        throw rethrow(e.getCause());
+      }
+    }
+
+    @SuppressWarnings("unchecked")
+    List<T> built = (List<T>) Arrays.asList(results);
+    return built;
+  }
+
+  private static RuntimeException rethrow(Throwable cause) throws IllegalAccessException, JsonProcessingException {
+    if(cause instanceof IllegalAccessException) {
+      throw (IllegalAccessException) cause;
+    }
+    if(cause instanceof JsonProcessingException) {
+      throw (JsonProcessingException) cause;
+    }
+    if(cause instanceof RuntimeException) {
+      throw (RuntimeException) cause;
+    }
+    if(cause instanceof Error) {
+      throw (Error) cause;
+    }
+    return new IllegalStateException("Cannot build audit logs", cause);
+  }
+
+  private synchronized ForkJoinPool pool() {
+    if(pool == null) {
+      int parallelism = properties.getParallelism() > 0 ? properties.getParallelism() : Runtime.getRuntime().availableProcessors();
+      pool = new ForkJoinPool(parallelism, p -> {
+        ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+        thread.setName("persistent-audit-builder-" + thread.getPoolIndex());
+        return thread;
+      }, null, false);
+    }
+    return pool;
+  }
+
+  @PreDestroy
+  synchronized void stop() {
+    if(pool != null) {
+      pool.shutdownNow();
+      pool = null;
+    }
+  }
+}
@@ -3,18 +3,23 @@ package gr.antopapak.persistent.audit.service;
 import static java.util.Objects.isNull;
 import static java.util.Objects.requireNonNull;
 import gr.antopapak.persistent.audit.annotation.PersistentLogAudit;
+import gr.antopapak.persistent.audit.differ.EntityDiffer;
 import java.lang.annotation.Annotation;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.metamodel.EntityType;
+import lombok.extern.slf4j.Slf4j;
 import org.hibernate.annotations.NaturalId;
+import org.springframework.context.event.ContextRefreshedEvent;
+import org.springframework.context.event.EventListener;
 import org.springframework.data.annotation.CreatedBy;
 import org.springframework.data.annotation.CreatedDate;
 import org.springframework.data.annotation.Id;
@@ -24,8 +29,13 @@ import org.springframework.stereotype.Component;
 
 
 /**
- * A class that stores fields and metadata about them, grouped by classes.
+ * A class that stores fields and metadata about them, grouped by classes.<br>
+ *
+ * Metadata is kept in {@link ClassValue}s, so lookups are lock-free and safe to
+ * perform concurrently, and it is unloaded together with the classes it describes.
+ * Lookups and misses are counted in the {@link AuditMetrics}, per cache.
  */
+@Slf4j
 @Component
 class ReflectionCache {
 
@@ -39,11 +49,54 @@ class ReflectionCache {
       PersistentLogAudit.Exclude.class
   );
 
-  private final static Map<String, List<Field>> loggableFields = new HashMap<>();
-  private final static Map<String, Field> naturalIdFields = new HashMap<>();
-  private final static Map<String, Field> idFields = new HashMap<>();
-  private final static Map<String, Method> findByIdMethods = new HashMap<>();
+  private final AuditMetrics metrics;
 
+  private final CachedValue<ClassMetadata> classMetadata = new CachedValue<>("metadata") {
+    @Override
+    ClassMetadata compute(Class<?> type) {
+      return new ClassMetadata(getAllFieldsToLog(type));
+    }
+  };
+
+  private final CachedValue<Optional<FieldAccessor>> idFields = new CachedValue<>("id") {
+    @Override
+    Optional<FieldAccessor> compute(Class<?> type) {
+      return Optional.ofNullable(getEntityIdField(type)).map(FieldAccessor::new);
+    }
+  };
+
+  private final CachedValue<Optional<Method>> findByIdMethods = new CachedValue<>("findById") {
+    @Override
+    Optional<Method> compute(Class<?> type) {
+      return Optional.ofNullable(findMethod(type, "findById"));
+    }
+  };
+
+  private final CachedValue<Optional<Method>> findAllByIdMethods = new CachedValue<>("findAllById") {
+    @Override
+    Optional<Method> compute(Class<?> type) {
+      return Optional.ofNullable(findMethod(type, "findAllById"));
+    }
+  };
+
+  private final CachedValue<AuditPolicy> policies = new CachedValue<>("policy") {
+    @Override
+    AuditPolicy compute(Class<?> type) {
+      return AuditPolicy.of(type.getAnnotation(PersistentLogAudit.class));
+    }
+  };
+
+  private final CachedValue<Optional<EntityDiffer<Object>>> differs = new CachedValue<>("differ") {
+    @Override
+    Optional<EntityDiffer<Object>> compute(Class<?> type) {
+      return Optional.ofNullable(loadGeneratedDiffer(type));
+    }
+  };
+
+
+  ReflectionCache(AuditMetrics metrics) {
+    this.metrics = metrics;
+  }
 
   /**
    * Returns a list of fields that are eligible from auditing.<br>
@@ -54,19 +107,22 @@ class ReflectionCache {
    * @param c the class to get the fields of
    * @return all the loggable fields or null is c is null
    */
-  List<Field> getLoggableFieldsForClass(Class<?> c) {
+  List<FieldAccessor> getLoggableFieldsForClass(Class<?> c) {
     if(isNull(c)) {
       return null;
     }
 
-    List<Field> cachedFields = loggableFields.get(getKey(c));
-
-    if(isNull(cachedFields)) {
-      cachedFields = getAllFieldsToLog(c);
-      loggableFields.put(getKey(c), cachedFields);
-    }
+    return classMetadata.lookup(c).schema.getFields();
+  }
 
-    return cachedFields;
+  /**
+   * Returns the loggable fields of a class, as a {@link FieldSchema}.
+   *
+   * @param c the class to get the schema of
+   * @return the schema of the loggable fields
+   */
+  FieldSchema getSchemaForClass(Class<?> c) {
+    return classMetadata.lookup(c).schema;
   }
 
   /**
@@ -75,14 +131,8 @@ class ReflectionCache {
    * @param c the class
    * @return the id field
    */
-  Field getIdForClass(Class<?> c) {
-    String key = getKey(c);
-    if(!idFields.containsKey(key)) {
-      Field id = getEntityIdField(c);
-      idFields.put(key, id);
-    }
-
-    return idFields.get(key);
+  FieldAccessor getIdForClass(Class<?> c) {
+    return idFields.lookup(c).orElse(null);
   }
 
   /**
@@ -90,18 +140,8 @@ class ReflectionCache {
    * @param c the class
    * @return the natualId field or null
    */
-  Field getNaturalIdForClass(Class<?> c) {
-    if(!naturalIdFields.containsKey(getKey(c))) {
-      //this is called just for its side effects
-      getLoggableFieldsForClass(c);
-
-      //if there is still no NaturalId, keep the key with a null value
-      //so that we know we've already searched
-      if(!naturalIdFields.containsKey(getKey(c))) {
-        naturalIdFields.put(getKey(c), null);
-      }
-    }
-    return naturalIdFields.get(getKey(c));
+  FieldAccessor getNaturalIdForClass(Class<?> c) {
+    return classMetadata.lookup(c).naturalId;
   }
 
   /**
@@ -114,30 +154,105 @@ class ReflectionCache {
       return null;
     }
 
-    Method findById = findByIdMethods.get(getKey(c));
+    return findByIdMethods.lookup(c).orElse(null);
+  }
 
-    if(!findByIdMethods.containsKey(getKey(c))) {
+  /**
+   * Returns the findAllById method of a class if present
+   * @param c the class
+   * @return the findAllById method or null
+   */
+  Method getFindAllByIdMethodForClass(Class<?> c) {
+    if(c == null) {
+      return null;
+    }
 
-      Class<?> clazz = c;
-      while(findById == null && clazz != null) {
-        findById = Arrays.stream(clazz.getMethods()).filter(method -> method.getName().equals("findById")).findFirst().orElse(null);
-        clazz = clazz.getSuperclass();
-      }
+    return findAllByIdMethods.lookup(c).orElse(null);
+  }
 
-      if(findById != null) {
-        findById.setAccessible(true);
-      }
-      findByIdMethods.put(getKey(c), findById);
+  /**
+   * Returns the {@link EntityDiffer} generated at compile time for a class, if present.
+   * @param c the class
+   * @return the generated differ or null
+   */
+  EntityDiffer<Object> getDifferForClass(Class<?> c) {
+    if(c == null) {
+      return null;
     }
 
-    return findById;
+    return differs.lookup(c).orElse(null);
   }
 
-  private String getKey(Class<?> c) {
+  /**
+   * Returns the audit policy of a class, from the attributes of its {@link PersistentLogAudit}.
+   * @param c the class
+   * @return the policy, or the default policy if the class is not annotated
+   */
+  AuditPolicy getPolicyForClass(Class<?> c) {
     if(c == null) {
-      return "";
+      return AuditPolicy.DEFAULT;
     }
-    return c.getCanonicalName();
+
+    return policies.lookup(c);
+  }
+
+  /**
+   * Resolves the metadata of every JPA entity annotated with {@link PersistentLogAudit},
+   * so that the first audited save of each entity does not pay for the reflection scans.
+   *
+   * @param event the refresh event of the application context
+   */
+  @EventListener
+  void warmUp(ContextRefreshedEvent event) {
+    EntityManagerFactory entityManagerFactory = event.getApplicationContext()
+        .getBeanProvider(EntityManagerFactory.class)
+        .getIfUnique();
+    if(isNull(entityManagerFactory)) {
+      return;
+    }
+
+    for(EntityType<?> entityType : entityManagerFactory.getMetamodel().getEntities()) {
+      Class<?> type = entityType.getJavaType();
+      if(type != null && type.isAnnotationPresent(PersistentLogAudit.class)) {
+        classMetadata.lookup(type);
+        idFields.lookup(type);
+        policies.lookup(type);
+        differs.lookup(type);
+      }
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private EntityDiffer<Object> loadGeneratedDiffer(Class<?> type) {
+    if(!type.isAnnotationPresent(PersistentLogAudit.class)) {
+      return null;
+    }
+    try {
+      Class<?> differClass = Class.forName(type.getName() + EntityDiffer.GENERATED_SUFFIX, true, type.getClassLoader());
+      if(!EntityDiffer.class.isAssignableFrom(differClass)) {
+        return null;
+      }
+      return (EntityDiffer<Object>) differClass.getDeclaredConstructor().newInstance();
+    } catch (ClassNotFoundException e) {
+      return null;
+    } catch (ReflectiveOperationException | LinkageError e) {
+      log.warn("Cannot load the generated differ of {}, falling back to reflection", type.getName(), e);
+      return null;
+    }
+  }
+
+  private Method findMethod(Class<?> c, String name) {
+    Method method = null;
+    Class<?> clazz = c;
+    while(method == null && clazz != null) {
+      method = Arrays.stream(clazz.getMethods()).filter(m -> m.getName().equals(name)).findFirst().orElse(null);
+      clazz = clazz.getSuperclass();
+    }
+
+    if(method != null) {
+      method.setAccessible(true);
+    }
+    return method;
   }
 
   /**
@@ -168,12 +283,6 @@ class ReflectionCache {
     List<Field> declaredLoggableFields = Arrays
         .stream(type.getDeclaredFields())
         .filter(filter)
-        .peek(f -> {
-          f.setAccessible(true);
-          if (isNaturalId(f)) {
-            naturalIdFields.put(getKey(type), f);
-          }
-        })
         .collect(Collectors.toList());
 
     fields.addAll(declaredLoggableFields);
@@ -191,7 +300,7 @@ class ReflectionCache {
         && Arrays.stream(field.getDeclaredAnnotations()).map(Annotation::annotationType).noneMatch(excludedAnnotations::contains);
   }
 
-  private boolean isNaturalId(Field field) {
+  private static boolean isNaturalId(Field field) {
     return field != null
         && field.isAnnotationPresent(NaturalId.class);
   }
@@ -204,7 +313,7 @@ class ReflectionCache {
    */
   private Field getEntityIdField(Class<?> c) {
     Predicate<Field> isId = f ->
-        f.isAnnotationPresent(Id.class) || f.isAnnotationPresent(org.springframework.data.annotation.Id.class);
+        f.isAnnotationPresent(javax.persistence.Id.class) || f.isAnnotationPresent(Id.class);
     List<Field> fields = getAllFields(new ArrayList<>(), c, isId);
 
     if(fields.isEmpty()) {
@@ -216,4 +325,52 @@ class ReflectionCache {
 
     return fields.get(0);
   }
+
+  /**
+   * A {@link ClassValue} whose lookups are counted in the {@link AuditMetrics}.
+   */
+  private abstract class CachedValue<T> extends ClassValue<T> {
+
+    private final String name;
+
+    private CachedValue(String name) {
+      this.name = name;
+    }
+
+    abstract T compute(Class<?> type);
+
+    T lookup(Class<?> type) {
+      metrics.recordCacheGet(name);
+      return get(type);
+    }
+
+    @Override
+    protected final T computeValue(Class<?> type) {
+      metrics.recordCacheMiss(name);
+      return compute(type);
+    }
+  }
+
+  /**
+   * The cached metadata of a single class.
+   */
+  private static final class ClassMetadata {
+
+    private final FieldSchema schema;
+    private final FieldAccessor naturalId;
+
+    private ClassMetadata(List<Field> fields) {
+      List<FieldAccessor> accessors = new ArrayList<>(fields.size());
+      FieldAccessor naturalIdAccessor = null;
+      for(Field field : fields) {
+        FieldAccessor accessor = new FieldAccessor(field);
+        accessors.add(accessor);
+        if(naturalIdAccessor == null && isNaturalId(field)) {
+          naturalIdAccessor = accessor;
+        }
+      }
+      this.schema = new FieldSchema(accessors);
+      this.naturalId = naturalIdAccessor;
+    }
+  }
 }
@@ -0,0 +1,95 @@
+package gr.antopapak.persistent.audit.service;
+
+import gr.antopapak.persistent.audit.config.PersistentAuditProperties;
+import gr.antopapak.persistent.audit.model.AuditedAction;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.springframework.stereotype.Component;
+
+/**
+ * Decides when a {@link AuditedAction#SNAPSHOT} checkpoint of an entity is due.<br>
+ *
+ * The number of changes and the size of the diffs written since the last checkpoint are
+ * tracked per entity in a bounded LRU map. An entity that is not tracked (first change since
+ * startup, or evicted) starts from zero, so that the write path never queries the audit logs:
+ * its next checkpoint may then come up to {@code everyChanges} changes late. Counts are per
+ * application instance, so with several instances writing the same entity, checkpoints may
+ * be written somewhat less often.
+ *
+ * @see PersistentAuditProperties.Snapshot
+ */
+@Component
+class SnapshotTracker {
+
+  private final PersistentAuditProperties.Snapshot properties;
+  private final Map<String, Progress> progress;
+
+  SnapshotTracker(PersistentAuditProperties properties) {
+    this.properties = properties.getSnapshot();
+    int capacity = Math.max(1, this.properties.getTrackedEntities());
+    this.progress = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Progress> eldest) {
+        return size() > capacity;
+      }
+    });
+  }
+
+  boolean isEnabled() {
+    return properties.isEnabled();
+  }
+
+  /**
+   * Records a change of an entity.
+   *
+   * @param entityClassName the class name of the entity
+   * @param entityId the id of the entity
+   * @param diffBytes the size of the written diff
+   * @return true if a checkpoint should be written right after this change
+   */
+  boolean recordChange(String entityClassName, String entityId, int diffBytes) {
+    if(!isEnabled()) {
+      return false;
+    }
+
+    Progress entityProgress = progress.computeIfAbsent(key(entityClassName, entityId), k -> new Progress());
+
+    synchronized(entityProgress) {
+      entityProgress.changes++;
+      entityProgress.diffBytes += diffBytes;
+      if(entityProgress.changes >= properties.getEveryChanges() || entityProgress.diffBytes >= properties.getMaxDiffBytes()) {
+        entityProgress.changes = 0;
+        entityProgress.diffBytes = 0;
+        return true;
+      }
+      return false;
+    }
+  }
+
+  /**
+   * Records that a full state of an entity was written.
+   */
+  void recordCheckpoint(String entityClassName, String entityId) {
+    if(isEnabled()) {
+      progress.put(key(entityClassName, entityId), new Progress());
+    }
+  }
+
+  /**
+   * Stops tracking a deleted entity.
+   */
+  void forget(String entityClassName, String entityId) {
+    progress.remove(key(entityClassName, entityId));
+  }
+
+  private static String key(String entityClassName, String entityId) {
+    return entityClassName + '#' + entityId;
+  }
+
+  private static final class Progress {
+
+    private long changes;
+    private long diffBytes;
+  }
+}
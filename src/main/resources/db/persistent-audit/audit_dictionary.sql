@@ -0,0 +1,24 @@
+-- Table and columns backing AuditDictionary, required by every upgrade whatever
+-- persistent.audit.dictionary.enabled is set to: AuditLog always maps auditor_id and
+-- entity_class_id, and the retention job filters on entity_class_id, so audit logs can be
+-- neither written nor expired without them.
+-- Dictionary-encoded audit logs hold the id of their class name and auditor instead of the
+-- string, so both string columns become nullable and an id column is added for each. Logs are
+-- decoded on load whatever the setting, and logs written before the migration keep their strings.
+-- The indexes on the id columns are in audit_logs_indexes.sql.
+-- Written for PostgreSQL and H2; on MySQL use AUTO_INCREMENT for the id and
+-- MODIFY auditor VARCHAR(255) NULL (and the same for entity_class_name) to drop NOT NULL.
+-- audit_logs_partitioned_postgresql.sql already creates audit_logs with these columns.
+
+CREATE TABLE audit_dictionary (
+    id          INTEGER GENERATED BY DEFAULT AS IDENTITY,
+    kind        VARCHAR(255) NOT NULL,
+    entry_value VARCHAR(255) NOT NULL,
+    PRIMARY KEY (id),
+    CONSTRAINT uk_audit_dictionary_kind_value UNIQUE (kind, entry_value)
+);
+
+ALTER TABLE audit_logs ALTER COLUMN auditor DROP NOT NULL;
+ALTER TABLE audit_logs ALTER COLUMN entity_class_name DROP NOT NULL;
+ALTER TABLE audit_logs ADD COLUMN auditor_id INTEGER;
+ALTER TABLE audit_logs ADD COLUMN entity_class_id INTEGER;
@@ -0,0 +1,20 @@
+-- Table and indexes backing AuditFieldIndex, needed when persistent.audit.field-index.enabled is set.
+-- Every changed field of an audit log is a row, keyed by the id of its log. Hashes are the first
+-- 8 bytes of the SHA-256 digest of the audited value, so both lookups are range scans that
+-- return audit log ids in descending order:
+--   who changed field X:              (entity_class_name, field_name) prefix of idx_audit_field_changes_field
+--   when did field X become value V:  (entity_class_name, field_name, new_value_hash) prefix of idx_audit_field_changes_new_value
+-- The primary key serves the deletes of expired audit logs by id.
+-- The same indexes are declared on the AuditFieldChange entity for schema generation.
+
+CREATE TABLE audit_field_changes (
+    audit_log_id      BIGINT       NOT NULL,
+    field_name        VARCHAR(255) NOT NULL,
+    entity_class_name VARCHAR(255) NOT NULL,
+    old_value_hash    BIGINT,
+    new_value_hash    BIGINT       NOT NULL,
+    PRIMARY KEY (audit_log_id, field_name)
+);
+
+CREATE INDEX idx_audit_field_changes_field ON audit_field_changes (entity_class_name, field_name, audit_log_id);
+CREATE INDEX idx_audit_field_changes_new_value ON audit_field_changes (entity_class_name, field_name, new_value_hash, audit_log_id);
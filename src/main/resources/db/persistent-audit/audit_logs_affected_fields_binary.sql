@@ -0,0 +1,9 @@
+-- Column backing the SMILE storage format, required by every upgrade whatever
+-- persistent.audit.storage.format is set to: AuditLog maps affected_fields_binary, and every
+-- audit log insert writes it, so the application fails to write audit logs without it.
+-- Logs written in the JSON format leave it null, and logs written before the migration keep
+-- their affected_fields.
+-- Written for PostgreSQL; use MEDIUMBLOB on MySQL and VARBINARY on H2.
+-- audit_logs_partitioned_postgresql.sql already creates audit_logs with this column.
+
+ALTER TABLE audit_logs ADD COLUMN affected_fields_binary BYTEA;
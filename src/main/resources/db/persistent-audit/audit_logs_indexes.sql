@@ -0,0 +1,11 @@
+-- Indexes backing AuditHistoryService.
+-- Every history query filters on a prefix of one of these indexes and reads it in
+-- (datetime, id) order, so keyset pages are bounded range scans.
+-- The same indexes are declared on the AuditLog entity for schema generation.
+
+CREATE INDEX idx_audit_logs_entity ON audit_logs (entity_class_name, entity_id, datetime, id);
+CREATE INDEX idx_audit_logs_entity_class_id ON audit_logs (entity_class_id, entity_id, datetime, id);
+CREATE INDEX idx_audit_logs_auditor ON audit_logs (auditor, datetime, id);
+CREATE INDEX idx_audit_logs_auditor_id ON audit_logs (auditor_id, datetime, id);
+CREATE INDEX idx_audit_logs_action ON audit_logs (action, datetime, id);
+CREATE INDEX idx_audit_logs_datetime ON audit_logs (datetime, id);
@@ -0,0 +1,28 @@
+-- A PostgreSQL (11+) audit_logs table partitioned by range of datetime.
+-- Use it instead of the generated schema to enable persistent.audit.retention.partitioning.
+-- Partitions named audit_logs_pYYYYMMDD are then created ahead of time and expired as a whole
+-- by AuditRetentionManager. The primary key must include the partition key.
+-- datetime is written in the zone of persistent.audit.retention.partitioning.zone (UTC by default).
+
+CREATE TABLE audit_logs (
+    id                     BIGINT GENERATED BY DEFAULT AS IDENTITY,
+    auditor                VARCHAR(255),
+    auditor_id             INTEGER,
+    datetime               TIMESTAMP    NOT NULL,
+    entity_class_name      VARCHAR(255),
+    entity_class_id        INTEGER,
+    entity_id              VARCHAR(255) NOT NULL,
+    entity_natural_id      VARCHAR(255),
+    action                 VARCHAR(255) NOT NULL,
+    affected_fields        JSON,
+    affected_fields_binary BYTEA,
+    PRIMARY KEY (id, datetime)
+) PARTITION BY RANGE (datetime);
+
+-- Indexes on the partitioned table are created on every partition.
+CREATE INDEX idx_audit_logs_entity ON audit_logs (entity_class_name, entity_id, datetime, id);
+CREATE INDEX idx_audit_logs_entity_class_id ON audit_logs (entity_class_id, entity_id, datetime, id);
+CREATE INDEX idx_audit_logs_auditor ON audit_logs (auditor, datetime, id);
+CREATE INDEX idx_audit_logs_auditor_id ON audit_logs (auditor_id, datetime, id);
+CREATE INDEX idx_audit_logs_action ON audit_logs (action, datetime, id);
+CREATE INDEX idx_audit_logs_datetime ON audit_logs (datetime, id);
@@ -0,0 +1,18 @@
+-- Table backing AuditValueStore, needed when persistent.audit.values.enabled is set.
+-- Every large value is a row, keyed by the hex encoded SHA-256 hash of its content, and is
+-- referenced from the affected fields of the audit logs by that hash.
+-- last_referenced is updated at most once per persistent.audit.values.touch-interval, and the
+-- retention job removes the values last referenced longer than that before the oldest audit log
+-- through idx_audit_values_last_referenced.
+-- Use a binary type large enough for the biggest value, eg BYTEA on PostgreSQL or
+-- MEDIUMBLOB/LONGBLOB on MySQL.
+-- The same index is declared on the AuditValue entity for schema generation.
+
+CREATE TABLE audit_values (
+    hash            VARCHAR(64) NOT NULL,
+    content         BLOB        NOT NULL,
+    last_referenced TIMESTAMP   NOT NULL,
+    PRIMARY KEY (hash)
+);
+
+CREATE INDEX idx_audit_values_last_referenced ON audit_values (last_referenced);
@@ -0,0 +1,137 @@
+package gr.antopapak.persistent.audit.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import gr.antopapak.persistent.audit.annotation.PersistentLogAudit;
+import gr.antopapak.persistent.audit.config.PersistentAuditProperties;
+import gr.antopapak.persistent.audit.config.PersistentAuditProperties.StorageFormat;
+import gr.antopapak.persistent.audit.domain.AuditLog;
+import gr.antopapak.persistent.audit.model.AuditedAction;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class AffectedFieldsCodecTest {
+
+  static class Document {
+
+    private String title;
+    private String text;
+    private int pages;
+
+    Document(String title, String text, int pages) {
+      this.title = title;
+      this.text = text;
+      this.pages = pages;
+    }
+  }
+
+  @PersistentLogAudit(maxPayloadBytes = 100)
+  static class SmallDocument extends Document {
+
+    SmallDocument(String title, String text, int pages) {
+      super(title, text, pages);
+    }
+  }
+
+  /**
+   * Records the values it is asked to store, instead of storing them.
+   */
+  static class RecordingValueStore extends AuditValueStore {
+
+    private final List<AuditValueStore.PendingValue> stored = new ArrayList<>();
+
+    RecordingValueStore(PersistentAuditProperties properties) {
+      super(properties, null, null);
+    }
+
+    @Override
+    void storeAll(List<PendingValue> pending) {
+      stored.addAll(pending);
+    }
+  }
+
+  @Test
+  void roundTripsBinaryPayloadLargerThanFirstBufferBlock() throws Exception {
+    assertRoundTrip(StorageFormat.SMILE);
+  }
+
+  @Test
+  void roundTripsJsonPayloadLargerThanFirstBufferBlock() throws Exception {
+    assertRoundTrip(StorageFormat.JSON);
+  }
+
+  private static void assertRoundTrip(StorageFormat format) throws Exception {
+    PersistentAuditProperties properties = new PersistentAuditProperties();
+    properties.getStorage().setFormat(format);
+    ReflectionCache reflectionCache = new ReflectionCache(new NoopAuditMetrics());
+    Associations associations = new Associations(reflectionCache);
+    AffectedFieldsCodec codec = new AffectedFieldsCodec(properties, new ObjectMapper(),
+        new AffectedFieldSerializer(reflectionCache, associations),
+        new AuditDictionary(properties, null, null),
+        new AuditValueStore(properties, null, null));
+
+    String before = "a".repeat(12_000);
+    String after = "b".repeat(20_000);
+    FieldMap fieldMap = new FieldMap(reflectionCache.getSchemaForClass(Document.class), associations);
+    fieldMap.compare(new Document("draft", before, 1), new Document("final", after, 2));
+
+    AuditLog auditLog = AuditLog.builder().action(AuditedAction.UPDATE).build();
+    codec.encode(auditLog, fieldMap, AuditPolicy.DEFAULT);
+    AffectedFieldsView view = codec.decode(auditLog);
+
+    assertEquals(List.of("title", "text", "pages"), view.getFieldNames());
+    assertEquals(before, view.get("text").getBefore());
+    assertEquals(after, view.get("text").getAfter());
+    assertEquals("final", view.get("title").getAfter());
+    assertEquals(2, ((Number) view.get("pages").getAfter()).intValue());
+  }
+
+  @Test
+  void storesTheLargeValuesOfAKeptPayload() throws Exception {
+    for(StorageFormat format : StorageFormat.values()) {
+      RecordingValueStore store = new RecordingValueStore(valuesEnabled(format));
+      encode(format, store, AuditPolicy.DEFAULT);
+
+      assertEquals(2, store.stored.size(), format.name());
+    }
+  }
+
+  @Test
+  void storesNoValuesOfATruncatedPayload() throws Exception {
+    for(StorageFormat format : StorageFormat.values()) {
+      RecordingValueStore store = new RecordingValueStore(valuesEnabled(format));
+      AuditLog auditLog = encode(format, store, AuditPolicy.of(SmallDocument.class.getAnnotation(PersistentLogAudit.class)));
+
+      assertEquals(List.of(), store.stored, format.name());
+      AffectedFieldsView view = new AffectedFieldsCodec(valuesEnabled(format), new ObjectMapper(), null,
+          new AuditDictionary(valuesEnabled(format), null, null), store).decode(auditLog);
+      assertEquals(AffectedFieldsCodec.TRUNCATED, view.get("text").getAfter(), format.name());
+    }
+  }
+
+  private static PersistentAuditProperties valuesEnabled(StorageFormat format) {
+    PersistentAuditProperties properties = new PersistentAuditProperties();
+    properties.getStorage().setFormat(format);
+    properties.getValues().setEnabled(true);
+    properties.getValues().setThreshold(100);
+    return properties;
+  }
+
+  /**
+   * Encodes a change of a text larger than the value threshold, and of a small title.
+   */
+  private static AuditLog encode(StorageFormat format, AuditValueStore store, AuditPolicy policy) throws Exception {
+    PersistentAuditProperties properties = valuesEnabled(format);
+    ReflectionCache reflectionCache = new ReflectionCache(new NoopAuditMetrics());
+    Associations associations = new Associations(reflectionCache);
+    AffectedFieldsCodec codec = new AffectedFieldsCodec(properties, new ObjectMapper(),
+        new AffectedFieldSerializer(reflectionCache, associations), new AuditDictionary(properties, null, null), store);
+
+    FieldMap fieldMap = new FieldMap(reflectionCache.getSchemaForClass(Document.class), associations);
+    fieldMap.compare(new Document("draft", "a".repeat(2_000), 1), new Document("final", "b".repeat(2_000), 1));
+    AuditLog auditLog = AuditLog.builder().action(AuditedAction.UPDATE).build();
+    codec.encode(auditLog, fieldMap, policy);
+    return auditLog;
+  }
+}
@@ -0,0 +1,132 @@
+package gr.antopapak.persistent.audit.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import gr.antopapak.persistent.audit.config.PersistentAuditProperties;
+import gr.antopapak.persistent.audit.domain.AuditLog;
+import gr.antopapak.persistent.audit.model.AuditedAction;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.jupiter.api.Test;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.AbstractPlatformTransactionManager;
+import org.springframework.transaction.support.DefaultTransactionStatus;
+
+class AsyncAuditLogWriterTest {
+
+  private final PersistentAuditProperties properties = new PersistentAuditProperties();
+
+  @Test
+  void writesTheQueuedAuditLogsOnShutdownWithoutInterruptingTheWrites() throws Exception {
+    List<String> written = new CopyOnWriteArrayList<>();
+    AtomicBoolean interrupted = new AtomicBoolean();
+    AsyncAuditLogWriter writer = writer(auditLogs -> {
+      try {
+        Thread.sleep(20);
+      } catch (InterruptedException e) {
+        interrupted.set(true);
+      }
+      auditLogs.forEach(auditLog -> written.add(auditLog.getEntityId()));
+    });
+
+    writer.start();
+    writer.submit(List.of(auditLog("1"), auditLog("2"), auditLog("3"), auditLog("4"), auditLog("5")));
+    writer.stop();
+
+    assertEquals(List.of("1", "2", "3", "4", "5"), written);
+    assertFalse(interrupted.get());
+    assertEquals(0, writer.getDroppedCount());
+  }
+
+  @Test
+  void dropsTheAuditLogsLeftAfterTheShutdownTimeout() throws Exception {
+    properties.getAsync().setShutdownTimeout(Duration.ofMillis(50));
+    CountDownLatch writing = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    List<String> written = new CopyOnWriteArrayList<>();
+    AsyncAuditLogWriter writer = writer(auditLogs -> {
+      writing.countDown();
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      auditLogs.forEach(auditLog -> written.add(auditLog.getEntityId()));
+    });
+
+    writer.start();
+    writer.submit(List.of(auditLog("1")));
+    assertTrue(writing.await(10, TimeUnit.SECONDS));
+    writer.submit(List.of(auditLog("2"), auditLog("3")));
+
+    long start = System.nanoTime();
+    writer.stop();
+    assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+    assertEquals(2, writer.getDroppedCount());
+    assertEquals(0, writer.getQueueSize());
+
+    //the batch being written when the timeout expired is still written
+    release.countDown();
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while(written.isEmpty() && System.nanoTime() < deadline) {
+      Thread.sleep(5);
+    }
+    assertEquals(List.of("1"), written);
+  }
+
+  @Test
+  void rejectsAuditLogsSubmittedAfterShutdown() throws Exception {
+    List<String> written = new CopyOnWriteArrayList<>();
+    AsyncAuditLogWriter writer = writer(auditLogs -> auditLogs.forEach(auditLog -> written.add(auditLog.getEntityId())));
+
+    writer.start();
+    writer.stop();
+    writer.submit(List.of(auditLog("1")));
+
+    assertEquals(List.of(), written);
+    assertEquals(1, writer.getDroppedCount());
+  }
+
+  private AsyncAuditLogWriter writer(AuditLogSink sink) {
+    properties.getAsync().setEnabled(true);
+    properties.getAsync().setBatchSize(2);
+    properties.getAsync().setFlushInterval(Duration.ofMillis(5));
+    JournalingAuditLogWriter journalingAuditLogWriter = new JournalingAuditLogWriter(properties, sink, null);
+    return new AsyncAuditLogWriter(properties, sink, journalingAuditLogWriter, new NoopTransactionManager());
+  }
+
+  private static AuditLog auditLog(String entityId) {
+    return AuditLog.builder()
+        .dateTime(Instant.now())
+        .entityClassName("Customer")
+        .entityId(entityId)
+        .action(AuditedAction.UPDATE)
+        .build();
+  }
+
+  private static class NoopTransactionManager extends AbstractPlatformTransactionManager {
+
+    @Override
+    protected Object doGetTransaction() {
+      return new Object();
+    }
+
+    @Override
+    protected void doBegin(Object transaction, TransactionDefinition definition) {
+    }
+
+    @Override
+    protected void doCommit(DefaultTransactionStatus status) {
+    }
+
+    @Override
+    protected void doRollback(DefaultTransactionStatus status) {
+    }
+  }
+}
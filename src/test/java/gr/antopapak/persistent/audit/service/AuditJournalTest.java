@@ -0,0 +1,173 @@
+package gr.antopapak.persistent.audit.service;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class AuditJournalTest {
+
+  /**
+   * Fits two records of {@link #record(int)} (8 bytes of header and 20 of payload) per segment.
+   */
+  private static final int SEGMENT_SIZE = 64;
+
+  @TempDir
+  Path directory;
+
+  @Test
+  void replaysAppendedRecordsInOrderAfterReopening() throws IOException {
+    AuditJournal journal = new AuditJournal(directory, SEGMENT_SIZE);
+    journal.sync(journal.append(List.of(record(0), record(1), record(2))));
+    journal.sync(journal.append(List.of(record(3), record(4))));
+    journal.close();
+
+    AuditJournal reopened = new AuditJournal(directory, SEGMENT_SIZE);
+    assertEquals(5, reopened.getPendingCount());
+    assertRecords(List.of(0, 1, 2, 3, 4), reopened.read(10));
+  }
+
+  @Test
+  void resumesFromTheCommittedPositionAfterReopening() throws IOException {
+    AuditJournal journal = new AuditJournal(directory, SEGMENT_SIZE);
+    journal.sync(journal.append(List.of(record(0), record(1), record(2), record(3))));
+    journal.commit(journal.read(3));
+    journal.close();
+
+    AuditJournal reopened = new AuditJournal(directory, SEGMENT_SIZE);
+    assertEquals(1, reopened.getPendingCount());
+    assertRecords(List.of(3), reopened.read(10));
+  }
+
+  @Test
+  void discardsATornLastRecord() throws IOException {
+    AuditJournal journal = new AuditJournal(directory, SEGMENT_SIZE);
+    journal.sync(journal.append(List.of(record(0))));
+    journal.close();
+    //the header of a second record, as if the crash happened before its payload was written
+    overwrite(segment(0), 28, ByteBuffer.allocate(8).putInt(0, 20).putInt(4, 12345).array());
+
+    AuditJournal reopened = new AuditJournal(directory, SEGMENT_SIZE);
+    assertEquals(1, reopened.getPendingCount());
+    assertRecords(List.of(0), reopened.read(10));
+    assertEquals(0, ByteBuffer.wrap(Files.readAllBytes(segment(0))).getInt(28));
+
+    reopened.sync(reopened.append(List.of(record(1))));
+    assertRecords(List.of(0, 1), reopened.read(10));
+  }
+
+  @Test
+  void discardsAZeroedLastRecord() throws IOException {
+    AuditJournal journal = new AuditJournal(directory, SEGMENT_SIZE);
+    journal.sync(journal.append(List.of(record(0), record(1))));
+    journal.close();
+    //the payload of the second record never reached the disk, its header did
+    overwrite(segment(0), 28 + 8, new byte[20]);
+
+    AuditJournal reopened = new AuditJournal(directory, SEGMENT_SIZE);
+    assertEquals(1, reopened.getPendingCount());
+    assertRecords(List.of(0), reopened.read(10));
+  }
+
+  @Test
+  void commitDeletesOnlyFullyShippedSegments() throws IOException {
+    AuditJournal journal = new AuditJournal(directory, SEGMENT_SIZE);
+    journal.sync(journal.append(List.of(record(0), record(1), record(2), record(3), record(4))));
+    assertTrue(Files.exists(segment(2)));
+
+    journal.commit(journal.read(3));
+    assertFalse(Files.exists(segment(0)));
+    assertTrue(Files.exists(segment(1)));
+    assertTrue(Files.exists(segment(2)));
+    assertEquals(2, journal.getPendingCount());
+
+    journal.commit(journal.read(2));
+    assertFalse(Files.exists(segment(1)));
+    assertTrue(Files.exists(segment(2)));
+    assertEquals(0, journal.getPendingCount());
+  }
+
+  @Test
+  void headCommitsOnlyThePrefixOfABatch() throws IOException {
+    AuditJournal journal = new AuditJournal(directory, SEGMENT_SIZE);
+    journal.sync(journal.append(List.of(record(0), record(1), record(2))));
+
+    AuditJournal.Batch batch = journal.read(10);
+    journal.commit(batch.head(2));
+    assertEquals(1, journal.getPendingCount());
+    assertRecords(List.of(2), journal.read(10));
+    assertEquals(batch.getPosition(2), journal.read(10).getPosition(0));
+  }
+
+  @Test
+  void deadLetterMovesRecordsOutOfTheJournal() throws IOException {
+    AuditJournal journal = new AuditJournal(directory, SEGMENT_SIZE);
+    journal.sync(journal.append(List.of(record(0), record(1))));
+
+    journal.deadLetter(journal.read(1));
+    assertEquals(1, journal.getPendingCount());
+    assertRecords(List.of(1), journal.read(10));
+
+    ByteBuffer deadLetter = ByteBuffer.wrap(Files.readAllBytes(directory.resolve("dead-letter")));
+    assertEquals(28, deadLetter.remaining());
+    assertEquals(20, deadLetter.getInt(0));
+    byte[] payload = new byte[20];
+    deadLetter.position(8);
+    deadLetter.get(payload);
+    assertArrayEquals(record(0), payload);
+  }
+
+  @Test
+  void ignoresFilesNotNamedLikeSegments() throws IOException {
+    Files.write(directory.resolve("notes.segment"), new byte[] {1, 2, 3});
+    Files.write(directory.resolve("-000000001.segment"), new byte[] {1, 2, 3});
+    Files.write(directory.resolve("README"), new byte[] {1, 2, 3});
+
+    AuditJournal journal = new AuditJournal(directory, SEGMENT_SIZE);
+    assertEquals(0, journal.getPendingCount());
+    journal.sync(journal.append(List.of(record(0))));
+    assertRecords(List.of(0), journal.read(10));
+    assertTrue(Files.exists(segment(0)));
+    assertTrue(Files.exists(directory.resolve("notes.segment")));
+  }
+
+  /**
+   * @return a 20 byte record holding its number
+   */
+  private static byte[] record(int number) {
+    return String.format("audit log record %03d", number).getBytes(StandardCharsets.US_ASCII);
+  }
+
+  private static void assertRecords(List<Integer> expected, AuditJournal.Batch batch) {
+    List<String> records = new ArrayList<>();
+    for(byte[] record : batch.getRecords()) {
+      records.add(new String(record, StandardCharsets.US_ASCII));
+    }
+    List<String> expectedRecords = new ArrayList<>();
+    for(int number : expected) {
+      expectedRecords.add(new String(record(number), StandardCharsets.US_ASCII));
+    }
+    assertEquals(expectedRecords, records);
+  }
+
+  private Path segment(int number) {
+    return directory.resolve(String.format("%010d.segment", number));
+  }
+
+  private static void overwrite(Path file, int offset, byte[] bytes) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+      channel.write(ByteBuffer.wrap(bytes), offset);
+    }
+  }
+}
@@ -0,0 +1,65 @@
+package gr.antopapak.persistent.audit.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import gr.antopapak.persistent.audit.config.PersistentAuditProperties;
+import gr.antopapak.persistent.audit.domain.AuditLog;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import javax.persistence.EntityManagerFactory;
+
+/**
+ * An {@link AuditLogService} wired to its real collaborators, without a database: audit logs are
+ * written synchronously to an in-memory sink, and the dictionary and value store are left disabled.
+ */
+class AuditLogServiceFixture {
+
+  final PersistentAuditProperties properties;
+  final ReflectionCache reflectionCache;
+  final Associations associations;
+  final AffectedFieldsCodec codec;
+  final LastKnownStateCache lastKnownStateCache;
+  final AuditLogService service;
+
+  /**
+   * The audit logs written so far, in order.
+   */
+  final List<AuditLog> written = new ArrayList<>();
+
+  AuditLogServiceFixture(PersistentAuditProperties properties) {
+    this(properties, null);
+  }
+
+  /**
+   * @param entityManagerFactory the persistence unit of the audited entities, for the
+   * {@link LastKnownStateCache} and to look up managed entities
+   */
+  AuditLogServiceFixture(PersistentAuditProperties properties, EntityManagerFactory entityManagerFactory) {
+    this.properties = properties;
+    this.reflectionCache = new ReflectionCache(new NoopAuditMetrics());
+    this.associations = new Associations(reflectionCache);
+    AuditDictionary auditDictionary = new AuditDictionary(properties, null, null);
+    AffectedFieldSerializer serializer = new AffectedFieldSerializer(reflectionCache, associations);
+    this.codec = new AffectedFieldsCodec(properties, new ObjectMapper(), serializer,
+        auditDictionary, new AuditValueStore(properties, null, null));
+    this.lastKnownStateCache = new LastKnownStateCache(properties, entityManagerFactory);
+
+    AuditLogSink sink = written::addAll;
+    JournalingAuditLogWriter journalingAuditLogWriter = new JournalingAuditLogWriter(properties, sink, null);
+    this.service = new AuditLogService(
+        () -> Optional.of("tester"),
+        sink,
+        codec,
+        reflectionCache,
+        new AsyncAuditLogWriter(properties, sink, journalingAuditLogWriter, null),
+        journalingAuditLogWriter,
+        new EntitySnapshotResolver(entityManagerFactory),
+        new SnapshotTracker(properties),
+        new ChangeCoalescer(properties),
+        associations,
+        new NoopAuditMetrics(),
+        new ParallelAuditBuilder(properties),
+        lastKnownStateCache,
+        new AuditFieldIndex(properties, null, serializer, reflectionCache));
+  }
+}
@@ -0,0 +1,71 @@
+package gr.antopapak.persistent.audit.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import gr.antopapak.persistent.audit.annotation.PersistentLogAudit;
+import gr.antopapak.persistent.audit.config.PersistentAuditProperties;
+import gr.antopapak.persistent.audit.domain.AuditLog;
+import gr.antopapak.persistent.audit.model.AuditedAction;
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+import javax.persistence.Id;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.repository.CrudRepository;
+
+class AuditLogServiceTest {
+
+  @PersistentLogAudit
+  static class Order {
+
+    @Id
+    private Long id;
+    private String status;
+
+    Order(Long id, String status) {
+      this.id = id;
+      this.status = status;
+    }
+  }
+
+  interface OrderRepository extends CrudRepository<Order, Long> {
+  }
+
+  private final AuditLogServiceFixture fixture = new AuditLogServiceFixture(new PersistentAuditProperties());
+
+  @Test
+  void auditsDeleteByIdCalledThroughARepositoryInterface() throws Exception {
+    //deleteById is declared by CrudRepository, whose type arguments are only known to the repository extending it
+    fixture.service.createPermanentDeleteAuditLog(1L, CrudRepository.class, repository(new Order(1L, "paid")));
+
+    assertEquals(List.of(AuditedAction.DELETE), actions());
+    assertEquals("Order", fixture.written.get(0).getEntityClassName());
+    assertEquals("1", fixture.written.get(0).getEntityId());
+  }
+
+  @Test
+  void auditsDeleteByIdOfAnEntityThatIsNotFound() throws Exception {
+    fixture.service.createPermanentDeleteAuditLog(2L, CrudRepository.class, repository(null));
+
+    assertEquals(List.of(AuditedAction.DELETE), actions());
+    assertEquals("Order", fixture.written.get(0).getEntityClassName());
+    assertEquals("2", fixture.written.get(0).getEntityId());
+  }
+
+  /**
+   * @return a repository whose findById returns the given order
+   */
+  private static OrderRepository repository(Order order) {
+    return (OrderRepository) Proxy.newProxyInstance(OrderRepository.class.getClassLoader(), new Class<?>[] {OrderRepository.class},
+        (proxy, method, args) -> {
+          if("findById".equals(method.getName())) {
+            return Optional.ofNullable(order);
+          }
+          throw new UnsupportedOperationException(method.getName());
+        });
+  }
+
+  private List<AuditedAction> actions() {
+    return fixture.written.stream().map(AuditLog::getAction).collect(Collectors.toList());
+  }
+}
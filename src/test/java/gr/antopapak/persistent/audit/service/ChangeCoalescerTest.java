@@ -0,0 +1,139 @@
+package gr.antopapak.persistent.audit.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import gr.antopapak.persistent.audit.config.PersistentAuditProperties;
+import gr.antopapak.persistent.audit.domain.AuditLog;
+import gr.antopapak.persistent.audit.model.AuditedAction;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import javax.persistence.Id;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionSynchronizationUtils;
+
+class ChangeCoalescerTest {
+
+  static class Order {
+
+    @Id
+    private Long id;
+    private String status;
+    private int quantity;
+
+    Order(Long id, String status, int quantity) {
+      this.id = id;
+      this.status = status;
+      this.quantity = quantity;
+    }
+  }
+
+  private AuditLogServiceFixture fixture;
+
+  @BeforeEach
+  void beginTransaction() {
+    PersistentAuditProperties properties = new PersistentAuditProperties();
+    properties.getCoalesce().setEnabled(true);
+    fixture = new AuditLogServiceFixture(properties);
+
+    TransactionSynchronizationManager.initSynchronization();
+    TransactionSynchronizationManager.setActualTransactionActive(true);
+  }
+
+  @AfterEach
+  void endTransaction() {
+    TransactionSynchronizationManager.clear();
+  }
+
+  @Test
+  void auditsTheNetChangeFromTheFirstPreImage() throws Exception {
+    save(new Order(1L, "new", 1), new Order(1L, "paid", 1));
+    //the before-state of a later save is ignored, the first one is kept
+    save(new Order(1L, "paid", 1), new Order(1L, "shipped", 3));
+    assertTrue(fixture.written.isEmpty());
+
+    commit();
+
+    assertEquals(List.of(AuditedAction.UPDATE), actions());
+    AffectedFieldsView fields = fixture.codec.decode(fixture.written.get(0));
+    assertEquals(List.of("status", "quantity"), fields.getFieldNames());
+    assertEquals("new", fields.get("status").getBefore());
+    assertEquals("shipped", fields.get("status").getAfter());
+    assertEquals(1, ((Number) fields.get("quantity").getBefore()).intValue());
+    assertEquals(3, ((Number) fields.get("quantity").getAfter()).intValue());
+  }
+
+  @Test
+  void auditsNothingForARevertedChange() throws Exception {
+    save(new Order(1L, "new", 1), new Order(1L, "paid", 2));
+    save(null, new Order(1L, "new", 1));
+
+    commit();
+
+    assertEquals(List.of(), actions());
+  }
+
+  @Test
+  void foldsAnInsertAndItsUpdatesIntoOneInsert() throws Exception {
+    save(null, new Order(1L, "new", 1));
+    save(null, new Order(1L, "paid", 1));
+    save(null, new Order(1L, "shipped", 2));
+
+    commit();
+
+    assertEquals(List.of(AuditedAction.INSERT), actions());
+    assertEquals("1", fixture.written.get(0).getEntityId());
+  }
+
+  @Test
+  void deleteDiscardsThePendingChange() throws Exception {
+    save(new Order(1L, "new", 1), new Order(1L, "paid", 1));
+    fixture.service.createPermanentDeleteAuditLog(new Order(1L, "paid", 1), 1L);
+
+    commit();
+
+    assertEquals(List.of(AuditedAction.DELETE), actions());
+  }
+
+  @Test
+  void auditsNothingForAnEntityInsertedAndDeleted() throws Exception {
+    save(null, new Order(1L, "new", 1));
+    save(null, new Order(1L, "paid", 1));
+    fixture.service.createPermanentDeleteAuditLog(new Order(1L, "paid", 1), 1L);
+
+    commit();
+
+    assertEquals(List.of(), actions());
+  }
+
+  @Test
+  void keepsTheChangesOfEachEntityApart() throws Exception {
+    save(new Order(1L, "new", 1), new Order(1L, "paid", 1));
+    save(null, new Order(2L, "new", 1));
+    save(null, new Order(1L, "shipped", 1));
+
+    commit();
+
+    assertEquals(List.of(AuditedAction.UPDATE, AuditedAction.INSERT), actions());
+    assertEquals(List.of("1", "2"), fixture.written.stream().map(AuditLog::getEntityId).collect(Collectors.toList()));
+    assertEquals("shipped", fixture.codec.decode(fixture.written.get(0)).get("status").getAfter());
+  }
+
+  private void save(Order before, Order after) throws IllegalAccessException {
+    fixture.service.coalesceNonDeletingAudits(Collections.singletonList(before), List.of(after));
+  }
+
+  private static void commit() {
+    List<TransactionSynchronization> synchronizations = TransactionSynchronizationManager.getSynchronizations();
+    TransactionSynchronizationUtils.triggerBeforeCommit(false);
+    TransactionSynchronizationUtils.invokeAfterCompletion(synchronizations, TransactionSynchronization.STATUS_COMMITTED);
+  }
+
+  private List<AuditedAction> actions() {
+    return fixture.written.stream().map(AuditLog::getAction).collect(Collectors.toList());
+  }
+}
@@ -0,0 +1,163 @@
+package gr.antopapak.persistent.audit.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.persistence.ElementCollection;
+import javax.persistence.Entity;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Id;
+import org.hibernate.LockMode;
+import org.hibernate.boot.MetadataSources;
+import org.hibernate.boot.registry.StandardServiceRegistryBuilder;
+import org.hibernate.collection.internal.PersistentList;
+import org.hibernate.collection.internal.PersistentSet;
+import org.hibernate.engine.spi.PersistenceContext;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.engine.spi.Status;
+import org.hibernate.persister.entity.EntityPersister;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.orm.jpa.EntityManagerHolder;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+class EntitySnapshotResolverTest {
+
+  @Entity
+  static class Product {
+
+    @Id
+    private Long id;
+    private String name;
+    @ElementCollection
+    private List<String> tags;
+    @ElementCollection
+    private Set<String> regions;
+  }
+
+  /**
+   * A session factory whose sessions only hold entities added by the tests, so it never connects.
+   */
+  private static EntityManagerFactory entityManagerFactory;
+
+  private final EntitySnapshotResolver resolver = new EntitySnapshotResolver(entityManagerFactory);
+  private EntityManager entityManager;
+  private SessionImplementor session;
+
+  @BeforeAll
+  static void buildSessionFactory() {
+    StandardServiceRegistryBuilder registry = new StandardServiceRegistryBuilder()
+        .applySettings(Map.of(
+            "hibernate.dialect", "org.hibernate.dialect.PostgreSQL10Dialect",
+            "hibernate.temp.use_jdbc_metadata_defaults", "false"));
+    entityManagerFactory = (EntityManagerFactory) new MetadataSources(registry.build())
+        .addAnnotatedClass(Product.class)
+        .buildMetadata()
+        .buildSessionFactory();
+  }
+
+  @AfterAll
+  static void closeSessionFactory() {
+    entityManagerFactory.close();
+  }
+
+  @BeforeEach
+  void openSession() {
+    entityManager = entityManagerFactory.createEntityManager();
+    session = entityManager.unwrap(SessionImplementor.class);
+    TransactionSynchronizationManager.bindResource(entityManagerFactory, new EntityManagerHolder(entityManager));
+  }
+
+  @AfterEach
+  void closeSession() {
+    TransactionSynchronizationManager.unbindResource(entityManagerFactory);
+    entityManager.close();
+  }
+
+  @Test
+  void copiesTheLoadedElementsOfChangedCollections() {
+    Product managed = manage(1L, "lamp", List.of("home", "office"), Set.of("eu"));
+    managed.name = "desk lamp";
+    managed.tags.add("sale");
+    managed.tags.remove("home");
+    managed.regions.add("us");
+
+    Product before = (Product) resolver.snapshotOf(detached(1L), 1L);
+    assertEquals("lamp", before.name);
+    assertEquals(List.of("home", "office"), before.tags);
+    assertEquals(Set.of("eu"), before.regions);
+    assertNotSame(managed.tags, before.tags);
+    assertNotSame(managed.regions, before.regions);
+
+    //later changes of the managed collections do not leak into the snapshot
+    managed.tags.clear();
+    assertEquals(List.of("home", "office"), before.tags);
+  }
+
+  @Test
+  void copiesUnchangedCollectionsToo() {
+    Product managed = manage(1L, "lamp", List.of("home"), Set.of("eu"));
+
+    Product before = (Product) resolver.snapshotOf(managed, 1L);
+    assertEquals(List.of("home"), before.tags);
+    assertEquals(Set.of("eu"), before.regions);
+    assertFalse(before.tags instanceof PersistentList);
+  }
+
+  @Test
+  void fallsBackToTheDatabaseForCollectionsWithoutASnapshot() {
+    Product managed = manage(1L, "lamp", List.of("home"), Set.of("eu"));
+    //a collection the persistence context does not know of
+    managed.tags = new PersistentList(session, new ArrayList<>(List.of("home")));
+    session.getPersistenceContext().getEntry(managed).getLoadedState()[propertyIndex("tags")] = managed.tags;
+
+    assertNull(resolver.snapshotOf(managed, 1L));
+  }
+
+  @Test
+  void returnsNullWithoutAManagedInstance() {
+    assertNull(resolver.snapshotOf(detached(2L), 2L));
+  }
+
+  /**
+   * Adds a product to the persistence context as if it had just been loaded with the given state.
+   */
+  private Product manage(Long id, String name, List<String> tags, Set<String> regions) {
+    EntityPersister persister = session.getEntityPersister(null, new Product());
+    PersistenceContext persistenceContext = session.getPersistenceContext();
+
+    Product product = new Product();
+    product.id = id;
+    product.name = name;
+    PersistentList tagList = new PersistentList(session, new ArrayList<>(tags));
+    PersistentSet regionSet = new PersistentSet(session, new HashSet<>(regions));
+    persistenceContext.addNewCollection(session.getFactory().getMetamodel().collectionPersister(Product.class.getName() + ".tags"), tagList);
+    persistenceContext.addNewCollection(session.getFactory().getMetamodel().collectionPersister(Product.class.getName() + ".regions"), regionSet);
+    product.tags = tagList;
+    product.regions = regionSet;
+
+    persistenceContext.addEntity(product, Status.MANAGED, persister.getPropertyValues(product),
+        session.generateEntityKey(id, persister), null, LockMode.NONE, true, persister, false);
+    return product;
+  }
+
+  private static Product detached(Long id) {
+    Product product = new Product();
+    product.id = id;
+    return product;
+  }
+
+  private int propertyIndex(String name) {
+    return session.getEntityPersister(null, new Product()).getEntityMetamodel().getPropertyIndex(name);
+  }
+}
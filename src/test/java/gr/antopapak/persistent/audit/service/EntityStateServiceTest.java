@@ -0,0 +1,237 @@
+package gr.antopapak.persistent.audit.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import gr.antopapak.persistent.audit.config.PersistentAuditProperties;
+import gr.antopapak.persistent.audit.domain.AuditLog;
+import gr.antopapak.persistent.audit.model.AffectedField;
+import gr.antopapak.persistent.audit.model.AuditedAction;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import javax.persistence.Id;
+import org.junit.jupiter.api.Test;
+
+class EntityStateServiceTest {
+
+  private static final Instant START = Instant.parse("2020-01-01T00:00:00Z");
+
+  private static final List<AuditedAction> CHECKPOINTS = List.of(AuditedAction.INSERT, AuditedAction.SNAPSHOT, AuditedAction.DELETE);
+  private static final List<AuditedAction> CHANGES = List.of(AuditedAction.UPDATE, AuditedAction.SOFT_DELETE, AuditedAction.SOFT_RESTORE);
+
+  private static final Comparator<AuditLog> OLDEST_FIRST = Comparator.comparing(AuditLog::getDateTime).thenComparing(AuditLog::getId);
+
+  static class Product {
+
+    @Id
+    private Long id;
+    private String name;
+    private int price;
+    private List<String> tags;
+    private Map<String, String> attributes;
+    private boolean deleted;
+
+    Product copy() {
+      Product copy = new Product();
+      copy.id = id;
+      copy.name = name;
+      copy.price = price;
+      copy.tags = new ArrayList<>(tags);
+      copy.attributes = new LinkedHashMap<>(attributes);
+      copy.deleted = deleted;
+      return copy;
+    }
+
+    Map<String, Object> state() {
+      Map<String, Object> state = new LinkedHashMap<>();
+      state.put("name", name);
+      state.put("price", price);
+      state.put("tags", tags);
+      state.put("attributes", attributes);
+      state.put("deleted", deleted);
+      return state;
+    }
+  }
+
+  private AuditLogServiceFixture fixture;
+  private EntityStateService entityStateService;
+
+  /**
+   * The state of the entity after each save, at the instant of the save.
+   */
+  private final List<Map<String, Object>> states = new ArrayList<>();
+  private Product current;
+  private long nextId = 1;
+
+  @Test
+  void replaysTheChangesAfterTheLatestCheckpointAtEveryInstant() throws Exception {
+    setUp(true);
+    insert();
+    save(p -> p.name = "desk lamp");
+    save(p -> p.tags.add(2, "sale"));
+    save(p -> p.attributes.put("colour", "red"));
+    save(p -> {
+      p.price = 45;
+      p.tags.remove("office");
+    });
+    save(p -> p.deleted = true);
+    save(p -> p.deleted = false);
+    save(p -> Collections.swap(p.tags, 0, 3));
+    save(p -> {
+      p.attributes.remove("size");
+      p.attributes.put("colour", "blue");
+    });
+    save(p -> p.tags.add("new"));
+    save(p -> p.name = null);
+
+    List<AuditedAction> actions = fixture.written.stream().map(AuditLog::getAction).collect(Collectors.toList());
+    assertTrue(actions.contains(AuditedAction.SNAPSHOT), actions.toString());
+    assertTrue(actions.contains(AuditedAction.SOFT_DELETE), actions.toString());
+    assertTrue(fixture.written.stream()
+        .filter(auditLog -> auditLog.getAction() == AuditedAction.UPDATE)
+        .flatMap(auditLog -> fixture.codec.decode(auditLog).getAll().stream())
+        .map(AffectedField::getChanges)
+        .anyMatch(Map.class::isInstance), "no collection was written as element-level changes");
+
+    for(int i = 0; i < states.size(); i++) {
+      assertState(states.get(i), stateAsOf(instantOf(i)), "after save " + i);
+      assertState(states.get(i), stateAsOf(instantOf(i).plusMillis(500)), "between saves " + i + " and " + (i + 1));
+    }
+  }
+
+  @Test
+  void startsFromTheLatestSnapshotInsteadOfTheInsert() throws Exception {
+    setUp(true);
+    insert();
+    save(p -> p.price = 20);
+    save(p -> p.price = 30);
+    save(p -> p.price = 40);
+    //drops the insert and every change, the snapshot of the third save must be enough
+    fixture.written.removeIf(auditLog -> auditLog.getAction() != AuditedAction.SNAPSHOT);
+
+    assertEquals(1, fixture.written.size());
+    assertState(states.get(3), stateAsOf(instantOf(3)), "at the snapshot");
+    assertEquals(Optional.empty(), stateAsOf(instantOf(2)));
+  }
+
+  @Test
+  void returnsNothingBeforeTheInsertAndAfterADelete() throws Exception {
+    setUp(true);
+    insert();
+    save(p -> p.name = "desk lamp");
+    fixture.service.createPermanentDeleteAuditLog(current, current.id);
+    stamp(2);
+
+    assertEquals(Optional.empty(), stateAsOf(START.minusSeconds(1)));
+    assertState(states.get(1), stateAsOf(instantOf(1)), "before the delete");
+    assertEquals(Optional.empty(), stateAsOf(instantOf(2)));
+  }
+
+  @Test
+  void returnsNothingForAnInsertWrittenWithoutTheState() throws Exception {
+    setUp(false);
+    insert();
+    save(p -> p.name = "desk lamp");
+
+    assertEquals(Optional.empty(), stateAsOf(instantOf(1)));
+  }
+
+  @Test
+  void appliesListChangesOntoThePreviousValue() {
+    Map<String, Object> changes = Map.of(
+        "type", CollectionDiff.LIST,
+        "removed", List.of(Map.of("index", 1, "value", "b")),
+        "moved", List.of(List.of(0, 2), List.of(2, 0)),
+        "added", List.of(Map.of("index", 1, "value", "x"), Map.of("index", 4, "value", "y")));
+
+    assertEquals(List.of("d", "x", "c", "a", "y"), CollectionDiff.apply(List.of("a", "b", "c", "d"), changes));
+  }
+
+  @Test
+  void appliesSetAndMapChangesOntoThePreviousValue() {
+    Map<String, Object> setChanges = Map.of(
+        "type", CollectionDiff.SET,
+        "removed", List.of("a"),
+        "added", List.of("c"));
+    assertEquals(List.of("b", "c"), CollectionDiff.apply(List.of("a", "b"), setChanges));
+
+    Map<String, Object> mapChanges = Map.of(
+        "type", CollectionDiff.MAP,
+        "removed", List.of("size"),
+        "put", Map.of("colour", "blue", "weight", "2kg"));
+    assertEquals(Map.of("colour", "blue", "weight", "2kg"),
+        CollectionDiff.apply(Map.of("colour", "red", "size", "XL"), mapChanges));
+  }
+
+  private void setUp(boolean checkpoints) {
+    PersistentAuditProperties properties = new PersistentAuditProperties();
+    properties.getSnapshot().setEnabled(checkpoints);
+    properties.getSnapshot().setEveryChanges(3);
+    fixture = new AuditLogServiceFixture(properties);
+    entityStateService = new EntityStateService(null, new AuditDictionary(properties, null, null), fixture.codec, properties);
+  }
+
+  private void insert() throws Exception {
+    current = new Product();
+    current.id = 1L;
+    current.name = "lamp";
+    current.price = 10;
+    current.tags = new ArrayList<>(List.of("home", "office", "light", "desk", "white", "metal", "led", "small"));
+    current.attributes = new LinkedHashMap<>(Map.of("size", "S"));
+    fixture.service.createInsertAuditLog(current.copy(), current.id);
+    stamp(0);
+  }
+
+  private void save(Consumer<Product> change) throws Exception {
+    Product before = current.copy();
+    change.accept(current);
+    fixture.service.createNonDeletingAudits(Collections.singletonList(before), List.of(current.copy()));
+    stamp(states.size());
+  }
+
+  /**
+   * Dates the logs written by a save at the instant of the save, and records the state it left.
+   */
+  private void stamp(int save) {
+    for(AuditLog auditLog : fixture.written) {
+      if(auditLog.getId() == null) {
+        auditLog.setId(nextId++);
+        auditLog.setDateTime(instantOf(save));
+      }
+    }
+    states.add(current.copy().state());
+  }
+
+  private static Instant instantOf(int save) {
+    return START.plusSeconds(save);
+  }
+
+  /**
+   * Picks the checkpoint and the changes after it the way the queries of the service do.
+   */
+  private Optional<Map<String, Object>> stateAsOf(Instant at) {
+    AuditLog checkpoint = fixture.written.stream()
+        .filter(auditLog -> CHECKPOINTS.contains(auditLog.getAction()) && !auditLog.getDateTime().isAfter(at))
+        .max(OLDEST_FIRST)
+        .orElse(null);
+    return entityStateService.reconstruct(checkpoint, () -> fixture.written.stream()
+        .filter(auditLog -> CHANGES.contains(auditLog.getAction()) && !auditLog.getDateTime().isAfter(at))
+        .filter(auditLog -> OLDEST_FIRST.compare(auditLog, checkpoint) > 0)
+        .sorted(OLDEST_FIRST));
+  }
+
+  private static void assertState(Map<String, Object> expected, Optional<Map<String, Object>> actual, String message) {
+    assertTrue(actual.isPresent(), message);
+    Map<String, Object> state = new LinkedHashMap<>(actual.get());
+    state.computeIfPresent("price", (field, price) -> ((Number) price).intValue());
+    state.putIfAbsent("name", null);
+    assertEquals(expected, state, message);
+  }
+}
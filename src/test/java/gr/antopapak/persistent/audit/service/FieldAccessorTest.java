@@ -0,0 +1,81 @@
+package gr.antopapak.persistent.audit.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class FieldAccessorTest {
+
+  static class Sample {
+
+    private static final long serialVersionUID = 42L;
+    private int count = 3;
+    private long total = 1L << 40;
+    private boolean active = true;
+    private double price = 12.5;
+    private float weight = 0.75f;
+    private short rank = 9;
+    private byte flags = 7;
+    private char grade = 'B';
+    private String name = "lamp";
+    private List<String> tags = null;
+  }
+
+  @Test
+  void readsEveryKindOfField() throws Exception {
+    Sample sample = new Sample();
+
+    assertEquals(3, accessor("count").getInt(sample));
+    assertEquals(1L << 40, accessor("total").getLong(sample));
+    assertTrue(accessor("active").getBoolean(sample));
+    assertEquals(12.5, accessor("price").getDouble(sample));
+    assertEquals(0.75f, accessor("weight").getFloat(sample));
+    assertEquals((short) 9, accessor("rank").getShort(sample));
+    assertEquals((byte) 7, accessor("flags").getByte(sample));
+    assertEquals('B', accessor("grade").getChar(sample));
+    assertEquals("lamp", accessor("name").get(sample));
+    assertNull(accessor("tags").get(sample));
+    assertEquals(42L, accessor("serialVersionUID").get(null));
+
+    //primitive fields are boxed by get
+    assertEquals(3, accessor("count").get(sample));
+    assertEquals('B', accessor("grade").get(sample));
+  }
+
+  @Test
+  void comparesPrimitiveFieldsWithoutBoxing() throws Exception {
+    Sample a = new Sample();
+    Sample b = new Sample();
+    b.price = 13.0;
+    b.weight = Float.NaN;
+    a.weight = Float.NaN;
+
+    assertTrue(accessor("count").valueEquals(a, b));
+    assertFalse(accessor("price").valueEquals(a, b));
+    assertTrue(accessor("weight").valueEquals(a, b));
+    assertTrue(accessor("name").valueEquals(a, b));
+  }
+
+  @Test
+  void generatesAGetterClassPerField() throws Exception {
+    MethodHandle handle = MethodHandles.lookup().findGetter(Sample.class, "count", int.class);
+    FieldGetter getter = FieldGetter.of(handle.asType(MethodType.methodType(Object.class, Object.class)),
+        handle.asType(MethodType.methodType(int.class, Object.class)));
+
+    assertTrue(getter.getClass().isSynthetic());
+    assertEquals(3, getter.getInt(new Sample()));
+    assertThrows(UnsupportedOperationException.class, () -> getter.getLong(new Sample()));
+    assertThrows(NullPointerException.class, () -> getter.get(null));
+  }
+
+  private static FieldAccessor accessor(String name) throws NoSuchFieldException {
+    return new FieldAccessor(Sample.class.getDeclaredField(name));
+  }
+}
@@ -0,0 +1,301 @@
+package gr.antopapak.persistent.audit.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import gr.antopapak.persistent.audit.annotation.PersistentLogAudit;
+import gr.antopapak.persistent.audit.differ.EntityDiffer;
+import gr.antopapak.persistent.audit.model.AffectedField;
+import gr.antopapak.persistent.audit.processor.PersistentLogAuditProcessor;
+import java.io.File;
+import java.lang.reflect.Field;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import org.hibernate.annotations.NaturalId;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.data.annotation.CreatedDate;
+
+/**
+ * Compiles entities with {@link PersistentLogAuditProcessor}, and requires their generated
+ * {@link EntityDiffer} to report the same changes as the reflective path of {@link FieldMap}.
+ */
+class GeneratedDifferTest {
+
+  private static final String BASE_ENTITY = String.join("\n",
+      "package fixture;",
+      "",
+      "public abstract class BaseEntity {",
+      "  @javax.persistence.Id",
+      "  protected Long id;",
+      "  @org.springframework.data.annotation.CreatedDate",
+      "  protected java.time.Instant created;",
+      "  protected String owner;",
+      "}");
+
+  private static final String PRODUCT = String.join("\n",
+      "package fixture;",
+      "",
+      "@gr.antopapak.persistent.audit.annotation.PersistentLogAudit",
+      "public class Product extends BaseEntity {",
+      "  static int instances;",
+      "  static final String REGION = \"eu\";",
+      "  @org.hibernate.annotations.NaturalId",
+      "  private String sku;",
+      "  @gr.antopapak.persistent.audit.annotation.PersistentLogAudit.Exclude",
+      "  private String secret;",
+      "  @org.springframework.data.annotation.LastModifiedDate",
+      "  private java.time.Instant modified;",
+      "  private String name;",
+      "  private int stock;",
+      "  private long version;",
+      "  private boolean active;",
+      "  private char grade;",
+      "  private byte flags;",
+      "  private short rank;",
+      "  private double price;",
+      "  private float weight;",
+      "  private Double discount;",
+      "  private java.util.List<String> tags;",
+      "  private java.util.Map<String, Integer> limits;",
+      "}");
+
+  @TempDir
+  static Path directory;
+
+  private static Class<?> product;
+
+  private final ReflectionCache reflectionCache = new ReflectionCache(new NoopAuditMetrics());
+  private final Associations associations = new Associations(reflectionCache);
+
+  @BeforeAll
+  static void compileFixtures() throws Exception {
+    Path sources = Files.createDirectories(directory.resolve("src/fixture"));
+    Path classes = Files.createDirectories(directory.resolve("classes"));
+    Files.write(sources.resolve("BaseEntity.java"), BASE_ENTITY.getBytes(StandardCharsets.UTF_8));
+    Files.write(sources.resolve("Product.java"), PRODUCT.getBytes(StandardCharsets.UTF_8));
+
+    JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+    DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+    try (StandardJavaFileManager files = compiler.getStandardFileManager(diagnostics, null, StandardCharsets.UTF_8)) {
+      String classpath = Stream.of(PersistentLogAudit.class, javax.persistence.Id.class, NaturalId.class, CreatedDate.class)
+          .map(GeneratedDifferTest::location)
+          .collect(Collectors.joining(File.pathSeparator));
+      JavaCompiler.CompilationTask task = compiler.getTask(null, files, diagnostics,
+          List.of("-classpath", classpath, "-d", classes.toString()), null,
+          files.getJavaFileObjects(sources.resolve("BaseEntity.java").toFile(), sources.resolve("Product.java").toFile()));
+      task.setProcessors(List.of(new PersistentLogAuditProcessor()));
+      assertTrue(task.call(), diagnostics.getDiagnostics().toString());
+    }
+    assertTrue(Files.exists(classes.resolve("fixture/Product" + EntityDiffer.GENERATED_SUFFIX + ".class")));
+
+    URLClassLoader loader = new URLClassLoader(new URL[] {classes.toUri().toURL()}, GeneratedDifferTest.class.getClassLoader());
+    product = loader.loadClass("fixture.Product");
+  }
+
+  @Test
+  void reportsNoChangeForEqualStates() throws Exception {
+    assertSameChanges(p -> {});
+  }
+
+  @Test
+  void reportsEveryKindOfChangedField() throws Exception {
+    Set<String> changed = assertSameChanges(p -> {
+      set(p, "name", "desk lamp");
+      set(p, "stock", 4);
+      set(p, "version", 2L);
+      set(p, "active", false);
+      set(p, "grade", 'B');
+      set(p, "flags", (byte) 3);
+      set(p, "rank", (short) 9);
+      set(p, "price", 12.5);
+      set(p, "weight", 0.75f);
+      set(p, "discount", 0.2);
+      set(p, "sku", "LMP-2");
+    });
+    assertEquals(Set.of("sku", "name", "stock", "version", "active", "grade", "flags", "rank", "price", "weight", "discount"), changed);
+  }
+
+  @Test
+  void skipsExcludedFieldsAndIncludesInheritedOnes() throws Exception {
+    Set<String> changed = assertSameChanges(p -> {
+      set(p, "id", 2L);
+      set(p, "created", Instant.EPOCH.plusSeconds(60));
+      set(p, "modified", Instant.EPOCH.plusSeconds(60));
+      set(p, "secret", "changed");
+      set(p, "owner", "someone else");
+    });
+    assertEquals(Set.of("owner"), changed);
+  }
+
+  @Test
+  void reportsChangesFromAndToNull() throws Exception {
+    assertEquals(Set.of("name", "discount"), assertSameChanges(p -> {
+      set(p, "name", null);
+      set(p, "discount", null);
+    }));
+    assertEquals(Set.of("tags", "limits"), assertSameChanges(p -> {
+      set(p, "tags", null);
+      set(p, "limits", null);
+    }));
+  }
+
+  @Test
+  void comparesFloatingPointValuesByTheirBits() throws Exception {
+    assertEquals(Set.of("price", "weight"), assertSameChanges(p -> {
+      set(p, "price", -0.0);
+      set(p, "weight", -0.0f);
+    }, p -> {
+      set(p, "price", 0.0);
+      set(p, "weight", 0.0f);
+    }));
+    assertEquals(Set.of(), assertSameChanges(p -> {
+      set(p, "price", Double.NaN);
+      set(p, "weight", Float.NaN);
+      set(p, "discount", Double.NaN);
+    }, p -> {}));
+    assertEquals(Set.of("price"), assertSameChanges(p -> set(p, "price", Math.nextUp(10.0))));
+  }
+
+  @Test
+  void reportsCollectionsElementByElement() throws Exception {
+    Set<String> changed = assertSameChanges(p -> {
+      List<String> tags = new ArrayList<>(get(p, "tags"));
+      tags.add(3, "sale");
+      set(p, "tags", tags);
+      Map<String, Integer> limits = new LinkedHashMap<>(get(p, "limits"));
+      limits.put("daily", 7);
+      set(p, "limits", limits);
+    });
+    assertEquals(Set.of("tags", "limits"), changed);
+    assertEquals(Set.of(), assertSameChanges(p -> set(p, "tags", new ArrayList<>(get(p, "tags")))));
+  }
+
+  @Test
+  void readsTheSameIdAndNaturalId() throws Exception {
+    Object entity = sample();
+    EntityDiffer<Object> differ = reflectionCache.getDifferForClass(product);
+    assertNotNull(differ);
+
+    assertEquals(reflectionCache.getIdForClass(product).get(entity), differ.getId(entity));
+    assertEquals(reflectionCache.getNaturalIdForClass(product).get(entity), differ.getNaturalId(entity));
+    assertEquals("LMP-1", differ.getNaturalId(entity));
+  }
+
+  private Set<String> assertSameChanges(Consumer<Object> change) throws Exception {
+    return assertSameChanges(p -> {}, change);
+  }
+
+  /**
+   * Diffs a sample entity against a changed copy both ways, and requires the same changes.
+   *
+   * @param prepare applied to both states
+   * @param change applied to the after state only
+   * @return the names of the changed fields
+   */
+  private Set<String> assertSameChanges(Consumer<Object> prepare, Consumer<Object> change) throws Exception {
+    Object before = sample();
+    Object after = sample();
+    prepare.accept(before);
+    prepare.accept(after);
+    change.accept(after);
+
+    EntityDiffer<Object> differ = reflectionCache.getDifferForClass(product);
+    assertNotNull(differ, "no generated differ was found");
+
+    FieldMap generated = new FieldMap(reflectionCache.getSchemaForClass(product), associations);
+    differ.diff(before, after, generated);
+    FieldMap reflective = new FieldMap(reflectionCache.getSchemaForClass(product), associations);
+    reflective.compare(before, after);
+
+    Map<String, AffectedField> changes = byName(reflective);
+    assertEquals(changes, byName(generated));
+    return changes.keySet();
+  }
+
+  private static Map<String, AffectedField> byName(FieldMap fieldMap) {
+    Map<String, AffectedField> changes = new TreeMap<>();
+    fieldMap.getAllAffectedEntries().forEach(field -> changes.put(field.getFieldName(), field));
+    return changes;
+  }
+
+  private static Object sample() throws Exception {
+    Object entity = product.getDeclaredConstructor().newInstance();
+    set(entity, "id", 1L);
+    set(entity, "created", Instant.EPOCH);
+    set(entity, "owner", "owner");
+    set(entity, "sku", "LMP-1");
+    set(entity, "secret", "secret");
+    set(entity, "modified", Instant.EPOCH);
+    set(entity, "name", "lamp");
+    set(entity, "stock", 3);
+    set(entity, "version", 1L);
+    set(entity, "active", true);
+    set(entity, "grade", 'A');
+    set(entity, "flags", (byte) 1);
+    set(entity, "rank", (short) 2);
+    set(entity, "price", 10.0);
+    set(entity, "weight", 0.5f);
+    set(entity, "discount", 0.1);
+    set(entity, "tags", new ArrayList<>(List.of("home", "office", "light", "desk", "white", "metal", "led", "small")));
+    set(entity, "limits", new LinkedHashMap<>(Map.of("monthly", 30)));
+    return entity;
+  }
+
+  private static void set(Object entity, String name, Object value) {
+    try {
+      field(name).set(entity, value);
+    } catch (IllegalAccessException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <T> T get(Object entity, String name) {
+    try {
+      return (T) field(name).get(entity);
+    } catch (IllegalAccessException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static Field field(String name) {
+    for(Class<?> c = product; c != null; c = c.getSuperclass()) {
+      try {
+        Field field = c.getDeclaredField(name);
+        field.setAccessible(true);
+        return field;
+      } catch (NoSuchFieldException e) {
+        //declared by a superclass
+      }
+    }
+    throw new IllegalArgumentException(name);
+  }
+
+  private static String location(Class<?> type) {
+    try {
+      return Path.of(type.getProtectionDomain().getCodeSource().getLocation().toURI()).toString();
+    } catch (Exception e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
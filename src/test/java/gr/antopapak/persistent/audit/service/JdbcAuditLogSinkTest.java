@@ -0,0 +1,258 @@
+package gr.antopapak.persistent.audit.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import gr.antopapak.persistent.audit.config.PersistentAuditProperties;
+import gr.antopapak.persistent.audit.domain.AuditFieldChange;
+import gr.antopapak.persistent.audit.domain.AuditLog;
+import gr.antopapak.persistent.audit.model.AuditedAction;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+import javax.sql.DataSource;
+import org.junit.jupiter.api.Test;
+import org.springframework.dao.DataRetrievalFailureException;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+class JdbcAuditLogSinkTest {
+
+  /**
+   * A statement run by the sink: its SQL and its parameters by index.
+   */
+  static class Executed {
+
+    final String sql;
+    final Map<Integer, Object> parameters = new TreeMap<>();
+
+    Executed(String sql) {
+      this.sql = sql;
+    }
+
+    int rows() {
+      return sql.split("\\(\\?").length - 1;
+    }
+
+    Object get(int index) {
+      return parameters.get(index);
+    }
+  }
+
+  /**
+   * A JDBC driver stand-in that records the statements run on it, and returns sequential
+   * ids as the generated keys of an insert, fewer than its rows if told so.
+   */
+  static class FakeDatabase {
+
+    final List<Executed> executed = new ArrayList<>();
+    long nextId = 100;
+    int missingKeys;
+
+    DataSource dataSource() {
+      return proxy(DataSource.class, (method, args) ->
+          "getConnection".equals(method) ? connection() : null);
+    }
+
+    private Connection connection() {
+      return proxy(Connection.class, (method, args) -> {
+        switch(method) {
+          case "prepareStatement":
+            return statement(new Executed((String) args[0]));
+          case "getMetaData":
+            return proxy(DatabaseMetaData.class, (name, ignored) -> "getDatabaseProductName".equals(name) ? "H2" : null);
+          default:
+            return null;
+        }
+      });
+    }
+
+    private PreparedStatement statement(Executed statement) {
+      return proxy(PreparedStatement.class, (method, args) -> {
+        if(method.startsWith("set") && args.length >= 2 && args[0] instanceof Integer) {
+          statement.parameters.put((Integer) args[0], args[1]);
+          return null;
+        }
+        switch(method) {
+          case "executeUpdate":
+            executed.add(statement);
+            return statement.rows();
+          case "getGeneratedKeys":
+            List<Long> ids = new ArrayList<>();
+            for(int i = 0; i < statement.rows() - missingKeys; i++) {
+              ids.add(nextId++);
+            }
+            return keys(ids.iterator());
+          default:
+            return null;
+        }
+      });
+    }
+
+    private static ResultSet keys(Iterator<Long> ids) {
+      Long[] current = new Long[1];
+      return proxy(ResultSet.class, (method, args) -> {
+        switch(method) {
+          case "next":
+            current[0] = ids.hasNext() ? ids.next() : null;
+            return current[0] != null;
+          case "getObject":
+            return current[0];
+          case "getMetaData":
+            return proxy(ResultSetMetaData.class, (name, ignored) -> "getColumnCount".equals(name) ? 1 : "id");
+          default:
+            return null;
+        }
+      });
+    }
+  }
+
+  interface Handler {
+
+    Object invoke(String method, Object[] args);
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <T> T proxy(Class<T> type, Handler handler) {
+    return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type}, (proxy, method, args) -> {
+      Object result = handler.invoke(method.getName(), args == null ? new Object[0] : args);
+      if(result == null && method.getReturnType().isPrimitive()) {
+        return method.getReturnType() == boolean.class ? Boolean.FALSE : defaultNumber(method.getReturnType());
+      }
+      return result;
+    });
+  }
+
+  private static Object defaultNumber(Class<?> type) {
+    if(type == void.class) {
+      return null;
+    }
+    return type == long.class ? (Object) 0L : (Object) 0;
+  }
+
+  @Test
+  void appendTextEscapesBackslashesAndDelimiters() {
+    assertEquals("a\\\\b\\tc\\nd\\re", JdbcAuditLogSink.appendText(new StringBuilder(), "a\\b\tc\nd\re").toString());
+    assertEquals("\\N", JdbcAuditLogSink.appendText(new StringBuilder(), null).toString());
+    assertEquals("42", JdbcAuditLogSink.appendText(new StringBuilder(), 42).toString());
+    assertEquals("NULL", JdbcAuditLogSink.appendText(new StringBuilder(), "NULL").toString());
+  }
+
+  @Test
+  void appendByteaWritesTheEscapedHexFormat() {
+    byte[] value = {0x00, 0x7f, (byte) 0x80, (byte) 0xff, 0x0a};
+    assertEquals("\\\\x007f80ff0a", JdbcAuditLogSink.appendBytea(new StringBuilder(), value).toString());
+    assertEquals("\\\\x", JdbcAuditLogSink.appendBytea(new StringBuilder(), new byte[0]).toString());
+    assertEquals("\\N", JdbcAuditLogSink.appendBytea(new StringBuilder(), null).toString());
+  }
+
+  @Test
+  void insertsInChunksOfTheBatchSizeWithAShortLastChunk() {
+    FakeDatabase database = new FakeDatabase();
+    sink(database, 3).write(auditLogs(7));
+
+    assertEquals(List.of(3, 3, 1), rowsPerStatement(database));
+    assertEquals(List.of(30, 30, 10), database.executed.stream().map(statement -> statement.parameters.size()).collect(Collectors.toList()));
+    List<Object> auditors = new ArrayList<>();
+    for(Executed statement : database.executed) {
+      for(int row = 0; row < statement.rows(); row++) {
+        auditors.add(statement.get(1 + row * 10));
+      }
+    }
+    assertEquals(List.of("auditor-0", "auditor-1", "auditor-2", "auditor-3", "auditor-4", "auditor-5", "auditor-6"), auditors);
+  }
+
+  @Test
+  void chunksAtTheBatchSizeBoundaries() {
+    assertEquals(List.of(), rowsPerStatement(3, 0));
+    assertEquals(List.of(2), rowsPerStatement(3, 2));
+    assertEquals(List.of(3), rowsPerStatement(3, 3));
+    assertEquals(List.of(3, 1), rowsPerStatement(3, 4));
+    assertEquals(List.of(3, 3), rowsPerStatement(3, 6));
+    assertEquals(List.of(1, 1, 1), rowsPerStatement(1, 3));
+    //a non-positive batch size writes one row per statement
+    assertEquals(List.of(1, 1), rowsPerStatement(0, 2));
+  }
+
+  @Test
+  void setsTheGeneratedIdsAndInsertsTheFieldChangesAfterTheLogs() {
+    FakeDatabase database = new FakeDatabase();
+    List<AuditLog> auditLogs = auditLogs(5);
+    auditLogs.get(1).setFieldChanges(List.of(fieldChange("status"), fieldChange("quantity")));
+    auditLogs.get(4).setFieldChanges(List.of(fieldChange("status")));
+
+    sink(database, 2).write(auditLogs);
+
+    assertEquals(List.of(100L, 101L, 102L, 103L, 104L), auditLogs.stream().map(AuditLog::getId).collect(Collectors.toList()));
+    assertEquals(List.of(2, 2, 1, 2, 1), rowsPerStatement(database));
+
+    Executed fieldChanges = database.executed.get(3);
+    assertTrue(fieldChanges.sql.startsWith("insert into " + AuditFieldIndex.TABLE), fieldChanges.sql);
+    assertEquals(101L, fieldChanges.get(1));
+    assertEquals("status", fieldChanges.get(3));
+    assertEquals(101L, fieldChanges.get(6));
+    assertEquals("quantity", fieldChanges.get(8));
+    assertEquals(104L, database.executed.get(4).get(1));
+  }
+
+  @Test
+  void failsWhenTheDriverReturnsFewerIdsThanRows() {
+    FakeDatabase database = new FakeDatabase();
+    database.missingKeys = 1;
+    List<AuditLog> auditLogs = auditLogs(2);
+    auditLogs.get(0).setFieldChanges(List.of(fieldChange("status")));
+
+    DataRetrievalFailureException e = assertThrows(DataRetrievalFailureException.class, () -> sink(database, 10).write(auditLogs));
+    assertEquals("Expected 2 generated audit log ids, got 1", e.getMessage());
+    assertNull(auditLogs.get(0).getId());
+    assertEquals(1, database.executed.size());
+  }
+
+  private static JdbcAuditLogSink sink(FakeDatabase database, int batchSize) {
+    PersistentAuditProperties properties = new PersistentAuditProperties();
+    properties.getSink().setBatchSize(batchSize);
+    return new JdbcAuditLogSink(properties, new JdbcTemplate(database.dataSource()), new AuditDictionary(properties, null, null));
+  }
+
+  private static List<Integer> rowsPerStatement(int batchSize, int auditLogs) {
+    FakeDatabase database = new FakeDatabase();
+    sink(database, batchSize).write(auditLogs(auditLogs));
+    return rowsPerStatement(database);
+  }
+
+  private static List<Integer> rowsPerStatement(FakeDatabase database) {
+    return database.executed.stream().map(Executed::rows).collect(Collectors.toList());
+  }
+
+  private static List<AuditLog> auditLogs(int count) {
+    List<AuditLog> auditLogs = new ArrayList<>(count);
+    for(int i = 0; i < count; i++) {
+      auditLogs.add(AuditLog.builder()
+          .auditor("auditor-" + i)
+          .dateTime(Instant.now())
+          .entityClassName("Customer")
+          .entityId(String.valueOf(i))
+          .action(AuditedAction.UPDATE)
+          .build());
+    }
+    return auditLogs;
+  }
+
+  private static AuditFieldChange fieldChange(String fieldName) {
+    return AuditFieldChange.builder()
+        .entityClassName("Customer")
+        .fieldName(fieldName)
+        .newValueHash(1L)
+        .build();
+  }
+}
@@ -0,0 +1,123 @@
+package gr.antopapak.persistent.audit.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import gr.antopapak.persistent.audit.config.PersistentAuditProperties;
+import gr.antopapak.persistent.audit.domain.AuditLog;
+import gr.antopapak.persistent.audit.model.AuditedAction;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.transaction.CannotCreateTransactionException;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.AbstractPlatformTransactionManager;
+import org.springframework.transaction.support.DefaultTransactionStatus;
+
+class JournalingAuditLogWriterTest {
+
+  @TempDir
+  Path directory;
+
+  @Test
+  void movesARejectedAuditLogToTheDeadLetterFileAndShipsTheRest() throws Exception {
+    List<String> written = new CopyOnWriteArrayList<>();
+    JournalingAuditLogWriter writer = writer(auditLogs -> {
+      if(auditLogs.stream().anyMatch(auditLog -> "bad".equals(auditLog.getEntityId()))) {
+        throw new DataIntegrityViolationException("value too long");
+      }
+      auditLogs.forEach(auditLog -> written.add(auditLog.getEntityId()));
+    });
+
+    writer.start();
+    try {
+      writer.spill(List.of(auditLog("1"), auditLog("2"), auditLog("3"), auditLog("bad"),
+          auditLog("5"), auditLog("6"), auditLog("7")));
+      awaitShipped(writer);
+    } finally {
+      writer.stop();
+    }
+
+    assertEquals(List.of("1", "2", "3", "5", "6", "7"), written);
+    assertTrue(Files.size(directory.resolve("dead-letter")) > 0);
+  }
+
+  @Test
+  void retriesFailuresToReachTheDatabaseWithoutDeadLettering() throws Exception {
+    List<String> written = new CopyOnWriteArrayList<>();
+    List<Integer> attempts = new CopyOnWriteArrayList<>();
+    JournalingAuditLogWriter writer = writer(auditLogs -> {
+      attempts.add(auditLogs.size());
+      if(attempts.size() <= 10) {
+        throw new CannotCreateTransactionException("database unavailable");
+      }
+      auditLogs.forEach(auditLog -> written.add(auditLog.getEntityId()));
+    });
+
+    writer.start();
+    try {
+      writer.spill(List.of(auditLog("1"), auditLog("2"), auditLog("3")));
+      awaitShipped(writer);
+    } finally {
+      writer.stop();
+    }
+
+    assertEquals(List.of("1", "2", "3"), written);
+    assertEquals(List.of(3), new ArrayList<>(attempts.subList(0, 1)));
+    assertTrue(Files.notExists(directory.resolve("dead-letter")));
+  }
+
+  private JournalingAuditLogWriter writer(AuditLogSink sink) {
+    PersistentAuditProperties properties = new PersistentAuditProperties();
+    PersistentAuditProperties.Journal journal = properties.getJournal();
+    journal.setEnabled(true);
+    journal.setDirectory(directory.toString());
+    journal.setSegmentSize(64 * 1024);
+    journal.setPollInterval(Duration.ofMillis(1));
+    journal.setMaxReplayAttempts(2);
+    return new JournalingAuditLogWriter(properties, sink, new NoopTransactionManager());
+  }
+
+  private static void awaitShipped(JournalingAuditLogWriter writer) throws InterruptedException {
+    long deadline = System.nanoTime() + Duration.ofSeconds(10).toNanos();
+    while(writer.getPendingCount() > 0 && System.nanoTime() < deadline) {
+      Thread.sleep(5);
+    }
+    assertEquals(0, writer.getPendingCount());
+  }
+
+  private static AuditLog auditLog(String entityId) {
+    return AuditLog.builder()
+        .dateTime(Instant.now())
+        .entityClassName("Customer")
+        .entityId(entityId)
+        .action(AuditedAction.UPDATE)
+        .build();
+  }
+
+  private static class NoopTransactionManager extends AbstractPlatformTransactionManager {
+
+    @Override
+    protected Object doGetTransaction() {
+      return new Object();
+    }
+
+    @Override
+    protected void doBegin(Object transaction, TransactionDefinition definition) {
+    }
+
+    @Override
+    protected void doCommit(DefaultTransactionStatus status) {
+    }
+
+    @Override
+    protected void doRollback(DefaultTransactionStatus status) {
+    }
+  }
+}
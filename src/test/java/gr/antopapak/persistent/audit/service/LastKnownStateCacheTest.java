@@ -0,0 +1,298 @@
+package gr.antopapak.persistent.audit.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import gr.antopapak.persistent.audit.annotation.PersistentLogAudit;
+import gr.antopapak.persistent.audit.aspect.PersistentAuditAspect;
+import gr.antopapak.persistent.audit.config.PersistentAuditProperties;
+import java.lang.reflect.Proxy;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import javax.persistence.Entity;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Id;
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.hibernate.boot.MetadataSources;
+import org.hibernate.boot.registry.StandardServiceRegistryBuilder;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.repository.CrudRepository;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionSynchronizationUtils;
+
+class LastKnownStateCacheTest {
+
+  @Entity
+  @PersistentLogAudit
+  static class Item {
+
+    @Id
+    private Long id;
+    private String name;
+    private int quantity;
+
+    Item() {
+    }
+
+    Item(Long id, String name, int quantity) {
+      this.id = id;
+      this.name = name;
+      this.quantity = quantity;
+    }
+  }
+
+  interface ItemRepository extends CrudRepository<Item, Long> {
+  }
+
+  /**
+   * A session factory that is only asked for the persister of {@link Item}, so it never connects.
+   */
+  private static EntityManagerFactory entityManagerFactory;
+
+  private PersistentAuditProperties properties;
+  private AuditLogServiceFixture fixture;
+  private LastKnownStateCache cache;
+
+  @BeforeAll
+  static void buildSessionFactory() {
+    StandardServiceRegistryBuilder registry = new StandardServiceRegistryBuilder()
+        .applySettings(Map.of(
+            "hibernate.dialect", "org.hibernate.dialect.PostgreSQL10Dialect",
+            "hibernate.temp.use_jdbc_metadata_defaults", "false"));
+    entityManagerFactory = (EntityManagerFactory) new MetadataSources(registry.build())
+        .addAnnotatedClass(Item.class)
+        .buildMetadata()
+        .buildSessionFactory();
+  }
+
+  @AfterAll
+  static void closeSessionFactory() {
+    entityManagerFactory.close();
+  }
+
+  @BeforeEach
+  void setUp() {
+    properties = new PersistentAuditProperties();
+    properties.getStateCache().setEnabled(true);
+    fixture = new AuditLogServiceFixture(properties, entityManagerFactory);
+    cache = fixture.lastKnownStateCache;
+  }
+
+  @AfterEach
+  void endTransaction() {
+    if(TransactionSynchronizationManager.isSynchronizationActive()) {
+      TransactionSynchronizationManager.clear();
+    }
+  }
+
+  @Test
+  void returnsACopyOfTheLastSavedStateOrUnchanged() {
+    properties.getStateCache().setSkipUnchanged(true);
+    cache.put(new Item(1L, "lamp", 3), 1L);
+
+    Object before = cache.stateBefore(new Item(1L, "desk lamp", 3), 1L);
+    assertTrue(before instanceof Item);
+    assertEquals("lamp", ((Item) before).name);
+    assertEquals(3, ((Item) before).quantity);
+    assertSame(LastKnownStateCache.UNCHANGED, cache.stateBefore(new Item(1L, "lamp", 3), 1L));
+    assertNull(cache.stateBefore(new Item(2L, "lamp", 3), 2L));
+
+    assertEquals(2, cache.getHitCount());
+    assertEquals(1, cache.getMissCount());
+    assertEquals(1, cache.getUnchangedCount());
+  }
+
+  @Test
+  void readsTheStateOfAnUnchangedSaveFromTheDatabaseUnlessSkipUnchangedIsSet() {
+    cache.put(new Item(1L, "lamp", 3), 1L);
+
+    //another node may have changed the entity since, so the save is diffed against the database
+    assertNull(cache.stateBefore(new Item(1L, "lamp", 3), 1L));
+    assertEquals(0, cache.getUnchangedCount());
+    Object before = cache.stateBefore(new Item(1L, "desk lamp", 3), 1L);
+    assertEquals("lamp", ((Item) before).name);
+
+    properties.getStateCache().setSkipUnchanged(true);
+    assertSame(LastKnownStateCache.UNCHANGED, cache.stateBefore(new Item(1L, "lamp", 3), 1L));
+    assertEquals(1, cache.getUnchangedCount());
+  }
+
+  @Test
+  void storesTheStateOnlyOnceTheTransactionCommits() {
+    begin();
+    Item saved = new Item(1L, "lamp", 3);
+    cache.put(saved, 1L);
+    assertNull(cache.stateBefore(new Item(1L, "desk lamp", 3), 1L));
+    commit();
+
+    Object before = cache.stateBefore(new Item(1L, "desk lamp", 3), 1L);
+    assertEquals("lamp", ((Item) before).name);
+    assertNotSame(saved, before);
+  }
+
+  @Test
+  void copiesTheStateWhenTheTransactionCommits() {
+    properties.getStateCache().setSkipUnchanged(true);
+    begin();
+    Item saved = new Item(1L, "lamp", 3);
+    cache.put(saved, 1L);
+    //changed after the save, and flushed with it
+    saved.quantity = 4;
+    commit();
+
+    assertSame(LastKnownStateCache.UNCHANGED, cache.stateBefore(new Item(1L, "lamp", 4), 1L));
+  }
+
+  @Test
+  void refreshesTheStatesOfEntitiesSavedWithSaveAll() throws Throwable {
+    cache.put(new Item(1L, "lamp", 3), 1L);
+    Item stored = new Item(1L, "lamp", 3);
+
+    PersistentAuditAspect aspect = new PersistentAuditAspect(fixture.service, new NoopAuditMetrics());
+    aspect.auditAll(saveAll(List.of(new Item(1L, "desk lamp", 3)), stored));
+
+    //saving the first state again is a change, and is not taken as unchanged
+    Object before = cache.stateBefore(new Item(1L, "lamp", 3), 1L);
+    assertTrue(before instanceof Item);
+    assertEquals("desk lamp", ((Item) before).name);
+  }
+
+  @Test
+  void forgetsThePreviousStateAndStoresNothingOnRollback() {
+    cache.put(new Item(1L, "lamp", 3), 1L);
+
+    begin();
+    cache.put(new Item(1L, "desk lamp", 3), 1L);
+    rollback();
+
+    //neither the rolled back state nor the one before it may be taken as the last state
+    assertNull(cache.stateBefore(new Item(1L, "lamp", 3), 1L));
+    assertEquals(0, cache.getEntryCount());
+  }
+
+  @Test
+  void expiresStatesAfterTheTimeToLive() throws Exception {
+    properties.getStateCache().setTimeToLive(Duration.ofMillis(1));
+    cache.put(new Item(1L, "lamp", 3), 1L);
+    Thread.sleep(10);
+
+    assertNull(cache.stateBefore(new Item(1L, "lamp", 3), 1L));
+    assertEquals(1, cache.getExpiredCount());
+    assertEquals(0, cache.getEntryCount());
+    assertEquals(0, cache.getSize());
+  }
+
+  @Test
+  void evictsTheLeastRecentlyUsedStatesBeyondTheMaximumSize() {
+    properties.getStateCache().setSkipUnchanged(true);
+    cache.put(new Item(1L, "lamp-1", 3), 1L);
+    long entrySize = cache.getSize();
+    properties.getStateCache().setMaxSize(2 * entrySize);
+
+    cache.put(new Item(2L, "lamp-2", 3), 2L);
+    assertSame(LastKnownStateCache.UNCHANGED, cache.stateBefore(new Item(1L, "lamp-1", 3), 1L));
+    cache.put(new Item(3L, "lamp-3", 3), 3L);
+
+    assertEquals(1, cache.getEvictionCount());
+    assertEquals(2, cache.getEntryCount());
+    assertEquals(2 * entrySize, cache.getSize());
+    assertNull(cache.stateBefore(new Item(2L, "lamp-2", 3), 2L));
+    assertSame(LastKnownStateCache.UNCHANGED, cache.stateBefore(new Item(1L, "lamp-1", 3), 1L));
+    assertSame(LastKnownStateCache.UNCHANGED, cache.stateBefore(new Item(3L, "lamp-3", 3), 3L));
+  }
+
+  @Test
+  void skipsStatesLargerThanTheMaximumSize() {
+    properties.getStateCache().setMaxSize(64);
+    cache.put(new Item(1L, "lamp", 3), 1L);
+
+    assertEquals(0, cache.getEntryCount());
+    assertEquals(0, cache.getEvictionCount());
+  }
+
+  @Test
+  void invalidatesTheStateOfADeletedEntity() throws Exception {
+    Item item = new Item(1L, "lamp", 3);
+    cache.put(item, 1L);
+    fixture.service.createPermanentDeleteAuditLog(item, 1L);
+
+    assertNull(cache.stateBefore(new Item(1L, "lamp", 3), 1L));
+    assertEquals(1, cache.getInvalidationCount());
+  }
+
+  @Test
+  void invalidatesTheStateOnDeleteById() throws Exception {
+    cache.put(new Item(1L, "lamp", 3), 1L);
+    fixture.service.createPermanentDeleteAuditLog(1L, CrudRepository.class, repository());
+
+    assertNull(cache.stateBefore(new Item(1L, "lamp", 3), 1L));
+    assertEquals(1, cache.getInvalidationCount());
+  }
+
+  /**
+   * @return a repository that holds the given entities, and nothing once they are deleted
+   */
+  private static ItemRepository repository(Item... stored) {
+    return (ItemRepository) Proxy.newProxyInstance(ItemRepository.class.getClassLoader(), new Class<?>[] {ItemRepository.class},
+        (proxy, method, args) -> {
+          switch(method.getName()) {
+            case "findById":
+              return Arrays.stream(stored).filter(item -> item.id.equals(args[0])).findFirst();
+            case "findAllById":
+              List<Item> found = new ArrayList<>();
+              ((Iterable<?>) args[0]).forEach(id -> Arrays.stream(stored).filter(item -> item.id.equals(id)).forEach(found::add));
+              return found;
+            default:
+              throw new UnsupportedOperationException(method.getName());
+          }
+        });
+  }
+
+  /**
+   * @return a call of saveAll with the given entities, on a repository that holds the given ones
+   */
+  private static ProceedingJoinPoint saveAll(List<Item> entities, Item... stored) {
+    ItemRepository repository = repository(stored);
+    return (ProceedingJoinPoint) Proxy.newProxyInstance(ProceedingJoinPoint.class.getClassLoader(), new Class<?>[] {ProceedingJoinPoint.class},
+        (proxy, method, args) -> {
+          switch(method.getName()) {
+            case "getArgs":
+              return new Object[] {entities};
+            case "getThis":
+              return repository;
+            case "proceed":
+              return args[0].getClass() == Object[].class ? ((Object[]) args[0])[0] : entities;
+            default:
+              throw new UnsupportedOperationException(method.getName());
+          }
+        });
+  }
+
+  private static void begin() {
+    TransactionSynchronizationManager.initSynchronization();
+    TransactionSynchronizationManager.setActualTransactionActive(true);
+  }
+
+  private static void commit() {
+    List<TransactionSynchronization> synchronizations = TransactionSynchronizationManager.getSynchronizations();
+    TransactionSynchronizationUtils.invokeAfterCommit(synchronizations);
+    TransactionSynchronizationUtils.invokeAfterCompletion(synchronizations, TransactionSynchronization.STATUS_COMMITTED);
+    TransactionSynchronizationManager.clear();
+  }
+
+  private static void rollback() {
+    List<TransactionSynchronization> synchronizations = TransactionSynchronizationManager.getSynchronizations();
+    TransactionSynchronizationUtils.invokeAfterCompletion(synchronizations, TransactionSynchronization.STATUS_ROLLED_BACK);
+    TransactionSynchronizationManager.clear();
+  }
+}
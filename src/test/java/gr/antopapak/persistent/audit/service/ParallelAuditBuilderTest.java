@@ -0,0 +1,109 @@
+package gr.antopapak.persistent.audit.service;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import gr.antopapak.persistent.audit.config.PersistentAuditProperties;
+import gr.antopapak.persistent.audit.config.PersistentAuditProperties.StorageFormat;
+import gr.antopapak.persistent.audit.domain.AuditLog;
+import gr.antopapak.persistent.audit.model.AuditedAction;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.junit.jupiter.api.Test;
+
+class ParallelAuditBuilderTest {
+
+  private static final int BATCH_SIZE = 500;
+
+  static class Account {
+
+    private String name;
+    private String notes;
+    private long balance;
+    private double rate;
+    private List<String> tags;
+
+    Account(int seed, boolean changed) {
+      this.name = "account-" + seed;
+      this.notes = (changed ? "n" : "o").repeat(50 + seed % 200);
+      this.balance = changed ? seed * 7L : seed;
+      this.rate = seed % 3 == 0 && changed ? 0.5 : 0.25;
+      this.tags = changed ? List.of("a", "b" + seed) : List.of("a");
+    }
+  }
+
+  /**
+   * Records the threads values are stored on, instead of storing them.
+   */
+  static class ThreadRecordingValueStore extends AuditValueStore {
+
+    private final Set<Thread> threads = ConcurrentHashMap.newKeySet();
+
+    ThreadRecordingValueStore(PersistentAuditProperties properties) {
+      super(properties, null, null);
+    }
+
+    @Override
+    void storeAll(List<PendingValue> pending) {
+      if(!pending.isEmpty()) {
+        threads.add(Thread.currentThread());
+      }
+    }
+  }
+
+  @Test
+  void parallelAndSequentialBuildsAreIdenticalAndInOrder() throws Exception {
+    for(StorageFormat format : StorageFormat.values()) {
+      List<byte[]> sequential = build(format, false);
+      List<byte[]> parallel = build(format, true);
+
+      assertEquals(BATCH_SIZE, parallel.size(), format.name());
+      for(int i = 0; i < BATCH_SIZE; i++) {
+        assertArrayEquals(sequential.get(i), parallel.get(i), format + " entity " + i);
+      }
+    }
+  }
+
+  private static List<byte[]> build(StorageFormat format, boolean parallel) throws Exception {
+    PersistentAuditProperties properties = new PersistentAuditProperties();
+    properties.getStorage().setFormat(format);
+    properties.getValues().setEnabled(true);
+    properties.getValues().setThreshold(200);
+    properties.getParallel().setEnabled(parallel);
+    properties.getParallel().setThreshold(2);
+    properties.getParallel().setParallelism(4);
+
+    ReflectionCache reflectionCache = new ReflectionCache(new NoopAuditMetrics());
+    Associations associations = new Associations(reflectionCache);
+    ThreadRecordingValueStore store = new ThreadRecordingValueStore(properties);
+    AffectedFieldsCodec codec = new AffectedFieldsCodec(properties, new ObjectMapper(),
+        new AffectedFieldSerializer(reflectionCache, associations), new AuditDictionary(properties, null, null), store);
+    ParallelAuditBuilder builder = new ParallelAuditBuilder(properties);
+
+    try {
+      Set<Thread> serializedOn = ConcurrentHashMap.newKeySet();
+      List<AffectedFieldsCodec.Serialized> serialized = builder.buildAll(BATCH_SIZE, i -> {
+        serializedOn.add(Thread.currentThread());
+        FieldMap fieldMap = new FieldMap(reflectionCache.getSchemaForClass(Account.class), associations);
+        fieldMap.compare(new Account(i, false), new Account(i, true));
+        return codec.serialize(fieldMap, AuditPolicy.DEFAULT);
+      });
+      assertEquals(parallel, !serializedOn.contains(Thread.currentThread()));
+
+      List<byte[]> payloads = new ArrayList<>(serialized.size());
+      for(AffectedFieldsCodec.Serialized fields : serialized) {
+        AuditLog auditLog = AuditLog.builder().action(AuditedAction.UPDATE).build();
+        codec.complete(auditLog, fields);
+        payloads.add(format == StorageFormat.SMILE ? auditLog.getAffectedFieldsBinary() : auditLog.getAffectedFieldsBytes());
+      }
+      assertEquals(Set.of(Thread.currentThread()), store.threads);
+      assertTrue(payloads.stream().allMatch(payload -> payload.length > 0));
+      return payloads;
+    } finally {
+      builder.stop();
+    }
+  }
+}